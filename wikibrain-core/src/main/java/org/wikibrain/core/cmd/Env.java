@@ -31,6 +31,12 @@ public class Env implements Closeable {
     private Configuration configuration;
     private Configurator configurator;
 
+    /**
+     * If true, the environment is shared by programs in this JVM and close() has no effect.
+     * @see EnvBuilder#shareEnvs()
+     */
+    private volatile boolean shared = false;
+
     /**
      * Parses standard command line arguments and builds the environment using them.
      */
@@ -182,8 +188,14 @@ public class Env implements Closeable {
         return getLanguages().getDefaultLanguage();
     }
 
+    void setShared(boolean shared) {
+        this.shared = shared;
+    }
+
     @Override
     public void close() throws IOException {
-        configurator.close();
+        if (!shared) {
+            configurator.close();
+        }
     }
 }
@@ -6,8 +6,8 @@ import org.wikibrain.conf.DefaultOptionBuilder;
 import org.wikibrain.core.lang.LanguageSet;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.util.*;
 
 /**
  * Builds an environment by setting common options.
@@ -29,6 +29,12 @@ import java.util.Map;
  * @author Shilad Sen
  */
 public class EnvBuilder {
+    /**
+     * Environments shared by the programs that run in this JVM, keyed by the
+     * parameters they were built with. Null unless sharing is enabled.
+     */
+    private static LinkedHashMap<List<Object>, Env> sharedEnvs = null;
+
     private final Map<String, Object> params = new HashMap<String, Object>();
     File configOverride = null;
 
@@ -184,6 +190,22 @@ public class EnvBuilder {
     }
 
     public Env build() throws ConfigurationException {
+        synchronized (EnvBuilder.class) {
+            if (sharedEnvs != null) {
+                List<Object> key = Arrays.asList(new HashMap<String, Object>(params), configOverride);
+                Env env = sharedEnvs.get(key);
+                if (env == null) {
+                    env = newEnv();
+                    env.setShared(true);
+                    sharedEnvs.put(key, env);
+                }
+                return env;
+            }
+        }
+        return newEnv();
+    }
+
+    private Env newEnv() throws ConfigurationException {
         if (configOverride == null) {
             return new Env(params);
         } else {
@@ -191,6 +213,55 @@ public class EnvBuilder {
         }
     }
 
+    /**
+     * Enables sharing of environments between programs that run in the same JVM.
+     *
+     * While sharing is enabled, building an environment with the same parameters as an
+     * earlier one returns the earlier environment, along with its configured components
+     * (data sources, daos, caches, etc). Closing a shared environment has no effect.
+     */
+    public static synchronized void shareEnvs() {
+        if (sharedEnvs == null) {
+            sharedEnvs = new LinkedHashMap<List<Object>, Env>();
+        }
+    }
+
+    /**
+     * Closes all shared environments and disables sharing.
+     */
+    public static synchronized void closeSharedEnvs() throws IOException {
+        if (sharedEnvs != null) {
+            releaseSharedEnvs(0);
+            sharedEnvs = null;
+        }
+    }
+
+    /**
+     * @return The number of shared environments, or 0 if sharing is disabled.
+     */
+    public static synchronized int getNumSharedEnvs() {
+        return (sharedEnvs == null) ? 0 : sharedEnvs.size();
+    }
+
+    /**
+     * Closes the shared environments that were built after the first numToKeep.
+     * This releases components that were only configured for a single program.
+     */
+    public static synchronized void releaseSharedEnvs(int numToKeep) throws IOException {
+        if (sharedEnvs == null) {
+            return;
+        }
+        Iterator<Env> iter = sharedEnvs.values().iterator();
+        for (int i = 0; iter.hasNext(); i++) {
+            Env env = iter.next();
+            if (i >= numToKeep) {
+                env.setShared(false);
+                env.close();
+                iter.remove();
+            }
+        }
+    }
+
     public static EnvBuilder builderFromArgs(String args[]) {
         StackTraceElement[] stackTraceElements = Thread.currentThread().getStackTrace();
         String caller = stackTraceElements[1].getClassName();
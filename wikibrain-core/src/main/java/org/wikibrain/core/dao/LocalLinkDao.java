@@ -1,10 +1,13 @@
 package org.wikibrain.core.dao;
 
+import gnu.trove.map.TIntDoubleMap;
 
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LocalId;
 import org.wikibrain.core.model.LocalLink;
 
+import java.util.LinkedHashMap;
+
 public interface LocalLinkDao extends Dao<LocalLink> {
 
     /**
@@ -46,6 +49,22 @@ public interface LocalLinkDao extends Dao<LocalLink> {
      */
     double getPageRank(LocalId localId);
 
+    /**
+     * Estimates personalized PageRank (random walk with restart) from a set of seed pages,
+     * for example the pages in a user's reading history.
+     * Currently only implemented by the MatrixLocalLinkDao.
+     * The estimate is computed locally around the seeds, so it does not require a pass
+     * over the entire link graph.
+     *
+     * @param language
+     * @param seeds Map from local page id to restart weight. Weights need not sum to 1.0.
+     * @param k Maximum number of pages to return.
+     * @return The k pages (excluding the seeds) with highest personalized PageRank,
+     * mapped to their scores, in decreasing order of score.
+     * @throws DaoException
+     */
+    LinkedHashMap<Integer, Double> getPersonalizedPageRank(Language language, TIntDoubleMap seeds, int k) throws DaoException;
+
     /**
      * get all the links on a page matching criteria
      *
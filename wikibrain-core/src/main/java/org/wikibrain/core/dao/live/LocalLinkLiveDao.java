@@ -2,6 +2,7 @@ package org.wikibrain.core.dao.live;
 
 
 import com.typesafe.config.Config;
+import gnu.trove.map.TIntDoubleMap;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntIntHashMap;
@@ -136,6 +137,11 @@ public class LocalLinkLiveDao implements LocalLinkDao {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public LinkedHashMap<Integer, Double> getPersonalizedPageRank(Language language, TIntDoubleMap seeds, int k) {
+        throw new UnsupportedOperationException();
+    }
+
     //Notice: A DaoException will be thrown if you call this method!
     //Can't specify isParseable or LocationType through the live API
     public Iterable<LocalLink> getLinks(Language language, int localId, boolean outlinks, boolean isParseable, LocalLink.LocationType locationType) throws DaoException {
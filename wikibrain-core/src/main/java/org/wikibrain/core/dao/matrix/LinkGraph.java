@@ -0,0 +1,218 @@
+package org.wikibrain.core.dao.matrix;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LocalId;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixRow;
+
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A compressed sparse row (CSR) representation of the link graph for a single language.
+ *
+ * Pages are identified by a dense index into the sorted array of local page ids.
+ * The graph stores in-links (sources of each page) so that PageRank can be computed by
+ * "pulling" contributions, which parallelizes without any synchronization.
+ *
+ * All storage is primitive arrays; no boxing or hashing happens after construction.
+ *
+ * @author Shilad Sen
+ */
+public class LinkGraph {
+    private static final Logger LOG = LoggerFactory.getLogger(LinkGraph.class);
+
+    private final Language language;
+
+    /**
+     * Local page ids in sorted order. A page's index in this array is its dense index.
+     */
+    private final int[] pageIds;
+
+    /**
+     * Number of same-language outlinks for each page.
+     */
+    private final int[] outDegrees;
+
+    /**
+     * In-links of page i are inEdges[inOffsets[i]] ... inEdges[inOffsets[i+1] - 1].
+     */
+    private final int[] inOffsets;
+    private final int[] inEdges;
+
+    public LinkGraph(Language language, int[] pageIds, int[] outDegrees, int[] inOffsets, int[] inEdges) {
+        if (outDegrees.length != pageIds.length || inOffsets.length != pageIds.length + 1) {
+            throw new IllegalArgumentException("inconsistent CSR array lengths");
+        }
+        this.language = language;
+        this.pageIds = pageIds;
+        this.outDegrees = outDegrees;
+        this.inOffsets = inOffsets;
+        this.inEdges = inEdges;
+    }
+
+    /**
+     * Builds the link graph for a single language from an adjacency matrix whose
+     * row and column ids are packed LocalIds (see {@link LocalId#toInt()}).
+     * Links that cross languages are ignored.
+     *
+     * @param matrix
+     * @param language
+     * @return
+     */
+    public static LinkGraph build(SparseMatrix matrix, Language language) {
+        int langId = language.getId();
+
+        // Pass 1: collect all pages that appear as a source or destination.
+        TIntSet ids = new TIntHashSet();
+        for (SparseMatrixRow row : matrix) {
+            if (languageOf(row.getRowIndex()) != langId) {
+                continue;
+            }
+            ids.add(localIdOf(row.getRowIndex()));
+            for (int i = 0; i < row.getNumCols(); i++) {
+                int packed = row.getColIndex(i);
+                if (languageOf(packed) == langId) {
+                    ids.add(localIdOf(packed));
+                }
+            }
+        }
+        int pageIds[] = ids.toArray();
+        ids = null;
+        Arrays.sort(pageIds);
+        int n = pageIds.length;
+        LOG.info("building link graph for {} with {} pages", language, n);
+
+        // Pass 2: count degrees.
+        int outDegrees[] = new int[n];
+        int inOffsets[] = new int[n + 1];
+        long numEdges = 0;
+        for (SparseMatrixRow row : matrix) {
+            if (languageOf(row.getRowIndex()) != langId) {
+                continue;
+            }
+            int src = Arrays.binarySearch(pageIds, localIdOf(row.getRowIndex()));
+            for (int i = 0; i < row.getNumCols(); i++) {
+                int packed = row.getColIndex(i);
+                if (languageOf(packed) == langId) {
+                    int dest = Arrays.binarySearch(pageIds, localIdOf(packed));
+                    outDegrees[src]++;
+                    inOffsets[dest + 1]++;
+                    numEdges++;
+                }
+            }
+        }
+        if (numEdges > Integer.MAX_VALUE) {
+            throw new IllegalStateException("too many links in " + language + " for a CSR graph: " + numEdges);
+        }
+        for (int i = 0; i < n; i++) {
+            inOffsets[i + 1] += inOffsets[i];
+        }
+
+        // Pass 3: fill in-links.
+        int inEdges[] = new int[(int) numEdges];
+        int cursors[] = Arrays.copyOf(inOffsets, n);
+        for (SparseMatrixRow row : matrix) {
+            if (languageOf(row.getRowIndex()) != langId) {
+                continue;
+            }
+            int src = Arrays.binarySearch(pageIds, localIdOf(row.getRowIndex()));
+            for (int i = 0; i < row.getNumCols(); i++) {
+                int packed = row.getColIndex(i);
+                if (languageOf(packed) == langId) {
+                    int dest = Arrays.binarySearch(pageIds, localIdOf(packed));
+                    inEdges[cursors[dest]++] = src;
+                }
+            }
+        }
+        LOG.info("built link graph for {} with {} pages and {} links", new Object[] { language, n, numEdges });
+        return new LinkGraph(language, pageIds, outDegrees, inOffsets, inEdges);
+    }
+
+    /**
+     * Returns the languages that have at least one source page in the adjacency matrix.
+     * @param matrix
+     * @return
+     */
+    public static Language[] getLanguages(SparseMatrix matrix) {
+        TIntSet langIds = new TIntHashSet();
+        int lastLangId = -1;
+        for (int packed : matrix.getRowIds()) {
+            int langId = languageOf(packed);
+            if (langId != lastLangId) {
+                langIds.add(langId);
+                lastLangId = langId;
+            }
+        }
+        int sorted[] = langIds.toArray();
+        Arrays.sort(sorted);
+        Language langs[] = new Language[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            langs[i] = Language.getById(sorted[i]);
+        }
+        return langs;
+    }
+
+    // These mirror the packing scheme in LocalId.toInt() without allocating a LocalId per link.
+    static int languageOf(int packed) {
+        return packed >>> 26;
+    }
+
+    static int localIdOf(int packed) {
+        return packed & ((1 << 26) - 1);
+    }
+
+    public Language getLanguage() {
+        return language;
+    }
+
+    public int getNumPages() {
+        return pageIds.length;
+    }
+
+    public int getNumLinks() {
+        return inEdges.length;
+    }
+
+    /**
+     * @return The local page ids, in sorted order. Callers must not modify the array.
+     */
+    public int[] getPageIds() {
+        return pageIds;
+    }
+
+    /**
+     * @param pageId A local page id
+     * @return The dense index of the page, or a negative number if the page is not in the graph.
+     */
+    public int indexOf(int pageId) {
+        return Arrays.binarySearch(pageIds, pageId);
+    }
+
+    public int getPageId(int index) {
+        return pageIds[index];
+    }
+
+    public int getOutDegree(int index) {
+        return outDegrees[index];
+    }
+
+    public int getInDegree(int index) {
+        return inOffsets[index + 1] - inOffsets[index];
+    }
+
+    public int[] getOutDegrees() {
+        return outDegrees;
+    }
+
+    public int[] getInOffsets() {
+        return inOffsets;
+    }
+
+    public int[] getInEdges() {
+        return inEdges;
+    }
+}
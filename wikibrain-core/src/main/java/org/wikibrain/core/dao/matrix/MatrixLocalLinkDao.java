@@ -1,16 +1,9 @@
 package org.wikibrain.core.dao.matrix;
 
-import com.google.code.externalsorting.ExternalSort;
 import com.typesafe.config.Config;
-import gnu.trove.function.TDoubleFunction;
-import gnu.trove.list.TIntList;
-import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntDoubleMap;
-import gnu.trove.map.hash.TIntDoubleHashMap;
-import gnu.trove.procedure.TIntProcedure;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.wikibrain.conf.Configuration;
@@ -27,9 +20,7 @@ import org.wikibrain.matrix.*;
 import org.wikibrain.utils.*;
 
 import java.io.*;
-import java.nio.charset.Charset;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,7 +34,13 @@ import org.slf4j.LoggerFactory;
  * 2. get() if a) a language and b) either a src or dest is specified.
  * 3. count() for the same requirements as 2.
  * 4. PageRank values (beware that PageRank estimates are lazily calculated
- * the first time a pagerank value is requested.)
+ * the first time a pagerank value is requested, unless the dao is configured
+ * to compute them eagerly at the end of each load.)
+ * </p>
+ *
+ * <p>
+ * PageRank values are computed by {@link PageRankEngine} and stored as one
+ * memory mapped {@link PageRankFile} per language.
  * </p>
  *
  * <p>
@@ -60,12 +57,11 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
     private LocalLinkDao delegate;
     private SparseMatrix matrix = null;
     private SparseMatrix transpose = null;
-    private Map<Language, TIntDoubleMap> pageRanks = null;
+    private volatile Map<Language, PageRankFile> pageRanks = null;
+    private final Object pageRankLock = new Object();
+    private boolean computePageRanksOnLoad = false;
 
-    private Set<File> allWriterFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
-    private Set<BufferedWriter> allWriters = Collections.newSetFromMap(
-            new ConcurrentHashMap<BufferedWriter, Boolean>());
-    private ThreadLocal<BufferedWriter> writers = new ThreadLocal<BufferedWriter>();
+    private volatile PackedPairSorter sorter = null;
 
 
     public MatrixLocalLinkDao(LocalLinkDao delegate, File dir) throws DaoException {
@@ -105,8 +101,10 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
         IOUtils.closeQuietly(transpose);
         matrix = null;
         transpose = null;
+        closePageRanks();
         FileUtils.deleteQuietly(getMatrixFile());
         FileUtils.deleteQuietly(getTransposeFile());
+        FileUtils.deleteQuietly(getPageRanksDir());
 
         beginLoad();
         ParallelForEach.iterate(tmp.get(new DaoFilter()).iterator(), new Procedure<LocalLink>() {
@@ -129,8 +127,70 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
             matrix = new SparseMatrix(getMatrixFile());
             transpose = new SparseMatrix(getTransposeFile());
         }
-        if (getPageRanksFile().isFile() && getPageRanksFile().lastModified() > getMatrixFile().lastModified()) {
-            pageRanks = (Map<Language, TIntDoubleMap>) WpIOUtils.readObjectFromFile(getPageRanksFile());
+        if (matrix != null) {
+            pageRanks = openPageRanks();
+        }
+    }
+
+    /**
+     * Opens the PageRank tables for every language in the matrix.
+     * @return The tables, or null if any table is missing or older than the matrix.
+     * @throws IOException
+     */
+    private Map<Language, PageRankFile> openPageRanks() throws IOException {
+        Map<Language, PageRankFile> tables = new HashMap<Language, PageRankFile>();
+        for (Language lang : LinkGraph.getLanguages(matrix)) {
+            File file = getPageRanksFile(lang);
+            if (!file.isFile() || file.lastModified() < getMatrixFile().lastModified()) {
+                for (PageRankFile table : tables.values()) {
+                    IOUtils.closeQuietly(table);
+                }
+                return null;
+            }
+            tables.put(lang, new PageRankFile(file));
+        }
+        return tables;
+    }
+
+    private void closePageRanks() {
+        synchronized (pageRankLock) {
+            if (pageRanks != null) {
+                for (PageRankFile table : pageRanks.values()) {
+                    IOUtils.closeQuietly(table);
+                }
+                pageRanks = null;
+            }
+        }
+    }
+
+    /**
+     * If true, PageRank values are computed at the end of each load rather than
+     * the first time a PageRank value is requested.
+     * @param computePageRanksOnLoad
+     */
+    public void setComputePageRanksOnLoad(boolean computePageRanksOnLoad) {
+        this.computePageRanksOnLoad = computePageRanksOnLoad;
+    }
+
+    /**
+     * (Re)computes PageRank values for all languages and writes them to disk.
+     * This is called lazily by getPageRank, but may be invoked directly to avoid
+     * paying the cost on the first request.
+     *
+     * @throws DaoException
+     */
+    public void computePageRanks() throws DaoException {
+        synchronized (pageRankLock) {
+            closePageRanks();
+            try {
+                new PageRankEngine().computeAndWrite(matrix, getPageRanksDir());
+                pageRanks = openPageRanks();
+            } catch (IOException e) {
+                throw new DaoException(e);
+            }
+            if (pageRanks == null) {
+                throw new DaoException("PageRank tables missing after computing them in " + getPageRanksDir());
+            }
         }
     }
 
@@ -141,16 +201,16 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
 
     @Override
     public void beginLoad() throws DaoException {
-        allWriters.clear();
+        resetSorter();
         if (delegate != null) delegate.beginLoad();
         // Initialize object database with existing links
         if (matrix != null) {
             ParallelForEach.iterate(matrix.iterator(), new Procedure<SparseMatrixRow>() {
                 @Override
                 public void call(SparseMatrixRow row) throws Exception {
-                    BufferedWriter writer = getSortingWriter();
+                    PackedPairSorter sorter = getSorter();
                     for (int i = 0; i < row.getNumCols(); i++) {
-                        writer.write(row.getRowIndex() + " " + row.getColIndex(i) + "\n");
+                        sorter.add(row.getRowIndex(), row.getColIndex(i));
                     }
                 }
             });
@@ -170,24 +230,21 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
      */
     @Override
     public double getPageRank(Language language, int pageId) {
-        if (pageRanks == null) {
-            synchronized (this) {
+        Map<Language, PageRankFile> tables = pageRanks;
+        if (tables == null) {
+            synchronized (pageRankLock) {
                 if (pageRanks == null) {
-                    pageRanks = computePageRanks();
                     try {
-                        WpIOUtils.writeObjectToFile(getPageRanksFile(), pageRanks);
-                    } catch (IOException e) {
+                        computePageRanks();
+                    } catch (DaoException e) {
                         throw new IllegalStateException("Unexpected exception:", e);
                     }
                 }
+                tables = pageRanks;
             }
         }
-        TIntDoubleMap langRanks = pageRanks.get(language);
-        if (langRanks != null && langRanks.containsKey(pageId)) {
-            return langRanks.get(pageId);
-        } else {
-            return 0.0;
-        }
+        PageRankFile langRanks = tables.get(language);
+        return (langRanks == null) ? 0.0 : langRanks.get(pageId);
     }
 
     /**
@@ -205,93 +262,45 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
         return getPageRank(localId.getLanguage(), localId.getId());
     }
 
-    private BufferedWriter getSortingWriter() throws IOException {
-        if (writers.get() == null) {
-            File file = File.createTempFile("links-sorter", ".txt");
-            file.deleteOnExit();
-            file.delete();
-            writers.set(WpIOUtils.openWriter(file));
-            allWriters.add(writers.get());
-            allWriterFiles.add(file);
-        }
-        return writers.get();
-    }
-
-
-    private static final double DAMPING_FACTOR = 0.85;
-
-
-    private static class LangRanks {
-        TIntDoubleMap pageSums = new TIntDoubleHashMap();
-        TIntDoubleMap nextSums = new TIntDoubleHashMap();
-    }
-    private Map<Language, TIntDoubleMap> computePageRanks() {
-        Map<Language, LangRanks> ranks = new HashMap<Language, LangRanks>();
-
-        // Set initial weights
-        for (SparseMatrixRow row : matrix) {
-            LocalId src = LocalId.fromInt(row.getRowIndex());
-            LangRanks lr = ranks.get(src.getLanguage());
-            if (lr == null) {
-                lr = new LangRanks();
-                ranks.put(src.getLanguage(), lr);
-            }
-            lr.pageSums.put(src.getId(), 1.0);
+    /**
+     * Estimates personalized PageRank from the seeds using {@link PersonalizedPageRank}.
+     * Only the neighborhood of the seeds in the adjacency matrix is read.
+     *
+     * @param language
+     * @param seeds Map from local page id to restart weight. Weights need not sum to 1.0.
+     * @param k Maximum number of pages to return.
+     * @return The k pages (excluding the seeds) with highest personalized PageRank,
+     * mapped to their scores, in decreasing order of score.
+     * @throws DaoException
+     */
+    @Override
+    public LinkedHashMap<Integer, Double> getPersonalizedPageRank(Language language, TIntDoubleMap seeds, int k) throws DaoException {
+        if (matrix == null) {
+            throw new DaoException("Link matrix " + getMatrixFile() + " is not loaded");
         }
-
-        // normalize (divide by num pages)
-        for (final LangRanks lr : ranks.values()) {
-            final int n = lr.pageSums.size();
-            lr.pageSums.transformValues(new TDoubleFunction() {
-                @Override
-                public double execute(double v) {
-                    return 1.0 / n;
-                }
-            });
+        try {
+            return new PersonalizedPageRank(matrix).topK(language, seeds, k, false);
+        } catch (IOException e) {
+            throw new DaoException(e);
         }
+    }
 
-        // perform iterations
-        for (int i = 0;i < 20; i++) {
-            for (SparseMatrixRow row : matrix) {
-                int ncols = row.getNumCols();
-                if (ncols == 0) continue;
-                LocalId src = LocalId.fromInt(row.getRowIndex());
-                LangRanks lr = ranks.get(src.getLanguage());
-                double w = lr.pageSums.get(src.getId()) / ncols;
-                for (int j = 0; j < ncols; j++) {
-                    LocalId dest = LocalId.fromInt(row.getColIndex(j));
-                    if (dest.getLanguage() == src.getLanguage()) {
-                        lr.nextSums.adjustOrPutValue(dest.getId(), w, w);
-                    }
+    private PackedPairSorter getSorter() {
+        if (sorter == null) {
+            synchronized (this) {
+                if (sorter == null) {
+                    sorter = new PackedPairSorter();
                 }
             }
-
-            // update values, measure change
-            final double[] delta = {0.0};
-            for (final LangRanks lr : ranks.values()) {
-                final int n = lr.nextSums.size();
-                lr.nextSums.forEachKey(new TIntProcedure() {
-                    @Override
-                    public boolean execute(int id) {
-                        double ps = lr.pageSums.get(id);
-                        double ns = (1.0 - DAMPING_FACTOR) / n + DAMPING_FACTOR * lr.nextSums.get(id);
-                        delta[0] += Math.abs(ps - ns);
-                        lr.nextSums.put(id, 0);
-                        lr.pageSums.put(id, ns);
-                        return true;
-
-                    }
-                });
-            }
-            LOG.info("change in pageranks at iteration {} is {}.", i, delta);
         }
+        return sorter;
+    }
 
-
-        Map<Language, TIntDoubleMap> result = new HashMap<Language, TIntDoubleMap>();
-        for (Language lang : ranks.keySet()) {
-            result.put(lang, ranks.get(lang).pageSums);
+    private synchronized void resetSorter() {
+        if (sorter != null) {
+            IOUtils.closeQuietly(sorter);
+            sorter = null;
         }
-        return result;
     }
 
     @Override
@@ -307,8 +316,7 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
             return;
         }
         try {
-            BufferedWriter writer = getSortingWriter();
-            writer.write(src.toInt() + " " + dest.toInt() + "\n");
+            getSorter().add(src.toInt(), dest.toInt());
         } catch (IOException e) {
            throw new DaoException(e);
         }
@@ -318,8 +326,12 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
         return new File(dir, "links.matrix");
     }
 
-    public File getPageRanksFile() {
-        return new File(dir, "pageRanks.bin");
+    public File getPageRanksDir() {
+        return new File(dir, "pageRanks");
+    }
+
+    public File getPageRanksFile(Language language) {
+        return PageRankEngine.getFile(getPageRanksDir(), language);
     }
 
     public File getTransposeFile() {
@@ -329,62 +341,14 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
     @Override
     public void clear() throws DaoException {
         delegate.clear();
+        closePageRanks();
         FileUtils.deleteQuietly(getMatrixFile());
         FileUtils.deleteQuietly(getTransposeFile());
+        FileUtils.deleteQuietly(getPageRanksDir());
     }
 
 
 
-    private static final int MAX_SORT_THREADS = 4;
-    private File sortFiles() throws IOException {
-        for (BufferedWriter writer : allWriters) {
-            writer.close();
-        }
-        ParallelForEach.iterate(allWriterFiles.iterator(), MAX_SORT_THREADS, 10, new Procedure<File>() {
-            @Override
-            public void call(File file) throws Exception {
-                sort(file, MAX_SORT_THREADS);
-            }
-        }, 10);
-
-        File file = File.createTempFile("local-links-sorted.", ".txt");
-        file.deleteOnExit();
-        Comparator<String> comparator = new Comparator<String>() {
-            public int compare(String r1, String r2){
-                return r1.compareTo(r2);}};
-        LOG.info("merging all sorted files to " + file);
-        ExternalSort.mergeSortedFiles(new ArrayList<File>(allWriterFiles), file, comparator, Charset.forName("utf-8"));
-        return file;
-    }
-
-    private static final int SORT_FILES_MAX = 100;
-    private static final long SORT_MEMORY_MAX = (Runtime.getRuntime().maxMemory() / MAX_SORT_THREADS / 5);
-
-    private void sort(File file, long concurrentThreads) throws IOException {
-        long maxMemory = SORT_MEMORY_MAX / concurrentThreads;
-        int maxFiles = (int) Math.max(
-                SORT_FILES_MAX / concurrentThreads,
-                (int)(file.length() / (maxMemory / 2)));
-        LOG.info("sorting " + file + " using max of " + maxFiles);
-        Comparator<String> comparator = new Comparator<String>() {
-            public int compare(String r1, String r2){
-                return r1.compareTo(r2);}};
-        List<File> l = ExternalSort.sortInBatch(
-                WpIOUtils.openBufferedReader(file),
-                file.length(),
-                comparator,
-                maxFiles,
-                maxMemory,
-                Charset.forName("utf-8"),
-                null,
-                true,
-                0,
-                false);
-        LOG.info("merging " + file);
-        ExternalSort.mergeSortedFiles(l, file, comparator, Charset.forName("utf-8"));
-        LOG.info("finished sorting" + file);
-    }
-
     @Override
     public void endLoad() throws DaoException {
         if (delegate != null) delegate.endLoad();
@@ -394,72 +358,22 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
             LOG.info("closing existing matrix and transpose.");
             if (matrix != null) IOUtils.closeQuietly(matrix);
             if (transpose != null) IOUtils.closeQuietly(transpose);
+            closePageRanks();
 
-            LOG.info("sorting files");
-            File file = sortFiles();
-
-            LOG.info("writing adjacency matrix rows");
-            ValueConf vconf = new ValueConf();   // unused because there are no values.
-            SparseMatrixWriter writer = new SparseMatrixWriter(getMatrixFile(), vconf);
-
-            BufferedReader reader = WpIOUtils.openBufferedReader(file);
-            TIntList packedDest = new TIntArrayList();
-
-            int cellCount = 0;
-            int rowCount = 0;
-            LocalId lastSrc = null;
-            while (true) {
-                String line = reader.readLine();
-                if (line == null) {
-                    break;
-                }
-                String tokens[] = line.trim().split(" ");
-                if (tokens.length == 2){
-                    cellCount++;
-                    LocalId src = LocalId.fromInt(Integer.valueOf(tokens[0]));
-                    LocalId dest = LocalId.fromInt(Integer.valueOf(tokens[1]));
-                    if (lastSrc != null && !src.equals(lastSrc)) {
-                        if (++rowCount % 100000 == 0) {
-                            LOG.info("writing adjacency matrix row " + rowCount
-                                    + ", found " + cellCount + " links");
-                        }
-                        SparseMatrixRow row = new SparseMatrixRow(
-                                vconf,
-                                lastSrc.toInt(),
-                                packedDest.toArray(),
-                                new short[packedDest.size()]
-                        );
-                        writer.writeRow(row);
-                        packedDest.clear();
-                    }
-                    packedDest.add(dest.toInt());
-                    lastSrc = src;
-                } else {
-                    LOG.info("Invalid line: '" + StringEscapeUtils.escapeJava(line) + "'");
-                }
-            }
-
-            if (packedDest.size() > 0) {
-                SparseMatrixRow row = new SparseMatrixRow(
-                        vconf,
-                        lastSrc.toInt(),
-                        packedDest.toArray(),
-                        new short[packedDest.size()]
-                );
-                writer.writeRow(row);
-            }
-            LOG.info("finalizing adjacency matrix");
-            writer.finish();
+            LOG.info("sorting links and writing adjacency matrix and its transpose");
+            getSorter().writeMatrices(getMatrixFile(), getTransposeFile());
+            resetSorter();
 
             LOG.info("loading adjacency matrix");
             matrix = new SparseMatrix(getMatrixFile());
 
-            LOG.info("writing transpose of adjacency matrix");
-            SparseMatrixTransposer transposer = new SparseMatrixTransposer(matrix, getTransposeFile());
-            transposer.transpose();
-
             LOG.info("loading transpose of adjacency matrix");
             transpose = new SparseMatrix(getTransposeFile());
+
+            if (computePageRanksOnLoad) {
+                LOG.info("computing page ranks");
+                computePageRanks();
+            }
         } catch (IOException e) {
             throw new DaoException(e);
         }
@@ -653,12 +567,16 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
                 return null;
             }
             try {
-                return new MatrixLocalLinkDao(
+                MatrixLocalLinkDao dao = new MatrixLocalLinkDao(
                         getConfigurator().get(
                                 LocalLinkDao.class,
                                 config.getString("delegate")),
                         new File(config.getString("path"))
                 );
+                if (config.hasPath("computePageRanksOnLoad")) {
+                    dao.setComputePageRanksOnLoad(config.getBoolean("computePageRanksOnLoad"));
+                }
+                return dao;
             } catch (DaoException e) {
                 throw new ConfigurationException(e);
             }
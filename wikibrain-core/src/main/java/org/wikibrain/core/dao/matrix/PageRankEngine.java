@@ -0,0 +1,198 @@
+package org.wikibrain.core.dao.matrix;
+
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes PageRank over a {@link LinkGraph} using parallel power iteration.
+ *
+ * <p>
+ * Each iteration pulls rank along in-links, so every thread writes a disjoint
+ * range of the next rank vector and no synchronization is needed inside an iteration.
+ * Rank held by dangling pages (pages with no outlinks) is redistributed uniformly,
+ * so the ranks always sum to 1.0.
+ * </p>
+ *
+ * <p>
+ * Iteration stops when the L1 change between successive rank vectors falls
+ * below epsilon, or after maxIterations.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class PageRankEngine {
+    private static final Logger LOG = LoggerFactory.getLogger(PageRankEngine.class);
+
+    public static final double DEFAULT_DAMPING_FACTOR = 0.85;
+    public static final double DEFAULT_EPSILON = 1E-6;
+    public static final int DEFAULT_MAX_ITERATIONS = 100;
+
+    // Number of work units per thread, to balance load across ranges with skewed degrees.
+    private static final int CHUNKS_PER_THREAD = 8;
+
+    private final double dampingFactor;
+    private final double epsilon;
+    private final int maxIterations;
+    private final int numThreads;
+
+    public PageRankEngine() {
+        this(DEFAULT_DAMPING_FACTOR, DEFAULT_EPSILON, DEFAULT_MAX_ITERATIONS, WpThreadUtils.getMaxThreads());
+    }
+
+    public PageRankEngine(double dampingFactor, double epsilon, int maxIterations, int numThreads) {
+        if (dampingFactor < 0.0 || dampingFactor >= 1.0) {
+            throw new IllegalArgumentException("damping factor must be in [0, 1): " + dampingFactor);
+        }
+        this.dampingFactor = dampingFactor;
+        this.epsilon = epsilon;
+        this.maxIterations = maxIterations;
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Computes PageRank for every language in an adjacency matrix of packed LocalIds
+     * and writes one memory mappable table per language.
+     *
+     * @param matrix
+     * @param dir Directory to which the tables are written.
+     * @return The file written for each language.
+     * @throws IOException
+     */
+    public List<File> computeAndWrite(SparseMatrix matrix, File dir) throws IOException {
+        dir.mkdirs();
+        List<File> files = new ArrayList<File>();
+        for (Language lang : LinkGraph.getLanguages(matrix)) {
+            LinkGraph graph = LinkGraph.build(matrix, lang);
+            double ranks[] = compute(graph);
+            File file = getFile(dir, lang);
+            PageRankFile.write(file, lang, graph.getPageIds(), ranks);
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Returns the file holding PageRank values for a language within a directory.
+     */
+    public static File getFile(File dir, Language lang) {
+        return new File(dir, lang.getLangCode() + ".bin");
+    }
+
+    /**
+     * Computes the PageRank of each page in the graph.
+     *
+     * @param graph
+     * @return PageRank values indexed by the dense page index of the graph.
+     */
+    public double[] compute(final LinkGraph graph) {
+        final int n = graph.getNumPages();
+        if (n == 0) {
+            return new double[0];
+        }
+        final int outDegrees[] = graph.getOutDegrees();
+        final int inOffsets[] = graph.getInOffsets();
+        final int inEdges[] = graph.getInEdges();
+        final double d = dampingFactor;
+
+        final double ranks[] = new double[n];
+        final double next[] = new double[n];
+        final double contribs[] = new double[n];
+        Arrays.fill(ranks, 1.0 / n);
+
+        ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (int iter = 0; iter < maxIterations; iter++) {
+                // Phase 1: per-page contribution to each outlink, and total dangling rank.
+                double dangling = sumOverRanges(exec, n, new RangeTask() {
+                    @Override
+                    public double run(int from, int to) {
+                        double danglingSum = 0.0;
+                        for (int u = from; u < to; u++) {
+                            int deg = outDegrees[u];
+                            if (deg == 0) {
+                                contribs[u] = 0.0;
+                                danglingSum += ranks[u];
+                            } else {
+                                contribs[u] = ranks[u] / deg;
+                            }
+                        }
+                        return danglingSum;
+                    }
+                });
+
+                // Phase 2: pull contributions along in-links.
+                final double base = (1.0 - d) / n + d * dangling / n;
+                double delta = sumOverRanges(exec, n, new RangeTask() {
+                    @Override
+                    public double run(int from, int to) {
+                        double change = 0.0;
+                        for (int v = from; v < to; v++) {
+                            double sum = 0.0;
+                            for (int e = inOffsets[v]; e < inOffsets[v + 1]; e++) {
+                                sum += contribs[inEdges[e]];
+                            }
+                            double r = base + d * sum;
+                            change += Math.abs(r - ranks[v]);
+                            next[v] = r;
+                        }
+                        return change;
+                    }
+                });
+                System.arraycopy(next, 0, ranks, 0, n);
+
+                LOG.info("change in pageranks for {} at iteration {} is {}.",
+                        new Object[] { graph.getLanguage(), iter, delta });
+                if (delta < epsilon) {
+                    break;
+                }
+            }
+        } finally {
+            exec.shutdown();
+        }
+        return ranks;
+    }
+
+    private interface RangeTask {
+        double run(int from, int to);
+    }
+
+    /**
+     * Splits [0, n) into chunks, runs the task on each chunk in parallel, and sums the results.
+     */
+    private double sumOverRanges(ExecutorService exec, int n, final RangeTask task) {
+        int numChunks = (int) Math.min(n, (long) numThreads * CHUNKS_PER_THREAD);
+        int chunkSize = (n + numChunks - 1) / numChunks;
+        List<Callable<Double>> jobs = new ArrayList<Callable<Double>>();
+        for (int from = 0; from < n; from += chunkSize) {
+            final int start = from;
+            final int end = Math.min(n, from + chunkSize);
+            jobs.add(new Callable<Double>() {
+                @Override
+                public Double call() throws Exception {
+                    return task.run(start, end);
+                }
+            });
+        }
+        try {
+            double total = 0.0;
+            for (Future<Double> f : exec.invokeAll(jobs)) {
+                total += f.get();
+            }
+            return total;
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.wikibrain.core.dao.matrix;
+
+import org.wikibrain.core.lang.Language;
+
+import java.io.*;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A memory mapped table of PageRank values for the pages in one language.
+ *
+ * The on-disk layout is:
+ * <pre>
+ *   int    FILE_HEADER
+ *   int    language id
+ *   int    number of pages (n)
+ *   int    padding
+ *   int[n]    local page ids in sorted order
+ *   int       padding (only if n is odd, to align the ranks to 8 bytes)
+ *   double[n] PageRank of each page
+ * </pre>
+ *
+ * Lookups binary search the mapped ids, so opening a table is nearly free and
+ * the table lives in the OS page cache rather than the Java heap.
+ * Lookups are safe to perform concurrently.
+ *
+ * @author Shilad Sen
+ */
+public class PageRankFile implements Closeable {
+    public static final int FILE_HEADER = 0xfa9e4a;
+
+    private final File path;
+    private final Language language;
+    private final int numPages;
+    private final IntBuffer pageIds;
+    private final DoubleBuffer ranks;
+    private FileInputStream stream;
+
+    public PageRankFile(File path) throws IOException {
+        this.path = path;
+        this.stream = new FileInputStream(path);
+        FileChannel channel = stream.getChannel();
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (buffer.getInt(0) != FILE_HEADER) {
+            throw new IOException("invalid file header in " + path + ": " + buffer.getInt(0));
+        }
+        this.language = Language.getById(buffer.getInt(4));
+        this.numPages = buffer.getInt(8);
+
+        buffer.position(16);
+        buffer.limit(16 + 4 * numPages);
+        this.pageIds = buffer.slice().asIntBuffer();
+
+        int ranksOffset = ranksOffset(numPages);
+        buffer.limit(buffer.capacity());
+        buffer.position(ranksOffset);
+        buffer.limit(ranksOffset + 8 * numPages);
+        this.ranks = buffer.slice().asDoubleBuffer();
+    }
+
+    /**
+     * Writes a table of PageRank values.
+     *
+     * @param path
+     * @param language
+     * @param pageIds Local page ids in strictly increasing order.
+     * @param ranks PageRank values, parallel to pageIds.
+     * @throws IOException
+     */
+    public static void write(File path, Language language, int[] pageIds, double[] ranks) throws IOException {
+        if (pageIds.length != ranks.length) {
+            throw new IllegalArgumentException("page ids and ranks must have the same length");
+        }
+        File tmp = new File(path.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FILE_HEADER);
+            out.writeInt(language.getId());
+            out.writeInt(pageIds.length);
+            out.writeInt(0);
+            int lastId = Integer.MIN_VALUE;
+            for (int id : pageIds) {
+                if (id <= lastId) {
+                    throw new IllegalArgumentException("page ids must be in strictly increasing order");
+                }
+                out.writeInt(id);
+                lastId = id;
+            }
+            if (pageIds.length % 2 == 1) {
+                out.writeInt(0);
+            }
+            for (double r : ranks) {
+                out.writeDouble(r);
+            }
+        } finally {
+            out.close();
+        }
+        if (path.exists() && !path.delete()) {
+            throw new IOException("could not replace " + path);
+        }
+        if (!tmp.renameTo(path)) {
+            throw new IOException("could not rename " + tmp + " to " + path);
+        }
+    }
+
+    private static int ranksOffset(int numPages) {
+        int offset = 16 + 4 * numPages;
+        return (offset % 8 == 0) ? offset : offset + 4;
+    }
+
+    /**
+     * @param pageId
+     * @return The PageRank of the page, or 0.0 if the page does not appear in the table.
+     */
+    public double get(int pageId) {
+        int lo = 0;
+        int hi = numPages - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int midId = pageIds.get(mid);
+            if (pageId < midId) {
+                hi = mid - 1;
+            } else if (pageId > midId) {
+                lo = mid + 1;
+            } else {
+                return ranks.get(mid);
+            }
+        }
+        return 0.0;
+    }
+
+    public Language getLanguage() {
+        return language;
+    }
+
+    public int getNumPages() {
+        return numPages;
+    }
+
+    public File getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (stream != null) {
+            stream.close();
+            stream = null;
+        }
+    }
+}
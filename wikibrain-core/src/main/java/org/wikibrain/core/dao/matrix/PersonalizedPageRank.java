@@ -0,0 +1,186 @@
+package org.wikibrain.core.dao.matrix;
+
+import gnu.trove.iterator.TIntDoubleIterator;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LocalId;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.utils.Scoreboard;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+
+/**
+ * Approximates personalized PageRank (random walk with restart) from a weighted set
+ * of seed pages using the local forward push algorithm of Andersen, Chung and Lang.
+ *
+ * <p>
+ * Each page carries an estimate and a residual. Pushing a page moves a (1 - damping)
+ * fraction of its residual into its estimate and spreads the rest across its outlinks.
+ * Pages are only pushed while their residual exceeds epsilon. Every push retires at least
+ * (1 - damping) * epsilon of the unit probability mass, so a query performs at most
+ * 1 / ((1 - damping) * epsilon) pushes and reads only the neighborhood of the seeds from
+ * the memory mapped adjacency matrix, regardless of the size of the graph.
+ * </p>
+ *
+ * <p>
+ * Random walks that reach a page without outlinks restart at the seeds.
+ * Instances are thread safe.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class PersonalizedPageRank {
+    public static final double DEFAULT_EPSILON = 1E-5;
+    public static final int DEFAULT_MAX_PUSHES = 2000000;
+
+    private final SparseMatrix matrix;
+    private final double dampingFactor;
+    private final double epsilon;
+    private final int maxPushes;
+
+    public PersonalizedPageRank(SparseMatrix matrix) {
+        this(matrix, PageRankEngine.DEFAULT_DAMPING_FACTOR, DEFAULT_EPSILON, DEFAULT_MAX_PUSHES);
+    }
+
+    /**
+     * @param matrix Adjacency matrix of packed LocalIds.
+     * @param dampingFactor Probability that a walk continues rather than restarts.
+     * @param epsilon Pages are pushed while their residual exceeds epsilon.
+     *                Smaller values are more accurate and slower.
+     * @param maxPushes Upper bound on the number of pushes per query.
+     */
+    public PersonalizedPageRank(SparseMatrix matrix, double dampingFactor, double epsilon, int maxPushes) {
+        if (dampingFactor < 0.0 || dampingFactor >= 1.0) {
+            throw new IllegalArgumentException("damping factor must be in [0, 1): " + dampingFactor);
+        }
+        this.matrix = matrix;
+        this.dampingFactor = dampingFactor;
+        this.epsilon = epsilon;
+        this.maxPushes = maxPushes;
+    }
+
+    /**
+     * Estimates the personalized PageRank of pages near the seeds.
+     *
+     * @param language
+     * @param seeds Map from local page id to (unnormalized, positive) restart weight.
+     * @return Map from local page id to estimated score. Scores sum to at most 1.0;
+     * pages that are not returned have negligible scores.
+     * @throws IOException
+     */
+    public TIntDoubleMap estimate(Language language, TIntDoubleMap seeds) throws IOException {
+        // normalize and pack the restart distribution
+        TIntDoubleMap restart = new TIntDoubleHashMap();
+        double total = 0.0;
+        for (TIntDoubleIterator iter = seeds.iterator(); iter.hasNext();) {
+            iter.advance();
+            if (iter.value() < 0) {
+                throw new IllegalArgumentException("negative weight for seed " + iter.key());
+            }
+            LocalId id = new LocalId(language, iter.key());
+            if (iter.value() > 0 && id.canPackInInt()) {
+                restart.put(id.toInt(), iter.value());
+                total += iter.value();
+            }
+        }
+        TIntDoubleMap estimates = new TIntDoubleHashMap();
+        if (total == 0.0) {
+            return estimates;
+        }
+
+        TIntDoubleMap residuals = new TIntDoubleHashMap();
+        TIntArrayList queue = new TIntArrayList();
+        TIntSet queued = new TIntHashSet();
+        for (TIntDoubleIterator iter = restart.iterator(); iter.hasNext();) {
+            iter.advance();
+            iter.setValue(iter.value() / total);
+            residuals.put(iter.key(), iter.value());
+            queue.add(iter.key());
+            queued.add(iter.key());
+        }
+
+        double alpha = 1.0 - dampingFactor;
+        int head = 0;
+        int pushes = 0;
+        while (head < queue.size() && pushes < maxPushes) {
+            int u = queue.get(head++);
+            queued.remove(u);
+            double r = residuals.remove(u);
+            if (r == 0.0) {
+                continue;
+            }
+            pushes++;
+            estimates.adjustOrPutValue(u, alpha * r, alpha * r);
+
+            SparseMatrixRow row = matrix.getRow(u);
+            int degree = (row == null) ? 0 : row.getNumCols();
+            double spread = dampingFactor * r;
+            if (degree == 0) {
+                // dangling page: the walk restarts at the seeds
+                for (TIntDoubleIterator iter = restart.iterator(); iter.hasNext();) {
+                    iter.advance();
+                    addResidual(iter.key(), spread * iter.value(), residuals, queue, queued);
+                }
+            } else {
+                double share = spread / degree;
+                for (int i = 0; i < degree; i++) {
+                    addResidual(row.getColIndex(i), share, residuals, queue, queued);
+                }
+            }
+            if (head > 100000 && head > queue.size() / 2) {
+                queue.remove(0, head);
+                head = 0;
+            }
+        }
+
+        // convert packed ids back to local ids
+        TIntDoubleMap result = new TIntDoubleHashMap(estimates.size());
+        for (TIntDoubleIterator iter = estimates.iterator(); iter.hasNext();) {
+            iter.advance();
+            if (LinkGraph.languageOf(iter.key()) == language.getId()) {
+                result.put(LinkGraph.localIdOf(iter.key()), iter.value());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the highest scoring pages by personalized PageRank.
+     *
+     * @param language
+     * @param seeds Map from local page id to restart weight.
+     * @param k Maximum number of pages to return.
+     * @param includeSeeds If false, seed pages are excluded from the results.
+     * @return Map from local page id to score, ordered by decreasing score.
+     * @throws IOException
+     */
+    public LinkedHashMap<Integer, Double> topK(Language language, TIntDoubleMap seeds, int k, boolean includeSeeds) throws IOException {
+        TIntDoubleMap estimates = estimate(language, seeds);
+        Scoreboard<Integer> board = new Scoreboard<Integer>(k);
+        for (TIntDoubleIterator iter = estimates.iterator(); iter.hasNext();) {
+            iter.advance();
+            if (includeSeeds || !seeds.containsKey(iter.key())) {
+                board.add(iter.key(), iter.value());
+            }
+        }
+        LinkedHashMap<Integer, Double> top = new LinkedHashMap<Integer, Double>();
+        for (int i = 0; i < board.size(); i++) {
+            top.put(board.getElement(i), board.getScore(i));
+        }
+        return top;
+    }
+
+    private void addResidual(int id, double amount, TIntDoubleMap residuals, TIntArrayList queue, TIntSet queued) {
+        double r = residuals.adjustOrPutValue(id, amount, amount);
+        if (r > epsilon && !queued.contains(id)) {
+            queue.add(id);
+            queued.add(id);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.wikibrain.core.dao.sql;
 
 import com.typesafe.config.Config;
+import gnu.trove.map.TIntDoubleMap;
 import org.jooq.*;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
@@ -15,6 +16,7 @@ import org.wikibrain.core.model.LocalLink;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -155,6 +157,11 @@ public class LocalLinkSqlDao extends AbstractSqlDao<LocalLink> implements LocalL
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public LinkedHashMap<Integer, Double> getPersonalizedPageRank(Language language, TIntDoubleMap seeds, int k) {
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public Iterable<LocalLink> getLinks(Language language, int localId, boolean outlinks, boolean isParseable, LocalLink.LocationType locationType) throws DaoException{
         DSLContext context = getJooq();
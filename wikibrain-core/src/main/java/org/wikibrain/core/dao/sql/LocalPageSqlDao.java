@@ -30,6 +30,11 @@ import org.slf4j.LoggerFactory;
 /**
  */
 public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalPageDao {
+    /**
+     * Maximum number of page ids in the IN clause of a single query.
+     */
+    private static final int MAX_IDS_PER_QUERY = 1000;
+
     private volatile TLongIntHashMap titlesToIds = null;
     private RedirectSqlDao redirectSqlDao;
 
@@ -224,8 +229,28 @@ public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalP
             return null;
         }
         Map<Integer, LocalPage> map = new HashMap<Integer, LocalPage>();
-        for (Integer pageId : pageIds){
-            map.put(pageId, getById(language, pageId));
+        List<Integer> distinctIds = new ArrayList<Integer>(new LinkedHashSet<Integer>(pageIds));
+        DSLContext context = getJooq();
+        try {
+            for (int i = 0; i < distinctIds.size(); i += MAX_IDS_PER_QUERY) {
+                List<Integer> batch = distinctIds.subList(i, Math.min(distinctIds.size(), i + MAX_IDS_PER_QUERY));
+                Result<Record> records = context.select().
+                        from(Tables.LOCAL_PAGE).
+                        where(Tables.LOCAL_PAGE.PAGE_ID.in(batch)).
+                        and(Tables.LOCAL_PAGE.LANG_ID.eq(language.getId())).
+                        fetch();
+                for (Record record : records) {
+                    map.put(record.getValue(Tables.LOCAL_PAGE.PAGE_ID), buildLocalPage(record));
+                }
+            }
+        } finally {
+            freeJooq(context);
+        }
+        // As before, ids that are not loaded map to null
+        for (Integer pageId : distinctIds) {
+            if (!map.containsKey(pageId)) {
+                map.put(pageId, null);
+            }
         }
         return map;
     }
@@ -14,6 +14,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
 public class TestLocalPageDao {
     @Test
     public void testArticle() throws ClassNotFoundException, IOException, SQLException, DaoException {
@@ -59,4 +62,34 @@ public class TestLocalPageDao {
         int savedId = dao.getIdByTitle("Test", lang.getLanguage(), NameSpace.ARTICLE);
         assert (savedId==7);
     }
+
+    @Test
+    public void testGetByIdsAcrossBatches() throws ClassNotFoundException, IOException, SQLException, DaoException {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        LanguageInfo lang = LanguageInfo.getByLangCode("en");
+        LocalPageSqlDao dao = new LocalPageSqlDao(wpDs);
+        dao.beginLoad();
+        for (int i = 0; i < 2500; i++) {
+            dao.save(new LocalPage(lang.getLanguage(), i * 2, new Title("Page " + i, lang), NameSpace.ARTICLE));
+        }
+        dao.endLoad();
+
+        // Enough ids to span several IN queries, with missing and repeated ids
+        List<Integer> pageIds = new ArrayList<Integer>();
+        for (int i = 0; i < 2600; i++) {
+            pageIds.add(i * 2);
+            pageIds.add(i * 2 + 1);
+        }
+        pageIds.add(10);
+        pageIds.add(4999);
+
+        Map<Integer, LocalPage> pages = dao.getByIds(lang.getLanguage(), pageIds);
+        assertEquals(5200, pages.size());
+        for (int pageId : pageIds) {
+            assertEquals(dao.getById(lang.getLanguage(), pageId), pages.get(pageId));
+        }
+        assertEquals(new Title("Page 2499", lang), pages.get(4998).getTitle());
+        assertNull(pages.get(5000));
+        assertNull(pages.get(4999));
+    }
 }
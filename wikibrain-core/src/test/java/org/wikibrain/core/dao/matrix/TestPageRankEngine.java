@@ -0,0 +1,217 @@
+package org.wikibrain.core.dao.matrix;
+
+import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LocalId;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.matrix.SparseMatrixWriter;
+import org.wikibrain.matrix.ValueConf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestPageRankEngine {
+    private static final Language LANG = Language.getByLangCode("simple");
+
+    @Test
+    public void testSmallGraph() throws IOException {
+        // 1 -> 2, 1 -> 4, 2 -> 3, 3 -> 1; page 4 is dangling
+        int links[][] = { {1, 2, 4}, {2, 3}, {3, 1} };
+        SparseMatrix matrix = writeMatrix(links);
+        LinkGraph graph = LinkGraph.build(matrix, LANG);
+        assertArrayEquals(new int[] {1, 2, 3, 4}, graph.getPageIds());
+        assertEquals(4, graph.getNumLinks());
+        assertEquals(0, graph.getOutDegree(graph.indexOf(4)));
+        assertEquals(2, graph.getOutDegree(graph.indexOf(1)));
+        assertEquals(1, graph.getInDegree(graph.indexOf(1)));
+        assertEquals(1, graph.getInDegree(graph.indexOf(4)));
+
+        double ranks[] = new PageRankEngine(0.85, 1E-12, 1000, 2).compute(graph);
+        assertArrayEquals(naivePageRank(graph, 0.85, 1000), ranks, 1E-9);
+        assertEquals(1.0, sum(ranks), 1E-9);
+    }
+
+    @Test
+    public void testRandomGraph() throws IOException {
+        Random random = new Random(17);
+        int links[][] = new int[500][];
+        for (int i = 0; i < links.length; i++) {
+            int n = random.nextInt(10);
+            links[i] = new int[n + 1];
+            links[i][0] = i + 1;
+            for (int j = 1; j <= n; j++) {
+                links[i][j] = random.nextInt(800) + 1;
+            }
+        }
+        LinkGraph graph = LinkGraph.build(writeMatrix(links), LANG);
+        double expected[] = naivePageRank(graph, 0.85, 200);
+        for (int threads : new int[] { 1, 3, 8 }) {
+            double ranks[] = new PageRankEngine(0.85, 1E-12, 200, threads).compute(graph);
+            assertArrayEquals(expected, ranks, 1E-9);
+            assertEquals(1.0, sum(ranks), 1E-9);
+        }
+    }
+
+    @Test
+    public void testPageRankFile() throws IOException {
+        int links[][] = { {1, 2, 4}, {2, 3}, {3, 1} };
+        SparseMatrix matrix = writeMatrix(links);
+        File dir = File.createTempFile("pageranks", null);
+        FileUtils.deleteQuietly(dir);
+        new PageRankEngine().computeAndWrite(matrix, dir);
+
+        LinkGraph graph = LinkGraph.build(matrix, LANG);
+        double ranks[] = new PageRankEngine().compute(graph);
+        PageRankFile table = new PageRankFile(PageRankEngine.getFile(dir, LANG));
+        assertEquals(LANG, table.getLanguage());
+        assertEquals(4, table.getNumPages());
+        for (int i = 0; i < graph.getNumPages(); i++) {
+            assertEquals(ranks[i], table.get(graph.getPageId(i)), 1E-12);
+        }
+        assertEquals(0.0, table.get(5), 0.0);
+        table.close();
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Test
+    public void testPersonalizedPageRank() throws IOException {
+        Random random = new Random(23);
+        int links[][] = new int[300][];
+        for (int i = 0; i < links.length; i++) {
+            int n = random.nextInt(6);
+            links[i] = new int[n + 1];
+            links[i][0] = i + 1;
+            for (int j = 1; j <= n; j++) {
+                links[i][j] = random.nextInt(400) + 1;
+            }
+        }
+        SparseMatrix matrix = writeMatrix(links);
+        LinkGraph graph = LinkGraph.build(matrix, LANG);
+
+        TIntDoubleMap seeds = new TIntDoubleHashMap();
+        seeds.put(3, 2.0);
+        seeds.put(17, 1.0);
+        double expected[] = naivePersonalizedPageRank(graph, seeds, 0.85, 500);
+
+        PersonalizedPageRank ppr = new PersonalizedPageRank(matrix, 0.85, 1E-10, Integer.MAX_VALUE);
+        TIntDoubleMap estimates = ppr.estimate(LANG, seeds);
+        for (int i = 0; i < graph.getNumPages(); i++) {
+            double actual = estimates.containsKey(graph.getPageId(i)) ? estimates.get(graph.getPageId(i)) : 0.0;
+            assertEquals(expected[i], actual, 1E-7);
+        }
+
+        LinkedHashMap<Integer, Double> top = ppr.topK(LANG, seeds, 10, false);
+        assertTrue(top.size() <= 10);
+        double last = Double.POSITIVE_INFINITY;
+        for (int id : top.keySet()) {
+            assertFalse(seeds.containsKey(id));
+            assertTrue(top.get(id) <= last);
+            last = top.get(id);
+        }
+    }
+
+    /**
+     * Writes an adjacency matrix. The first element of each array is the source page,
+     * the remaining elements are destinations.
+     */
+    private SparseMatrix writeMatrix(int links[][]) throws IOException {
+        File file = File.createTempFile("links", ".matrix");
+        file.deleteOnExit();
+        ValueConf vconf = new ValueConf();
+        SparseMatrixWriter writer = new SparseMatrixWriter(file, vconf);
+        for (int[] row : links) {
+            int dests[] = new int[row.length - 1];
+            for (int i = 1; i < row.length; i++) {
+                dests[i - 1] = new LocalId(LANG, row[i]).toInt();
+            }
+            // remove duplicate destinations, as the link dao does
+            Arrays.sort(dests);
+            int n = 0;
+            for (int i = 0; i < dests.length; i++) {
+                if (i == 0 || dests[i] != dests[i - 1]) {
+                    dests[n++] = dests[i];
+                }
+            }
+            dests = Arrays.copyOf(dests, n);
+            writer.writeRow(new SparseMatrixRow(vconf, new LocalId(LANG, row[0]).toInt(), dests, new short[n]));
+        }
+        writer.finish();
+        return new SparseMatrix(file);
+    }
+
+    private static double[] naivePageRank(LinkGraph graph, double d, int iterations) {
+        int n = graph.getNumPages();
+        int offsets[] = graph.getInOffsets();
+        int edges[] = graph.getInEdges();
+        double ranks[] = new double[n];
+        Arrays.fill(ranks, 1.0 / n);
+        for (int iter = 0; iter < iterations; iter++) {
+            double next[] = new double[n];
+            double dangling = 0.0;
+            for (int u = 0; u < n; u++) {
+                if (graph.getOutDegree(u) == 0) {
+                    dangling += ranks[u];
+                }
+            }
+            for (int v = 0; v < n; v++) {
+                double sum = 0.0;
+                for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                    sum += ranks[edges[e]] / graph.getOutDegree(edges[e]);
+                }
+                next[v] = (1 - d) / n + d * (sum + dangling / n);
+            }
+            ranks = next;
+        }
+        return ranks;
+    }
+
+    private static double[] naivePersonalizedPageRank(LinkGraph graph, TIntDoubleMap seeds, double d, int iterations) {
+        int n = graph.getNumPages();
+        int offsets[] = graph.getInOffsets();
+        int edges[] = graph.getInEdges();
+        double restart[] = new double[n];
+        double total = 0.0;
+        for (int id : seeds.keys()) {
+            total += seeds.get(id);
+        }
+        for (int id : seeds.keys()) {
+            restart[graph.indexOf(id)] = seeds.get(id) / total;
+        }
+        double ranks[] = Arrays.copyOf(restart, n);
+        for (int iter = 0; iter < iterations; iter++) {
+            double next[] = new double[n];
+            double dangling = 0.0;
+            for (int u = 0; u < n; u++) {
+                if (graph.getOutDegree(u) == 0) {
+                    dangling += ranks[u];
+                }
+            }
+            for (int v = 0; v < n; v++) {
+                double sum = 0.0;
+                for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                    sum += ranks[edges[e]] / graph.getOutDegree(edges[e]);
+                }
+                next[v] = (1 - d) * restart[v] + d * (sum + dangling * restart[v]);
+            }
+            ranks = next;
+        }
+        return ranks;
+    }
+
+    private static double sum(double[] values) {
+        double total = 0.0;
+        for (double v : values) {
+            total += v;
+        }
+        return total;
+    }
+}
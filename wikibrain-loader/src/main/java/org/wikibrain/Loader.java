@@ -40,6 +40,21 @@ public class Loader {
                         .withDescription("Rerun all stages (e.g. drop previous data) whether or not stages have previously been run")
                         .create("d"));
 
+        //Number of concurrent stages
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("parallel-stages")
+                        .withDescription("maximum number of independent stages that run at the same time")
+                        .create("p"));
+
+        //Run stages in this JVM
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .withLongOpt("in-process")
+                        .withDescription("run stages inside the loader's JVM, sharing its configuration and daos")
+                        .create("i"));
+
         EnvBuilder.addStandardOptions(options);
     }
 
@@ -48,20 +63,27 @@ public class Loader {
     private CommandLine cmd;
     private String[] loaderArgs;
     private boolean doDiagnostics = true;
+    private boolean inProcess = false;
 
     public Loader(String args[]) throws ConfigurationException, DaoException, InterruptedException, ClassNotFoundException, ParseException {
         CommandLineParser parser = new PosixParser();
         cmd = parser.parse(options, args);
         doDiagnostics = !cmd.hasOption("skipDiagnostics");
+        inProcess = cmd.hasOption("i");
 
         List<String> keeperArgs = new ArrayList<String>();
         for (int i = 0; i < args.length; i++) {
             if (args[i].equals("-d") || args[i].equals("-drop")) {
                 // do not keep
+            } else if (args[i].equals("-i") || args[i].endsWith("in-process")) {
+                    // do not keep
             } else if (args[i].endsWith("skipDiagnostics")) {
                     // do not keep
-            } else if (args[i].equals("-s") || args[i].equals("-stage")) {
+            } else if (args[i].equals("-s") || args[i].equals("-stage")
+                    || args[i].equals("-p") || args[i].equals("--parallel-stages")) {
                 i++;    // do not keep and skip the next arg
+            } else if (args[i].startsWith("--parallel-stages=") || args[i].matches("-p\\d+")) {
+                    // do not keep
             } else {
                 keeperArgs.add(args[i]);
             }
@@ -70,6 +92,10 @@ public class Loader {
         // Don't trigger logging before we initialize it.
 //        PipelineLoader.LOG.info("pipeline keeping args: " + keeperArgs);
 
+        if (inProcess) {
+            // Stages run in this JVM and reuse the environment built here.
+            EnvBuilder.shareEnvs();
+        }
         env = new EnvBuilder(cmd).build();
         List<StageArgs> stageArgs = null;
         if (cmd.hasOption("s")) {
@@ -84,10 +110,24 @@ public class Loader {
         if (cmd.hasOption("d")) {
             loader.setForceRerun(true);
         }
+        loader.setInProcess(inProcess);
+        if (cmd.hasOption("p")) {
+            loader.setMaxParallelStages(Integer.valueOf(cmd.getOptionValue("p")));
+        }
         loaderArgs = keeperArgs.toArray(new String[0]);
     }
 
     public synchronized  void run() throws InterruptedException, IOException, StageFailedException {
+        if (inProcess) {
+            try {
+                loader.run(loaderArgs);
+            } finally {
+                EnvBuilder.closeSharedEnvs();
+                env = null;
+            }
+            return;
+        }
+
         // Close and pause
         if (env != null) {
             env.close();
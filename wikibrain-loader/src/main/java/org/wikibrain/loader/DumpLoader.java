@@ -21,12 +21,8 @@ import org.wikibrain.core.lang.LanguageInfo;
 import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.NameSpace;
 import org.wikibrain.core.model.RawPage;
-import org.wikibrain.parser.DumpSplitter;
-import org.wikibrain.parser.WpParseException;
-import org.wikibrain.parser.xml.PageXmlParser;
-import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.parser.ParallelDumpSplitter;
 import org.wikibrain.utils.Procedure;
-import org.wikibrain.utils.WpThreadUtils;
 
 import java.io.*;
 import java.sql.SQLException;
@@ -77,40 +73,33 @@ public class DumpLoader {
     /**
      * Expects file name format starting with lang + "wiki" for example, "enwiki"
      * @param file
+     * @throws IOException If the dump could not be read completely.
      */
-    public void load(final File file) {
+    public void load(final File file) throws IOException {
         final Language lang = FileMatcher.ARTICLES.getLanguage(file.getAbsolutePath());
         if (!keepProcessingArticles(lang)) {
             return;
         }
-        DumpSplitter parser = new DumpSplitter(file);
-        ParallelForEach.iterate(
-                parser.iterator(),
-                WpThreadUtils.getMaxThreads(),
-                1000,
-                new Procedure<String>() {
-                    @Override
-                    public void call(String page) throws Exception {
-                        try {
-                            processOnePage(file, lang, page);
-                        } catch (WpParseException e) {
-                            LOG.warn("parsing of " + file.getPath() + " failed:", e);
-                        }
-                    }
-                },
-                Integer.MAX_VALUE
-        );
+        ParallelDumpSplitter splitter = new ParallelDumpSplitter(file);
+        try {
+            splitter.forEachRawPage(LanguageInfo.getByLanguage(lang), new Procedure<RawPage>() {
+                @Override
+                public void call(RawPage page) throws Exception {
+                    processOnePage(file, lang, page);
+                }
+            });
+        } catch (IOException e) {
+            throw new IOException("splitting " + file.getPath() + " failed", e);
+        }
     }
 
-    private void processOnePage(File file, Language lang, String page) throws WpParseException {
+    private void processOnePage(File file, Language lang, RawPage rp) {
         if (!keepProcessingArticles(lang)) {
             return;
         }
         if (allPages.incrementAndGet() % 10000 == 0) {
             LOG.info("processing article " + allPages.get() + " found " + interestingPages.get() + " interesting articles");
         }
-        PageXmlParser parser = new PageXmlParser(LanguageInfo.getByLanguage(lang));
-        RawPage rp = parser.parse(page);
         if (isInteresting(rp)) {
             interestingPages.incrementAndGet();
             save(file, rp);
@@ -2,120 +2,299 @@ package org.wikibrain.loader;
 
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageInfo;
 import org.wikibrain.core.model.LocalLink;
 
 import java.util.Iterator;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
+ * The set of links found while parsing a language's wikitext, stored as their long hash codes.
+ *
+ * <p>
+ * Hashes are kept in an open addressing table of primitive longs that parser threads
+ * insert into concurrently with compare-and-set, without locks. The table is sized once,
+ * from the expected number of links, and never expands. If the table would need more than
+ * a quarter of the maximum heap, it is capped at that size and the hashes that don't fit
+ * spill into a temporary on-disk B-tree.
+ * </p>
+ *
+ * <p>
+ * Links can be added concurrently. Contains should only be called after finish().
+ * </p>
+ *
  * @author Shilad Sen
  */
 public class LocalLinkSet {
+    private static final Logger LOG = LoggerFactory.getLogger(LocalLinkSet.class);
+
     private static final long MIN_SORT_MEMORY = 100 * 1024 * 1024;  // 100MB
     private static final int LONG_MEMORY_BYTES = 30;                     // bit of a guess
     private static final Long POISON_PILL = new Long(Long.MIN_VALUE);
-    private final DB db;
-    private final DB.BTreeSetMaker setMaker;
-
-    private ArrayBlockingQueue<Long> queue = new ArrayBlockingQueue<Long>(10000);
-    private volatile Long next = null;
-    private Thread worker = null;
-    private Set<Long> set = null;
-
-    public LocalLinkSet() {
-        this.db = DBMaker
-                .newTempFileDB()
-                .mmapFileEnable()
-                .transactionDisable()
-                .asyncWriteEnable()
-                .asyncWriteFlushDelay(100)
-                .make();
-        this.setMaker = db.createTreeSet("linkHashes");
-
-        long heapMaxSize = Runtime.getRuntime().maxMemory();
-        int presortMem = (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_SORT_MEMORY, heapMaxSize / 20));
-
-        setMaker.pumpIgnoreDuplicates();
-        setMaker.pumpPresort(presortMem / LONG_MEMORY_BYTES);
-
-        worker = new Thread() {
-            @Override
-            public void run() {
-                setMaker.pumpSource(new LinkHashIterator());
-                set = setMaker.makeLongSet();
-            }
-        };
-        worker.start();
+
+    /**
+     * Marks an empty slot in the table. Zero, so new tables need not be filled.
+     */
+    private static final long UNUSED = 0L;
+
+    /**
+     * Maximum fraction of the table that is filled.
+     */
+    private static final double LOAD_FACTOR = 0.5;
+
+    private static final int MIN_EXPECTED_LINKS = 100000;
+    private static final int MAX_TABLE_SIZE = Integer.MAX_VALUE - 8;
+
+    private final AtomicLongArray table;
+    private final int maxElements;
+    private final AtomicInteger numElements = new AtomicInteger();
+    private volatile boolean containsUnused = false;
+
+    private volatile DiskLongSet spill = null;
+
+    /**
+     * Creates a set sized for the number of links in a language.
+     */
+    public LocalLinkSet(Language language) {
+        this(LanguageInfo.getByLanguage(language).getNumLinks());
+    }
+
+    /**
+     * Creates a set sized for the specified number of links.
+     * More links can be added, but they may spill to disk.
+     */
+    public LocalLinkSet(int expectedLinks) {
+        long maxSlots = Runtime.getRuntime().maxMemory() / 4 / 8;
+        long slots = (long) (2L * Math.max(expectedLinks, MIN_EXPECTED_LINKS) / LOAD_FACTOR);
+        slots = Math.min(slots, Math.min(maxSlots, MAX_TABLE_SIZE));
+        slots = Math.max(slots, (long) (MIN_EXPECTED_LINKS / LOAD_FACTOR));
+
+        this.table = new AtomicLongArray((int) slots);
+        this.maxElements = (int) (table.length() * LOAD_FACTOR);
+        LOG.info("allocated link set with room for " + maxElements + " links");
     }
 
     public void addLink(LocalLink link) {
-        try {
-            queue.put(link.longHashCode());
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+        add(link.longHashCode());
+    }
+
+    public boolean contains(LocalLink link) {
+        return contains(link.longHashCode());
+    }
+
+    /**
+     * Adds a link hash to the set. Threadsafe and lock-free unless the table is full.
+     */
+    public void add(long hash) {
+        if (hash == UNUSED) {
+            containsUnused = true;
+            return;
+        }
+        int length = table.length();
+        int index = index(hash, length);
+        while (true) {
+            long v = table.get(index);
+            if (v == hash) {
+                return;     // already in the set
+            } else if (v == UNUSED) {
+                if (numElements.get() >= maxElements) {
+                    getSpill().add(hash);
+                    return;
+                }
+                if (table.compareAndSet(index, UNUSED, hash)) {
+                    numElements.incrementAndGet();
+                    return;
+                }
+                // another thread claimed the slot; check it again
+            } else if (++index == length) {
+                index = 0;
+            }
         }
+    }
 
+    /**
+     * Returns true if the set contains the link hash.
+     */
+    public boolean contains(long hash) {
+        if (hash == UNUSED) {
+            return containsUnused;
+        }
+        int length = table.length();
+        int index = index(hash, length);
+        while (true) {
+            long v = table.get(index);
+            if (v == hash) {
+                return true;
+            } else if (v == UNUSED) {
+                return spill != null && spill.contains(hash);
+            } else if (++index == length) {
+                index = 0;
+            }
+        }
     }
 
+    /**
+     * Must be called after all links are added and before contains is called.
+     */
     public void finish() {
-        try {
-            queue.put(POISON_PILL);
-            synchronized (worker) {
-                worker.wait();
-                worker = null;
+        if (spill != null) {
+            spill.finish();
+            LOG.info("finished link set with " + numElements.get() + " links in memory and "
+                    + spill.size() + " spilled to disk");
+        } else {
+            LOG.info("finished link set with " + numElements.get() + " links in memory");
+        }
+    }
+
+    /**
+     * @return The number of distinct links in the set.
+     * Links that spilled to disk may be counted more than once.
+     */
+    public long size() {
+        return numElements.get() + (containsUnused ? 1 : 0) + (spill == null ? 0 : spill.size());
+    }
+
+    private DiskLongSet getSpill() {
+        if (spill == null) {
+            synchronized (this) {
+                if (spill == null) {
+                    LOG.warn("link set is full with " + maxElements + " links; spilling remaining links to disk");
+                    spill = new DiskLongSet();
+                }
             }
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
         }
+        return spill;
     }
 
-    public boolean contains(LocalLink link) {
-        return set.contains(link.longHashCode());
+    /**
+     * Mixes the bits of the hash (the finalizer of MurmurHash3) to pick a slot.
+     * Link hashes pack the source and destination ids, so their low bits are not random.
+     */
+    private static int index(long hash, int length) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) ((hash & Long.MAX_VALUE) % length);
     }
 
-    class LinkHashIterator implements Iterator<Long> {
-        private boolean fillBuffer() {
-            if (next != null) {
-                return true;
+    /**
+     * A set of longs in a temporary MapDB B-tree, built by a worker thread that pumps
+     * the added values through a presorting queue.
+     */
+    static class DiskLongSet {
+        private final DB db;
+        private final DB.BTreeSetMaker setMaker;
+
+        private ArrayBlockingQueue<Long> queue = new ArrayBlockingQueue<Long>(10000);
+        private volatile Long next = null;
+        private Thread worker = null;
+        private Set<Long> set = null;
+        private final AtomicInteger numAdded = new AtomicInteger();
+
+        DiskLongSet() {
+            this.db = DBMaker
+                    .newTempFileDB()
+                    .mmapFileEnable()
+                    .transactionDisable()
+                    .asyncWriteEnable()
+                    .asyncWriteFlushDelay(100)
+                    .make();
+            this.setMaker = db.createTreeSet("linkHashes");
+
+            long heapMaxSize = Runtime.getRuntime().maxMemory();
+            int presortMem = (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_SORT_MEMORY, heapMaxSize / 20));
+
+            setMaker.pumpIgnoreDuplicates();
+            setMaker.pumpPresort(presortMem / LONG_MEMORY_BYTES);
+
+            worker = new Thread() {
+                @Override
+                public void run() {
+                    setMaker.pumpSource(new LinkHashIterator());
+                    set = setMaker.makeLongSet();
+                }
+            };
+            worker.start();
+        }
+
+        void add(long hash) {
+            try {
+                queue.put(hash);
+                numAdded.incrementAndGet();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
             }
-            if (queue == null) {
-                return false;
+        }
+
+        void finish() {
+            try {
+                queue.put(POISON_PILL);
+                worker.join();
+                worker = null;
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
             }
-            while (next == null) {
-                try {
-                    Long l = queue.take();
-                    if (l == POISON_PILL) {
-                        queue = null;
-                        return false;
+        }
+
+        boolean contains(long hash) {
+            return set.contains(hash);
+        }
+
+        int size() {
+            return numAdded.get();
+        }
+
+        class LinkHashIterator implements Iterator<Long> {
+            private boolean fillBuffer() {
+                if (next != null) {
+                    return true;
+                }
+                if (queue == null) {
+                    return false;
+                }
+                while (next == null) {
+                    try {
+                        Long l = queue.take();
+                        if (l == POISON_PILL) {
+                            queue = null;
+                            return false;
+                        }
+                        next = l;
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
                     }
-                    next = l;
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
                 }
+                return true;
             }
-            return true;
-        }
 
-        @Override
-        public synchronized boolean hasNext() {
-            return fillBuffer();
-        }
+            @Override
+            public synchronized boolean hasNext() {
+                return fillBuffer();
+            }
 
-        @Override
-        public Long next() {
-            if (fillBuffer()) {
-                Long result = next;
-                next = null;
-                return result;
-            } else {
-                return null;
+            @Override
+            public Long next() {
+                if (fillBuffer()) {
+                    Long result = next;
+                    next = null;
+                    return result;
+                } else {
+                    return null;
+                }
             }
-        }
 
-        @Override
-        public void remove() {
-            throw new UnsupportedOperationException();
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
         }
     }
 }
@@ -89,7 +89,7 @@ public class WikiTextLoader {
         for (Language lang : env.getLanguages().getLanguages()) {
             LOG.info("loading links for " + lang);
 
-            final LocalLinkSet linkSet = new LocalLinkSet();
+            final LocalLinkSet linkSet = new LocalLinkSet(lang);
 
             linkVisitor.setLinkListener(
                     new LocalLinkVisitor.Listener() {
@@ -98,9 +98,13 @@ public class WikiTextLoader {
 
             WikiTextDumpParser dumpParser = new WikiTextDumpParser(
                     rpDao, LanguageInfo.getByLanguage(lang), LanguageSet.ALL);
+            long before = System.currentTimeMillis();
             dumpParser.parse(visitors);
 
             linkSet.finish();
+            double seconds = (System.currentTimeMillis() - before) / 1000.0;
+            LOG.info(String.format("parsed %d distinct links for %s in %.1f seconds (%.0f links/sec)",
+                    linkSet.size(), lang, seconds, linkSet.size() / Math.max(seconds, 0.001)));
 
             List<File> paths = env.getFiles(lang, FileMatcher.LINK_SQL);
             if (paths.size() > 1) {
@@ -9,9 +9,12 @@ import org.wikibrain.core.dao.sql.WpDataSource;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageInfo;
 import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.spatial.dao.SpatialDataDao;
+import org.wikibrain.spatial.dao.embedded.EmbeddedSpatialDB;
 import org.wikibrain.spatial.dao.postgis.PostGISDB;
 import org.wikibrain.spatial.loader.SpatialDataLoader;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -252,20 +255,40 @@ public class DiagnosticReport {
             if (!found) {
                 return true;
             }
+            // Check the data source used by the spatial data dao, which may be PostGIS or embedded
+            String dataSource = null;
             Config config = null;
             try {
-                config = env.getConfigurator().getConfig(PostGISDB.class, null);
+                Config daoConfig = env.getConfigurator().getConfig(SpatialDataDao.class, null);
+                if (daoConfig.hasPath("dataSource")) {
+                    dataSource = daoConfig.getString("dataSource");
+                }
+                config = env.getConfigurator().getConfig(PostGISDB.class, dataSource);
             } catch (ConfigurationException e) {
                 throw new IllegalStateException(e);
             }
 
             boolean passed = true;
-            try {
-                PostGISDB ds = env.getConfigurator().get(PostGISDB.class);
-                writer.write("Connection to spatial database succeeded. Active configuration:\n");
-            } catch (Exception e) {
-                writer.write("Connection to spatial database FAILED! Active configuration:\n");
-                passed = false;
+            if (config.getString("dbtype").equals("embedded")) {
+                File dir = new File(config.getString("directory"));
+                try {
+                    env.getConfigurator().get(EmbeddedSpatialDB.class, dataSource);
+                    if (!dir.isDirectory() || !dir.canWrite()) {
+                        throw new IOException("Embedded spatial directory " + dir + " is not writable");
+                    }
+                    writer.write("Embedded spatial database directory " + dir.getAbsolutePath() + " is usable. Active configuration:\n");
+                } catch (Exception e) {
+                    writer.write("Embedded spatial database directory " + dir.getAbsolutePath() + " is NOT usable! Active configuration:\n");
+                    passed = false;
+                }
+            } else {
+                try {
+                    PostGISDB ds = env.getConfigurator().get(PostGISDB.class, dataSource);
+                    writer.write("Connection to spatial database succeeded. Active configuration:\n");
+                } catch (Exception e) {
+                    writer.write("Connection to spatial database FAILED! Active configuration:\n");
+                    passed = false;
+                }
             }
             for (Map.Entry<String, ConfigValue > entry : config.entrySet()) {
                 writer.write("\t" + entry.getKey() + ": " + entry.getValue().render() + "\n");
@@ -0,0 +1,160 @@
+package org.wikibrain.loader.pipeline;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.core.cmd.EnvBuilder;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.Permission;
+import java.util.Properties;
+
+/**
+ * Runs the main method of a stage inside the loader's JVM instead of forking a new JVM.
+ *
+ * <p>
+ * The stage shares the environments of the loader (see {@link EnvBuilder#shareEnvs()}),
+ * so its configuration, data sources, daos and their caches are already loaded and warm.
+ * Environments the stage builds with different parameters are closed when it finishes.
+ * </p>
+ *
+ * <p>
+ * Static state that stages are known to change (system properties and the maximum number
+ * of threads) is restored after each stage. Calls to System.exit() are trapped and become
+ * the stage's exit code. Only one stage runs in process at a time.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class InProcessLauncher {
+    private static final Logger LOG = LoggerFactory.getLogger(InProcessLauncher.class);
+
+    private static final Object LOCK = new Object();
+
+    /**
+     * Thrown in place of exiting the JVM.
+     */
+    static class ExitTrappedException extends SecurityException {
+        private final int status;
+
+        ExitTrappedException(int status) {
+            super("System.exit(" + status + ") called by in-process stage");
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * Permits everything the enclosing security manager permits, except exiting the JVM.
+     */
+    static class ExitTrap extends SecurityManager {
+        private final SecurityManager parent;
+
+        ExitTrap(SecurityManager parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public void checkExit(int status) {
+            throw new ExitTrappedException(status);
+        }
+
+        @Override
+        public void checkPermission(Permission perm) {
+            if (parent != null) {
+                parent.checkPermission(perm);
+            }
+        }
+
+        @Override
+        public void checkPermission(Permission perm, Object context) {
+            if (parent != null) {
+                parent.checkPermission(perm, context);
+            }
+        }
+    }
+
+    /**
+     * @return True if this JVM allows System.exit() to be trapped, which running in process requires.
+     */
+    public static boolean isSupported() {
+        synchronized (LOCK) {
+            SecurityManager current = System.getSecurityManager();
+            try {
+                System.setSecurityManager(new ExitTrap(current));
+                System.setSecurityManager(current);
+                return true;
+            } catch (UnsupportedOperationException e) {
+                return false;
+            } catch (SecurityException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Runs the main method of a class in this JVM.
+     *
+     * @param klass The class whose main method should be run.
+     * @param args Arguments to the main method.
+     * @return The exit code of the stage: the argument of System.exit() if it was called,
+     *         0 if main returned normally, and 1 if it threw an exception.
+     */
+    public static int run(Class klass, String args[]) throws InterruptedException {
+        synchronized (LOCK) {
+            int numEnvs = EnvBuilder.getNumSharedEnvs();
+            Properties properties = (Properties) System.getProperties().clone();
+            int maxThreads = WpThreadUtils.getMaxThreads();
+            SecurityManager securityManager = System.getSecurityManager();
+            System.setSecurityManager(new ExitTrap(securityManager));
+            int status;
+            try {
+                Method main = klass.getMethod("main", String[].class);
+                main.invoke(null, (Object) args);
+                status = 0;
+            } catch (InvocationTargetException e) {
+                status = getExitStatus(klass, e.getCause());
+            } catch (NoSuchMethodException e) {
+                LOG.error("Stage class " + klass.getName() + " has no main method", e);
+                status = 1;
+            } catch (IllegalAccessException e) {
+                LOG.error("Stage class " + klass.getName() + " has an inaccessible main method", e);
+                status = 1;
+            } finally {
+                System.setSecurityManager(securityManager);
+                System.setProperties(properties);
+                WpThreadUtils.setMaxThreads(maxThreads);
+                try {
+                    EnvBuilder.releaseSharedEnvs(numEnvs);
+                } catch (Exception e) {
+                    LOG.warn("Closing environments of stage " + klass.getName() + " failed:", e);
+                }
+            }
+
+            // Reclaim the memory of the stage before the next one starts
+            Runtime rt = Runtime.getRuntime();
+            System.gc();
+            LOG.info(String.format("heap used after stage %s is %dMB",
+                    klass.getSimpleName(), (rt.totalMemory() - rt.freeMemory()) / (1024 * 1024)));
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            return status;
+        }
+    }
+
+    private static int getExitStatus(Class klass, Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ExitTrappedException) {
+                return ((ExitTrappedException) cause).getStatus();
+            }
+        }
+        LOG.error("Stage " + klass.getName() + " failed:", t);
+        return 1;
+    }
+}
@@ -35,6 +35,10 @@ public class PipelineLoader {
     private final Map<String, List<String>> groups = new HashMap<String, List<String>>();
     private final DiagnosticDao diagnosticDao;
     private boolean forceRerun = false;
+    private int maxParallelStages;
+    private int maxHeapMegabytes;
+    private boolean fileDatabase;
+    private boolean inProcess = false;
 
     public PipelineLoader(Env env) throws ConfigurationException, DaoException, ClassNotFoundException, InterruptedException {
         this(env, null);
@@ -96,48 +100,32 @@ public class PipelineLoader {
 
 
     public synchronized void run(String [] args) throws IOException, InterruptedException, StageFailedException {
+        if (inProcess && !InProcessLauncher.isSupported()) {
+            LOG.warn("This JVM does not allow stages to run in process. Launching a JVM for each stage instead.");
+            inProcess = false;
+        }
         for (PipelineStage stage : stages.values()) {
             stage.reset();
+            stage.setInProcess(inProcess);
         }
-        LOG.info("Beginning loading");
-        try {
-            for (PipelineStage stage : stages.values()) {
-                if (stage.getShouldRun() != null && stage.getShouldRun()) {
-                    LOG.info("Beginning stage " + stage.getName());
-                    stage.runWithDependenciesIfNeeded(args, forceRerun);
-                    LOG.info("Successfully completed stage " + stage.getName());
-                }
-            }
-            LOG.info("Loading successfully finished");
-        } finally {
-            quietlySaveDiagnostics();
-        }
-    }
-
-    private void quietlySaveDiagnostics() {
-        try {
-            long runId = Math.abs(new Random().nextLong());
-            for (PipelineStage stage : stages.values()) {
-                if (stage != null && stage.hasBeenRun()) {
-                    StageDiagnostic sd = new StageDiagnostic(
-                            runId,
-                            stage.getName(),
-                            langs,
-                            stage.getElapsedSeconds(),
-                            CpuBenchmarker.getSingleCoreSpeed(),
-                            CpuBenchmarker.getMultiCoreSpeed(),
-                            -1.0
-                    );
-                    sd.setSucceeded(stage.getSucceeded());
-                    diagnosticDao.saveQuietly(sd);
-                }
-            }
-        } catch (Exception e) {
-            LOG.warn("Diagnostics save failed (this should be harmless):", e);
+        int parallelStages = maxParallelStages;
+        if (parallelStages > 1 && fileDatabase) {
+            LOG.warn("The default data source is an embedded H2 file database that only one JVM can open. " +
+                     "Running stages one at a time instead of " + parallelStages + " at a time.");
+            parallelStages = 1;
         }
+        PipelineScheduler scheduler = new PipelineScheduler(langs, diagnosticDao);
+        scheduler.setMaxParallelStages(parallelStages);
+        scheduler.setMaxHeapMegabytes(maxHeapMegabytes);
+        LOG.info("Beginning loading");
+        scheduler.run(scheduler.plan(stages.values(), forceRerun), args);
+        LOG.info("Loading successfully finished");
     }
 
     private void initConfig(Configuration config) throws ClassNotFoundException {
+        maxParallelStages = config.get().getInt("loader.maxParallelStages");
+        maxHeapMegabytes = config.get().getInt("loader.maxHeapMegabytes");
+        fileDatabase = isFileDatabase(config.get());
         for (Config stageConfig : config.get().getConfigList("loader.stages")) {
             PipelineStage stage = new PipelineStage(stageConfig, stages.values(), state);
             stages.put(stage.getName(), stage);
@@ -154,6 +142,29 @@ public class PipelineLoader {
         }
     }
 
+    /**
+     * Returns true if the default data source is an embedded H2 database file.
+     * Stages launched in separate JVMs cannot open such a database at the same time.
+     */
+    static boolean isFileDatabase(Config config) {
+        if (!config.hasPath("dao.dataSource.default")) {
+            return false;
+        }
+        String path = "dao.dataSource." + config.getString("dao.dataSource.default") + ".url";
+        if (!config.hasPath(path)) {
+            return false;
+        }
+        String url = config.getString(path).toLowerCase();
+        if (!url.startsWith("jdbc:h2:")) {
+            return false;
+        }
+        String location = url.substring("jdbc:h2:".length());
+        return !location.startsWith("tcp:")
+            && !location.startsWith("ssl:")
+            && !location.startsWith("mem:")
+            && !url.contains("auto_server=true");
+    }
+
     private void setStageArguments(List<StageArgs> stageArgs) {
         // expand groups in the options to the individual stages
         List<StageArgs> expandedArgs = new ArrayList<StageArgs>();
@@ -186,4 +197,17 @@ public class PipelineLoader {
     public void setForceRerun(boolean forceRerun) {
         this.forceRerun = forceRerun;
     }
+
+    public void setMaxParallelStages(int maxParallelStages) {
+        this.maxParallelStages = maxParallelStages;
+    }
+
+    /**
+     * If true, stages run inside this JVM instead of each launching a new JVM.
+     * Stages then share environments with the loader if sharing is enabled.
+     * @see InProcessLauncher
+     */
+    public void setInProcess(boolean inProcess) {
+        this.inProcess = inProcess;
+    }
 }
@@ -0,0 +1,316 @@
+package org.wikibrain.loader.pipeline;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.core.lang.LanguageSet;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the stages of the pipeline as a dependency graph, running independent stages concurrently.
+ *
+ * <p>
+ * A stage starts once every stage it depends on (directly, or through stages that do not
+ * need to run) has finished. When several stages are ready, the one with the longest
+ * estimated critical path (its own estimated time plus the longest chain of stages that
+ * wait on it) starts first, so the total load time approaches the critical path of the graph.
+ * </p>
+ *
+ * <p>
+ * Concurrency is bounded by a maximum number of simultaneous stages and a budget for the
+ * sum of their maximum heaps. A stage that does not fit in the budget waits until enough
+ * running stages finish, but a stage always starts if nothing else is running.
+ * </p>
+ *
+ * <p>
+ * The timing of each stage is saved to the DiagnosticDao as soon as the stage finishes.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class PipelineScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(PipelineScheduler.class);
+
+    private final LanguageSet langs;
+    private final DiagnosticDao diagnosticDao;
+    private final long runId = Math.abs(new Random().nextLong());
+
+    private int maxParallelStages = 1;
+    private int maxHeapMegabytes = 0;
+
+    /**
+     * @param langs Languages being loaded; used for time estimates and diagnostics.
+     * @param diagnosticDao Dao that stage timings are saved to, or null.
+     */
+    public PipelineScheduler(LanguageSet langs, DiagnosticDao diagnosticDao) {
+        this.langs = langs;
+        this.diagnosticDao = diagnosticDao;
+    }
+
+    /**
+     * @param maxParallelStages The maximum number of stages that run at the same time.
+     */
+    public void setMaxParallelStages(int maxParallelStages) {
+        if (maxParallelStages < 1) {
+            throw new IllegalArgumentException("maxParallelStages must be positive: " + maxParallelStages);
+        }
+        this.maxParallelStages = maxParallelStages;
+    }
+
+    /**
+     * @param maxHeapMegabytes The maximum total heap of the stages that run at the same time,
+     *                         or 0 for no limit.
+     */
+    public void setMaxHeapMegabytes(int maxHeapMegabytes) {
+        this.maxHeapMegabytes = maxHeapMegabytes;
+    }
+
+    /**
+     * Returns the stages that need to be run, in the order the sequential loader would run them.
+     * These are the stages the user asked for and their dependencies, excluding any
+     * stage that is not needed (e.g. its data is already loaded).
+     */
+    public List<PipelineStage> plan(Collection<PipelineStage> stages, boolean forceRerun) {
+        LinkedHashSet<PipelineStage> planned = new LinkedHashSet<PipelineStage>();
+        Set<PipelineStage> visited = new HashSet<PipelineStage>();
+        for (PipelineStage stage : stages) {
+            if (stage.getShouldRun() != null && stage.getShouldRun()) {
+                plan(stage, forceRerun, visited, planned);
+            }
+        }
+        return new ArrayList<PipelineStage>(planned);
+    }
+
+    private void plan(PipelineStage stage, boolean forceRerun, Set<PipelineStage> visited, Set<PipelineStage> planned) {
+        if (!visited.add(stage)) {
+            return;
+        }
+        for (PipelineStage dep : stage.getDependsOn()) {
+            plan(dep, forceRerun, visited, planned);
+        }
+        if (stage.isNeeded(forceRerun)) {
+            planned.add(stage);
+        }
+    }
+
+    /**
+     * Runs the planned stages. If a stage fails, no more stages are started, and the
+     * failure is thrown once the stages that are already running finish.
+     *
+     * @param planned Stages to run, as returned by plan().
+     * @param args Command line arguments passed to every stage.
+     */
+    public void run(List<PipelineStage> planned, final String [] args) throws IOException, InterruptedException, StageFailedException {
+        Map<PipelineStage, Set<PipelineStage>> prereqs = getPrerequisites(planned);
+        final Map<PipelineStage, Double> criticalPath = getCriticalPaths(planned, prereqs);
+
+        List<PipelineStage> waiting = new ArrayList<PipelineStage>(planned);
+        Set<PipelineStage> finished = new HashSet<PipelineStage>();
+        Map<PipelineStage, Integer> running = new HashMap<PipelineStage, Integer>();
+        Map<PipelineStage, Double> elapsed = new LinkedHashMap<PipelineStage, Double>();
+        Exception failure = null;
+
+        ExecutorService exec = Executors.newFixedThreadPool(maxParallelStages);
+        CompletionService<PipelineStage> completions = new ExecutorCompletionService<PipelineStage>(exec);
+        Map<Future<PipelineStage>, PipelineStage> futures = new HashMap<Future<PipelineStage>, PipelineStage>();
+        final Map<PipelineStage, Long> startTimes = new ConcurrentHashMap<PipelineStage, Long>();
+        long before = System.currentTimeMillis();
+
+        try {
+            while (!waiting.isEmpty() || !running.isEmpty()) {
+                // Start ready stages, longest critical path first
+                if (failure == null) {
+                    List<PipelineStage> ready = new ArrayList<PipelineStage>();
+                    for (PipelineStage stage : waiting) {
+                        if (finished.containsAll(prereqs.get(stage))) {
+                            ready.add(stage);
+                        }
+                    }
+                    Collections.sort(ready, new Comparator<PipelineStage>() {
+                        @Override
+                        public int compare(PipelineStage s1, PipelineStage s2) {
+                            return -1 * criticalPath.get(s1).compareTo(criticalPath.get(s2));
+                        }
+                    });
+                    for (final PipelineStage stage : ready) {
+                        int heap = getHeapMegabytes(stage);
+                        if (!running.isEmpty() && !fits(heap, running.values())) {
+                            continue;
+                        }
+                        if (running.size() >= maxParallelStages) {
+                            break;
+                        }
+                        LOG.info("Beginning stage " + stage.getName());
+                        waiting.remove(stage);
+                        running.put(stage, heap);
+                        futures.put(completions.submit(new Callable<PipelineStage>() {
+                            @Override
+                            public PipelineStage call() throws Exception {
+                                startTimes.put(stage, System.currentTimeMillis());
+                                runStage(stage, args);
+                                return stage;
+                            }
+                        }), stage);
+                    }
+                }
+                if (running.isEmpty()) {
+                    break;  // only reached after a failure
+                }
+
+                // Wait for a stage to finish
+                Future<PipelineStage> future = completions.take();
+                PipelineStage stage = futures.remove(future);
+                running.remove(stage);
+                Long start = startTimes.get(stage);
+                double seconds = (start == null) ? 0.0 : (System.currentTimeMillis() - start) / 1000.0;
+                elapsed.put(stage, seconds);
+                try {
+                    future.get();
+                    finished.add(stage);
+                    saveDiagnostic(stage, seconds, true);
+                    LOG.info(String.format("Successfully completed stage %s in %.1f seconds", stage.getName(), seconds));
+                } catch (ExecutionException e) {
+                    saveDiagnostic(stage, seconds, false);
+                    LOG.error("Stage " + stage.getName() + " failed", e.getCause());
+                    if (failure == null) {
+                        failure = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                    }
+                }
+            }
+        } finally {
+            exec.shutdownNow();
+        }
+
+        if (failure instanceof StageFailedException) {
+            throw (StageFailedException) failure;
+        } else if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof InterruptedException) {
+            throw (InterruptedException) failure;
+        } else if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+        logSummary(planned, elapsed, criticalPath, (System.currentTimeMillis() - before) / 1000.0);
+    }
+
+    /**
+     * Runs a single stage. Called concurrently from worker threads.
+     */
+    protected void runStage(PipelineStage stage, String [] args) throws IOException, InterruptedException, StageFailedException {
+        stage.run(args);
+    }
+
+    /**
+     * For each planned stage, finds the planned stages it must wait for.
+     * A dependency that does not need to run is replaced by its own prerequisites.
+     */
+    private Map<PipelineStage, Set<PipelineStage>> getPrerequisites(List<PipelineStage> planned) {
+        Set<PipelineStage> plannedSet = new HashSet<PipelineStage>(planned);
+        Map<PipelineStage, Set<PipelineStage>> prereqs = new HashMap<PipelineStage, Set<PipelineStage>>();
+        for (PipelineStage stage : planned) {
+            Set<PipelineStage> result = new HashSet<PipelineStage>();
+            addPrerequisites(stage, plannedSet, result, new HashSet<PipelineStage>());
+            prereqs.put(stage, result);
+        }
+        return prereqs;
+    }
+
+    private void addPrerequisites(PipelineStage stage, Set<PipelineStage> planned, Set<PipelineStage> result, Set<PipelineStage> visited) {
+        for (PipelineStage dep : stage.getDependsOn()) {
+            if (!visited.add(dep)) {
+                continue;
+            }
+            if (planned.contains(dep)) {
+                result.add(dep);
+            } else {
+                addPrerequisites(dep, planned, result, visited);
+            }
+        }
+    }
+
+    /**
+     * Estimates the time from the start of each stage until all stages that wait on it finish.
+     * Planned stages are in dependency order, so they are processed in reverse.
+     */
+    private Map<PipelineStage, Double> getCriticalPaths(List<PipelineStage> planned, Map<PipelineStage, Set<PipelineStage>> prereqs) {
+        Map<PipelineStage, Double> criticalPath = new HashMap<PipelineStage, Double>();
+        for (int i = planned.size() - 1; i >= 0; i--) {
+            PipelineStage stage = planned.get(i);
+            double longestDependent = 0.0;
+            for (int j = i + 1; j < planned.size(); j++) {
+                PipelineStage dependent = planned.get(j);
+                if (prereqs.get(dependent).contains(stage)) {
+                    longestDependent = Math.max(longestDependent, criticalPath.get(dependent));
+                }
+            }
+            criticalPath.put(stage, estimateSeconds(stage) + longestDependent);
+        }
+        return criticalPath;
+    }
+
+    private double estimateSeconds(PipelineStage stage) {
+        try {
+            return Math.max(0.0, stage.estimateSeconds(langs));
+        } catch (RuntimeException e) {
+            LOG.warn("Couldn't estimate runtime of stage " + stage.getName() + ": " + e.getMessage());
+            return 0.0;
+        }
+    }
+
+    private int getHeapMegabytes(PipelineStage stage) {
+        if (stage.getHeapMegabytes() > 0) {
+            return stage.getHeapMegabytes();
+        } else {
+            // Stages without a heap setting inherit the heap of this JVM.
+            return (int) (Runtime.getRuntime().maxMemory() / (1024 * 1024));
+        }
+    }
+
+    private boolean fits(int heap, Collection<Integer> runningHeaps) {
+        if (maxHeapMegabytes <= 0) {
+            return true;
+        }
+        int total = heap;
+        for (int h : runningHeaps) {
+            total += h;
+        }
+        return total <= maxHeapMegabytes;
+    }
+
+    private void saveDiagnostic(PipelineStage stage, double seconds, boolean succeeded) {
+        if (diagnosticDao == null) {
+            return;
+        }
+        try {
+            StageDiagnostic sd = new StageDiagnostic(
+                    runId,
+                    stage.getName(),
+                    langs,
+                    seconds,
+                    CpuBenchmarker.getSingleCoreSpeed(),
+                    CpuBenchmarker.getMultiCoreSpeed(),
+                    -1.0
+            );
+            sd.setSucceeded(succeeded);
+            diagnosticDao.saveQuietly(sd);
+        } catch (Exception e) {
+            LOG.warn("Diagnostics save failed (this should be harmless):", e);
+        }
+    }
+
+    private void logSummary(List<PipelineStage> planned, Map<PipelineStage, Double> elapsed, Map<PipelineStage, Double> criticalPath, double wallSeconds) {
+        double total = 0.0;
+        for (double seconds : elapsed.values()) {
+            total += seconds;
+        }
+        double estimated = 0.0;
+        for (PipelineStage stage : planned) {
+            estimated = Math.max(estimated, criticalPath.get(stage));
+        }
+        LOG.info(String.format(
+                "Ran %d stages in %.1f seconds (%.1f seconds of stage time, estimated critical path %.1f seconds)",
+                elapsed.size(), wallSeconds, total, estimated));
+    }
+}
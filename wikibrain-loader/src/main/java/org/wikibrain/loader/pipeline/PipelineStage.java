@@ -53,6 +53,11 @@ public class PipelineStage {
      */
     private MetaInfo loadedInfo;
 
+    /**
+     * If true, run the stage inside the loader's JVM instead of forking a new one.
+     */
+    private boolean inProcess = false;
+
     /**
      * If true, don't actually run things. Just record what you would have run.
      */
@@ -99,6 +104,11 @@ public class PipelineStage {
      */
     private final String downloadEstimateEquation;
 
+    /**
+     * Maximum heap of the stage's JVM in MBs, or 0 to use the heap of the loader's JVM.
+     */
+    private final int heapMegabytes;
+
     public PipelineStage(Config config, Collection<PipelineStage> previousStages, Map<String, MetaInfo> loadedInfo) throws ClassNotFoundException {
         this.name = config.getString("name");
         this.klass = Class.forName(config.getString("class"));
@@ -123,6 +133,7 @@ public class PipelineStage {
         } else {
             this.downloadEstimateEquation = "0.0";
         }
+        this.heapMegabytes = config.hasPath("heapMegabytes") ? config.getInt("heapMegabytes") : 0;
         this.loadedInfo = loadsClass == null ? null : loadedInfo.get(loadsClass);
     }
 
@@ -162,20 +173,39 @@ public class PipelineStage {
         if (!dryRun) {
             startTime = new Date();
             long before = System.currentTimeMillis();
-            Process p = JvmUtils.launch(klass, actualArgs);
-            int retVal = p.waitFor();
+            int retVal;
+            if (inProcess) {
+                retVal = InProcessLauncher.run(klass, actualArgs);
+            } else {
+                String heap = heapMegabytes > 0 ? (heapMegabytes + "M") : null;
+                Process p = JvmUtils.launch(klass, actualArgs, System.out, System.err, heap);
+                try {
+                    retVal = p.waitFor();
+                } catch (InterruptedException e) {
+                    p.destroy();
+                    throw e;
+                }
+            }
+            long after = System.currentTimeMillis();
+            elapsedSeconds = (after - before) / 1000.0;
             if (retVal != 0) {
                 hasBeenRun = true;
                 succeeded = false;
                 throw new StageFailedException(this, retVal);
             }
             succeeded = true;
-            long after = System.currentTimeMillis();
-            elapsedSeconds = (after - before) / 1000.0;
         }
         hasBeenRun = true;
     }
 
+    public void setInProcess(boolean inProcess) {
+        this.inProcess = inProcess;
+    }
+
+    public boolean isInProcess() {
+        return inProcess;
+    }
+
     public void setDryRun(boolean dryRun) {
         reset();
         this.dryRun = dryRun;
@@ -189,6 +219,14 @@ public class PipelineStage {
         return klass;
     }
 
+    public List<PipelineStage> getDependsOn() {
+        return Collections.unmodifiableList(dependsOn);
+    }
+
+    public int getHeapMegabytes() {
+        return heapMegabytes;
+    }
+
     public boolean hasBeenRun() {
         return hasBeenRun;
     }
@@ -0,0 +1,77 @@
+package org.wikibrain.loader;
+
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import org.junit.Test;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestLocalLinkSet {
+
+    private static long[] randomHashes(int n, int numDistinct) {
+        Random random = new Random(n);
+        long distinct[] = new long[numDistinct];
+        for (int i = 0; i < numDistinct; i++) {
+            // Packed source and destination ids, as in LocalLink.longHashCode()
+            distinct[i] = ((long) random.nextInt(1000000) << 32) | random.nextInt(5000000);
+        }
+        long hashes[] = new long[n];
+        for (int i = 0; i < n; i++) {
+            hashes[i] = distinct[random.nextInt(numDistinct)];
+        }
+        return hashes;
+    }
+
+    private void testConcurrentAdds(int expectedLinks, int n, int numDistinct) {
+        final long hashes[] = randomHashes(n, numDistinct);
+        final LocalLinkSet set = new LocalLinkSet(expectedLinks);
+        ParallelForEach.range(0, 8, 8, new Procedure<Integer>() {
+            @Override
+            public void call(Integer i) throws Exception {
+                for (int j = i; j < hashes.length; j += 8) {
+                    set.add(hashes[j]);
+                }
+            }
+        });
+        set.finish();
+
+        TLongSet expected = new TLongHashSet(hashes);
+        for (long h : expected.toArray()) {
+            assertTrue(set.contains(h));
+        }
+        Random random = new Random();
+        for (int i = 0; i < 10000; i++) {
+            long h = random.nextLong();
+            assertEquals(expected.contains(h), set.contains(h));
+        }
+        assertTrue(set.size() >= expected.size());
+    }
+
+    @Test
+    public void testInMemory() {
+        testConcurrentAdds(100000, 500000, 50000);
+    }
+
+    @Test
+    public void testSpill() {
+        // The smallest table holds 200000 links
+        testConcurrentAdds(100, 1000000, 300000);
+    }
+
+    @Test
+    public void testUnusedMarker() {
+        LocalLinkSet set = new LocalLinkSet(100);
+        assertFalse(set.contains(0L));
+        set.add(0L);
+        set.finish();
+        assertTrue(set.contains(0L));
+        assertFalse(set.contains(1L));
+    }
+}
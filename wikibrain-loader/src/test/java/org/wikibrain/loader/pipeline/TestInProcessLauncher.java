@@ -0,0 +1,65 @@
+package org.wikibrain.loader.pipeline;
+
+import org.junit.Test;
+import org.wikibrain.utils.WpThreadUtils;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestInProcessLauncher {
+
+    public static class Exits {
+        public static void main(String args[]) {
+            System.setProperty("wikibrain.test.inprocess", args[0]);
+            WpThreadUtils.setMaxThreads(WpThreadUtils.getMaxThreads() + 7);
+            System.exit(Integer.valueOf(args[0]));
+        }
+    }
+
+    public static class Returns {
+        static String lastArg = null;
+
+        public static void main(String args[]) {
+            lastArg = args[0];
+        }
+    }
+
+    public static class Fails {
+        public static void main(String args[]) {
+            throw new IllegalStateException("failed");
+        }
+    }
+
+    @Test
+    public void testExit() throws Exception {
+        if (!InProcessLauncher.isSupported()) {
+            return;
+        }
+        int maxThreads = WpThreadUtils.getMaxThreads();
+        assertEquals(3, InProcessLauncher.run(Exits.class, new String[] { "3" }));
+        assertEquals(0, InProcessLauncher.run(Exits.class, new String[] { "0" }));
+        assertNull(System.getProperty("wikibrain.test.inprocess"));
+        assertEquals(maxThreads, WpThreadUtils.getMaxThreads());
+        assertNull(System.getSecurityManager());
+    }
+
+    @Test
+    public void testReturn() throws Exception {
+        if (!InProcessLauncher.isSupported()) {
+            return;
+        }
+        assertEquals(0, InProcessLauncher.run(Returns.class, new String[] { "foo" }));
+        assertEquals("foo", Returns.lastArg);
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        if (!InProcessLauncher.isSupported()) {
+            return;
+        }
+        assertEquals(1, InProcessLauncher.run(Fails.class, new String[0]));
+        assertNull(System.getSecurityManager());
+    }
+}
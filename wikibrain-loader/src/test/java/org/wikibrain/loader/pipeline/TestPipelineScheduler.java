@@ -0,0 +1,161 @@
+package org.wikibrain.loader.pipeline;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.model.MetaInfo;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestPipelineScheduler {
+
+    /**
+     * Records when each stage starts and finishes instead of launching it.
+     */
+    static class RecordingScheduler extends PipelineScheduler {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final Set<String> failing = new HashSet<String>();
+        int running = 0;
+        int maxRunning = 0;
+
+        RecordingScheduler() {
+            super(new LanguageSet("simple"), null);
+        }
+
+        @Override
+        protected void runStage(PipelineStage stage, String[] args) throws IOException, InterruptedException, StageFailedException {
+            synchronized (this) {
+                running++;
+                maxRunning = Math.max(running, maxRunning);
+            }
+            events.add("start " + stage.getName());
+            Thread.sleep(100);
+            events.add("end " + stage.getName());
+            synchronized (this) {
+                running--;
+            }
+            if (failing.contains(stage.getName())) {
+                throw new StageFailedException(stage, 1);
+            }
+        }
+    }
+
+    private static LinkedHashMap<String, PipelineStage> makeStages(String ... specs) throws ClassNotFoundException {
+        LinkedHashMap<String, PipelineStage> stages = new LinkedHashMap<String, PipelineStage>();
+        for (String spec : specs) {
+            String config = "class : java.lang.Object, extraArgs : [], runtime : \"1\", diskSpace : \"1\", " + spec;
+            PipelineStage stage = new PipelineStage(
+                    ConfigFactory.parseString(config),
+                    stages.values(),
+                    new HashMap<String, MetaInfo>());
+            stage.setOverrideOptions(true, null);
+            stages.put(stage.getName(), stage);
+        }
+        return stages;
+    }
+
+    private static LinkedHashMap<String, PipelineStage> makeDiamond() throws ClassNotFoundException {
+        return makeStages(
+                "name : a",
+                "name : b, dependsOnStage : a",
+                "name : c, dependsOnStage : a",
+                "name : d, dependsOnStage : [b, c]"
+        );
+    }
+
+    private static void assertBefore(List<String> events, String first, String second) {
+        assertTrue(events.indexOf(first) >= 0);
+        assertTrue(events.indexOf(second) >= 0);
+        assertTrue(first + " before " + second, events.indexOf(first) < events.indexOf(second));
+    }
+
+    @Test
+    public void testSequential() throws Exception {
+        LinkedHashMap<String, PipelineStage> stages = makeDiamond();
+        RecordingScheduler scheduler = new RecordingScheduler();
+        scheduler.run(scheduler.plan(stages.values(), false), new String[0]);
+        assertEquals(8, scheduler.events.size());
+        assertEquals(1, scheduler.maxRunning);
+        assertBefore(scheduler.events, "end a", "start b");
+        assertBefore(scheduler.events, "end a", "start c");
+        assertBefore(scheduler.events, "end b", "start d");
+        assertBefore(scheduler.events, "end c", "start d");
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        LinkedHashMap<String, PipelineStage> stages = makeDiamond();
+        RecordingScheduler scheduler = new RecordingScheduler();
+        scheduler.setMaxParallelStages(4);
+        scheduler.run(scheduler.plan(stages.values(), false), new String[0]);
+        assertEquals(8, scheduler.events.size());
+        assertEquals(2, scheduler.maxRunning);
+        assertBefore(scheduler.events, "end a", "start b");
+        assertBefore(scheduler.events, "end a", "start c");
+        assertBefore(scheduler.events, "start c", "end b");
+        assertBefore(scheduler.events, "end b", "start d");
+        assertBefore(scheduler.events, "end c", "start d");
+    }
+
+    @Test
+    public void testHeapBudget() throws Exception {
+        LinkedHashMap<String, PipelineStage> stages = makeStages(
+                "name : a, heapMegabytes : 600",
+                "name : b, heapMegabytes : 600",
+                "name : c, heapMegabytes : 300"
+        );
+        RecordingScheduler scheduler = new RecordingScheduler();
+        scheduler.setMaxParallelStages(3);
+        scheduler.setMaxHeapMegabytes(1000);
+        scheduler.run(scheduler.plan(stages.values(), false), new String[0]);
+        assertEquals(2, scheduler.maxRunning);
+        assertBefore(scheduler.events, "end a", "start b");
+    }
+
+    @Test
+    public void testSkipsUnneededStages() throws Exception {
+        LinkedHashMap<String, PipelineStage> stages = makeDiamond();
+        stages.get("a").setOverrideOptions(false, null);
+        stages.get("c").setOverrideOptions(null, null);
+        stages.get("d").setOverrideOptions(null, null);
+        RecordingScheduler scheduler = new RecordingScheduler();
+        List<PipelineStage> planned = scheduler.plan(stages.values(), false);
+        assertEquals(Arrays.asList(stages.get("b")), planned);
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        LinkedHashMap<String, PipelineStage> stages = makeDiamond();
+        RecordingScheduler scheduler = new RecordingScheduler();
+        scheduler.setMaxParallelStages(4);
+        scheduler.failing.add("b");
+        try {
+            scheduler.run(scheduler.plan(stages.values(), false), new String[0]);
+            fail();
+        } catch (StageFailedException e) {
+            assertEquals("b", e.getStage().getName());
+        }
+        assertTrue(scheduler.events.contains("end c"));
+        assertFalse(scheduler.events.contains("start d"));
+    }
+
+    @Test
+    public void testFileDatabase() {
+        assertTrue(PipelineLoader.isFileDatabase(dataSource("jdbc:h2:./db/h2;LOG=0;LOCK_MODE=0")));
+        assertTrue(PipelineLoader.isFileDatabase(dataSource("jdbc:h2:file:/tmp/h2")));
+        assertFalse(PipelineLoader.isFileDatabase(dataSource("jdbc:h2:./db/h2;AUTO_SERVER=TRUE")));
+        assertFalse(PipelineLoader.isFileDatabase(dataSource("jdbc:h2:tcp://localhost/db/h2")));
+        assertFalse(PipelineLoader.isFileDatabase(dataSource("jdbc:postgresql://localhost/wikibrain")));
+    }
+
+    private static Config dataSource(String url) {
+        return ConfigFactory.parseString("dao.dataSource.default : test, dao.dataSource.test.url : \"" + url + "\"");
+    }
+}
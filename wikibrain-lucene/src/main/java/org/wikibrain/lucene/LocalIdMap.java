@@ -0,0 +1,161 @@
+package org.wikibrain.lucene;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.util.Bits;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * Maps between the lucene document ids and the local page ids of a language's index.
+ *
+ * The local ids are read once per segment from the numeric doc values of the local id field.
+ * Indexes built before the field had doc values fall back to the field cache, which un-inverts
+ * the indexed numeric field. Either way, no stored documents are loaded.
+ *
+ * The ids of a segment do not change when its documents are deleted, so the per-segment
+ * mappings can be shared by the maps of successive snapshots of an index. Deletions are
+ * applied at lookup time using the live docs of each snapshot.
+ *
+ * @author Shilad Sen
+ *
+ */
+public class LocalIdMap {
+
+    private final int docBases[];
+    private final Segment segments[];
+    private final Bits liveDocs[];
+    private final int maxDoc;
+
+    public LocalIdMap(IndexReader reader) throws IOException {
+        this(reader, null);
+    }
+
+    /**
+     * @param reader
+     * @param cache If not null, segment mappings are looked up in and added to the cache,
+     *              keyed by the core cache key of each segment reader.
+     * @throws IOException
+     */
+    public LocalIdMap(IndexReader reader, Map<Object, Segment> cache) throws IOException {
+        List<AtomicReaderContext> leaves = reader.leaves();
+        docBases = new int[leaves.size()];
+        segments = new Segment[leaves.size()];
+        liveDocs = new Bits[leaves.size()];
+        maxDoc = reader.maxDoc();
+        for (int i = 0; i < leaves.size(); i++) {
+            AtomicReader leaf = leaves.get(i).reader();
+            Segment segment = (cache == null) ? null : cache.get(leaf.getCoreCacheKey());
+            if (segment == null) {
+                segment = new Segment(leaf);
+                if (cache != null) {
+                    cache.put(leaf.getCoreCacheKey(), segment);
+                }
+            }
+            docBases[i] = leaves.get(i).docBase;
+            segments[i] = segment;
+            liveDocs[i] = leaf.getLiveDocs();
+        }
+    }
+
+    /**
+     * @param docId A lucene document id.
+     * @return The local id of the document, or -1 if it is unknown or deleted.
+     */
+    public int getLocalId(int docId) {
+        if (docId < 0 || docId >= maxDoc) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(docBases, docId);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        // Skip empty segments that share a doc base with the next segment
+        while (i + 1 < docBases.length && docBases[i + 1] == docId) {
+            i++;
+        }
+        int doc = docId - docBases[i];
+        if (liveDocs[i] != null && !liveDocs[i].get(doc)) {
+            return -1;
+        }
+        return segments[i].localIds[doc];
+    }
+
+    /**
+     * @param localId A local page id.
+     * @return The lucene document id of the page, or -1 if it is not indexed.
+     */
+    public int getDocId(int localId) {
+        // As with a query for the local id, the first live document wins
+        for (int i = 0; i < segments.length; i++) {
+            int doc = segments[i].getDocId(localId, liveDocs[i]);
+            if (doc >= 0) {
+                return docBases[i] + doc;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The local ids of the documents in a single segment, including deleted documents.
+     */
+    public static class Segment {
+        private final int localIds[];
+        private final TIntIntHashMap firstDocs;
+
+        Segment(AtomicReader leaf) throws IOException {
+            localIds = getLocalIds(leaf);
+            firstDocs = new TIntIntHashMap(localIds.length, 0.5f, -1, -1);
+            for (int doc = localIds.length - 1; doc >= 0; doc--) {
+                if (localIds[doc] >= 0) {
+                    firstDocs.put(localIds[doc], doc);
+                }
+            }
+        }
+
+        /**
+         * Returns the first live document in the segment with the local id, or -1.
+         */
+        private int getDocId(int localId, Bits liveDocs) {
+            int doc = firstDocs.get(localId);
+            if (doc < 0 || liveDocs == null || liveDocs.get(doc)) {
+                return doc;
+            }
+            // The first copy was deleted, so look for a later one
+            for (doc++; doc < localIds.length; doc++) {
+                if (localIds[doc] == localId && liveDocs.get(doc)) {
+                    return doc;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the local ids of all documents in a segment, indexed by the segment's document ids.
+     */
+    public static int[] getLocalIds(AtomicReader leaf) throws IOException {
+        int localIds[] = new int[leaf.maxDoc()];
+        NumericDocValues values = leaf.getNumericDocValues(LuceneOptions.LOCAL_ID_FIELD_NAME);
+        if (values != null) {
+            for (int i = 0; i < localIds.length; i++) {
+                localIds[i] = (int) values.get(i);
+            }
+        } else {
+            FieldCache.Ints ints = FieldCache.DEFAULT.getInts(
+                    leaf, LuceneOptions.LOCAL_ID_FIELD_NAME, FieldCache.NUMERIC_UTILS_INT_PARSER, false);
+            for (int i = 0; i < localIds.length; i++) {
+                localIds[i] = ints.get(i);
+            }
+        }
+        return localIds;
+    }
+}
@@ -5,6 +5,7 @@ import org.apache.commons.io.IOUtils;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.store.Directory;
@@ -115,6 +116,7 @@ public class LuceneIndexer implements Closeable {
             Field langIdField = new IntField(LuceneOptions.LANG_ID_FIELD_NAME, page.getLanguage().getId(), Field.Store.YES);
             Field canonicalTitleField = builder.buildTextField(page, new TextFieldElements().addTitle());
             document.add(localIdField);
+            document.add(new NumericDocValuesField(LuceneOptions.LOCAL_ID_FIELD_NAME, page.getLocalId()));
             document.add(langIdField);
             document.add(canonicalTitleField);
             if (!page.isRedirect()) {
@@ -128,6 +130,21 @@ public class LuceneIndexer implements Closeable {
         }
     }
 
+    /**
+     * Makes the pages indexed so far visible to LuceneSearchers,
+     * which pick them up the next time they refresh.
+     */
+    public void commit() {
+        if (closed) {
+            throw new IllegalStateException("Indexer has already been closed!");
+        }
+        try {
+            writer.commit();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Method should be called when done indexing.
      */
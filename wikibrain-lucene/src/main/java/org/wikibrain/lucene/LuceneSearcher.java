@@ -1,11 +1,11 @@
 package org.wikibrain.lucene;
 
 import com.typesafe.config.Config;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
@@ -13,12 +13,18 @@ import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageSet;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,23 +32,32 @@ import org.slf4j.LoggerFactory;
  *
  * This class wraps the lucene search into a class that can handle any specified language
  *
+ * A single instance can be shared by any number of threads. Each language's index is memory
+ * mapped and served by a SearcherManager, so every search runs against a consistent snapshot
+ * of the index. When a LuceneIndexer commits, refresh() (or the periodic refresh enabled by
+ * refreshSeconds) reopens the changed indexes without interrupting searches in progress.
+ *
  * @author Ari Weiland
  * @author Yulun Li
  *
 */
-public class LuceneSearcher {
+public class LuceneSearcher implements Closeable {
 
     private static final Logger LOG = LoggerFactory.getLogger(LuceneSearcher.class);
 
     public static final int DEFAULT_HIT_COUNT = 1000;
 
     private final File root;
-    private final Map<Language, IndexSearcher> searchers;
-    private final Map<Language, DirectoryReader> readers;
+    private final Map<Language, SearcherManager> managers;
+    private final Map<Language, ExecutorService> executors;
     private final Map<Language, WikiBrainAnalyzer> analyzers;
+    private final Map<IndexReader, LocalIdMap> idMaps = new WeakHashMap<IndexReader, LocalIdMap>();
+    // Segment mappings, keyed by segment core so that reopened snapshots share unchanged segments
+    private final Map<Object, LocalIdMap.Segment> idSegments = new WeakHashMap<Object, LocalIdMap.Segment>();
     private final LuceneOptions options;
+    private final ScheduledExecutorService refresher;
 
-    private int hitCount = DEFAULT_HIT_COUNT;
+    private volatile int hitCount = DEFAULT_HIT_COUNT;
 
     /**
      * Constructs a LuceneSearcher that will run lucene queries on sets of articles
@@ -54,7 +69,7 @@ public class LuceneSearcher {
      * @param root the root directory in which each language contains its own lucene directory
      */
     public LuceneSearcher(LanguageSet languages, File root) {
-        this(languages, root, LuceneOptions.getDefaultOptions());
+        this(languages, root, LuceneOptions.getDefaultOptions(), 0, 0);
     }
 
     /**
@@ -65,31 +80,71 @@ public class LuceneSearcher {
      * @param options a LuceneOptions object containing specific options for lucene
      */
     public LuceneSearcher(LanguageSet languages, LuceneOptions options) {
-        this(languages, options.luceneRoot, options);
+        this(languages, options.luceneRoot, options, 0, 0);
+    }
+
+    /**
+     * Constructs a LuceneSearcher that will run lucene queries on sets of articles
+     * in any language in the LanguageSet. The directory is specified within options.
+     *
+     * @param languages the language set in which this searcher can operate
+     * @param options a LuceneOptions object containing specific options for lucene
+     * @param searchThreads if positive, the number of threads per language that search
+     *                      the segments of an index in parallel. Otherwise each query
+     *                      is searched by the calling thread.
+     * @param refreshSeconds if positive, how often indexes are checked for new commits.
+     */
+    public LuceneSearcher(LanguageSet languages, LuceneOptions options, int searchThreads, int refreshSeconds) {
+        this(languages, options.luceneRoot, options, searchThreads, refreshSeconds);
     }
 
-    private LuceneSearcher(LanguageSet languages, File root, LuceneOptions options) {
+    private LuceneSearcher(LanguageSet languages, File root, LuceneOptions options, int searchThreads, int refreshSeconds) {
         try {
-            System.err.println("LOADING LANGUAGES " + languages);
+            LOG.info("loading lucene indexes for languages " + languages);
             this.root = root;
-            this.searchers = new HashMap<Language, IndexSearcher>();
-            this.readers = new HashMap<Language, DirectoryReader>();
+            this.managers = new HashMap<Language, SearcherManager>();
+            this.executors = new HashMap<Language, ExecutorService>();
             this.analyzers = new HashMap<Language, WikiBrainAnalyzer>();
             for (Language language : languages) {
                 File langRoot = new File(root, language.getLangCode());
                 if (!langRoot.isDirectory()) {
                     throw new IllegalArgumentException("no index at location: " + langRoot);
                 }
-                Directory directory = FSDirectory.open(langRoot);
-                DirectoryReader reader = DirectoryReader.open(directory);
-                readers.put(language, reader);
-                searchers.put(language, new IndexSearcher(reader));
+                final ExecutorService executor = (searchThreads > 0)
+                        ? Executors.newFixedThreadPool(searchThreads, daemonThreads("lucene-search-" + language.getLangCode()))
+                        : null;
+                Directory directory = new MMapDirectory(langRoot);
+                SearcherManager manager = new SearcherManager(directory, new SearcherFactory() {
+                    @Override
+                    public IndexSearcher newSearcher(IndexReader reader) throws IOException {
+                        return (executor == null) ? new IndexSearcher(reader) : new IndexSearcher(reader, executor);
+                    }
+                });
+                managers.put(language, manager);
+                if (executor != null) {
+                    executors.put(language, executor);
+                }
                 analyzers.put(language, new WikiBrainAnalyzer(language, options));
             }
             this.options = options;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        if (refreshSeconds > 0) {
+            refresher = Executors.newSingleThreadScheduledExecutor(daemonThreads("lucene-refresh"));
+            refresher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh();
+                    } catch (Exception e) {
+                        LOG.warn("refreshing lucene indexes failed:", e);
+                    }
+                }
+            }, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+        } else {
+            refresher = null;
+        }
     }
 
     public File getRoot() {
@@ -97,13 +152,16 @@ public class LuceneSearcher {
     }
 
     public LanguageSet getLanguageSet() {
-        return new LanguageSet(searchers.keySet());
+        return new LanguageSet(managers.keySet());
     }
 
     public LuceneOptions getOptions() {
         return options;
     }
 
+    /**
+     * @return The number of hits returned by searches that do not specify a hit count.
+     */
     public int getHitCount() {
         return hitCount;
     }
@@ -148,19 +206,21 @@ public class LuceneSearcher {
      * @return
      */
     public WikiBrainScoreDoc[] search(Query query, Language language, int hitCount, Filter filter, boolean resolveWpIds) {
-        if (!searchers.containsKey(language)) throw new IllegalArgumentException("Unknown language: " + language);
+        IndexSearcher searcher = acquire(language);
         try {
-            this.hitCount = hitCount;
-            ScoreDoc[] scoreDocs = searchers.get(language).search(query, filter, hitCount).scoreDocs;
+            ScoreDoc[] scoreDocs = searcher.search(query, filter, hitCount).scoreDocs;
             WikiBrainScoreDoc[] wikibrainScoreDocs = new WikiBrainScoreDoc[scoreDocs.length];
+            LocalIdMap idMap = resolveWpIds ? getLocalIdMap(searcher.getIndexReader()) : null;
             for (int i = 0; i < scoreDocs.length; i++) {
                 ScoreDoc scoreDoc = scoreDocs[i];
-                int wpId = resolveWpIds ? getLocalIdFromDocId(scoreDoc.doc, language) : -1;
+                int wpId = resolveWpIds ? idMap.getLocalId(scoreDoc.doc) : -1;
                 wikibrainScoreDocs[i] = new WikiBrainScoreDoc(scoreDoc.doc, wpId, scoreDoc.score);
             }
             return wikibrainScoreDocs;
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            release(language, searcher);
         }
     }
 
@@ -173,41 +233,130 @@ public class LuceneSearcher {
      * @return
      */
     public int getLocalIdFromDocId(int docId, Language language) {
+        if (docId != -1) {
+            return getLocalIdMap(language).getLocalId(docId);
+        } else {
+            LOG.warn("This docId does not exist: " + docId);
+            return -1;
+        }
+    }
+
+    public int getDocIdFromLocalId(int localId, Language language) throws DaoException {
+        return getLocalIdMap(language).getDocId(localId);
+    }
+
+    /**
+     * Returns the mapping between lucene document ids and local ids for the
+     * current snapshot of a language's index. The mapping is built the first
+     * time it is requested for each snapshot, reading local ids only for the
+     * segments that are new since the previous snapshot.
+     *
+     * @param language
+     * @return
+     */
+    public LocalIdMap getLocalIdMap(Language language) {
+        IndexSearcher searcher = acquire(language);
         try {
-            if (docId != -1) {
-                Document document = searchers.get(language).doc(docId);
-                return (Integer) document.getField(LuceneOptions.LOCAL_ID_FIELD_NAME).numericValue();
-            } else {
-                LOG.warn("This docId does not exist: " + docId);
-                return -1;
+            return getLocalIdMap(searcher.getIndexReader());
+        } finally {
+            release(language, searcher);
+        }
+    }
+
+    private LocalIdMap getLocalIdMap(IndexReader reader) {
+        synchronized (idMaps) {
+            if (!idMaps.containsKey(reader)) {
+                try {
+                    long before = System.currentTimeMillis();
+                    idMaps.put(reader, new LocalIdMap(reader, idSegments));
+                    LOG.info("built local id map for " + reader + " in " + (System.currentTimeMillis() - before) + " millis");
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
             }
-        }  catch (IOException e) {
+            return idMaps.get(reader);
+        }
+    }
+
+    /**
+     * Acquires the current snapshot of a language's index.
+     * Every call must be matched by a call to release(), usually in a finally block.
+     *
+     * @param language
+     * @return
+     */
+    public IndexSearcher acquire(Language language) {
+        try {
+            return getManager(language).acquire();
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public int getDocIdFromLocalId(int localId, Language language) throws DaoException {
-        Query query = NumericRangeQuery.newIntRange(LuceneOptions.LOCAL_ID_FIELD_NAME, localId, localId, true, true);
+    /**
+     * Releases a searcher returned by acquire().
+     *
+     * @param language
+     * @param searcher
+     */
+    public void release(Language language, IndexSearcher searcher) {
         try {
-            ScoreDoc[] hits = searchers.get(language).search(query, 1).scoreDocs;
-            if (hits.length == 0) {
-                return -1;
-            } else {
-                return hits[0].doc;
-            }
+            getManager(language).release(searcher);
         } catch (IOException e) {
-            throw new DaoException(e);
+            throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Reopens the index of any language that a LuceneIndexer has committed to since
+     * the index was last opened. Searches in progress finish on the old snapshot.
+     *
+     * @return True if any index was reopened.
+     */
+    public boolean refresh() {
+        boolean changed = false;
+        for (Map.Entry<Language, SearcherManager> entry : managers.entrySet()) {
+            try {
+                IndexSearcher before = entry.getValue().acquire();
+                entry.getValue().release(before);
+                entry.getValue().maybeRefreshBlocking();
+                IndexSearcher after = entry.getValue().acquire();
+                entry.getValue().release(after);
+                if (before != after) {
+                    LOG.info("reopened lucene index for " + entry.getKey());
+                    changed = true;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns the reader for the current snapshot of a language's index.
+     * The reader may be closed after the next refresh, so callers that use it
+     * while the index may change should use acquire() and release() instead.
+     *
+     * @param language
+     * @return
+     */
     public DirectoryReader getReaderByLanguage(Language language) {
-        if (!readers.containsKey(language)) throw new IllegalArgumentException("Unknown language: " + language);
-        return readers.get(language);
+        return (DirectoryReader) getSearcherByLanguage(language).getIndexReader();
     }
 
+    /**
+     * Returns the searcher for the current snapshot of a language's index.
+     * The searcher may be closed after the next refresh, so callers that use it
+     * while the index may change should use acquire() and release() instead.
+     *
+     * @param language
+     * @return
+     */
     public IndexSearcher getSearcherByLanguage(Language language) {
-        if (!searchers.containsKey(language)) throw new IllegalArgumentException("Unknown language: " + language);
-        return searchers.get(language);
+        IndexSearcher searcher = acquire(language);
+        release(language, searcher);
+        return searcher;
     }
 
     public WikiBrainAnalyzer getAnalyzerByLanguage(Language language) {
@@ -220,6 +369,37 @@ public class LuceneSearcher {
         return new QueryBuilder(this, language);
     }
 
+    @Override
+    public void close() throws IOException {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+        for (SearcherManager manager : managers.values()) {
+            manager.close();
+        }
+        for (ExecutorService executor : executors.values()) {
+            executor.shutdown();
+        }
+    }
+
+    private SearcherManager getManager(Language language) {
+        if (!managers.containsKey(language)) throw new IllegalArgumentException("Unknown language: " + language);
+        return managers.get(language);
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private int n = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + (n++));
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
     public static class Provider extends org.wikibrain.conf.Provider<LuceneSearcher> {
         public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
             super(configurator, config);
@@ -239,7 +419,9 @@ public class LuceneSearcher {
         public LuceneSearcher get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
             return new LuceneSearcher(
                     getConfigurator().get(LanguageSet.class),
-                    getConfigurator().get(LuceneOptions.class, config.getString("options"))
+                    getConfigurator().get(LuceneOptions.class, config.getString("options")),
+                    config.hasPath("searchThreads") ? config.getInt("searchThreads") : 0,
+                    config.hasPath("refreshSeconds") ? config.getInt("refreshSeconds") : 0
             );
         }
     }
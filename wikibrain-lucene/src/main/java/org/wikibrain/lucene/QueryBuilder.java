@@ -7,6 +7,7 @@ import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.queryparser.flexible.standard.QueryParserUtil;
 import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.lang.Language;
@@ -140,8 +141,9 @@ public class QueryBuilder {
      */
     public QueryBuilder setMoreLikeThisQuery(String fieldName, int luceneId) throws DaoException {
         if (luceneId >= 0) {
+            IndexSearcher snapshot = searcher.acquire(language);
             try {
-                MoreLikeThis mlt = new MoreLikeThis(searcher.getReaderByLanguage(language));
+                MoreLikeThis mlt = new MoreLikeThis(snapshot.getIndexReader());
                 mlt.setMaxDocFreqPct(maxPercentage);
                 mlt.setMaxQueryTerms(maxQueryTerms);
                 mlt.setMinDocFreq(minDocFreq);
@@ -151,6 +153,8 @@ public class QueryBuilder {
                 query = mlt.like(luceneId);
             } catch (IOException e) {
                 LOG.warn("Can't more like this query for luceneId: " + luceneId);
+            } finally {
+                searcher.release(language, snapshot);
             }
         }  else {
             throw new IllegalArgumentException("Illegal Lucene ID: " + luceneId);
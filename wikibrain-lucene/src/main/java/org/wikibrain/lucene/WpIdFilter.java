@@ -2,7 +2,6 @@ package org.wikibrain.lucene;
 
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.search.DocIdSet;
@@ -24,7 +23,7 @@ import org.slf4j.LoggerFactory;
 public class WpIdFilter extends Filter {
     private static final Logger LOG = LoggerFactory.getLogger(WpIdFilter.class);
     private int[] wpIds;
-    private Map<AtomicReader, int[]> allowedLuceneIds = new HashMap<AtomicReader, int[]>();
+    private Map<AtomicReader, int[]> allowedLuceneIds = new WeakHashMap<AtomicReader, int[]>();
 
     public WpIdFilter(int wpIds[]) throws IOException {
         this.wpIds = wpIds;
@@ -56,11 +55,9 @@ public class WpIdFilter extends Filter {
         LOG.debug("building WpId filter for " + wpIds.length + " ids with hash " + Arrays.hashCode(wpIds));
         TIntSet wpIdSet = new TIntHashSet(wpIds);
         TIntSet luceneIdSet = new TIntHashSet();
-        Set<String> fields = new HashSet<String>(Arrays.asList(LuceneOptions.LOCAL_ID_FIELD_NAME));
-        for (int i = 0; i < reader.numDocs(); i++) {
-            Document d = reader.document(i, fields);
-            int wpId = Integer.valueOf(d.get(LuceneOptions.LOCAL_ID_FIELD_NAME));
-            if (wpIdSet.contains(wpId)) {
+        int localIds[] = LocalIdMap.getLocalIds(reader);
+        for (int i = 0; i < localIds.length; i++) {
+            if (wpIdSet.contains(localIds[i])) {
                 luceneIdSet.add(i);
             }
         }
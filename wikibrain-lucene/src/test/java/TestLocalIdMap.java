@@ -0,0 +1,138 @@
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+import org.wikibrain.lucene.LocalIdMap;
+import org.wikibrain.lucene.LuceneOptions;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestLocalIdMap {
+
+    private static void addPage(IndexWriter writer, int localId, boolean docValues) throws IOException {
+        Document document = new Document();
+        document.add(new IntField(LuceneOptions.LOCAL_ID_FIELD_NAME, localId, Field.Store.YES));
+        if (docValues) {
+            document.add(new NumericDocValuesField(LuceneOptions.LOCAL_ID_FIELD_NAME, localId));
+        }
+        writer.addDocument(document);
+    }
+
+    @Test
+    public void testMapping() throws IOException {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory,
+                new IndexWriterConfig(Version.LUCENE_43, new WhitespaceAnalyzer(Version.LUCENE_43)));
+
+        // An old segment without doc values, which falls back to the field cache
+        addPage(writer, 5, false);
+        addPage(writer, 2, false);
+        writer.commit();
+
+        // A newer segment with doc values
+        addPage(writer, 9, true);
+        addPage(writer, 40, true);
+        addPage(writer, 17, true);
+        writer.commit();
+
+        writer.deleteDocuments(NumericRangeQuery.newIntRange(LuceneOptions.LOCAL_ID_FIELD_NAME, 9, 9, true, true));
+        writer.deleteDocuments(NumericRangeQuery.newIntRange(LuceneOptions.LOCAL_ID_FIELD_NAME, 2, 2, true, true));
+        writer.commit();
+        writer.close();
+
+        DirectoryReader reader = DirectoryReader.open(directory);
+        assertTrue(reader.leaves().size() > 1);
+        LocalIdMap map = new LocalIdMap(reader);
+
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        Set<Integer> found = new HashSet<Integer>();
+        int deleted = 0;
+        for (int docId = 0; docId < reader.maxDoc(); docId++) {
+            if (liveDocs != null && !liveDocs.get(docId)) {
+                assertEquals(-1, map.getLocalId(docId));
+                deleted++;
+                continue;
+            }
+            int localId = reader.document(docId).getField(LuceneOptions.LOCAL_ID_FIELD_NAME).numericValue().intValue();
+            assertEquals(localId, map.getLocalId(docId));
+            assertEquals(docId, map.getDocId(localId));
+            found.add(localId);
+        }
+        assertEquals(2, deleted);
+        assertEquals(new HashSet<Integer>(Arrays.asList(5, 17, 40)), found);
+
+        // Deleted pages, pages that were never indexed, and out of range ids
+        assertEquals(-1, map.getDocId(9));
+        assertEquals(-1, map.getDocId(2));
+        assertEquals(-1, map.getDocId(3));
+        assertEquals(-1, map.getDocId(1000));
+        assertEquals(-1, map.getDocId(-1));
+        assertEquals(-1, map.getLocalId(-1));
+        assertEquals(-1, map.getLocalId(reader.maxDoc()));
+
+        reader.close();
+    }
+
+    @Test
+    public void testSegmentReuse() throws IOException {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory,
+                new IndexWriterConfig(Version.LUCENE_43, new WhitespaceAnalyzer(Version.LUCENE_43)));
+        addPage(writer, 5, true);
+        addPage(writer, 8, true);
+        writer.commit();
+
+        Map<Object, LocalIdMap.Segment> cache = new HashMap<Object, LocalIdMap.Segment>();
+        DirectoryReader reader1 = DirectoryReader.open(directory);
+        LocalIdMap map1 = new LocalIdMap(reader1, cache);
+        assertEquals(1, cache.size());
+
+        // A new segment, a deletion in the old one, and a page that moves to the new segment
+        addPage(writer, 12, true);
+        writer.deleteDocuments(NumericRangeQuery.newIntRange(LuceneOptions.LOCAL_ID_FIELD_NAME, 5, 5, true, true));
+        addPage(writer, 5, true);
+        writer.deleteDocuments(NumericRangeQuery.newIntRange(LuceneOptions.LOCAL_ID_FIELD_NAME, 8, 8, true, true));
+        writer.commit();
+        writer.close();
+
+        DirectoryReader reader2 = DirectoryReader.openIfChanged(reader1);
+        assertNotNull(reader2);
+        LocalIdMap map2 = new LocalIdMap(reader2, cache);
+        assertEquals(2, cache.size());      // the old segment was reused
+
+        // The old snapshot is unaffected
+        assertEquals(5, map1.getLocalId(map1.getDocId(5)));
+        assertEquals(8, map1.getLocalId(map1.getDocId(8)));
+        assertEquals(-1, map1.getDocId(12));
+
+        assertEquals(-1, map2.getDocId(8));
+        assertEquals(-1, map2.getLocalId(map1.getDocId(8)));
+        assertEquals(-1, map2.getLocalId(map1.getDocId(5)));
+        assertTrue(map2.getDocId(5) != map1.getDocId(5));
+        assertEquals(5, map2.getLocalId(map2.getDocId(5)));
+        assertEquals(12, map2.getLocalId(map2.getDocId(12)));
+
+        reader1.close();
+        reader2.close();
+    }
+}
@@ -0,0 +1,119 @@
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.lucene.LuceneOptions;
+import org.wikibrain.lucene.LuceneSearcher;
+import org.wikibrain.lucene.WikiBrainScoreDoc;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestLuceneSearcherRefresh {
+
+    private static void addPage(IndexWriter writer, int localId) throws IOException {
+        Document document = new Document();
+        document.add(new IntField(LuceneOptions.LOCAL_ID_FIELD_NAME, localId, Field.Store.YES));
+        document.add(new NumericDocValuesField(LuceneOptions.LOCAL_ID_FIELD_NAME, localId));
+        writer.addDocument(document);
+    }
+
+    private static Set<Integer> search(LuceneSearcher searcher, Language lang) {
+        Set<Integer> ids = new HashSet<Integer>();
+        for (WikiBrainScoreDoc doc : searcher.search(new MatchAllDocsQuery(), lang, 100)) {
+            ids.add(doc.wpId);
+        }
+        return ids;
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        final Language lang = Language.getByLangCode("simple");
+        File root = File.createTempFile("lucene", null);
+        root.delete();
+        root.mkdirs();
+        try {
+            final IndexWriter writer = new IndexWriter(
+                    FSDirectory.open(new File(root, lang.getLangCode())),
+                    new IndexWriterConfig(Version.LUCENE_43, new WhitespaceAnalyzer(Version.LUCENE_43)));
+            addPage(writer, 3);
+            addPage(writer, 7);
+            writer.commit();
+
+            final LuceneSearcher searcher = new LuceneSearcher(
+                    new LanguageSet(Arrays.asList(lang)), LuceneOptions.getDefaultOptions(), 2, 0);
+            assertEquals(new HashSet<Integer>(Arrays.asList(3, 7)), search(searcher, lang));
+            assertEquals(7, searcher.getLocalIdFromDocId(searcher.getDocIdFromLocalId(7, lang), lang));
+            assertFalse(searcher.refresh());
+
+            // Uncommitted pages are invisible, committed ones appear after a refresh
+            addPage(writer, 11);
+            assertEquals(2, search(searcher, lang).size());
+            writer.commit();
+            assertEquals(2, search(searcher, lang).size());
+            assertTrue(searcher.refresh());
+            assertEquals(new HashSet<Integer>(Arrays.asList(3, 7, 11)), search(searcher, lang));
+            assertEquals(11, searcher.getLocalIdFromDocId(searcher.getDocIdFromLocalId(11, lang), lang));
+
+            // Searches running while pages are committed and the index reopens see complete snapshots
+            final AtomicInteger failures = new AtomicInteger();
+            Thread indexer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20; i++) {
+                            addPage(writer, 100 + i);
+                            writer.commit();
+                            searcher.refresh();
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            indexer.start();
+            ParallelForEach.range(0, 500, 4, new Procedure<Integer>() {
+                @Override
+                public void call(Integer i) throws Exception {
+                    try {
+                        Set<Integer> ids = search(searcher, lang);
+                        if (!ids.containsAll(Arrays.asList(3, 7, 11)) || ids.contains(-1)) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            indexer.join();
+            assertEquals(0, failures.get());
+            assertEquals(23, search(searcher, lang).size());
+
+            writer.close();
+            searcher.close();
+        } finally {
+            FileUtils.deleteQuietly(root);
+        }
+    }
+}
@@ -13,6 +13,7 @@ import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
@@ -22,6 +23,10 @@ import org.slf4j.LoggerFactory;
 /**
  * A wrapper around a file channel that contains a matrix in row major order.
  * Returns rows at a particular offset in the form of ByteBuffers backed by a memory mapped file.
+ *
+ * Reads are lock-free: pages are located by binary search over their start offsets,
+ * mapped lazily with a compare-and-set, and rows are sliced from a private duplicate
+ * of the page so the shared buffer's position is never mutated.
  */
 public class MemoryMappedMatrix {
     public static final Logger LOG = LoggerFactory.getLogger(MemoryMappedMatrix.class);
@@ -30,13 +35,15 @@ public class MemoryMappedMatrix {
 
     private FileChannel channel;
     protected List<MappedBufferWrapper> buffers = new ArrayList<MappedBufferWrapper>();
+    private MappedBufferWrapper[] pages = new MappedBufferWrapper[0];   // sorted by start offset
+    private long[] pageStarts = new long[0];
     private File path;
 
     private final IntBuffer rowIds;     // row ids in order of offsets on disk
     private final LongBuffer rowOffsets;      // row offsets associated with sorted ids
     private final int numRows;
 
-    private WeakReference<int[]> rowIdsInDiskOrder = null;
+    private volatile WeakReference<int[]> rowIdsInDiskOrder = null;
 
     public MemoryMappedMatrix(File path, FileChannel channel,TIntLongHashMap rowOffsets) throws IOException {
         throw new UnsupportedOperationException();
@@ -96,6 +103,12 @@ public class MemoryMappedMatrix {
             lastPos = pos;
         }
         addBuffer(startPos, channel.size());
+
+        pages = buffers.toArray(new MappedBufferWrapper[buffers.size()]);
+        pageStarts = new long[pages.length];
+        for (int i = 0; i < pages.length; i++) {
+            pageStarts[i] = pages[i].start;
+        }
     }
 
 
@@ -110,18 +123,33 @@ public class MemoryMappedMatrix {
         if (targetOffset < 0) {
             return null;
         }
-        MappedBufferWrapper row = null;
-        // TODO: binary search
-        for (int i = 0; i < buffers.size(); i++) {
-            MappedBufferWrapper wrapper = buffers.get(i);
-            if (wrapper.start <= targetOffset && targetOffset < wrapper.end) {
-                row = wrapper;
+        MappedBufferWrapper page = findPage(targetOffset);
+        if (page == null) {
+            throw new IllegalArgumentException("did not find row " + rowId + " with offset " + targetOffset);
+        }
+        return page.get(targetOffset);
+    }
+
+    /**
+     * Returns the page containing the given file offset, or null if no page does.
+     */
+    private MappedBufferWrapper findPage(long offset) {
+        int lo = 0;
+        int hi = pageStarts.length - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (pageStarts[mid] <= offset) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
             }
         }
-        if (row == null) {
-            throw new IllegalArgumentException("did not find row " + rowId + " with offset " + targetOffset);
+        if (found < 0 || offset >= pages[found].end) {
+            return null;
         }
-        return row.get(targetOffset);
+        return pages[found];
     }
 
     private long getRowOffset(int rowId) {
@@ -143,40 +171,55 @@ public class MemoryMappedMatrix {
     }
 
     static class MappedBufferWrapper {
-        FileChannel channel;
-        MappedByteBuffer buffer;
-        long start;
-        long end;
+        final FileChannel channel;
+        final AtomicReference<MappedByteBuffer> buffer = new AtomicReference<MappedByteBuffer>();
+        final long start;
+        final long end;
 
         public MappedBufferWrapper(FileChannel channel, long start, long end) {
             this.channel = channel;
             this.start = start;
             this.end = end;
         }
-        public synchronized ByteBuffer get(long position) throws IOException {
-            if (buffer == null) {
-                buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+
+        /**
+         * Returns a buffer whose position zero is the given absolute file offset.
+         * Safe to call from many threads at once; the shared mapping is never repositioned.
+         */
+        public ByteBuffer get(long position) throws IOException {
+            MappedByteBuffer mapped = buffer.get();
+            if (mapped == null) {
+                MappedByteBuffer candidate = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                if (buffer.compareAndSet(null, candidate)) {
+                    mapped = candidate;
+                } else {
+                    // another thread won the race; the losing mapping is reclaimed by the GC.
+                    mapped = buffer.get();
+                }
             }
-            buffer.position((int) (position - start));
-            return buffer.slice();
+            ByteBuffer view = mapped.duplicate();
+            view.position((int) (position - start));
+            return view.slice();
         }
-        public synchronized void close() {
-            buffer = null;
+
+        public void close() {
+            buffer.set(null);
         }
     }
 
-    public synchronized  int[] getRowIdsInDiskOrder() {
-        if (rowIdsInDiskOrder == null || rowIdsInDiskOrder.get() == null) {
-            int ids[] = new int[numRows];
+    public int[] getRowIdsInDiskOrder() {
+        WeakReference<int[]> ref = rowIdsInDiskOrder;
+        int ids[] = (ref == null) ? null : ref.get();
+        if (ids == null) {
+            // Racing threads may each compute the ordering; the results are identical.
+            ids = new int[numRows];
             for (int i = 0; i < numRows; i++) {
                 ids[i] = rowIds.get(i);
             }
             sortIdsByOffset(ids);
             this.rowIdsInDiskOrder = new WeakReference<int[]>(ids);
-            return ids;
-        } else {
-            return rowIdsInDiskOrder.get();
         }
+        return ids;
     }
 
     // Adapted from http://www.programcreek.com/2012/11/quicksort-array-in-java/
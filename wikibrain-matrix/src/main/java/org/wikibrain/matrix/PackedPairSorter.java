@@ -0,0 +1,439 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.list.array.TIntArrayList;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An external sorter for (row, column) pairs of ints that builds a sparse matrix
+ * and its transpose without any text encoding.
+ *
+ * <p>
+ * Each pair is packed into a single long with the row in the high 32 bits.
+ * Pairs are appended to off-heap run buffers that are local to the calling thread,
+ * so {@link #add(int, int)} is safe to call from many threads without contention.
+ * When a run buffer fills it is radix sorted in place and spilled to a binary run file.
+ * </p>
+ *
+ * <p>
+ * {@link #writeMatrices(File, File)} performs a k-way merge of the runs and streams
+ * rows directly into a {@link SparseMatrixWriter}. The same pass feeds the swapped
+ * (column, row) pairs into a second sorter that produces the transpose, so the
+ * matrix never has to be re-read by {@link SparseMatrixTransposer}.
+ * Duplicate pairs are written once.
+ * </p>
+ *
+ * <p>
+ * Rows are ordered by signed row id and columns within a row by signed column id.
+ * Matrix cells have no values (all values are zero).
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class PackedPairSorter implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(PackedPairSorter.class);
+
+    private static final int MIN_RUN_LENGTH = 1024 * 1024;
+    private static final int MIN_BUDGETED_RUN_LENGTH = 16 * 1024;
+    private static final int MAX_RUN_LENGTH = 16 * 1024 * 1024;
+    private static final int READ_BUFFER_BYTES = 256 * 1024;
+
+    private final int runLength;
+    private final ThreadLocal<RunBuffer> buffers = new ThreadLocal<RunBuffer>();
+    private final Set<RunBuffer> allBuffers = Collections.newSetFromMap(new ConcurrentHashMap<RunBuffer, Boolean>());
+    private final List<File> runs = Collections.synchronizedList(new ArrayList<File>());
+
+    /**
+     * Creates a sorter whose run buffers are sized so that all threads together use
+     * roughly a quarter of the maximum heap size in direct memory.
+     */
+    public PackedPairSorter() {
+        this(defaultRunLength());
+    }
+
+    /**
+     * @param runLength The number of pairs buffered by each thread before a run is spilled.
+     */
+    public PackedPairSorter(int runLength) {
+        this.runLength = runLength;
+    }
+
+    /**
+     * Adds a pair to the sorter. Safe to call from multiple threads.
+     */
+    public void add(int row, int col) throws IOException {
+        RunBuffer buffer = buffers.get();
+        if (buffer == null || buffer.isReleased()) {
+            buffer = new RunBuffer(runLength);
+            buffers.set(buffer);
+            allBuffers.add(buffer);
+        }
+        buffer.add(pack(row, col));
+    }
+
+    /**
+     * Writes the matrix of all added pairs and its transpose.
+     * No pairs may be added while this method runs.
+     *
+     * @param matrixPath
+     * @param transposePath
+     * @throws IOException
+     */
+    public void writeMatrices(File matrixPath, File transposePath) throws IOException {
+        ValueConf vconf = new ValueConf();   // unused because there are no values.
+        PackedPairSorter transposed = new PackedPairSorter(runLength);
+        try {
+            LOG.info("writing matrix rows to " + matrixPath);
+            SparseMatrixWriter writer = new SparseMatrixWriter(matrixPath, vconf);
+            long n = writeRows(writer, vconf, transposed);
+            writer.finish();
+            LOG.info("wrote " + n + " unique cells to " + matrixPath);
+
+            LOG.info("writing transpose rows to " + transposePath);
+            writer = new SparseMatrixWriter(transposePath, vconf);
+            transposed.writeRows(writer, vconf, null);
+            writer.finish();
+        } finally {
+            transposed.close();
+        }
+    }
+
+    /**
+     * Merges all runs and writes each row to the writer.
+     * If transposed is not null, the swapped version of each pair is added to it.
+     * @return The number of unique pairs written.
+     */
+    private long writeRows(SparseMatrixWriter writer, ValueConf vconf, PackedPairSorter transposed) throws IOException {
+        MergeIterator iter = merge();
+        TIntArrayList cols = new TIntArrayList();
+        long numCells = 0;
+        int numRows = 0;
+        int lastRow = 0;
+        try {
+            while (iter.hasNext()) {
+                long packed = iter.next();
+                int row = unpackRow(packed);
+                int col = unpackCol(packed);
+                if (cols.size() > 0 && row != lastRow) {
+                    writer.writeRow(new SparseMatrixRow(vconf, lastRow, cols.toArray(), new short[cols.size()]));
+                    cols.clear();
+                    if (++numRows % 100000 == 0) {
+                        LOG.info("writing matrix row " + numRows + ", found " + numCells + " cells");
+                    }
+                }
+                cols.add(col);
+                lastRow = row;
+                numCells++;
+                if (transposed != null) {
+                    transposed.add(col, row);
+                }
+            }
+            if (cols.size() > 0) {
+                writer.writeRow(new SparseMatrixRow(vconf, lastRow, cols.toArray(), new short[cols.size()]));
+            }
+        } finally {
+            iter.close();
+        }
+        return numCells;
+    }
+
+    /**
+     * Spills any buffered pairs and returns an iterator over the unique sorted pairs of all runs.
+     * The caller must close the iterator.
+     */
+    public MergeIterator merge() throws IOException {
+        for (RunBuffer buffer : allBuffers) {
+            buffer.spill();
+            buffer.release();
+        }
+        allBuffers.clear();
+        LOG.info("merging " + runs.size() + " sorted runs");
+        return new MergeIterator(new ArrayList<File>(runs));
+    }
+
+    /**
+     * Deletes all run files.
+     */
+    @Override
+    public void close() throws IOException {
+        for (RunBuffer buffer : allBuffers) {
+            buffer.release();
+        }
+        allBuffers.clear();
+        for (File file : runs) {
+            FileUtils.deleteQuietly(file);
+        }
+        runs.clear();
+    }
+
+    public static long pack(int row, int col) {
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+
+    public static int unpackRow(long packed) {
+        return (int) (packed >> 32);
+    }
+
+    public static int unpackCol(long packed) {
+        return (int) packed;
+    }
+
+    private static int defaultRunLength() {
+        long budget = Runtime.getRuntime().maxMemory() / 4;
+        int threads = Runtime.getRuntime().availableProcessors();
+        // two buffers (data and radix scratch) of 8 byte longs per thread
+        long length = budget / (2 * 8 * threads);
+        // with many cores the minimum run length gives way to the budget
+        long min = Math.max(MIN_BUDGETED_RUN_LENGTH, Math.min(MIN_RUN_LENGTH, length));
+        return (int) Math.max(min, Math.min(MAX_RUN_LENGTH, length));
+    }
+
+    /**
+     * A thread's off-heap buffer of packed pairs.
+     */
+    private class RunBuffer {
+        private ByteBuffer bytes;
+        private LongBuffer longs;
+        private LongBuffer scratch;
+        private int size = 0;
+
+        RunBuffer(int capacity) {
+            bytes = ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder());
+            longs = bytes.asLongBuffer();
+        }
+
+        void add(long packed) throws IOException {
+            if (size == longs.capacity()) {
+                spill();
+            }
+            longs.put(size++, packed);
+        }
+
+        void spill() throws IOException {
+            if (size == 0) {
+                return;
+            }
+            if (scratch == null) {
+                scratch = ByteBuffer.allocateDirect(longs.capacity() * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+            }
+            radixSort(longs, scratch, size);
+
+            File file = File.createTempFile("packed-pairs", ".bin");
+            file.deleteOnExit();
+            runs.add(file);
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                FileChannel channel = out.getChannel();
+                ByteBuffer view = bytes.duplicate();
+                view.order(ByteOrder.nativeOrder());
+                view.position(0);
+                view.limit(size * 8);
+                while (view.hasRemaining()) {
+                    channel.write(view);
+                }
+            } finally {
+                out.close();
+            }
+            size = 0;
+        }
+
+        boolean isReleased() {
+            return longs == null;
+        }
+
+        void release() {
+            bytes = null;
+            longs = null;
+            scratch = null;
+        }
+    }
+
+    /**
+     * Sorts the first n longs in a by signed value using an LSD radix sort with
+     * 16 bit digits. tmp must have capacity of at least n.
+     */
+    static void radixSort(LongBuffer a, LongBuffer tmp, int n) {
+        int counts[] = new int[1 << 16];
+        LongBuffer src = a;
+        LongBuffer dest = tmp;
+        for (int shift = 0; shift < 64; shift += 16) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++) {
+                counts[digit(src.get(i), shift)]++;
+            }
+            // skip passes in which every value shares the same digit
+            boolean trivial = false;
+            for (int c : counts) {
+                if (c == n) {
+                    trivial = true;
+                    break;
+                } else if (c > 0) {
+                    break;
+                }
+            }
+            if (trivial) {
+                continue;
+            }
+            int total = 0;
+            for (int d = 0; d < counts.length; d++) {
+                int c = counts[d];
+                counts[d] = total;
+                total += c;
+            }
+            for (int i = 0; i < n; i++) {
+                long v = src.get(i);
+                dest.put(counts[digit(v, shift)]++, v);
+            }
+            LongBuffer t = src;
+            src = dest;
+            dest = t;
+        }
+        if (src != a) {
+            for (int i = 0; i < n; i++) {
+                a.put(i, src.get(i));
+            }
+        }
+    }
+
+    private static int digit(long v, int shift) {
+        // flipping the sign bit makes unsigned digit order match signed order
+        return (int) (((v ^ Long.MIN_VALUE) >>> shift) & 0xffff);
+    }
+
+    /**
+     * A k-way merge of sorted run files that skips duplicate values.
+     */
+    public static class MergeIterator implements Closeable {
+        private final DataInputStream[] inputs;
+        private final long[] remaining;
+        private final long[] heads;
+        private final int[] heap;       // binary min-heap of input indexes, keyed by heads
+        private int heapSize = 0;
+        private boolean hasLast = false;
+        private long last;
+
+        MergeIterator(List<File> files) throws IOException {
+            int k = files.size();
+            inputs = new DataInputStream[k];
+            remaining = new long[k];
+            heads = new long[k];
+            heap = new int[k];
+            for (int i = 0; i < k; i++) {
+                File f = files.get(i);
+                inputs[i] = new DataInputStream(new BufferedInputStream(new FileInputStream(f), READ_BUFFER_BYTES));
+                remaining[i] = f.length() / 8;
+                if (advance(i)) {
+                    heap[heapSize++] = i;
+                    siftUp(heapSize - 1);
+                }
+            }
+            skipDuplicates();
+        }
+
+        public boolean hasNext() {
+            return heapSize > 0;
+        }
+
+        public long next() throws IOException {
+            if (heapSize == 0) {
+                throw new NoSuchElementException();
+            }
+            long value = pop();
+            last = value;
+            hasLast = true;
+            skipDuplicates();
+            return value;
+        }
+
+        private void skipDuplicates() throws IOException {
+            while (hasLast && heapSize > 0 && heads[heap[0]] == last) {
+                pop();
+            }
+        }
+
+        private long pop() throws IOException {
+            int i = heap[0];
+            long value = heads[i];
+            if (advance(i)) {
+                siftDown(0);
+            } else {
+                heap[0] = heap[--heapSize];
+                if (heapSize > 0) {
+                    siftDown(0);
+                }
+                IOUtils.closeQuietly(inputs[i]);
+            }
+            return value;
+        }
+
+        private boolean advance(int i) throws IOException {
+            if (remaining[i] == 0) {
+                return false;
+            }
+            heads[i] = readNativeLong(inputs[i]);
+            remaining[i]--;
+            return true;
+        }
+
+        private void siftUp(int pos) {
+            while (pos > 0) {
+                int parent = (pos - 1) / 2;
+                if (heads[heap[parent]] <= heads[heap[pos]]) {
+                    break;
+                }
+                swap(parent, pos);
+                pos = parent;
+            }
+        }
+
+        private void siftDown(int pos) {
+            while (true) {
+                int smallest = pos;
+                int left = 2 * pos + 1;
+                int right = left + 1;
+                if (left < heapSize && heads[heap[left]] < heads[heap[smallest]]) {
+                    smallest = left;
+                }
+                if (right < heapSize && heads[heap[right]] < heads[heap[smallest]]) {
+                    smallest = right;
+                }
+                if (smallest == pos) {
+                    break;
+                }
+                swap(pos, smallest);
+                pos = smallest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int t = heap[i];
+            heap[i] = heap[j];
+            heap[j] = t;
+        }
+
+        @Override
+        public void close() {
+            for (DataInputStream in : inputs) {
+                IOUtils.closeQuietly(in);
+            }
+        }
+    }
+
+    /**
+     * Runs are written in native byte order straight from the direct buffers.
+     */
+    private static long readNativeLong(DataInputStream in) throws IOException {
+        long v = in.readLong();
+        return (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN) ? v : Long.reverseBytes(v);
+    }
+}
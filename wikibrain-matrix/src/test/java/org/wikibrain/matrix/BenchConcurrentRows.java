@@ -0,0 +1,86 @@
+package org.wikibrain.matrix;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures getRow throughput on a memory mapped sparse matrix as the number of
+ * reader threads grows. Each measurement runs a warmup phase followed by a timed
+ * phase, in the spirit of a JMH throughput benchmark.
+ *
+ * @author Shilad Sen
+ */
+public class BenchConcurrentRows {
+    public static final int NUM_ROWS = 500000;
+    public static final int MAX_ROW_LENGTH = 100;
+    public static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+    public static final long WARMUP_MILLIS = 2000;
+    public static final long MEASURE_MILLIS = 5000;
+
+    public static void main(String args[]) throws IOException, InterruptedException {
+        SparseMatrix matrix = TestUtils.createSparseTestMatrix(NUM_ROWS, MAX_ROW_LENGTH, false);
+        int rowIds[] = matrix.getRowIds();
+        double singleThreaded = -1;
+        for (int numThreads : THREAD_COUNTS) {
+            run(matrix, rowIds, numThreads, WARMUP_MILLIS);
+            double opsPerMilli = run(matrix, rowIds, numThreads, MEASURE_MILLIS);
+            if (singleThreaded < 0) {
+                singleThreaded = opsPerMilli;
+            }
+            System.err.println(String.format(
+                    "threads=%d: getRow ops per milli is %.1f (%.2fx single thread)",
+                    numThreads, opsPerMilli, opsPerMilli / singleThreaded));
+        }
+        matrix.close();
+    }
+
+    private static double run(final SparseMatrix matrix, final int rowIds[], int numThreads, final long millis) throws InterruptedException {
+        final AtomicLong ops = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long deadline[] = new long[1];
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < numThreads; t++) {
+            final long seed = t;
+            Thread thread = new Thread() {
+                public void run() {
+                    Random random = new Random(seed);
+                    long n = 0;
+                    double sink = 0.0;
+                    try {
+                        start.await();
+                        while (System.currentTimeMillis() < deadline[0]) {
+                            // check the clock every 1024 reads to keep timing overhead low
+                            for (int i = 0; i < 1024; i++) {
+                                SparseMatrixRow row = matrix.getRow(rowIds[random.nextInt(rowIds.length)]);
+                                if (row.getNumCols() > 0) {
+                                    sink += row.getColValue(0);
+                                }
+                            }
+                            n += 1024;
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                    ops.addAndGet(n);
+                    if (sink == Double.NEGATIVE_INFINITY) {
+                        System.err.println("unreachable");
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        long before = System.currentTimeMillis();
+        deadline[0] = before + millis;
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long after = System.currentTimeMillis();
+        return 1.0 * ops.get() / (after - before);
+    }
+}
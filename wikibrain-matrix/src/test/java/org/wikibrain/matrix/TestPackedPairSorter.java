@@ -0,0 +1,114 @@
+package org.wikibrain.matrix;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TestPackedPairSorter {
+
+    @Test
+    public void testRadixSort() {
+        Random random = new Random();
+        int n = 10000;
+        long expected[] = new long[n];
+        LongBuffer a = ByteBuffer.allocateDirect(n * 8).asLongBuffer();
+        LongBuffer tmp = ByteBuffer.allocateDirect(n * 8).asLongBuffer();
+        for (int i = 0; i < n; i++) {
+            long v = PackedPairSorter.pack(random.nextInt(), random.nextInt());
+            expected[i] = v;
+            a.put(i, v);
+        }
+        PackedPairSorter.radixSort(a, tmp, n);
+        Arrays.sort(expected);
+        for (int i = 0; i < n; i++) {
+            assertEquals(expected[i], a.get(i));
+        }
+    }
+
+    @Test
+    public void testPacking() {
+        for (int row : new int[] { 0, 1, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 1 << 31 | 42 }) {
+            for (int col : new int[] { 0, 7, -7, Integer.MAX_VALUE, Integer.MIN_VALUE }) {
+                long packed = PackedPairSorter.pack(row, col);
+                assertEquals(row, PackedPairSorter.unpackRow(packed));
+                assertEquals(col, PackedPairSorter.unpackCol(packed));
+            }
+        }
+    }
+
+    @Test
+    public void testWriteMatrices() throws Exception {
+        final Map<Integer, TIntSet> expected = new HashMap<Integer, TIntSet>();
+        final Map<Integer, TIntSet> expectedTranspose = new HashMap<Integer, TIntSet>();
+        final PackedPairSorter sorter = new PackedPairSorter(1000);
+        Random random = new Random();
+        final List<int[]> pairs = new ArrayList<int[]>();
+        for (int i = 0; i < 20000; i++) {
+            // include negative ids (packed language ids >= 32 have the high bit set) and duplicates
+            int row = random.nextInt(500) - 100;
+            int col = random.nextInt(700) - 100;
+            pairs.add(new int[] { row, col });
+            if (!expected.containsKey(row)) expected.put(row, new TIntHashSet());
+            if (!expectedTranspose.containsKey(col)) expectedTranspose.put(col, new TIntHashSet());
+            expected.get(row).add(col);
+            expectedTranspose.get(col).add(row);
+        }
+
+        // add pairs from several threads, rethrowing their failures from this one
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread threads[] = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = offset; i < pairs.size(); i += 4) {
+                            sorter.add(pairs.get(i)[0], pairs.get(i)[1]);
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.get(0));
+        }
+
+        File matrixFile = File.createTempFile("matrix", null);
+        File transposeFile = File.createTempFile("transpose", null);
+        matrixFile.deleteOnExit();
+        transposeFile.deleteOnExit();
+        sorter.writeMatrices(matrixFile, transposeFile);
+        sorter.close();
+
+        verifyMatrix(expected, new SparseMatrix(matrixFile));
+        verifyMatrix(expectedTranspose, new SparseMatrix(transposeFile));
+    }
+
+    private void verifyMatrix(Map<Integer, TIntSet> expected, SparseMatrix matrix) throws Exception {
+        assertEquals(expected.size(), matrix.getNumRows());
+        for (int rowId : expected.keySet()) {
+            SparseMatrixRow row = matrix.getRow(rowId);
+            assertNotNull(row);
+            int cols[] = new int[row.getNumCols()];
+            for (int i = 0; i < cols.length; i++) {
+                cols[i] = row.getColIndex(i);
+            }
+            int expectedCols[] = expected.get(rowId).toArray();
+            Arrays.sort(expectedCols);
+            assertArrayEquals(expectedCols, cols);
+        }
+    }
+}
@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 
@@ -73,6 +74,30 @@ public class TestSparseMatrix {
         }
     }
 
+    @Test
+    public void testConcurrentRows() throws Exception {
+        File tmp = File.createTempFile("matrix", null);
+        SparseMatrixWriter.write(tmp, srcRows.iterator());
+        final Matrix m = new SparseMatrix(tmp);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread threads[] = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        verifyIsSourceMatrix(m);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+    }
 
     private void verifyIsSourceMatrix(Matrix m) throws IOException {
         assertEquals(srcRows.size(), m.getNumRows());
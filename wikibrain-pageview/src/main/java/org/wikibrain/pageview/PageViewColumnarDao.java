@@ -0,0 +1,442 @@
+package org.wikibrain.pageview;
+
+import com.typesafe.config.Config;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.joda.time.Interval;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.WikiBrainException;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.DaoFilter;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.dao.MetaInfoDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.lang.LocalId;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A page view dao backed by one {@link PageViewStore} per language, kept in
+ * subdirectories of a directory named by language code.
+ *
+ * Each hour of views for each page takes a few bytes, and the views of a page in
+ * any interval are found without scanning its hours, so queries over months of
+ * views for many pages are cheap. Saved views become visible when endLoad() merges
+ * them into the stores.
+ *
+ * @author Shilad Sen
+ */
+public class PageViewColumnarDao implements PageViewDao {
+    private static final Logger LOG = LoggerFactory.getLogger(PageViewColumnarDao.class);
+
+    private final File dir;
+    private final File downloadDir;
+    private final LocalPageDao pageDao;
+    private final MetaInfoDao metaDao;
+
+    private final Map<Language, PageViewStore> stores = new ConcurrentHashMap<Language, PageViewStore>();
+    private final Map<Language, PageViewStore.Builder> builders = new HashMap<Language, PageViewStore.Builder>();
+
+    /**
+     * @param dir Directory holding the stores.
+     * @param metaDao
+     * @param pageDao Resolves the titles of downloaded page views.
+     * @param downloadDir Directory for downloaded page view files.
+     */
+    public PageViewColumnarDao(File dir, MetaInfoDao metaDao, LocalPageDao pageDao, File downloadDir) throws DaoException {
+        this.dir = dir;
+        this.metaDao = metaDao;
+        this.pageDao = pageDao;
+        this.downloadDir = downloadDir;
+        dir.mkdirs();
+        File[] langDirs = dir.listFiles();
+        if (langDirs != null) {
+            for (File langDir : langDirs) {
+                if (PageViewStore.exists(langDir)) {
+                    stores.put(Language.getByLangCode(langDir.getName()), new PageViewStore(langDir));
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clear() throws DaoException {
+        for (PageViewStore.Builder builder : builders.values()) {
+            builder.discard();
+        }
+        builders.clear();
+        stores.clear();
+        FileUtils.deleteQuietly(dir);
+        dir.mkdirs();
+    }
+
+    @Override
+    public synchronized void beginLoad() throws DaoException {
+    }
+
+    @Override
+    public void save(PageView view) throws DaoException {
+        Language lang = view.getPageId().getLanguage();
+        int hour = PageViewStore.getLastHour(view.getHour().getTime());
+        getBuilder(lang).add(view.getPageId().getId(), hour, view.getViews());
+    }
+
+    private synchronized PageViewStore.Builder getBuilder(Language lang) throws DaoException {
+        PageViewStore.Builder builder = builders.get(lang);
+        if (builder == null) {
+            builder = new PageViewStore.Builder();
+            builders.put(lang, builder);
+        }
+        return builder;
+    }
+
+    /**
+     * Merges the views saved since the last load into the stores.
+     */
+    @Override
+    public synchronized void endLoad() throws DaoException {
+        for (Map.Entry<Language, PageViewStore.Builder> entry : builders.entrySet()) {
+            Language lang = entry.getKey();
+            File langDir = new File(dir, lang.getLangCode());
+            LOG.info("writing page views for " + lang + " to " + langDir);
+            entry.getValue().write(stores.get(lang), langDir);
+            stores.put(lang, new PageViewStore(langDir));
+        }
+        builders.clear();
+    }
+
+    public PageViewStore getStore(Language language) {
+        return stores.get(language);
+    }
+
+    @Override
+    public TIntIntMap getAllViews(Language language, DateTime startDate, DateTime endDate) throws DaoException {
+        TIntIntMap views = new TIntIntHashMap(
+                gnu.trove.impl.Constants.DEFAULT_CAPACITY,
+                gnu.trove.impl.Constants.DEFAULT_LOAD_FACTOR,
+                -1, -1);
+        PageViewStore store = stores.get(language);
+        if (store == null) {
+            return views;
+        }
+        int firstHour = PageViewStore.getFirstHour(startDate.getMillis());
+        int lastHour = PageViewStore.getLastHour(endDate.getMillis());
+        for (int i = 0; i < store.size(); i++) {
+            long n = store.getViewsAt(i, firstHour, lastHour);
+            if (n > 0) {
+                views.put(store.getPageId(i), (int) n);
+            }
+        }
+        return views;
+    }
+
+    @Override
+    public int getNumViews(LocalId pageId, DateTime startDate, int numberOfHours) throws DaoException {
+        return getNumViews(pageId, startDate, startDate.plusHours(numberOfHours));
+    }
+
+    @Override
+    public int getNumViews(Language lang, int pageId, DateTime startDate, int numberOfHours) throws DaoException {
+        return getNumViews(new LocalId(lang, pageId), startDate, startDate.plusHours(numberOfHours));
+    }
+
+    @Override
+    public int getNumViews(Language lang, int pageId, DateTime startDate, DateTime endDate) throws DaoException {
+        return getNumViews(new LocalId(lang, pageId), startDate, endDate);
+    }
+
+    @Override
+    public int getNumViews(LocalId pageId, DateTime startDate, DateTime endDate) throws DaoException {
+        PageViewStore store = stores.get(pageId.getLanguage());
+        if (store == null) {
+            return 0;
+        }
+        return (int) store.getViews(pageId.getId(),
+                PageViewStore.getFirstHour(startDate.getMillis()),
+                PageViewStore.getLastHour(endDate.getMillis()));
+    }
+
+    @Override
+    public Map<Integer, Integer> getNumViews(Language lang, Iterable<Integer> ids, DateTime startTime, DateTime endTime) throws ConfigurationException, DaoException {
+        ArrayList<DateTime[]> dates = new ArrayList<DateTime[]>();
+        dates.add(new DateTime[] { startTime, endTime });
+        return getNumViews(lang, ids, dates);
+    }
+
+    @Override
+    public Map<Integer, Integer> getNumViews(Language lang, Iterable<Integer> ids, ArrayList<DateTime[]> dates) throws ConfigurationException, DaoException {
+        int firstHours[] = new int[dates.size()];
+        int lastHours[] = new int[dates.size()];
+        for (int i = 0; i < dates.size(); i++) {
+            firstHours[i] = PageViewStore.getFirstHour(dates.get(i)[0].getMillis());
+            lastHours[i] = PageViewStore.getLastHour(dates.get(i)[1].getMillis());
+        }
+        PageViewStore store = stores.get(lang);
+        Map<Integer, Integer> result = new HashMap<Integer, Integer>();
+        for (Integer id : ids) {
+            int position = (store == null) ? -1 : store.getPosition(id);
+            long n = 0;
+            for (int i = 0; position >= 0 && i < firstHours.length; i++) {
+                n += store.getViewsAt(position, firstHours[i], lastHours[i]);
+            }
+            result.put(id, (int) n);
+        }
+        return result;
+    }
+
+    /**
+     * Returns all hourly pageviews that meet the filter criteria specified by an input PageViewDaoFilter.
+     *
+     * @param daoFilter a set of filters to limit the search
+     *                  must be a PageViewDaoFilter or DaoException will be thrown
+     * @return
+     * @throws DaoException
+     */
+    @Override
+    public Iterable<PageView> get(DaoFilter daoFilter) throws DaoException {
+        if (!(daoFilter instanceof PageViewDaoFilter)) {
+            throw new DaoException("Need to input PageViewDaoFilter for PageViewColumnarDao get method");
+        }
+        final PageViewDaoFilter filter = (PageViewDaoFilter) daoFilter;
+        final List<Language> langs = new ArrayList<Language>();
+        for (Language lang : stores.keySet()) {
+            if (filter.getLangIds() == null || filter.getLangIds().contains(lang.getId())) {
+                langs.add(lang);
+            }
+        }
+        final int firstHour = (filter.getStartDate() == null)
+                ? 0 : PageViewStore.getFirstHour(filter.getStartDate().getMillis());
+        final int lastHour = (filter.getEndDate() == null)
+                ? Integer.MAX_VALUE : PageViewStore.getLastHour(filter.getEndDate().getMillis());
+        final int limit = filter.getLimitOrInfinity();
+
+        return new Iterable<PageView>() {
+            @Override
+            public Iterator<PageView> iterator() {
+                return new Iterator<PageView>() {
+                    private int langIndex = 0;
+                    private int position = -1;
+                    private Iterator<Integer> pageIds = null;
+                    private final LinkedList<PageView> buffer = new LinkedList<PageView>();
+                    private int returned = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (buffer.isEmpty() && returned < limit && langIndex < langs.size()) {
+                            PageViewStore store = stores.get(langs.get(langIndex));
+                            if (!advance(store)) {
+                                langIndex++;
+                                position = -1;
+                                pageIds = null;
+                            } else if (position >= 0) {
+                                fill(langs.get(langIndex), store);
+                            }
+                        }
+                        return !buffer.isEmpty() && returned < limit;
+                    }
+
+                    /**
+                     * Moves to the next page in the store. Returns false after the last page.
+                     */
+                    private boolean advance(PageViewStore store) {
+                        if (filter.getPageIds() == null) {
+                            return ++position < store.size();
+                        }
+                        if (pageIds == null) {
+                            pageIds = filter.getPageIds().iterator();
+                        }
+                        if (!pageIds.hasNext()) {
+                            return false;
+                        }
+                        position = store.getPosition(pageIds.next());
+                        return true;
+                    }
+
+                    private void fill(Language lang, PageViewStore store) {
+                        TIntArrayList hours = new TIntArrayList();
+                        TIntArrayList counts = new TIntArrayList();
+                        store.getHourlyViewsAt(position, hours, counts);
+                        LocalId id = new LocalId(lang, store.getPageId(position));
+                        for (int i = 0; i < hours.size(); i++) {
+                            int hour = hours.get(i);
+                            int n = counts.get(i);
+                            if (hour < firstHour || hour > lastHour
+                            ||  (filter.getMinNumViews() != null && n < filter.getMinNumViews())
+                            ||  (filter.getMaxNumViews() != null && n > filter.getMaxNumViews())) {
+                                continue;
+                            }
+                            buffer.add(new PageView(id, new Date(hour * PageViewStore.MILLIS_PER_HOUR), n));
+                        }
+                    }
+
+                    @Override
+                    public PageView next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        returned++;
+                        return buffer.removeFirst();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Not supported, as in the sql dao.
+     */
+    @Override
+    public int getCount(DaoFilter daoFilter) throws DaoException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public LanguageSet getLoadedLanguages() throws DaoException {
+        return new LanguageSet(stores.keySet());
+    }
+
+    @Override
+    public void ensureLoaded(DateTime start, DateTime end, LanguageSet langs) throws DaoException {
+        ensureLoaded(Arrays.asList(new Interval(start, end)), langs);
+    }
+
+    @Override
+    public synchronized void ensureLoaded(List<Interval> intervals, final LanguageSet langs) throws DaoException {
+        // The hours each language still needs
+        final Map<Language, Set<DateTime>> needed = new HashMap<Language, Set<DateTime>>();
+        SortedSet<DateTime> allNeeded = new TreeSet<DateTime>();
+        for (Interval i : intervals) {
+            for (DateTime tstamp : PageViewUtils.timestampsInInterval(i.getStart(), i.getEnd())) {
+                for (Language l : langs) {
+                    PageViewStore store = stores.get(l);
+                    if (store == null || !store.isLoaded(PageViewStore.getLastHour(tstamp.getMillis()))) {
+                        if (!needed.containsKey(l)) {
+                            needed.put(l, new HashSet<DateTime>());
+                        }
+                        needed.get(l).add(tstamp);
+                        allNeeded.add(tstamp);
+                    }
+                }
+            }
+        }
+
+        if (allNeeded.isEmpty()) {
+            LOG.info("All requested page views are loaded.");
+            return;
+        }
+
+        LOG.info(String.format("Loading pageviews for %d timestamps between %s and %s",
+                    allNeeded.size(), allNeeded.first().toString(), allNeeded.last().toString()));
+
+        PageViewDownloader downloader = new PageViewDownloader(downloadDir);
+        final TreeMap<DateTime, File> toLoad;
+        try {
+            toLoad = downloader.download(allNeeded);
+        } catch (WikiBrainException e) {
+            throw new DaoException(e);
+        }
+
+        beginLoad();
+
+        // Hours without a file are marked loaded, as in the sql dao
+        for (Language l : needed.keySet()) {
+            for (DateTime tstamp : needed.get(l)) {
+                getBuilder(l).addLoadedHour(PageViewStore.getLastHour(tstamp.getMillis()));
+            }
+        }
+
+        final AtomicInteger[] counters = new AtomicInteger[] { new AtomicInteger(), new AtomicInteger() };
+        ParallelForEach.loop(toLoad.keySet(), new Procedure<DateTime>() {
+            @Override
+            public void call(DateTime tstamp) throws Exception {
+                List<Language> fileLangs = new ArrayList<Language>();
+                for (Language l : needed.keySet()) {
+                    if (needed.get(l).contains(tstamp)) {
+                        fileLangs.add(l);
+                    }
+                }
+                LOG.info("loading pageview file " + toLoad.get(tstamp));
+                loadOneFile(tstamp, toLoad.get(tstamp), new LanguageSet(fileLangs), counters);
+                LOG.info("finished pageview file " + toLoad.get(tstamp));
+            }
+        });
+
+        endLoad();
+
+        LOG.info(String.format("Found %d pageviews for langs %s and resolved %d of them.",
+                counters[0].get(), langs, counters[1].get()));
+    }
+
+    private void loadOneFile(DateTime tstamp, File file, LanguageSet langs, AtomicInteger[] counters) {
+        PageViewReader reader = new PageViewReader(file, langs);
+        for (RawPageView view : reader) {
+            try {
+                counters[0].getAndIncrement();
+                int id = pageDao.getIdByTitle(view.getTitle());
+                if (id >= 0) {
+                    counters[1].incrementAndGet();
+                    PageView pv = new PageView(
+                            new LocalId(view.getLanguage(), id),
+                            tstamp.toDate(),
+                            view.getViews());
+                    save(pv);
+                    metaDao.incrementRecords(PageView.class, pv.getPageId().getLanguage());
+                }
+            } catch (DaoException e) {
+                metaDao.incrementErrorsQuietly(PageView.class);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<PageViewDao> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return PageViewDao.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "dao.pageView";
+        }
+
+        @Override
+        public PageViewDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.getString("type").equals("columnar")) {
+                return null;
+            }
+            try {
+                return new PageViewColumnarDao(
+                        new File(config.getString("path")),
+                        getConfigurator().get(MetaInfoDao.class),
+                        getConfigurator().get(LocalPageDao.class),
+                        new File(config.getString("dir"))
+                );
+            } catch (DaoException e) {
+                throw new ConfigurationException(e);
+            }
+        }
+    }
+}
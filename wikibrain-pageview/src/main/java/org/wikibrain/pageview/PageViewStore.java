@@ -0,0 +1,607 @@
+package org.wikibrain.pageview;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+import org.wikibrain.core.dao.DaoException;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The hourly page views of one language, stored page-major in memory mapped files.
+ *
+ * <p>
+ * Hours are numbered from the epoch. Each page's views are split into blocks of
+ * {@link #HOURS_PER_BLOCK} hours, and only blocks with views are stored. pages.bin
+ * holds each page id with the position of its first block. blocks.bin holds each
+ * block's number, the page's cumulative views through the end of the block, and the
+ * offset of the block's hourly views in views.bin, where they are varint encoded.
+ * The views for any range of hours are the difference of two cumulative sums, each
+ * found by a binary search over the page's blocks and a scan of at most one block.
+ * </p>
+ *
+ * <p>
+ * Pages are grouped into {@link #NUM_PARTITIONS} partitions by page id, and sorted
+ * by id within each partition. Stores are immutable once written. New views are
+ * collected by a {@link Builder}, which merges them with the previous store.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class PageViewStore {
+    private static final int MAGIC = 0x57425056;
+    private static final int VERSION = 1;
+
+    public static final int HOURS_PER_BLOCK = 24;
+    public static final long MILLIS_PER_HOUR = 60L * 60 * 1000;
+    static final int NUM_PARTITIONS = 64;
+
+    private static final String META_FILE = "meta.bin";
+    private static final String PAGES_FILE = "pages.bin";
+    private static final String BLOCKS_FILE = "blocks.bin";
+    private static final String VIEWS_FILE = "views.bin";
+
+    // page id and position of first block
+    private static final int PAGE_BYTES = 12;
+
+    // block number, cumulative views, and offset of hourly views
+    private static final int BLOCK_BYTES = 20;
+
+    private final int numPages;
+    private final long numBlocks;
+    private final int partitionStarts[];
+    private final int loadedHours[];
+    private final MappedFile pages;
+    private final MappedFile blocks;
+    private final MappedFile views;
+
+    public PageViewStore(File dir) throws DaoException {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dir, META_FILE))));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new DaoException("Unrecognized page view store in " + dir);
+                }
+                if (in.readInt() != HOURS_PER_BLOCK || in.readInt() != NUM_PARTITIONS) {
+                    throw new DaoException("Incompatible page view store in " + dir);
+                }
+                numPages = in.readInt();
+                numBlocks = in.readLong();
+                partitionStarts = new int[NUM_PARTITIONS + 1];
+                for (int i = 0; i < partitionStarts.length; i++) {
+                    partitionStarts[i] = in.readInt();
+                }
+                loadedHours = new int[in.readInt()];
+                for (int i = 0; i < loadedHours.length; i++) {
+                    loadedHours[i] = in.readInt();
+                }
+            } finally {
+                in.close();
+            }
+            pages = new MappedFile(new File(dir, PAGES_FILE));
+            blocks = new MappedFile(new File(dir, BLOCKS_FILE));
+            views = new MappedFile(new File(dir, VIEWS_FILE));
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    public static boolean exists(File dir) {
+        return new File(dir, META_FILE).isFile();
+    }
+
+    /**
+     * @return The first hour at or after a time.
+     */
+    public static int getFirstHour(long millis) {
+        return (int) ((millis + MILLIS_PER_HOUR - 1) / MILLIS_PER_HOUR);
+    }
+
+    /**
+     * @return The last hour at or before a time.
+     */
+    public static int getLastHour(long millis) {
+        return (int) (millis / MILLIS_PER_HOUR);
+    }
+
+    /**
+     * @return The number of pages with views.
+     */
+    public int size() {
+        return numPages;
+    }
+
+    public long getNumBlocks() {
+        return numBlocks;
+    }
+
+    /**
+     * @return The sorted hours whose views have been loaded.
+     */
+    public int[] getLoadedHours() {
+        return loadedHours;
+    }
+
+    public boolean isLoaded(int hour) {
+        return Arrays.binarySearch(loadedHours, hour) >= 0;
+    }
+
+    public int getPageId(int position) {
+        return pages.getInt((long) position * PAGE_BYTES);
+    }
+
+    /**
+     * @return The position of a page, or -1 if it has no views.
+     */
+    public int getPosition(int pageId) {
+        if (pageId < 0) {
+            return -1;
+        }
+        int p = pageId % NUM_PARTITIONS;
+        int lo = partitionStarts[p], hi = partitionStarts[p + 1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int id = getPageId(mid);
+            if (id < pageId) {
+                lo = mid + 1;
+            } else if (id > pageId) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The views of a page between two hours, inclusive.
+     */
+    public long getViews(int pageId, int firstHour, int lastHour) {
+        int position = getPosition(pageId);
+        return (position < 0) ? 0 : getViewsAt(position, firstHour, lastHour);
+    }
+
+    /**
+     * @return The views of the page at a position between two hours, inclusive.
+     */
+    public long getViewsAt(int position, int firstHour, int lastHour) {
+        if (firstHour > lastHour) {
+            return 0;
+        }
+        long first = getFirstBlock(position);
+        long end = getFirstBlock(position + 1);
+        return getCumulativeViews(first, end, lastHour + 1) - getCumulativeViews(first, end, firstHour);
+    }
+
+    /**
+     * Appends the hours with views of the page at a position, and their views, to two lists.
+     */
+    public void getHourlyViewsAt(int position, TIntArrayList hours, TIntArrayList counts) {
+        long end = getFirstBlock(position + 1);
+        for (long b = getFirstBlock(position); b < end; b++) {
+            int start = getBlockNumber(b) * HOURS_PER_BLOCK;
+            long offset = getBlockOffset(b);
+            int n = (int) readVarint(offset);
+            offset += varintLength(n);
+            for (int i = 0; i < n; i++) {
+                hours.add(start + views.get(offset++));
+                long count = readVarint(offset);
+                offset += varintLength(count);
+                counts.add((int) count);
+            }
+        }
+    }
+
+    /**
+     * @return The views of a page's blocks in hours before an hour.
+     */
+    private long getCumulativeViews(long firstBlock, long endBlock, int hour) {
+        if (hour <= 0) {
+            return 0;
+        }
+        int number = hour / HOURS_PER_BLOCK;
+
+        // The last block at or before the hour
+        long lo = firstBlock, hi = endBlock - 1, found = -1;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            if (getBlockNumber(mid) <= number) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (found < 0) {
+            return 0;
+        } else if (getBlockNumber(found) < number) {
+            return getBlockViews(found);
+        }
+
+        long total = (found > firstBlock) ? getBlockViews(found - 1) : 0;
+        int end = hour - number * HOURS_PER_BLOCK;
+        long offset = getBlockOffset(found);
+        int n = (int) readVarint(offset);
+        offset += varintLength(n);
+        for (int i = 0; i < n; i++) {
+            if (views.get(offset++) >= end) {
+                break;
+            }
+            long count = readVarint(offset);
+            offset += varintLength(count);
+            total += count;
+        }
+        return total;
+    }
+
+    private long getFirstBlock(int position) {
+        return pages.getLong((long) position * PAGE_BYTES + 4);
+    }
+
+    private int getBlockNumber(long block) {
+        return blocks.getInt(block * BLOCK_BYTES);
+    }
+
+    private long getBlockViews(long block) {
+        return blocks.getLong(block * BLOCK_BYTES + 4);
+    }
+
+    private long getBlockOffset(long block) {
+        return blocks.getLong(block * BLOCK_BYTES + 12);
+    }
+
+    private long readVarint(long offset) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = views.get(offset++);
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int varintLength(long value) {
+        int n = 1;
+        while (value >= 0x80) {
+            value >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while (value >= 0x80) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * A read only file mapped in segments. Segments overlap by a few bytes, so a
+     * number that starts in one segment can always be read from it.
+     */
+    private static class MappedFile {
+        private static final int SEGMENT_SHIFT = 30;
+        private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+        private static final long OVERLAP = 8;
+
+        private final MappedByteBuffer segments[];
+
+        MappedFile(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                long length = raf.length();
+                segments = new MappedByteBuffer[(int) ((length + SEGMENT_MASK) >> SEGMENT_SHIFT)];
+                for (int i = 0; i < segments.length; i++) {
+                    long start = (long) i << SEGMENT_SHIFT;
+                    long size = Math.min(length - start, SEGMENT_MASK + 1 + OVERLAP);
+                    // The mapping remains valid after the channel is closed
+                    segments[i] = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, start, size);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+
+        private ByteBuffer getSegment(long pos) {
+            return segments[(int) (pos >>> SEGMENT_SHIFT)];
+        }
+
+        byte get(long pos) {
+            return getSegment(pos).get((int) (pos & SEGMENT_MASK));
+        }
+
+        int getInt(long pos) {
+            return getSegment(pos).getInt((int) (pos & SEGMENT_MASK));
+        }
+
+        long getLong(long pos) {
+            return getSegment(pos).getLong((int) (pos & SEGMENT_MASK));
+        }
+    }
+
+    /**
+     * Collects hourly page views and writes them out, merged with a previous store.
+     * Views are spooled to temporary files, one per partition, and each partition is
+     * sorted in memory when the store is written.
+     */
+    public static class Builder {
+        private final File spoolDir;
+        private final File spoolFiles[] = new File[NUM_PARTITIONS];
+        private final DataOutputStream spools[] = new DataOutputStream[NUM_PARTITIONS];
+        private final TIntSet hours = new TIntHashSet();
+
+        public Builder() throws DaoException {
+            try {
+                spoolDir = File.createTempFile("wikibrain-pageview", "");
+                spoolDir.delete();
+                spoolDir.mkdirs();
+                for (int i = 0; i < NUM_PARTITIONS; i++) {
+                    spoolFiles[i] = new File(spoolDir, i + ".bin");
+                    spools[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spoolFiles[i])));
+                }
+            } catch (IOException e) {
+                throw new DaoException(e);
+            }
+        }
+
+        /**
+         * Adds the views of a page in an hour. Views added more than once for the same hour are summed.
+         */
+        public void add(int pageId, int hour, int numViews) throws DaoException {
+            if (pageId < 0 || hour < 0 || numViews < 0) {
+                throw new IllegalArgumentException("Invalid page view: page " + pageId + ", hour " + hour + ", views " + numViews);
+            }
+            DataOutputStream out = spools[pageId % NUM_PARTITIONS];
+            try {
+                synchronized (out) {
+                    out.writeInt(pageId);
+                    out.writeInt(hour);
+                    out.writeInt(numViews);
+                }
+            } catch (IOException e) {
+                throw new DaoException(e);
+            }
+            addLoadedHour(hour);
+        }
+
+        /**
+         * Marks an hour as loaded, even if no page had views in it.
+         */
+        public void addLoadedHour(int hour) {
+            synchronized (hours) {
+                hours.add(hour);
+            }
+        }
+
+        /**
+         * Writes the views collected so far, along with those in a previous store,
+         * to a directory, replacing any store already in it.
+         *
+         * @param previous The previous store, or null.
+         * @param dir
+         */
+        public synchronized void write(PageViewStore previous, File dir) throws DaoException {
+            File tmpDir = new File(dir.getPath() + ".tmp");
+            try {
+                for (DataOutputStream out : spools) {
+                    out.close();
+                }
+                FileUtils.deleteQuietly(tmpDir);
+                tmpDir.mkdirs();
+
+                int partitionStarts[] = new int[NUM_PARTITIONS + 1];
+                long numBlocks = 0;
+                long viewBytes = 0;
+                DataOutputStream pagesOut = openOutput(new File(tmpDir, PAGES_FILE));
+                DataOutputStream blocksOut = openOutput(new File(tmpDir, BLOCKS_FILE));
+                DataOutputStream viewsOut = openOutput(new File(tmpDir, VIEWS_FILE));
+                try {
+                    for (int p = 0; p < NUM_PARTITIONS; p++) {
+                        Partition partition = new Partition(p, previous);
+                        partitionStarts[p + 1] = partitionStarts[p] + partition.pageIds.length;
+                        for (int i = 0; i < partition.pageIds.length; i++) {
+                            pagesOut.writeInt(partition.pageIds[i]);
+                            pagesOut.writeLong(numBlocks);
+
+                            // One block for each run of views in the same block of hours
+                            long packed[] = partition.views;
+                            long cumulative = 0;
+                            int j = partition.offsets[i];
+                            int end = partition.offsets[i + 1];
+                            while (j < end) {
+                                int number = (int) (packed[j] >>> 32) / HOURS_PER_BLOCK;
+                                int k = j;
+                                while (k < end && (int) (packed[k] >>> 32) / HOURS_PER_BLOCK == number) {
+                                    cumulative += (int) packed[k];
+                                    k++;
+                                }
+                                blocksOut.writeInt(number);
+                                blocksOut.writeLong(cumulative);
+                                blocksOut.writeLong(viewBytes);
+                                numBlocks++;
+
+                                writeVarint(viewsOut, k - j);
+                                viewBytes += varintLength(k - j);
+                                for (; j < k; j++) {
+                                    int count = (int) packed[j];
+                                    viewsOut.writeByte((int) (packed[j] >>> 32) - number * HOURS_PER_BLOCK);
+                                    writeVarint(viewsOut, count);
+                                    viewBytes += 1 + varintLength(count);
+                                }
+                            }
+                        }
+                    }
+                    // A final page whose first block marks the end of the last page
+                    pagesOut.writeInt(-1);
+                    pagesOut.writeLong(numBlocks);
+                } finally {
+                    pagesOut.close();
+                    blocksOut.close();
+                    viewsOut.close();
+                }
+
+                TIntSet allHours = new TIntHashSet(hours);
+                if (previous != null) {
+                    allHours.addAll(previous.getLoadedHours());
+                }
+                int sortedHours[] = allHours.toArray();
+                Arrays.sort(sortedHours);
+
+                DataOutputStream metaOut = openOutput(new File(tmpDir, META_FILE));
+                try {
+                    metaOut.writeInt(MAGIC);
+                    metaOut.writeInt(VERSION);
+                    metaOut.writeInt(HOURS_PER_BLOCK);
+                    metaOut.writeInt(NUM_PARTITIONS);
+                    metaOut.writeInt(partitionStarts[NUM_PARTITIONS]);
+                    metaOut.writeLong(numBlocks);
+                    for (int start : partitionStarts) {
+                        metaOut.writeInt(start);
+                    }
+                    metaOut.writeInt(sortedHours.length);
+                    for (int hour : sortedHours) {
+                        metaOut.writeInt(hour);
+                    }
+                } finally {
+                    metaOut.close();
+                }
+
+                FileUtils.deleteQuietly(dir);
+                if (!tmpDir.renameTo(dir)) {
+                    throw new DaoException("Could not move " + tmpDir + " to " + dir);
+                }
+            } catch (IOException e) {
+                throw new DaoException(e);
+            } finally {
+                FileUtils.deleteQuietly(spoolDir);
+            }
+        }
+
+        private static DataOutputStream openOutput(File file) throws IOException {
+            return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+
+        /**
+         * Discards the views collected so far.
+         */
+        public synchronized void discard() {
+            for (DataOutputStream out : spools) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            FileUtils.deleteQuietly(spoolDir);
+        }
+
+        /**
+         * The views of the pages in one partition, from the spool and the previous store.
+         * The views of page i are views[offsets[i]] through views[offsets[i + 1] - 1],
+         * each packed as the hour in the high 32 bits and the count in the low 32 bits,
+         * sorted by hour with duplicate hours summed.
+         */
+        private class Partition {
+            int pageIds[];
+            int offsets[];
+            long views[];
+
+            Partition(int partition, PageViewStore previous) throws IOException {
+                int firstPrevious = 0, endPrevious = 0;
+                if (previous != null) {
+                    firstPrevious = previous.partitionStarts[partition];
+                    endPrevious = previous.partitionStarts[partition + 1];
+                }
+
+                // Count the views of each page
+                TIntIntHashMap counts = new TIntIntHashMap();
+                TIntArrayList hours = new TIntArrayList();
+                TIntArrayList numViews = new TIntArrayList();
+                for (int pos = firstPrevious; pos < endPrevious; pos++) {
+                    hours.resetQuick();
+                    numViews.resetQuick();
+                    previous.getHourlyViewsAt(pos, hours, numViews);
+                    counts.adjustOrPutValue(previous.getPageId(pos), hours.size(), hours.size());
+                }
+                DataInputStream in = openSpool(partition);
+                try {
+                    long n = spoolFiles[partition].length() / 12;
+                    for (long i = 0; i < n; i++) {
+                        int pageId = in.readInt();
+                        in.readInt();
+                        in.readInt();
+                        counts.adjustOrPutValue(pageId, 1, 1);
+                    }
+                } finally {
+                    in.close();
+                }
+
+                pageIds = counts.keys();
+                Arrays.sort(pageIds);
+                TIntIntHashMap positions = new TIntIntHashMap(pageIds.length * 2);
+                offsets = new int[pageIds.length + 1];
+                for (int i = 0; i < pageIds.length; i++) {
+                    positions.put(pageIds[i], i);
+                    offsets[i + 1] = offsets[i] + counts.get(pageIds[i]);
+                }
+
+                // Place the views of each page in its range
+                views = new long[offsets[pageIds.length]];
+                int fill[] = Arrays.copyOf(offsets, pageIds.length);
+                for (int pos = firstPrevious; pos < endPrevious; pos++) {
+                    hours.resetQuick();
+                    numViews.resetQuick();
+                    previous.getHourlyViewsAt(pos, hours, numViews);
+                    int i = positions.get(previous.getPageId(pos));
+                    for (int j = 0; j < hours.size(); j++) {
+                        views[fill[i]++] = pack(hours.get(j), numViews.get(j));
+                    }
+                }
+                in = openSpool(partition);
+                try {
+                    long n = spoolFiles[partition].length() / 12;
+                    for (long j = 0; j < n; j++) {
+                        int i = positions.get(in.readInt());
+                        int hour = in.readInt();
+                        views[fill[i]++] = pack(hour, in.readInt());
+                    }
+                } finally {
+                    in.close();
+                }
+
+                // Sort each page's views by hour and sum duplicates
+                int end = 0;
+                for (int i = 0; i < pageIds.length; i++) {
+                    Arrays.sort(views, offsets[i], offsets[i + 1]);
+                    int start = end;
+                    for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+                        if (end > start && (views[end - 1] >>> 32) == (views[j] >>> 32)) {
+                            views[end - 1] = pack((int) (views[j] >>> 32), (int) views[end - 1] + (int) views[j]);
+                        } else {
+                            views[end++] = views[j];
+                        }
+                    }
+                    offsets[i] = start;
+                }
+                offsets[pageIds.length] = end;
+            }
+
+            private DataInputStream openSpool(int partition) throws IOException {
+                return new DataInputStream(new BufferedInputStream(new FileInputStream(spoolFiles[partition])));
+            }
+
+            private long pack(int hour, int count) {
+                return ((long) hour << 32) | (count & 0xffffffffL);
+            }
+        }
+    }
+}
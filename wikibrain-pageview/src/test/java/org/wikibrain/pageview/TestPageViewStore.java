@@ -0,0 +1,113 @@
+package org.wikibrain.pageview;
+
+import gnu.trove.list.array.TIntArrayList;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestPageViewStore {
+    private static final int NUM_PAGES = 500;
+    private static final int NUM_HOURS = 24 * 10;
+    private static final int FIRST_HOUR = 400000;
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("pageviews", null);
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void deleteDir() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Test
+    public void testViews() throws DaoException {
+        Random random = new Random(0);
+        int views[][] = new int[NUM_PAGES][NUM_HOURS];
+        PageViewStore.Builder builder = new PageViewStore.Builder();
+        for (int i = 0; i < 20000; i++) {
+            int page = random.nextInt(NUM_PAGES);
+            int hour = random.nextInt(NUM_HOURS);
+            int n = random.nextInt(1000);
+            views[page][hour] += n;
+            builder.add(page * 3, FIRST_HOUR + hour, n);
+        }
+        builder.write(null, new File(dir, "en"));
+
+        PageViewStore store = new PageViewStore(new File(dir, "en"));
+        assertTrue(store.isLoaded(FIRST_HOUR + 1));
+        assertFalse(store.isLoaded(FIRST_HOUR - 1));
+        assertEquals(-1, store.getPosition(1));
+        assertEquals(0, store.getViews(NUM_PAGES * 3, FIRST_HOUR, FIRST_HOUR + NUM_HOURS));
+        checkViews(store, views, random);
+    }
+
+    @Test
+    public void testMerge() throws DaoException {
+        Random random = new Random(1);
+        int views[][] = new int[NUM_PAGES][NUM_HOURS];
+        PageViewStore store = null;
+        for (int day = 0; day < NUM_HOURS / 24; day++) {
+            PageViewStore.Builder builder = new PageViewStore.Builder();
+            for (int i = 0; i < 2000; i++) {
+                int page = random.nextInt(NUM_PAGES);
+                int hour = day * 24 + random.nextInt(24);
+                int n = random.nextInt(1000);
+                views[page][hour] += n;
+                builder.add(page * 3, FIRST_HOUR + hour, n);
+            }
+            builder.write(store, new File(dir, "en"));
+            store = new PageViewStore(new File(dir, "en"));
+        }
+        assertEquals(NUM_HOURS, store.getLoadedHours().length);
+        checkViews(store, views, random);
+
+        // Views for an hour that is already stored are added to it
+        PageViewStore.Builder builder = new PageViewStore.Builder();
+        builder.add(3, FIRST_HOUR + 5, 7);
+        builder.write(store, new File(dir, "en"));
+        store = new PageViewStore(new File(dir, "en"));
+        views[1][5] += 7;
+        checkViews(store, views, random);
+    }
+
+    private void checkViews(PageViewStore store, int views[][], Random random) {
+        for (int page = 0; page < NUM_PAGES; page++) {
+            int position = store.getPosition(page * 3);
+            assertTrue(position >= 0);
+            assertEquals(page * 3, store.getPageId(position));
+
+            TIntArrayList hours = new TIntArrayList();
+            TIntArrayList counts = new TIntArrayList();
+            store.getHourlyViewsAt(position, hours, counts);
+            for (int i = 0; i < hours.size(); i++) {
+                assertEquals(views[page][hours.get(i) - FIRST_HOUR], counts.get(i));
+            }
+
+            for (int i = 0; i < 20; i++) {
+                int first = random.nextInt(NUM_HOURS);
+                int last = first + random.nextInt(NUM_HOURS - first);
+                long expected = 0;
+                for (int hour = first; hour <= last; hour++) {
+                    expected += views[page][hour];
+                }
+                assertEquals(expected, store.getViews(page * 3, FIRST_HOUR + first, FIRST_HOUR + last));
+            }
+        }
+    }
+}
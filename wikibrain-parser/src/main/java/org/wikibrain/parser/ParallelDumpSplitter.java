@@ -0,0 +1,596 @@
+package org.wikibrain.parser;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.wikibrain.core.lang.LanguageInfo;
+import org.wikibrain.core.model.RawPage;
+import org.wikibrain.parser.xml.StreamingPageXmlParser;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpIOUtils;
+import org.wikibrain.utils.WpThreadUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Splits an XML dump of wikipedia into articles using several threads.
+ *
+ * <p>
+ * Unlike {@link DumpSplitter}, which decodes the whole dump through a single reader,
+ * this splitter scans raw bytes for page boundaries and lets each thread decompress
+ * and split its own part of the dump:
+ * </p>
+ * <ul>
+ *     <li>Multistream bz2 dumps are split at bz2 stream boundaries, which are read from the
+ *     multistream index file if one is available and otherwise found by scanning for
+ *     stream headers. Every stream contains whole pages.</li>
+ *     <li>Uncompressed dumps are split into byte ranges. Each range handles the pages
+ *     that start within it.</li>
+ *     <li>Other dumps (gzip, single stream bz2) are decompressed and split by one thread,
+ *     and the pages are handed to the other threads.</li>
+ * </ul>
+ * <p>
+ * The pages passed to the callback are identical to those produced by DumpSplitter,
+ * but they are not passed in dump order.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class ParallelDumpSplitter {
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelDumpSplitter.class);
+
+    public static final int MAX_ARTICLE_LENGTH = 10000000;
+    public static final long DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final byte[] PAGE_BEGIN = DumpSplitter.ARTICLE_BEGIN.getBytes();
+    private static final byte[] PAGE_END = DumpSplitter.ARTICLE_END.getBytes();
+    private static final byte[] NEWLINE = { (byte) '\n' };
+
+    /**
+     * Header of a bz2 stream with a maximum block size of 100k-900k ("BZh1" - "BZh9"),
+     * followed by the magic number that starts its first block.
+     */
+    private static final byte[] BZ2_BLOCK_MAGIC = { 0x31, 0x41, 0x59, 0x26, 0x53, 0x59 };
+
+    private final File path;
+    private final File index;
+    private int numThreads = WpThreadUtils.getMaxThreads();
+    private long chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * Creates a splitter for the given dump, using a multistream index next to it if one exists.
+     * @param path
+     */
+    public ParallelDumpSplitter(File path) {
+        this(path, findMultistreamIndex(path));
+    }
+
+    /**
+     * @param path The dump.
+     * @param index The multistream index for a multistream bz2 dump, or null.
+     */
+    public ParallelDumpSplitter(File path, File index) {
+        this.path = path;
+        this.index = index;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * @param chunkSize The approximate number of (compressed) bytes each task reads.
+     */
+    public void setChunkSize(long chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public File getPath() {
+        return path;
+    }
+
+    /**
+     * Calls fn for every page in the dump, from several threads.
+     * Exceptions thrown by fn are logged and do not stop the splitting.
+     *
+     * @param fn
+     * @return The number of pages.
+     * @throws IOException If part of the dump could not be read or decompressed.
+     */
+    public long forEachPage(final Procedure<String> fn) throws IOException {
+        return forEachPageBytes(new Procedure<byte[]>() {
+            @Override
+            public void call(byte[] page) throws Exception {
+                fn.call(new String(page, "UTF-8"));
+            }
+        });
+    }
+
+    /**
+     * Calls fn for every page in the dump, from several threads.
+     * Pages are parsed directly from their bytes by a {@link StreamingPageXmlParser},
+     * without building an intermediate String for the page's xml.
+     * Pages that cannot be parsed are logged and skipped.
+     *
+     * @param language
+     * @param fn
+     * @return The number of pages, including those that could not be parsed.
+     */
+    public long forEachRawPage(final LanguageInfo language, final Procedure<RawPage> fn) throws IOException {
+        final ThreadLocal<StreamingPageXmlParser> parsers = new ThreadLocal<StreamingPageXmlParser>();
+        return forEachPageBytes(new Procedure<byte[]>() {
+            @Override
+            public void call(byte[] page) throws Exception {
+                StreamingPageXmlParser parser = parsers.get();
+                if (parser == null) {
+                    parser = new StreamingPageXmlParser(language);
+                    parsers.set(parser);
+                }
+                RawPage rp;
+                try {
+                    rp = parser.parse(page);
+                } catch (WpParseException e) {
+                    LOG.warn("parsing of " + path + " failed:", e);
+                    return;
+                }
+                fn.call(rp);
+            }
+        });
+    }
+
+    /**
+     * Calls fn with the UTF-8 encoded xml of every page in the dump, from several threads.
+     */
+    private long forEachPageBytes(final Procedure<byte[]> fn) throws IOException {
+        final AtomicLong numPages = new AtomicLong();
+        final Procedure<byte[]> counted = new Procedure<byte[]>() {
+            @Override
+            public void call(byte[] page) throws Exception {
+                numPages.incrementAndGet();
+                fn.call(page);
+            }
+        };
+
+        List<Chunk> chunks = getChunks();
+        if (chunks == null) {
+            LOG.info("splitting " + path + " in a single thread");
+            InputStream input = WpIOUtils.openInputStream(path);
+            try {
+                ParallelForEach.iterate(
+                        new PageScanner(input, 0, 0, Long.MAX_VALUE),
+                        numThreads, 1000, counted, Integer.MAX_VALUE);
+            } catch (RuntimeException e) {
+                // PageScanner wraps read errors, which surface in this thread
+                if (e.getCause() instanceof IOException) {
+                    throw new IOException("splitting " + path + " failed", e.getCause());
+                }
+                throw e;
+            } finally {
+                IOUtils.closeQuietly(input);
+            }
+        } else {
+            LOG.info("splitting " + path + " into " + chunks.size() + " chunks using " + numThreads + " threads");
+            // ParallelForEach only logs exceptions, so remember the first one and rethrow it here.
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            ParallelForEach.loop(chunks, numThreads,
+                    new Procedure<Chunk>() {
+                        @Override
+                        public void call(Chunk chunk) throws Exception {
+                            if (failure.get() != null) {
+                                return;
+                            }
+                            try {
+                                processChunk(chunk, counted);
+                            } catch (Throwable t) {
+                                failure.compareAndSet(null, t);
+                            }
+                        }
+                    }, Integer.MAX_VALUE);
+            if (failure.get() != null) {
+                throw new IOException("splitting " + path + " failed", failure.get());
+            }
+        }
+        return numPages.get();
+    }
+
+    private void processChunk(Chunk chunk, Procedure<byte[]> fn) throws IOException {
+        InputStream input;
+        if (chunk.compressed) {
+            byte bytes[] = new byte[(int) (chunk.end - chunk.start)];
+            RandomAccessFile raf = new RandomAccessFile(path, "r");
+            try {
+                raf.seek(chunk.start);
+                raf.readFully(bytes);
+            } finally {
+                raf.close();
+            }
+            input = new BZip2CompressorInputStream(new ByteArrayInputStream(bytes), true);
+        } else {
+            FileInputStream fis = new FileInputStream(path);
+            fis.getChannel().position(chunk.readFrom);
+            input = fis;
+        }
+        try {
+            PageScanner scanner = chunk.compressed
+                    ? new PageScanner(input, 0, 0, Long.MAX_VALUE)
+                    : new PageScanner(input, chunk.readFrom, chunk.start, chunk.end);
+            while (scanner.hasNext()) {
+                byte page[] = scanner.next();
+                try {
+                    fn.call(page);
+                } catch (Exception e) {
+                    LOG.warn("processing page in " + path + " failed:", e);
+                }
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * A part of the dump that can be split independently of the others.
+     */
+    static class Chunk {
+        final long start;       // First byte of the chunk
+        final long end;         // Byte after the chunk
+        final long readFrom;    // Byte at which uncompressed chunks start reading
+        final boolean compressed;
+
+        Chunk(long start, long end, long readFrom, boolean compressed) {
+            this.start = start;
+            this.end = end;
+            this.readFrom = readFrom;
+            this.compressed = compressed;
+        }
+    }
+
+    /**
+     * @return The independent chunks of the dump, or null if the dump must be read sequentially.
+     */
+    List<Chunk> getChunks() throws IOException {
+        String ext = FilenameUtils.getExtension(path.getName()).toLowerCase();
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        if (ext.startsWith("bz2")) {
+            long offsets[] = (index != null && index.isFile())
+                    ? readIndexOffsets(index, path.length())
+                    : findBz2StreamOffsets(path);
+            if (offsets.length <= 2) {
+                return null;    // a single stream
+            }
+            int i = 0;
+            while (i < offsets.length - 1) {
+                int j = i + 1;
+                while (j < offsets.length - 1 && offsets[j] - offsets[i] < chunkSize) {
+                    j++;
+                }
+                chunks.add(new Chunk(offsets[i], offsets[j], offsets[i], true));
+                i = j;
+            }
+        } else if (ext.equals("gz")) {
+            return null;
+        } else {
+            long length = path.length();
+            for (long start = 0; start < length; start += chunkSize) {
+                // Read a little before the chunk so that the indentation of its first page is included.
+                chunks.add(new Chunk(start, Math.min(length, start + chunkSize), Math.max(0, start - 64), false));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Returns the multistream index file that accompanies a dump, or null if none exists.
+     * For example, the index of enwiki-20140102-pages-articles-multistream.xml.bz2 is
+     * enwiki-20140102-pages-articles-multistream-index.txt.bz2.
+     */
+    public static File findMultistreamIndex(File dump) {
+        String name = dump.getName();
+        if (!name.endsWith("multistream.xml.bz2")) {
+            return null;
+        }
+        File index = new File(dump.getParentFile(),
+                name.substring(0, name.length() - ".xml.bz2".length()) + "-index.txt.bz2");
+        return index.isFile() ? index : null;
+    }
+
+    /**
+     * Reads the distinct stream offsets in a multistream index.
+     * Each line of the index is "offset:page id:title".
+     *
+     * @return Sorted stream offsets, starting with 0 and ending with the length of the dump.
+     */
+    static long[] readIndexOffsets(File index, long dumpLength) throws IOException {
+        TreeSet<Long> offsets = new TreeSet<Long>();
+        offsets.add(0L);
+        offsets.add(dumpLength);
+        BufferedReader reader = WpIOUtils.openBufferedReader(index);
+        try {
+            while (true) {
+                String line = reader.readLine();
+                if (line == null) {
+                    break;
+                }
+                int i = line.indexOf(':');
+                if (i > 0) {
+                    offsets.add(Long.valueOf(line.substring(0, i)));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return toArray(offsets);
+    }
+
+    /**
+     * Finds the starts of the bz2 streams in a file by scanning for stream headers.
+     *
+     * @return Sorted stream offsets, starting with 0 and ending with the length of the file.
+     */
+    static long[] findBz2StreamOffsets(File file) throws IOException {
+        TreeSet<Long> offsets = new TreeSet<Long>();
+        offsets.add(0L);
+        offsets.add(file.length());
+        InputStream input = new FileInputStream(file);
+        try {
+            byte buffer[] = new byte[1024 * 1024];
+            int keep = 0;           // bytes carried over from the previous read
+            long bufferOffset = 0;  // offset of buffer[0] in the file
+            while (true) {
+                int n = input.read(buffer, keep, buffer.length - keep);
+                if (n < 0) {
+                    break;
+                }
+                int len = keep + n;
+                int last = len - 10;
+                for (int i = 0; i <= last; i++) {
+                    if (buffer[i] == 'B' && buffer[i + 1] == 'Z' && buffer[i + 2] == 'h'
+                    &&  buffer[i + 3] >= '1' && buffer[i + 3] <= '9' && matches(buffer, i + 4, BZ2_BLOCK_MAGIC)) {
+                        offsets.add(bufferOffset + i);
+                    }
+                }
+                keep = Math.min(len, 9);
+                System.arraycopy(buffer, len - keep, buffer, 0, keep);
+                bufferOffset += len - keep;
+            }
+        } finally {
+            input.close();
+        }
+        return toArray(offsets);
+    }
+
+    private static long[] toArray(Collection<Long> values) {
+        long result[] = new long[values.size()];
+        int i = 0;
+        for (long v : values) {
+            result[i++] = v;
+        }
+        return result;
+    }
+
+    private static boolean matches(byte buffer[], int offset, byte pattern[]) {
+        for (int i = 0; i < pattern.length; i++) {
+            if (buffer[offset + i] != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scans a stream of bytes for pages.
+     *
+     * Each page runs from the start of the line containing its begin tag to the end of
+     * the line containing its end tag, as in DumpSplitter. Only pages whose begin tag
+     * starts in [minStart, limit) are returned; later pages are not read.
+     */
+    static class PageScanner implements Iterator<byte[]> {
+        // Bytes kept before the scan position, so the indentation of a begin tag can be found.
+        private static final int LOOKBEHIND = 64;
+
+        private final InputStream input;
+        private final long minStart;
+        private final long limit;
+
+        private byte buffer[] = new byte[1024 * 1024];
+        private int pos = 0;            // next byte in buffer that has not been consumed
+        private int len = 0;            // number of valid bytes in buffer
+        private long bufferOffset;      // offset of buffer[0] in the stream
+        private boolean eof = false;
+
+        private byte page[] = new byte[64 * 1024];
+        private int pageLength = 0;
+        private boolean building = false;
+        private boolean truncated = false;
+
+        private byte next[] = null;
+        private boolean done = false;
+
+        /**
+         * @param input
+         * @param inputOffset The offset of the first byte of input.
+         * @param minStart Pages must begin at or after this offset.
+         * @param limit Pages must begin before this offset.
+         */
+        PageScanner(InputStream input, long inputOffset, long minStart, long limit) {
+            this.input = input;
+            this.bufferOffset = inputOffset;
+            this.minStart = minStart;
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                try {
+                    next = readPage();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                done = (next == null);
+            }
+            return next != null;
+        }
+
+        @Override
+        public byte[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            byte result[] = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private byte[] readPage() throws IOException {
+            int tag;
+            while (true) {
+                tag = find(PAGE_BEGIN);
+                if (tag < 0) {
+                    return null;
+                }
+                long offset = bufferOffset + tag;
+                if (offset >= limit) {
+                    return null;
+                }
+                pos = tag + PAGE_BEGIN.length;
+                if (offset >= minStart) {
+                    break;
+                }
+            }
+
+            // The page starts with the indentation before the begin tag.
+            int start = tag;
+            while (start > 0 && (buffer[start - 1] == ' ' || buffer[start - 1] == '\t')) {
+                start--;
+            }
+            pageLength = 0;
+            truncated = false;
+            building = true;
+            pos = start;
+
+            int end = find(PAGE_END);
+            if (end < 0) {
+                append(pos, len);
+                pos = len;
+                LOG.error("parsing " + offsetString() + " failed: reached eof in middle of article");
+                endTruncatedPage();
+            } else {
+                append(pos, end + PAGE_END.length);
+                pos = end + PAGE_END.length;
+                int eol = find(NEWLINE);
+                append(pos, (eol < 0) ? len : eol);
+                pos = (eol < 0) ? len : eol + 1;
+                if (truncated) {
+                    LOG.error("parsing " + offsetString() + " failed: truncating overly long article");
+                    endTruncatedPage();
+                } else {
+                    append(NEWLINE, 0, 1);
+                }
+            }
+            building = false;
+            return Arrays.copyOf(page, pageLength);
+        }
+
+        private String offsetString() {
+            return "page ending at byte " + (bufferOffset + pos);
+        }
+
+        /**
+         * Ends a truncated page after its last complete line, as DumpSplitter does.
+         */
+        private void endTruncatedPage() {
+            int n = pageLength;
+            while (n > 0 && page[n - 1] != '\n') {
+                n--;
+            }
+            pageLength = n;
+            truncated = false;
+            byte end[] = (DumpSplitter.ARTICLE_END + "\n").getBytes();
+            append(end, 0, end.length);
+        }
+
+        private void append(int from, int to) {
+            append(buffer, from, to - from);
+        }
+
+        /**
+         * Appends bytes to the page, unless the page has been truncated.
+         */
+        private void append(byte bytes[], int from, int n) {
+            if (truncated) {
+                return;
+            }
+            if (pageLength + n > MAX_ARTICLE_LENGTH) {
+                truncated = true;
+                return;
+            }
+            if (pageLength + n > page.length) {
+                page = Arrays.copyOf(page, Math.max(pageLength + n, page.length * 2));
+            }
+            System.arraycopy(bytes, from, page, pageLength, n);
+            pageLength += n;
+        }
+
+        /**
+         * Finds the next occurrence of a pattern at or after pos, reading more input as necessary.
+         *
+         * @return The index of the match in the buffer, or -1 at the end of the input.
+         */
+        private int find(byte pattern[]) throws IOException {
+            int i = pos;
+            while (true) {
+                int last = len - pattern.length;
+                byte first = pattern[0];
+                for (; i <= last; i++) {
+                    if (buffer[i] == first && matches(buffer, i, pattern)) {
+                        return i;
+                    }
+                }
+                if (eof) {
+                    return -1;
+                }
+                i = fill(Math.max(i, pos));
+            }
+        }
+
+        /**
+         * Discards consumed bytes and reads more input. If a page is being built,
+         * the scanned bytes are first appended to it.
+         *
+         * @param scan The index in the buffer at which scanning stopped.
+         * @return The new index of the scan position.
+         */
+        private int fill(int scan) throws IOException {
+            if (building) {
+                append(pos, scan);
+            }
+            pos = scan;
+            int keep = Math.max(0, scan - LOOKBEHIND);
+            System.arraycopy(buffer, keep, buffer, 0, len - keep);
+            bufferOffset += keep;
+            len -= keep;
+            pos -= keep;
+            if (len == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int n = input.read(buffer, len, buffer.length - len);
+            if (n < 0) {
+                eof = true;
+            } else {
+                len += n;
+            }
+            return pos;
+        }
+    }
+}
@@ -0,0 +1,551 @@
+package org.wikibrain.parser.wiki;
+
+/**
+ * A character buffer that MarkupStripper strips markup from in place.
+ *
+ * <p>
+ * Each strip method is a single scan over the buffer that copies the kept characters
+ * into a second buffer, which then becomes the current one. The methods produce
+ * exactly the same text as the regular expression based methods of MarkupStripper
+ * with the same names, including the regular expressions' treatment of unbalanced
+ * markup, line terminators, and (ASCII) word characters.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+class MarkupBuffer {
+	private char[] in ;
+	private int n ;
+	private char[] out ;
+	private int m ;
+
+	MarkupBuffer(String markup) {
+		in = markup.toCharArray() ;
+		n = in.length ;
+		out = new char[n] ;
+	}
+
+	@Override
+	public String toString() {
+		return new String(in, 0, n) ;
+	}
+
+	/**
+	 * @see MarkupStripper#stripTemplates(String)
+	 */
+	void stripTemplates() {
+		if (!stripNested('{', '{', '}', '}', false))
+			System.err.println("MarkupStripper | Warning: templates were not well formed, so we cannot guarantee that they were stripped out correctly. ") ;
+	}
+
+	/**
+	 * @see MarkupStripper#stripSection(String, String)
+	 * @param sectionName the name of the section in lower case.
+	 */
+	void stripSection(String sectionName) {
+		// Sections followed by a heading of the same level: keep the heading and the characters around it.
+		m = 0 ;
+		int last = 0 ;
+		int p = 0 ;
+		while (p + 1 < n) {
+			if (in[p] == '=' && in[p+1] == '=') {
+				int level = headingEnd(p) - p ;
+				int r = matchHeading(p, sectionName) ;
+				int q = (r < 0) ? -1 : findHeadingRun(r, level) ;
+				if (q >= 0) {
+					append(last, p) ;
+					last = q ;
+					p = q + level + 2 ;
+					continue ;
+				}
+			}
+			p++ ;
+		}
+		append(last, n) ;
+		swap() ;
+
+		//if this was the last section in the doc, then it won't be discarded because we can't tell where it ends.
+		//best we can do is delete the title and the paragraph below it.
+		m = 0 ;
+		last = 0 ;
+		p = 0 ;
+		while (p + 1 < n) {
+			if (in[p] == '=' && in[p+1] == '=') {
+				int r = matchHeading(p, sectionName) ;
+				int end = (r < 0) ? -1 : findParagraphEnd(r) ;
+				if (end >= 0) {
+					append(last, p) ;
+					last = end - 2 ;
+					p = end ;
+					continue ;
+				}
+			}
+			p++ ;
+		}
+		append(last, n) ;
+		swap() ;
+	}
+
+	/**
+	 * @return the index after the run of '=' that starts at p.
+	 */
+	private int headingEnd(int p) {
+		while (p < n && in[p] == '=')
+			p++ ;
+		return p ;
+	}
+
+	/**
+	 * Matches a heading like "== See also ==" that starts with the run of '=' at p.
+	 * The section name matches ASCII letters case insensitively, and the heading must
+	 * be closed by at least as many '=' as it was opened with.
+	 *
+	 * @return the index after the closing '=' that match the opening ones, or -1.
+	 */
+	private int matchHeading(int p, String sectionName) {
+		int i = headingEnd(p) ;
+		int level = i - p ;
+		while (i < n && isWhitespace(in[i]))
+			i++ ;
+		if (i + sectionName.length() > n)
+			return -1 ;
+		for (int j = 0 ; j < sectionName.length() ; j++) {
+			char c = in[i+j] ;
+			char e = sectionName.charAt(j) ;
+			if (c != e && !(c >= 'A' && c <= 'Z' && (char) (c + 32) == e))
+				return -1 ;
+		}
+		i += sectionName.length() ;
+		while (i < n && isWhitespace(in[i]))
+			i++ ;
+		for (int j = 0 ; j < level ; j++) {
+			if (i + j >= n || in[i+j] != '=')
+				return -1 ;
+		}
+		return i + level ;
+	}
+
+	/**
+	 * Finds the next run of exactly level '=' that starts after from and is followed by another character.
+	 *
+	 * @return the index of the character before the run, or -1.
+	 */
+	private int findHeadingRun(int from, int level) {
+		int i = from ;
+		while (i < n) {
+			if (in[i] != '=') {
+				i++ ;
+				continue ;
+			}
+			int start = i ;
+			while (i < n && in[i] == '=')
+				i++ ;
+			if (start > from && i - start == level && i < n)
+				return start - 1 ;
+		}
+		return -1 ;
+	}
+
+	/**
+	 * Finds the end of the paragraph after a heading: the first blank line after any non-word
+	 * characters that follow the heading, or else the last blank line among those characters.
+	 *
+	 * @return the index after the blank line, or -1.
+	 */
+	private int findParagraphEnd(int from) {
+		int w = from ;
+		while (w < n && !isWordChar(in[w]))
+			w++ ;
+		int end = indexOf("\n\n", w) ;
+		if (end >= 0)
+			return end + 2 ;
+		for (int i = w - 2 ; i >= from ; i--) {
+			if (in[i] == '\n' && in[i+1] == '\n')
+				return i + 2 ;
+		}
+		return -1 ;
+	}
+
+	/**
+	 * @see MarkupStripper#stripTables(String)
+	 */
+	void stripTables() {
+		if (!stripNested('{', '|', '|', '}', false))
+			System.err.println("MarkupStripper | Warning: tables were not well formed, so we cannot guarantee that they were stripped out correctly. ") ;
+	}
+
+	/**
+	 * @see MarkupStripper#stripIsolatedLinks(String)
+	 */
+	void stripIsolatedLinks() {
+		if (!stripNested('[', '[', ']', ']', true))
+			System.err.println("MarkupStripper | Warning: links were not well formed, so we cannot guarantee that they were stripped out correctly. ") ;
+	}
+
+	/**
+	 * Removes the outermost blocks delimited by two character open and close tags.
+	 * Unmatched close tags are kept, as is everything after an unmatched open tag.
+	 *
+	 * @param isolatedLinksOnly If true, only links that are alone on their lines are removed.
+	 * @return false if there were unmatched open tags.
+	 */
+	private boolean stripNested(char open1, char open2, char close1, char close2, boolean isolatedLinksOnly) {
+		m = 0 ;
+		int depth = 0 ;
+		int start = 0 ;
+		int last = 0 ;
+		int i = 0 ;
+		while (i + 1 < n) {
+			char c = in[i] ;
+			if (c == open1 && in[i+1] == open2) {
+				if (depth++ == 0)
+					start = i ;
+				i += 2 ;
+			} else if (c == close1 && in[i+1] == close2) {
+				i += 2 ;
+				if (depth > 0 && --depth == 0) {
+					append(last, start) ;
+					if (isolatedLinksOnly && !isIsolated(start, i))
+						append(start, i) ;
+					last = i ;
+				}
+			} else {
+				i++ ;
+			}
+		}
+		append(last, n) ;
+		swap() ;
+		return depth == 0 ;
+	}
+
+	/**
+	 * @return true if the link in [start, end) starts a line and nothing but non-word characters
+	 * follow it on its line (looking at most 10 characters ahead).
+	 */
+	private boolean isIsolated(int start, int end) {
+		if (start == 0 || in[start-1] != '\n')
+			return false ;
+		if (end >= n - 1)
+			return true ;
+		int limit = Math.min(n - 1, end + 10) ;
+		for (int i = end ; i < limit ; i++) {
+			if (in[i] == '\n')
+				return true ;
+			if (isWordChar(in[i]))
+				return false ;
+		}
+		return true ;
+	}
+
+	/**
+	 * @see MarkupStripper#stripLinks(String)
+	 */
+	void stripLinks() {
+		m = 0 ;
+		int depth = 0 ;
+		int start = 0 ;
+		int last = 0 ;
+		int i = 0 ;
+		while (i + 1 < n) {
+			char c = in[i] ;
+			if (c == '[' && in[i+1] == '[') {
+				if (depth++ == 0)
+					start = i ;
+				i += 2 ;
+			} else if (c == ']' && in[i+1] == ']') {
+				if (depth > 0 && --depth == 0) {
+					append(last, start) ;
+					appendLinkText(start + 2, i) ;
+					last = i + 2 ;
+				}
+				i += 2 ;
+			} else {
+				i++ ;
+			}
+		}
+		if (depth > 0)
+			System.err.println("MarkupStripper | Warning: links were not well formed, so we cannot guarantee that they were stripped out correctly. ") ;
+		append(last, n) ;
+		swap() ;
+	}
+
+	/**
+	 * Appends the text of the link markup in [from, to): nothing for images, otherwise
+	 * the part after any prefix and the last pipe.
+	 */
+	private void appendLinkText(int from, int to) {
+		int colon = indexOf(':', from, to) ;
+		if (colon > from) {
+			if (colon - from == 5 && new String(in, from, 5).toLowerCase().equals("image"))
+				return ;
+			from = colon + 1 ;
+		}
+		int pipe = -1 ;
+		for (int i = to - 1 ; i >= from ; i--) {
+			if (in[i] == '|') {
+				pipe = i ;
+				break ;
+			}
+		}
+		append(pipe > from ? pipe + 1 : from, to) ;
+	}
+
+	/**
+	 * @see MarkupStripper#stripHTML(String)
+	 */
+	void stripHTML() {
+		stripComments() ;
+		stripRefs() ;
+		stripTags() ;
+	}
+
+	private void stripComments() {
+		m = 0 ;
+		int last = 0 ;
+		int i = indexOf("<!--", 0) ;
+		while (i >= 0) {
+			int end = indexOf("-->", i + 4) ;
+			if (end < 0)
+				break ;
+			append(last, i) ;
+			last = end + 3 ;
+			i = indexOf("<!--", last) ;
+		}
+		append(last, n) ;
+		swap() ;
+	}
+
+	/**
+	 * @see MarkupStripper#stripRefs(String)
+	 */
+	void stripRefs() {
+		// <ref\>
+		m = 0 ;
+		int last = 0 ;
+		for (int i = indexOf("<ref\\>", 0) ; i >= 0 ; i = indexOf("<ref\\>", last)) {
+			append(last, i) ;
+			last = i + 6 ;
+		}
+		append(last, n) ;
+		swap() ;
+
+		// <ref>...</ref>
+		m = 0 ;
+		last = 0 ;
+		for (int i = indexOf("<ref>", 0) ; i >= 0 ; i = indexOf("<ref>", last)) {
+			int end = indexOf("</ref>", i + 5) ;
+			if (end < 0)
+				break ;
+			append(last, i) ;
+			last = end + 6 ;
+		}
+		append(last, n) ;
+		swap() ;
+
+		// <ref attributes>...</ref>
+		m = 0 ;
+		last = 0 ;
+		int i = indexOf("<ref", 0) ;
+		while (i >= 0) {
+			if (i + 4 < n && isWhitespace(in[i+4])) {
+				int close = indexOf('>', i + 5, n) ;
+				int end = (close < 0) ? -1 : indexOf("</ref>", close + 1) ;
+				if (end < 0)
+					break ;
+				append(last, i) ;
+				last = end + 6 ;
+				i = indexOf("<ref", last) ;
+			} else {
+				i = indexOf("<ref", i + 1) ;
+			}
+		}
+		append(last, n) ;
+		swap() ;
+	}
+
+	private void stripTags() {
+		m = 0 ;
+		int last = 0 ;
+		int i = indexOf('<', 0, n) ;
+		while (i >= 0) {
+			int j = i + 1 ;
+			while (j < n && in[j] != '>' && !isLineTerminator(in[j]))
+				j++ ;
+			if (j < n && in[j] == '>') {
+				append(last, i) ;
+				last = j + 1 ;
+				i = indexOf('<', last, n) ;
+			} else {
+				i = indexOf('<', i + 1, n) ;
+			}
+		}
+		append(last, n) ;
+		swap() ;
+	}
+
+	/**
+	 * @see MarkupStripper#stripExternalLinks(String)
+	 */
+	void stripExternalLinks() {
+		m = 0 ;
+		int last = 0 ;
+		int i = indexOf('[', 0, n) ;
+		while (i >= 0) {
+			int j = -1 ;
+			if (startsWith("http", i + 1))
+				j = i + 5 ;
+			else if (startsWith("www", i + 1))
+				j = i + 4 ;
+			while (j >= 0 && j < n && in[j] != ']' && !isLineTerminator(in[j]))
+				j++ ;
+			if (j >= 0 && j < n && in[j] == ']') {
+				append(last, i) ;
+				last = j + 1 ;
+				i = indexOf('[', last, n) ;
+			} else {
+				i = indexOf('[', i + 1, n) ;
+			}
+		}
+		append(last, n) ;
+		swap() ;
+	}
+
+	/**
+	 * @see MarkupStripper#stripFormatting(String)
+	 */
+	void stripFormatting() {
+		stripRuns('\'') ;	//remove all bold and italic markup
+		stripRuns('=') ;	//remove all header markup
+
+		//remove indents.
+		m = 0 ;
+		int i = 0 ;
+		while (i < n) {
+			char c = in[i++] ;
+			out[m++] = c ;
+			if (c == '\n') {
+				while (i < n && in[i] == ':')
+					i++ ;
+			}
+		}
+		swap() ;
+
+		//remove list markers.
+		m = 0 ;
+		i = 0 ;
+		while (i < n) {
+			char c = in[i++] ;
+			out[m++] = c ;
+			if (c == '\n' && i < n && in[i] == '*') {
+				while (i < n && in[i] == '*')
+					i++ ;
+				while (i < n && !isWordChar(in[i]))
+					i++ ;
+			}
+		}
+		swap() ;
+	}
+
+	/**
+	 * Removes runs of two or more of the character.
+	 */
+	private void stripRuns(char c) {
+		m = 0 ;
+		int i = 0 ;
+		while (i < n) {
+			if (in[i] != c) {
+				out[m++] = in[i++] ;
+				continue ;
+			}
+			int j = i + 1 ;
+			while (j < n && in[j] == c)
+				j++ ;
+			if (j - i == 1)
+				out[m++] = c ;
+			i = j ;
+		}
+		swap() ;
+	}
+
+	/**
+	 * @see MarkupStripper#stripExcessNewlines(String)
+	 */
+	void stripExcessNewlines() {
+		m = 0 ;
+		int i = 0 ;
+		while (i < n) {
+			if (in[i] != '\n') {
+				out[m++] = in[i++] ;
+				continue ;
+			}
+			int j = i + 1 ;
+			while (j < n && in[j] == '\n')
+				j++ ;
+			int keep = (j - i >= 3) ? 2 : j - i ;
+			for (int k = 0 ; k < keep ; k++)
+				out[m++] = '\n' ;
+			i = j ;
+		}
+		swap() ;
+	}
+
+	private void append(int from, int to) {
+		System.arraycopy(in, from, out, m, to - from) ;
+		m += to - from ;
+	}
+
+	private void swap() {
+		char[] tmp = in ;
+		in = out ;
+		out = tmp ;
+		n = m ;
+	}
+
+	private int indexOf(char c, int from, int to) {
+		for (int i = from ; i < to ; i++) {
+			if (in[i] == c)
+				return i ;
+		}
+		return -1 ;
+	}
+
+	private int indexOf(String s, int from) {
+		char first = s.charAt(0) ;
+		for (int i = from ; i + s.length() <= n ; i++) {
+			if (in[i] == first && startsWith(s, i))
+				return i ;
+		}
+		return -1 ;
+	}
+
+	private boolean startsWith(String s, int at) {
+		if (at + s.length() > n)
+			return false ;
+		for (int i = 0 ; i < s.length() ; i++) {
+			if (in[at + i] != s.charAt(i))
+				return false ;
+		}
+		return true ;
+	}
+
+	/**
+	 * Word characters as matched by \w in a Java regular expression.
+	 */
+	private static boolean isWordChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' ;
+	}
+
+	/**
+	 * Whitespace as matched by \s in a Java regular expression.
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r' ;
+	}
+
+	/**
+	 * Line terminators, which are not matched by '.' in a Java regular expression.
+	 */
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029' ;
+	}
+}
@@ -31,15 +31,50 @@ import java.util.regex.Pattern;
  * @author David Milne
  */
 public class MarkupStripper {
-	
+
+	private static final Pattern LINK_PATTERN = Pattern.compile("(\\[\\[|\\]\\])") ;
+	private static final Pattern TEMPLATE_PATTERN = Pattern.compile("(\\{\\{|\\}\\})") ;
+	private static final Pattern TABLE_PATTERN = Pattern.compile("(\\{\\||\\|\\})") ;
+	private static final Pattern LINE_PATTERN = Pattern.compile("(.*?)\n", Pattern.DOTALL) ;
+	private static final Pattern HEADING_PATTERN = Pattern.compile("(={2,})([^=]+)(\\1)") ;
+
+	private static final String[] STRIPPED_SECTIONS = {"see also", "references", "further reading", "external links"} ;
+
 	/**
 	 * Strips a string of all markup; tries to turn it into plain text	 
 	 * 
+	 * The result is identical to {@link #stripEverythingWithRegexes(String)}, but each step
+	 * is a single scan over a shared character buffer rather than a regular expression.
+	 * 
 	 * @param markup the text to be stripped
 	 * @return the stripped text
 	 */
 	public static String stripEverything(String markup)  {
 		
+		MarkupBuffer buffer = new MarkupBuffer(markup) ;
+		buffer.stripTemplates() ;
+		for (String section : STRIPPED_SECTIONS) {
+			buffer.stripSection(section) ;
+		}
+		buffer.stripTables() ;
+		buffer.stripIsolatedLinks() ;
+		buffer.stripLinks() ;
+		buffer.stripHTML() ;
+		buffer.stripExternalLinks() ;
+		buffer.stripFormatting() ;
+		buffer.stripExcessNewlines() ;
+		return buffer.toString() ;
+	}
+	
+	/**
+	 * Strips a string of all markup by applying each of the strip methods in turn.
+	 * This is the reference implementation of {@link #stripEverything(String)}.
+	 * 
+	 * @param markup the text to be stripped
+	 * @return the stripped text
+	 */
+	public static String stripEverythingWithRegexes(String markup)  {
+		
 		String strippedMarkup = stripTemplates(markup) ;
 		strippedMarkup = MarkupStripper.stripSection(strippedMarkup, "see also") ;
 		strippedMarkup = MarkupStripper.stripSection(strippedMarkup, "references") ;
@@ -72,8 +107,7 @@ public class MarkupStripper {
 		
 		Vector<Integer> linkStack = new Vector<Integer>() ; 
 		
-		Pattern p = Pattern.compile("(\\[\\[|\\]\\])") ;
-		Matcher m = p.matcher(markup) ;
+		Matcher m = LINK_PATTERN.matcher(markup) ;
 		
 		StringBuffer sb = new StringBuffer() ;
 		int lastIndex = 0 ;
@@ -119,8 +153,7 @@ public class MarkupStripper {
 			
 		Vector<Integer> linkStack = new Vector<Integer>() ; 
 		
-		Pattern p = Pattern.compile("(\\[\\[|\\]\\])") ;
-		Matcher m = p.matcher(markup) ;
+		Matcher m = LINK_PATTERN.matcher(markup) ;
 		
 		StringBuffer sb = new StringBuffer() ;
 		int lastIndex = 0 ;
@@ -170,8 +203,7 @@ public class MarkupStripper {
 				
 		Vector<Integer> linkStack = new Vector<Integer>() ; 
 		
-		Pattern p = Pattern.compile("(\\[\\[|\\]\\])") ;
-		Matcher m = p.matcher(markup) ;
+		Matcher m = LINK_PATTERN.matcher(markup) ;
 		
 		StringBuffer sb = new StringBuffer() ;
 		int lastIndex = 0 ;
@@ -220,8 +252,7 @@ public class MarkupStripper {
 				
 		Vector<Integer> linkStack = new Vector<Integer>() ; 
 		
-		Pattern p = Pattern.compile("(\\[\\[|\\]\\])") ;
-		Matcher m = p.matcher(markup) ;
+		Matcher m = LINK_PATTERN.matcher(markup) ;
 		
 		StringBuffer sb = new StringBuffer() ;
 		int lastIndex = 0 ;
@@ -303,7 +334,7 @@ public class MarkupStripper {
     static Map<String, Pattern> SECTION_FINDERS = new HashMap<String, Pattern>();
     static Map<String, Pattern> SECTION_END_FINDERS = new HashMap<String, Pattern>();
     static {
-        for (String section : new String[] {"see also", "references", "further reading", "external links"}) {
+        for (String section : STRIPPED_SECTIONS) {
             SECTION_FINDERS.put(section,
                     Pattern.compile("(={2,})\\s*" + section + "\\s*\\1.*?([^=]\\1[^=])",
                             Pattern.CASE_INSENSITIVE + Pattern.DOTALL));
@@ -359,8 +390,7 @@ public class MarkupStripper {
 		
 		Vector<Integer> templateStack = new Vector<Integer>() ; 
 		
-		Pattern p = Pattern.compile("(\\{\\{|\\}\\})") ;
-		Matcher m = p.matcher(markup) ;
+		Matcher m = TEMPLATE_PATTERN.matcher(markup) ;
 		
 		StringBuffer sb = new StringBuffer() ;
 		int lastIndex = 0 ;
@@ -413,8 +443,7 @@ public class MarkupStripper {
 		
 		Vector<Integer> tableStack = new Vector<Integer>() ; 
 		
-		Pattern p = Pattern.compile("(\\{\\||\\|\\})") ;
-		Matcher m = p.matcher(markup) ;
+		Matcher m = TABLE_PATTERN.matcher(markup) ;
 		
 		StringBuffer sb = new StringBuffer() ;
 		int lastIndex = 0 ;
@@ -524,8 +553,7 @@ public class MarkupStripper {
 	 */
 	public static String stripIndentedStart(String markup) {
 		
-		Pattern p = Pattern.compile("(.*?)\n", Pattern.DOTALL) ;
-		Matcher m = p.matcher(markup) ;
+		Matcher m = LINE_PATTERN.matcher(markup) ;
 		
 		StringBuffer sb = new StringBuffer() ;
 		int newStart = 0 ;
@@ -601,8 +629,7 @@ public class MarkupStripper {
 	 * @return the stripped markup
 	 */
 	public static String stripHeadings(String markup) {
-		Pattern p = Pattern.compile("(={2,})([^=]+)(\\1)") ;
-		Matcher m = p.matcher(markup) ;
+		Matcher m = HEADING_PATTERN.matcher(markup) ;
 		
 		StringBuffer sb = new StringBuffer() ;
 		int lastIndex = 0 ;
@@ -59,6 +59,24 @@ public class PageXmlParser {
         String formatString = extractSingleString(FORMAT_PATTERN, rawXml, 1);
         String modelString = extractSingleString(MODEL_PATTERN, rawXml, 1);
 
+        String body = extractSingleString(CONTENT_PATTERN, rawXml, 1);
+        if (body == null && SELF_CLOSING_CONTENT_PATTERN.matcher(rawXml).find()) {
+            body = "";
+        }
+        if (body == null) {
+            System.err.println("invalid body: " + rawXml);
+            body = "";
+        }
+        return toRawPage(title, idString, revisionIdString, timestampString,
+                body, getRedirect(rawXml), formatString, modelString);
+    }
+
+    /**
+     * Builds a page from the unescaped contents of the elements of its xml.
+     * Shared with {@link StreamingPageXmlParser}.
+     */
+    RawPage toRawPage(String title, String idString, String revisionIdString, String timestampString,
+                      String body, String redirectTitle, String formatString, String modelString) throws WpParseException {
         if (title == null) {
             throw new WpParseException("no title for article");
         }
@@ -69,14 +87,6 @@ public class PageXmlParser {
             throw new WpParseException("no revision id for article");
         }
 
-        String body = extractSingleString(CONTENT_PATTERN, rawXml, 1);
-        if (body == null && SELF_CLOSING_CONTENT_PATTERN.matcher(rawXml).find()) {
-            body = "";
-        }
-        if (body == null) {
-            System.err.println("invalid body: " + rawXml);
-            body = "";
-        }
         Date lastEdit = null;
         try {
             lastEdit = xmlDumpDateFormat.parse(timestampString);
@@ -84,7 +94,6 @@ public class PageXmlParser {
             LOG.warn("Could not parse last edited date: " + timestampString);
         }
         title = title.trim();
-        String redirectTitle = getRedirect(rawXml);
         RawPage rp = new RawPage(
                 Integer.valueOf(idString),
                 Integer.valueOf(revisionIdString),
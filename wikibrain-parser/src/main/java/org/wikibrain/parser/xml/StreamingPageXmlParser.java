@@ -0,0 +1,229 @@
+package org.wikibrain.parser.xml;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.wikibrain.core.lang.LanguageInfo;
+import org.wikibrain.core.model.RawPage;
+import org.wikibrain.parser.WpParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.Charset;
+
+/**
+ * Parses the UTF-8 encoded Xml of a single Wikipedia page in one pass over its bytes.
+ *
+ * <p>
+ * {@link PageXmlParser} decodes each page into a String, unescapes all of it, and then
+ * runs a regular expression over the whole page for every field. This parser tokenizes
+ * the raw bytes of the page once, and only decodes and unescapes the contents of the
+ * elements it needs. The pages it produces are identical to those of PageXmlParser.
+ * </p>
+ *
+ * <p>
+ * The parser is not threadsafe.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class StreamingPageXmlParser {
+    private static final Logger LOG = LoggerFactory.getLogger(StreamingPageXmlParser.class);
+
+    // Bytes of a page included in warnings about it
+    private static final int MAX_SNIPPET_BYTES = 200;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final byte[] TITLE_ATTRIBUTE = "title=\"".getBytes(ASCII);
+
+    private final PageXmlParser builder;
+
+    public StreamingPageXmlParser(LanguageInfo language) {
+        this.builder = new PageXmlParser(language);
+    }
+
+    public RawPage parse(byte xml[]) throws WpParseException {
+        return parse(xml, 0, xml.length);
+    }
+
+    /**
+     * Parses the page in xml[from, to).
+     */
+    public RawPage parse(byte xml[], int from, int to) throws WpParseException {
+        String title = null;
+        String idString = null;
+        String revisionIdString = null;
+        String timestampString = null;
+        String formatString = null;
+        String modelString = null;
+        String redirectTitle = null;
+        String body = null;
+
+        int i = from;
+        while (true) {
+            int open = indexOf(xml, (byte) '<', i, to);
+            if (open < 0) {
+                break;
+            }
+            int nameEnd = open + 1;
+            while (nameEnd < to && !isNameEnd(xml[nameEnd])) {
+                nameEnd++;
+            }
+            int close = indexOf(xml, (byte) '>', nameEnd, to);
+            if (close < 0) {
+                break;
+            }
+            i = close + 1;
+            if (xml[open + 1] == '/' || xml[open + 1] == '?' || xml[open + 1] == '!') {
+                continue;
+            }
+
+            String name = new String(xml, open + 1, nameEnd - open - 1, ASCII);
+            if (xml[close - 1] == '/') {
+                // Self closing element
+                if (name.equals("text") && body == null) {
+                    body = "";
+                } else if (name.equals("redirect") && redirectTitle == null) {
+                    redirectTitle = getAttribute(xml, nameEnd, close, TITLE_ATTRIBUTE);
+                }
+                continue;
+            }
+
+            if (!name.equals("title") && !name.equals("id") && !name.equals("timestamp")
+            &&  !name.equals("format") && !name.equals("model") && !name.equals("text")) {
+                continue;
+            }
+            int end = findEndTag(xml, i, to, name);
+            if (end < 0) {
+                break;
+            }
+            String contents = decode(xml, i, end);
+            i = end;
+            if (name.equals("title")) {
+                if (title == null) title = contents;
+            } else if (name.equals("id")) {
+                // As in PageXmlParser, the first id is the page's and the second is the revision's.
+                if (idString == null) {
+                    idString = contents;
+                } else if (revisionIdString == null) {
+                    revisionIdString = contents;
+                }
+            } else if (name.equals("timestamp")) {
+                if (timestampString == null) timestampString = contents;
+            } else if (name.equals("format")) {
+                if (formatString == null) formatString = contents;
+            } else if (name.equals("model")) {
+                if (modelString == null) modelString = contents;
+            } else if (name.equals("text")) {
+                if (body == null) body = contents;
+            }
+        }
+
+        if (body == null) {
+            int length = Math.min(to - from, MAX_SNIPPET_BYTES);
+            LOG.warn("invalid body in page '" + title + "' (id " + idString + "), starting with: "
+                    + new String(xml, from, length, UTF8));
+            body = "";
+        }
+        return builder.toRawPage(title, idString, revisionIdString, timestampString,
+                body, redirectTitle, formatString, modelString);
+    }
+
+    private static boolean isNameEnd(byte b) {
+        return b == '>' || b == '/' || b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private static int indexOf(byte xml[], byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (xml[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the end tag of an element, or -1.
+     * As in PageXmlParser, markup such as CDATA sections is part of the element's contents.
+     */
+    private static int findEndTag(byte xml[], int from, int to, String name) {
+        for (int i = indexOf(xml, (byte) '<', from, to); i >= 0; i = indexOf(xml, (byte) '<', i + 1, to)) {
+            if (isEndTag(xml, i, to, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isEndTag(byte xml[], int i, int to, String name) {
+        if (i + name.length() + 3 > to || xml[i + 1] != '/' || xml[i + name.length() + 2] != '>') {
+            return false;
+        }
+        for (int j = 0; j < name.length(); j++) {
+            if (xml[i + j + 2] != name.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the unescaped value of an attribute in the tag xml[from, to), or null.
+     */
+    private static String getAttribute(byte xml[], int from, int to, byte attribute[]) {
+        for (int i = from; i + attribute.length <= to; i++) {
+            if (matches(xml, i, attribute)) {
+                int start = i + attribute.length;
+                int end = indexOf(xml, (byte) '"', start, to);
+                return (end < 0) ? null : decode(xml, start, end);
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(byte xml[], int offset, byte pattern[]) {
+        for (int i = 0; i < pattern.length; i++) {
+            if (xml[offset + i] != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decode(byte xml[], int from, int to) {
+        String s = new String(xml, from, to - from, UTF8);
+        return (s.indexOf('&') < 0) ? s : unescape(s);
+    }
+
+    /**
+     * Unescapes the entities that appear in dumps. Anything else is handed to
+     * StringEscapeUtils.unescapeHtml, which PageXmlParser applies to the whole page.
+     */
+    private static String unescape(String s) {
+        StringBuilder result = new StringBuilder(s.length());
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            int semi = (c == '&') ? s.indexOf(';', i) : -1;
+            if (semi < 0) {
+                result.append(c);
+                i++;
+                continue;
+            }
+            String entity = s.substring(i + 1, semi);
+            if (entity.equals("amp")) {
+                result.append('&');
+            } else if (entity.equals("lt")) {
+                result.append('<');
+            } else if (entity.equals("gt")) {
+                result.append('>');
+            } else if (entity.equals("quot")) {
+                result.append('"');
+            } else {
+                return StringEscapeUtils.unescapeHtml(s);
+            }
+            i = semi + 1;
+        }
+        return result.toString();
+    }
+}
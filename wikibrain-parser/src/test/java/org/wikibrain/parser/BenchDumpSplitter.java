@@ -0,0 +1,81 @@
+package org.wikibrain.parser;
+
+import org.apache.commons.io.FileUtils;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares pages/sec of DumpSplitter and ParallelDumpSplitter as the number of threads grows.
+ *
+ * Without arguments, the test dump is repeated to build an uncompressed dump and
+ * a multistream bz2 dump with an index.
+ *
+ * Usage: BenchDumpSplitter [maxThreads [dump ...]]
+ *
+ * @author Shilad Sen
+ */
+public class BenchDumpSplitter {
+    public static void main(String args[]) throws IOException {
+        int maxThreads = args.length > 0 ? Integer.valueOf(args[0]) : Runtime.getRuntime().availableProcessors();
+        List<File> dumps = new ArrayList<File>();
+        for (int i = 1; i < args.length; i++) {
+            dumps.add(new File(args[i]));
+        }
+        if (dumps.isEmpty()) {
+            File dir = WpIOUtils.createTempDirectory("bench-dump-splitter");
+            File xml = new File(dir, "enwiki-20140102-pages-articles.xml");
+            String dump = FileUtils.readFileToString(TestDumpSplitter.EN_DUMP, "UTF-8");
+            int begin = dump.indexOf("  " + DumpSplitter.ARTICLE_BEGIN);
+            int end = dump.lastIndexOf(DumpSplitter.ARTICLE_END) + DumpSplitter.ARTICLE_END.length() + 1;
+            StringBuilder text = new StringBuilder(dump.substring(0, begin));
+            for (int i = 0; i < 200; i++) {
+                text.append(dump.substring(begin, end));
+            }
+            text.append(dump.substring(end));
+            FileUtils.write(xml, text, "UTF-8");
+            File multistream = new File(dir, "enwiki-20140102-pages-articles-multistream.xml.bz2");
+            File index = new File(dir, "enwiki-20140102-pages-articles-multistream-index.txt.bz2");
+            TestParallelDumpSplitter.writeMultistream(xml, multistream, index, 100);
+            dumps.add(xml);
+            dumps.add(multistream);
+        }
+
+        for (File dump : dumps) {
+            long before = System.currentTimeMillis();
+            long numPages = 0;
+            long numChars = 0;
+            for (String page : new DumpSplitter(dump)) {
+                numPages++;
+                numChars += page.length();
+            }
+            report(dump, "DumpSplitter", numPages, numChars, System.currentTimeMillis() - before);
+
+            for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+                final AtomicLong chars = new AtomicLong();
+                ParallelDumpSplitter splitter = new ParallelDumpSplitter(dump);
+                splitter.setNumThreads(numThreads);
+                splitter.setChunkSize(1024 * 1024);
+                before = System.currentTimeMillis();
+                numPages = splitter.forEachPage(new Procedure<String>() {
+                    @Override
+                    public void call(String page) throws Exception {
+                        chars.addAndGet(page.length());
+                    }
+                });
+                report(dump, "ParallelDumpSplitter, " + numThreads + " threads",
+                        numPages, chars.get(), System.currentTimeMillis() - before);
+            }
+        }
+    }
+
+    private static void report(File dump, String name, long numPages, long numChars, long millis) {
+        System.out.println(String.format("%s: %s: %d pages (%d chars) in %.3f seconds, %.0f pages/sec",
+                dump.getName(), name, numPages, numChars, millis / 1000.0, 1000.0 * numPages / Math.max(1, millis)));
+    }
+}
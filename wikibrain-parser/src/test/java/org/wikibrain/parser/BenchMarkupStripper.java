@@ -0,0 +1,57 @@
+package org.wikibrain.parser;
+
+import org.wikibrain.core.lang.LanguageInfo;
+import org.wikibrain.core.model.RawPage;
+import org.wikibrain.parser.wiki.MarkupStripper;
+import org.wikibrain.parser.xml.DumpPageXmlParser;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the speed of MarkupStripper.stripEverything and the regular expression
+ * pipeline it replaces on the markup of real articles.
+ *
+ * Usage: BenchMarkupStripper [dump [lang [rounds]]]
+ *
+ * @author Shilad Sen
+ */
+public class BenchMarkupStripper {
+    public static void main(String args[]) {
+        File dump = args.length > 0 ? new File(args[0]) : TestDumpPageParser.EN_DUMP;
+        LanguageInfo lang = LanguageInfo.getByLangCode(args.length > 1 ? args[1] : "en");
+        int rounds = args.length > 2 ? Integer.valueOf(args[2]) : 20;
+
+        List<String> bodies = new ArrayList<String>();
+        long chars = 0;
+        for (RawPage page : new DumpPageXmlParser(dump, lang)) {
+            bodies.add(page.getBody());
+            chars += page.getBody().length();
+        }
+        System.out.println("read " + bodies.size() + " articles with " + chars + " characters of markup");
+
+        for (int round = 0; round < rounds; round++) {
+            long before = System.nanoTime();
+            long n = 0;
+            for (String body : bodies) {
+                n += MarkupStripper.stripEverythingWithRegexes(body).length();
+            }
+            long regexNanos = System.nanoTime() - before;
+
+            before = System.nanoTime();
+            long m = 0;
+            for (String body : bodies) {
+                m += MarkupStripper.stripEverything(body).length();
+            }
+            long scanNanos = System.nanoTime() - before;
+            if (n != m) {
+                throw new IllegalStateException("stripped lengths differ: " + n + " vs " + m);
+            }
+
+            System.out.println(String.format(
+                    "round %d: regexes %.1f MB/sec, scanning %.1f MB/sec (%.1fx)",
+                    round, 1000.0 * chars / regexNanos, 1000.0 * chars / scanNanos, 1.0 * regexNanos / scanNanos));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.wikibrain.parser;
+
+import org.junit.Test;
+import org.wikibrain.core.model.RawPage;
+import org.wikibrain.parser.wiki.MarkupStripper;
+import org.wikibrain.parser.xml.DumpPageXmlParser;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestMarkupStripper {
+    private static final String TOKENS[] = {
+            "{{", "}}", "{|", "|}", "[[", "]]", "[", "]", "[http://example.com ", "[www.", "|",
+            "<!--", "-->", "<ref>", "</ref>", "<ref name=a>", "<ref\\>", "<ref name=\"b\" />", "<ref\n",
+            "<b>", "</b>", "<", ">", "'", "''", "'''", "=", "==", "===", "== See also ==\n", "==References==\n",
+            "== External links ==", "=== see ALSO ===", "==further reading==", " references ", "see also",
+            "==x==", "===", "\n", "\n\n", "\n\n\n", "\r", "\u2028", ":", "*", "\n*", "\n:", " ",
+            "Image:", "image:Foo.jpg", "Category:", "word", "x", "_", "9", "\u00e9", ".", ",",
+    };
+
+    @Test
+    public void testSimple() {
+        assertEquals("Paris is the capital of France.",
+                MarkupStripper.stripEverything("{{Infobox|a={{b}}}}'''Paris''' is the [[capital city|capital]] of [[France]].<ref>x</ref>"));
+        assertEquals("A bold word.\n\nNext",
+                MarkupStripper.stripEverything("A '''bold''' word.<!-- comment -->\n\n\n\n[[Image:x.jpg|thumb|[[a]]]]Next"));
+    }
+
+    @Test
+    public void testDump() {
+        int n = 0;
+        for (RawPage page : new DumpPageXmlParser(TestDumpPageParser.EN_DUMP, TestDumpPageParser.EN)) {
+            assertEquals(MarkupStripper.stripEverythingWithRegexes(page.getBody()),
+                    MarkupStripper.stripEverything(page.getBody()));
+            n++;
+        }
+        assertEquals(44, n);
+    }
+
+    @Test
+    public void testRandomMarkup() {
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder markup = new StringBuilder();
+            int length = random.nextInt(40);
+            for (int j = 0; j < length; j++) {
+                markup.append(TOKENS[random.nextInt(TOKENS.length)]);
+            }
+            String s = markup.toString();
+            assertEquals(s, MarkupStripper.stripEverythingWithRegexes(s), MarkupStripper.stripEverything(s));
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.wikibrain.parser;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.core.lang.LanguageInfo;
+import org.wikibrain.core.model.RawPage;
+import org.wikibrain.parser.xml.DumpPageXmlParser;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class TestParallelDumpSplitter {
+    public static final File EN_DUMP = TestDumpSplitter.EN_DUMP;
+
+    @Test
+    public void testUncompressed() throws IOException {
+        List<String> expected = split(new DumpSplitter(EN_DUMP));
+        assertEquals(44, expected.size());
+        for (long chunkSize : new long[] { 7, 1000, 100000, ParallelDumpSplitter.DEFAULT_CHUNK_SIZE }) {
+            ParallelDumpSplitter splitter = new ParallelDumpSplitter(EN_DUMP);
+            splitter.setChunkSize(chunkSize);
+            splitter.setNumThreads(3);
+            assertEquals(expected, split(splitter));
+        }
+    }
+
+    @Test
+    public void testMultistream() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("dump-splitter");
+        try {
+            File dump = new File(dir, "enwiki-20140102-pages-articles-multistream.xml.bz2");
+            File index = new File(dir, "enwiki-20140102-pages-articles-multistream-index.txt.bz2");
+            writeMultistream(EN_DUMP, dump, index, 5);
+
+            List<String> expected = split(new DumpSplitter(EN_DUMP));
+            assertEquals(expected, split(new DumpSplitter(dump)));
+            assertEquals(index, ParallelDumpSplitter.findMultistreamIndex(dump));
+
+            // The header and nine streams of pages. The index does not list the footer.
+            ParallelDumpSplitter splitter = new ParallelDumpSplitter(dump);
+            splitter.setChunkSize(1);
+            assertEquals(10, splitter.getChunks().size());
+            assertEquals(expected, split(splitter));
+
+            // Without the index, stream boundaries are found by scanning the dump.
+            splitter = new ParallelDumpSplitter(dump, null);
+            splitter.setChunkSize(1);
+            assertEquals(expected, split(splitter));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testTruncatedMultistream() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("dump-splitter");
+        try {
+            File dump = new File(dir, "enwiki-20140102-pages-articles-multistream.xml.bz2");
+            File index = new File(dir, "enwiki-20140102-pages-articles-multistream-index.txt.bz2");
+            writeMultistream(EN_DUMP, dump, index, 5);
+
+            // Cut the dump in the middle of a stream of pages
+            long offsets[] = ParallelDumpSplitter.readIndexOffsets(index, dump.length());
+            long cut = (offsets[3] + offsets[4]) / 2;
+            RandomAccessFile raf = new RandomAccessFile(dump, "rw");
+            raf.setLength(cut);
+            raf.close();
+
+            // With the index, and with stream boundaries found by scanning the dump
+            for (File indexFile : new File[] { index, null }) {
+                ParallelDumpSplitter splitter = new ParallelDumpSplitter(dump, indexFile);
+                splitter.setChunkSize(1);
+                splitter.setNumThreads(3);
+                try {
+                    split(splitter);
+                    fail("splitting a truncated dump should fail");
+                } catch (IOException e) {
+                    // expected
+                }
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testGzip() throws IOException {
+        File dir = WpIOUtils.createTempDirectory("dump-splitter");
+        try {
+            File dump = new File(dir, "enwiki-20140102-pages-articles.xml.gz");
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(dump));
+            FileUtils.copyFile(EN_DUMP, out);
+            out.close();
+
+            ParallelDumpSplitter splitter = new ParallelDumpSplitter(dump);
+            assertNull(splitter.getChunks());
+            assertEquals(split(new DumpSplitter(EN_DUMP)), split(splitter));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testRawPages() throws IOException {
+        final Map<Integer, String> expected = new HashMap<Integer, String>();
+        for (RawPage page : new DumpPageXmlParser(EN_DUMP, LanguageInfo.getByLangCode("en"))) {
+            expected.put(page.getLocalId(), page.getBody());
+        }
+        final Map<Integer, String> actual = Collections.synchronizedMap(new HashMap<Integer, String>());
+        ParallelDumpSplitter splitter = new ParallelDumpSplitter(EN_DUMP);
+        splitter.setChunkSize(1000);
+        long n = splitter.forEachRawPage(LanguageInfo.getByLangCode("en"), new Procedure<RawPage>() {
+            @Override
+            public void call(RawPage page) throws Exception {
+                actual.put(page.getLocalId(), page.getBody());
+            }
+        });
+        assertEquals(44, n);
+        assertEquals(expected, actual);
+    }
+
+    private static List<String> split(DumpSplitter splitter) {
+        List<String> pages = new ArrayList<String>();
+        for (String page : splitter) {
+            pages.add(page);
+        }
+        Collections.sort(pages);
+        return pages;
+    }
+
+    private static List<String> split(ParallelDumpSplitter splitter) throws IOException {
+        final List<String> pages = Collections.synchronizedList(new ArrayList<String>());
+        long n = splitter.forEachPage(new Procedure<String>() {
+            @Override
+            public void call(String page) throws Exception {
+                pages.add(page);
+            }
+        });
+        assertEquals(pages.size(), n);
+        Collections.sort(pages);
+        return pages;
+    }
+
+    /**
+     * Writes an uncompressed dump as a multistream bz2 dump and index, like those published by
+     * Wikimedia: the header, groups of pages, and the footer are each separate bz2 streams.
+     */
+    public static void writeMultistream(File xml, File dump, File index, int pagesPerStream) throws IOException {
+        List<String> lines = FileUtils.readLines(xml, "UTF-8");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(dump));
+        Writer indexWriter = new OutputStreamWriter(
+                new BZip2CompressorOutputStream(new FileOutputStream(index)), "UTF-8");
+        long offset = 0;
+        StringBuilder stream = new StringBuilder();
+        int numPages = 0;
+        boolean inPage = false;
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.equals(DumpSplitter.ARTICLE_BEGIN)) {
+                if (numPages % pagesPerStream == 0) {
+                    offset += writeStream(out, stream);
+                }
+                numPages++;
+                inPage = true;
+            } else if (inPage && trimmed.startsWith("<title>")) {
+                indexWriter.write(offset + ":" + numPages + ":"
+                        + trimmed.replace("<title>", "").replace("</title>", "") + "\n");
+            }
+            if (!inPage && numPages > 0 && numPages % pagesPerStream != 0 && trimmed.equals("</mediawiki>")) {
+                offset += writeStream(out, stream);
+            }
+            if (trimmed.equals(DumpSplitter.ARTICLE_END)) {
+                inPage = false;
+            }
+            stream.append(line).append('\n');
+        }
+        writeStream(out, stream);
+        out.close();
+        indexWriter.close();
+    }
+
+    private static int writeStream(OutputStream out, StringBuilder text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream bz2 = new BZip2CompressorOutputStream(bytes);
+        bz2.write(text.toString().getBytes("UTF-8"));
+        bz2.close();
+        text.setLength(0);
+        bytes.writeTo(out);
+        return bytes.size();
+    }
+}
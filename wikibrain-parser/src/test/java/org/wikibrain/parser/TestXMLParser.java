@@ -7,34 +7,38 @@ import org.wikibrain.core.lang.LanguageInfo;
 import org.wikibrain.core.model.NameSpace;
 import org.wikibrain.core.model.RawPage;
 import org.wikibrain.parser.xml.PageXmlParser;
+import org.wikibrain.parser.xml.StreamingPageXmlParser;
+
+import java.io.UnsupportedEncodingException;
 
 /**
  */
 public class TestXMLParser {
 
+    private static final String RAWWW = "<page>\n" +
+            "    <title>Wikipedia:Featured article candidates</title>\n" +
+            "    <ns>4</ns>\n" +
+            "    <id>79</id>\n" +
+            "    <redirect title=\"Wikipedia:Proposed very good articles\" />\n" +
+            "    <revision>\n" +
+            "      <id>1136669</id>\n" +
+            "      <parentid>1128223</parentid>\n" +
+            "      <timestamp>2008-10-28T19:16:17Z</timestamp>\n" +
+            "      <contributor>\n" +
+            "        <username>American Eagle</username>\n" +
+            "        <id>16647</id>\n" +
+            "      </contributor>\n" +
+            "      <comment>redirect to [[Wikipedia:Proposed very good articles]] per [[Wikipedia:Requests for deletion/Requests/2008/Wikipedia:Featured article candidates]]</comment>\n" +
+            "      <text xml:space=\"preserve\">#REDIRECT [[Wikipedia:Proposed very good articles]]</text>\n" +
+            "      <sha1>iipb0jon72fukl9ia2u9pqg7siw5n4c</sha1>\n" +
+            "      <model>wikitext</model>\n" +
+            "      <format>text/x-wiki</format>\n" +
+            "    </revision>\n" +
+            "  </page>";
+
     @Test
     public void test() throws WpParseException{
-        String rawww = "<page>\n" +
-                "    <title>Wikipedia:Featured article candidates</title>\n" +
-                "    <ns>4</ns>\n" +
-                "    <id>79</id>\n" +
-                "    <redirect title=\"Wikipedia:Proposed very good articles\" />\n" +
-                "    <revision>\n" +
-                "      <id>1136669</id>\n" +
-                "      <parentid>1128223</parentid>\n" +
-                "      <timestamp>2008-10-28T19:16:17Z</timestamp>\n" +
-                "      <contributor>\n" +
-                "        <username>American Eagle</username>\n" +
-                "        <id>16647</id>\n" +
-                "      </contributor>\n" +
-                "      <comment>redirect to [[Wikipedia:Proposed very good articles]] per [[Wikipedia:Requests for deletion/Requests/2008/Wikipedia:Featured article candidates]]</comment>\n" +
-                "      <text xml:space=\"preserve\">#REDIRECT [[Wikipedia:Proposed very good articles]]</text>\n" +
-                "      <sha1>iipb0jon72fukl9ia2u9pqg7siw5n4c</sha1>\n" +
-                "      <model>wikitext</model>\n" +
-                "      <format>text/x-wiki</format>\n" +
-                "    </revision>\n" +
-                "  </page>";
-
+        String rawww = RAWWW;
         LanguageInfo lang = LanguageInfo.getByLangCode("simple");
         PageXmlParser parser = new PageXmlParser(lang);
         RawPage rawwwPage = parser.parse(rawww, 0, rawww.length());
@@ -44,4 +48,56 @@ public class TestXMLParser {
         assertEquals(rawwwPage.getNamespace(), NameSpace.WIKIPEDIA);  //TODO: Test this one out.
     }
 
+    @Test
+    public void testStreaming() throws WpParseException, UnsupportedEncodingException {
+        LanguageInfo lang = LanguageInfo.getByLangCode("simple");
+        RawPage page = new StreamingPageXmlParser(lang).parse(RAWWW.getBytes("UTF-8"));
+        assertEquals("Wikipedia:Featured article candidates", page.getTitle().getCanonicalTitle());
+        assertTrue(page.isRedirect());
+        assertEquals("Wikipedia:Proposed very good articles", page.getRedirectTitle());
+        assertEquals(NameSpace.WIKIPEDIA, page.getNamespace());
+        assertEquals(79, page.getLocalId());
+        assertEquals(1136669, page.getRevisionId());
+        assertEquals("#REDIRECT [[Wikipedia:Proposed very good articles]]", page.getBody());
+        assertSamePage(new PageXmlParser(lang).parse(RAWWW), page);
+    }
+
+    @Test
+    public void testStreamingDump() throws WpParseException, UnsupportedEncodingException {
+        LanguageInfo lang = LanguageInfo.getByLangCode("en");
+        PageXmlParser parser = new PageXmlParser(lang);
+        StreamingPageXmlParser streaming = new StreamingPageXmlParser(lang);
+        int i = 0;
+        for (String xml : new DumpSplitter(TestDumpSplitter.EN_DUMP)) {
+            assertSamePage(parser.parse(xml), streaming.parse(xml.getBytes("UTF-8")));
+            i++;
+        }
+        assertEquals(44, i);
+    }
+
+    @Test
+    public void testStreamingEscaping() throws WpParseException, UnsupportedEncodingException {
+        String xml = RAWWW
+                .replace("Featured article candidates</title>", "AT&amp;T &quot;caf\u00e9&quot;</title>")
+                .replace("#REDIRECT", "&lt;b&gt;&#233;&amp;nbsp;&lt;/b&gt;");
+        LanguageInfo lang = LanguageInfo.getByLangCode("simple");
+        RawPage page = new StreamingPageXmlParser(lang).parse(xml.getBytes("UTF-8"));
+        assertEquals("Wikipedia:AT&T \"caf\u00e9\"", page.getTitle().getCanonicalTitle());
+        assertTrue(page.getBody().startsWith("<b>\u00e9&nbsp;</b> [[Wikipedia"));
+        assertSamePage(new PageXmlParser(lang).parse(xml), page);
+    }
+
+    private static void assertSamePage(RawPage expected, RawPage actual) {
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getLocalId(), actual.getLocalId());
+        assertEquals(expected.getRevisionId(), actual.getRevisionId());
+        assertEquals(expected.getBody(), actual.getBody());
+        assertEquals(expected.getLastEdit(), actual.getLastEdit());
+        assertEquals(expected.getLanguage(), actual.getLanguage());
+        assertEquals(expected.getNamespace(), actual.getNamespace());
+        assertEquals(expected.isRedirect(), actual.isRedirect());
+        assertEquals(expected.getRedirectTitle(), actual.getRedirectTitle());
+        assertEquals(expected.getModel(), actual.getModel());
+        assertEquals(expected.getFormat(), actual.getFormat());
+    }
 }
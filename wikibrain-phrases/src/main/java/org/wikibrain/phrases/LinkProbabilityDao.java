@@ -22,7 +22,6 @@ import org.wikibrain.core.lang.StringNormalizer;
 import org.wikibrain.core.model.NameSpace;
 import org.wikibrain.core.model.RawPage;
 import org.wikibrain.core.nlp.StringTokenizer;
-import org.wikibrain.core.nlp.Token;
 import org.wikibrain.utils.*;
 
 import java.io.File;
@@ -49,7 +48,8 @@ public class LinkProbabilityDao {
     private final StringNormalizer normalizer;
 
     private ObjectDb<Double> db;
-    private TLongFloatMap cache = null;
+    private boolean useCache = false;
+    private LinkProbabilityTable table = null;
     private TLongSet subGrams = null;
 
 
@@ -76,12 +76,12 @@ public class LinkProbabilityDao {
     }
 
     public boolean isSubgram(Language lang, String phrase, boolean normalize) {
-        if (cache == null || subGrams == null) {
+        if (table == null) {
             throw new IllegalArgumentException("Subgrams require a cache!");
         }
         String cleaned = cleanString(lang, phrase, normalize);
         long h = hashCode(lang, cleaned);
-        return cache.containsKey(h) || subGrams.contains(h);
+        return table.contains(h);
     }
 
     private String cleanString(Language lang, String s) {
@@ -110,9 +110,9 @@ public class LinkProbabilityDao {
             throw new IllegalStateException("Dao has not yet been built. Call build()");
         }
         String normalizedMention = cleanString(language, mention, normalize);
-        if (cache != null && cache.size() > 0) {
-            long hash = hashCode(language, normalizedMention);
-            return cache.containsKey(hash) ? cache.get(hash) : 0.0;
+        if (table != null) {
+            float p = table.getProbability(hashCode(language, normalizedMention));
+            return Float.isNaN(p) ? 0.0 : p;
         }
 
         String key = language.getLangCode() + ":" + normalizedMention;
@@ -132,19 +132,36 @@ public class LinkProbabilityDao {
         }
     }
 
+    /**
+     * Enables or disables the memory mapped link probability table.
+     * The table is required for isSubgram() and makes getLinkProbability()
+     * avoid the database. If the dao has not been built yet, the table
+     * is opened once build() completes.
+     */
     public synchronized void useCache(boolean useCache) {
+        this.useCache = useCache;
         if (!useCache) {
-            this.cache = null;
-            return;
-        } else if (db == null) {
-            this.cache = new TLongFloatHashMap();   // build cache later
-            return;
+            this.table = null;
+        } else if (db != null) {
+            try {
+                openTable();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         }
+    }
 
+    private File getTableFile() {
+        return new File(path + "-table.bin");
+    }
 
-        File fp = new File(path + "-phrase-cache.bin");
-        File fsg = new File(path + "-subgram-cache.bin");
-        long tstamp = 0;
+    /**
+     * Maps the link probability table, rebuilding it from the database if it is
+     * missing or older than the database. Tables are normally written by build().
+     */
+    private void openTable() throws IOException {
+        File file = getTableFile();
+        long tstamp;
         try {
             Double doubleTstamp = db.get("tstamp");
             if (doubleTstamp == null) {
@@ -152,28 +169,25 @@ public class LinkProbabilityDao {
                 db.put("tstamp", 1.0 * tstamp);
                 db.flush();
             } else {
-                tstamp = db.get("tstamp").longValue();
+                tstamp = doubleTstamp.longValue();
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
         } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
+            throw new IOException(e);
         }
-        if (fp.isFile() && fp.lastModified() > tstamp
-        &&  fsg.isFile() && fsg.lastModified() > tstamp) {
+        if (file.isFile() && file.lastModified() >= tstamp) {
             try {
-                cache = (TLongFloatMap) WpIOUtils.readObjectFromFile(fp);
-                subGrams = (TLongSet) WpIOUtils.readObjectFromFile(fsg);
-                LOG.info("Using up-to-date link probability cache files {} and {}", fp, fsg);
+                table = new LinkProbabilityTable(file);
+                LOG.info("Using up-to-date link probability table {}", file);
                 return;
             } catch (IOException e) {
-                LOG.warn("Using link probability dao cache failed: ", e);
+                LOG.warn("Using link probability table failed: ", e);
             }
         }
-        LOG.info("building cache...");
-        TLongFloatMap cache = new TLongFloatHashMap();
-        Iterator<Pair<String, Double>> iter = db.iterator();
+
+        LOG.info("building link probability table from " + path);
+        TLongFloatMap probabilities = new TLongFloatHashMap();
         TLongSet subgrams = new TLongHashSet();
+        Iterator<Pair<String, Double>> iter = db.iterator();
         while (iter.hasNext()) {
             Pair<String, Double> entry = iter.next();
             if (entry.getKey().equalsIgnoreCase("tstamp")) {
@@ -185,18 +199,12 @@ public class LinkProbabilityDao {
                 String tokens[] = entry.getKey().split(":", 2);
                 Language lang = Language.getByLangCode(tokens[0]);
                 long hash = hashCode(lang, tokens[1]);
-                cache.put(hash, entry.getRight().floatValue());
+                probabilities.put(hash, entry.getRight().floatValue());
             }
         }
-        this.cache = cache;
-        this.subGrams = subgrams;
-        LOG.info("created cache with " + cache.size() + " entries and " + subgrams.size() + " subgrams");
-        try {
-            WpIOUtils.writeObjectToFile(fp, cache);
-            WpIOUtils.writeObjectToFile(fsg, subgrams);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        LinkProbabilityTable.write(file, probabilities, subgrams);
+        table = new LinkProbabilityTable(file);
+        LOG.info("created link probability table with " + table.getNumPhrases() + " entries and " + table.getNumSubgrams() + " subgrams");
     }
 
     public synchronized void build() throws DaoException {
@@ -206,25 +214,41 @@ public class LinkProbabilityDao {
         if (path.exists()) {
             FileUtils.deleteQuietly(path);
         }
+        FileUtils.deleteQuietly(getTableFile());
         path.mkdirs();
+        table = null;
 
         try {
             this.db = new ObjectDb<Double>(path, true);
         } catch (IOException e) {
             throw new DaoException(e);
         }
+        TLongFloatMap probabilities = new TLongFloatHashMap();
+        TLongSet allSubgrams = new TLongHashSet();
         for (Language lang : langs) {
-            this.build(lang);
+            this.build(lang, probabilities);
+            allSubgrams.addAll(subGrams);
+        }
+        subGrams = null;
+
+        try {
+            LinkProbabilityTable.write(getTableFile(), probabilities, allSubgrams);
+            LOG.info("wrote link probability table with " + probabilities.size() + " entries and " + allSubgrams.size() + " subgrams");
+            if (useCache) {
+                table = new LinkProbabilityTable(getTableFile());
+            }
+        } catch (IOException e) {
+            throw new DaoException(e);
         }
     }
 
-    private void build(Language lang) throws DaoException {
+    private void build(Language lang, TLongFloatMap probabilities) throws DaoException {
         subGrams = new TLongHashSet();
 
 
         LOG.info("building link probabilities for language " + lang);
 
-        final TLongIntMap counts = new TLongIntHashMap();
+        final NGramCounter counter = new NGramCounter(lang, normalizer);
         Iterator<String> iter = phraseDao.getAllPhrases(lang);
         StringTokenizer tokenizer = new StringTokenizer();
 
@@ -239,9 +263,9 @@ public class LinkProbabilityDao {
                 hash = hashCode(lang, buffer.toString());
                 subGrams.add(hash);
             }
-            counts.put(hash, 0);
+            counter.addPhrase(words, hash);
         }
-        LOG.info("found " + counts.size() + " unique anchortexts and " + subGrams.size() + " subgrams");
+        LOG.info("found " + counter.getNumPhrases() + " unique anchortexts and " + subGrams.size() + " subgrams");
 
         DaoFilter filter = new DaoFilter()
                 .setRedirect(false)
@@ -249,6 +273,7 @@ public class LinkProbabilityDao {
                 .setDisambig(false)
                 .setNameSpaces(NameSpace.ARTICLE);
 
+        long start = System.currentTimeMillis();
         ParallelForEach.iterate(
                 pageDao.get(filter).iterator(),
                 WpThreadUtils.getMaxThreads(),
@@ -256,10 +281,14 @@ public class LinkProbabilityDao {
                 new Procedure<RawPage>() {
                     @Override
                     public void call(RawPage page) throws Exception {
-                        processPage(counts, page);
+                        counter.countPage(page.getPlainText());
                     }
                 },
                 10000);
+        double seconds = Math.max(0.001, (System.currentTimeMillis() - start) / 1000.0);
+        LOG.info(String.format("counted anchortexts in %d pages at %.1f pages/sec using %d threads",
+                counter.getNumPages(), counter.getNumPages() / seconds, WpThreadUtils.getMaxThreads()));
+        TLongIntMap counts = counter.getCounts();
 
         int count = 0;
         int misses = 0;
@@ -290,9 +319,7 @@ public class LinkProbabilityDao {
 //                System.out.println(String.format("inserting values into db: %s, %f", pair.getLeft, p));
                 String key = lang.getLangCode() + ":" + phrase;
                 db.put(key, p);
-                if (cache != null) {
-                    cache.put(hash, (float) p);
-                }
+                probabilities.put(hash, (float) p);
             } catch (IOException e) {
                 throw new DaoException(e);
             }
@@ -333,39 +360,6 @@ public class LinkProbabilityDao {
         return counts;
     }
 
-    private void processPage(TLongIntMap counts, RawPage page) {
-        Language lang = page.getLanguage();
-        StringTokenizer tokenizer = new StringTokenizer();
-        StringBuilder buffer = new StringBuilder();
-        for (Token sentence : tokenizer.getSentenceTokens(lang, page.getPlainText())) {
-            List<Token> words = tokenizer.getWordTokens(lang, sentence);
-            for (int i = 0; i < words.size(); i++) {
-                buffer.setLength(0);
-                for (int j = i; j < words.size(); j++) {
-                    if (j > i) {
-                        buffer.append(' ');
-                    }
-                    buffer.append(words.get(j).getToken());
-                    String phrase = cleanString(lang, buffer.toString(), true);
-                    long hash = hashCode(lang, phrase);
-                    if (subGrams.contains(hash)) {
-                        synchronized (counts) {
-                            if (counts.containsKey(hash)) {
-//                                System.out.println("here 1: " + phrase);
-                                counts.adjustValue(hash, 1);
-                            } else {
-//                                System.out.println("here 2: " + phrase);
-                            }
-                        }
-                    } else {
-//                        System.out.println("here 3: " + phrase);
-                        break;  // no point in going any further...
-                    }
-                }
-            }
-        }
-    }
-
     private long hashCode(Language lang, String string) {
         return WpStringUtils.longHashCode2(lang.getLangCode() + ":" + string);
     }
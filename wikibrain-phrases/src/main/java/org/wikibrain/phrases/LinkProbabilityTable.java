@@ -0,0 +1,235 @@
+package org.wikibrain.phrases;
+
+import gnu.trove.map.TLongFloatMap;
+import gnu.trove.set.TLongSet;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only open addressing hash table from phrase hashes to link probabilities
+ * that is memory mapped from disk.
+ *
+ * <p>
+ * The table is written once when link probabilities are built. Opening it only maps
+ * the file, so processes start immediately, the table uses no heap, and processes
+ * that open the same table share its pages through the OS page cache.
+ * </p>
+ *
+ * <p>
+ * The file is a header followed by three parallel arrays with one slot per bucket:
+ * the long keys, the float probabilities, and a byte of flags. Lookups use linear
+ * probing from the bucket chosen by the mixed key. Keys that are subgrams of
+ * anchor texts but not anchor texts themselves have a probability of NaN.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class LinkProbabilityTable {
+    public static final int FILE_HEADER = 0x1b7ab1e;
+    public static final int HEADER_SIZE = 32;
+
+    private static final byte FLAG_OCCUPIED = 1;
+    private static final byte FLAG_SUBGRAM = 2;
+
+    // At most 2^28 buckets, so each array fits in a single mapping.
+    private static final int MAX_CAPACITY = 1 << 28;
+
+    private final File path;
+    private final int capacity;
+    private final int mask;
+    private final int numPhrases;
+    private final int numSubgrams;
+
+    private final LongBuffer keys;
+    private final FloatBuffer values;
+    private final ByteBuffer flags;
+
+    public LinkProbabilityTable(File path) throws IOException {
+        this.path = path;
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try {
+            if (raf.readInt() != FILE_HEADER) {
+                throw new IOException("invalid file header in link probability table " + path);
+            }
+            this.capacity = raf.readInt();
+            this.numPhrases = raf.readInt();
+            this.numSubgrams = raf.readInt();
+            this.mask = capacity - 1;
+            if (Integer.bitCount(capacity) != 1 || raf.length() != fileSize(capacity)) {
+                throw new IOException("corrupt link probability table " + path);
+            }
+
+            FileChannel channel = raf.getChannel();
+            long offset = HEADER_SIZE;
+            this.keys = channel.map(FileChannel.MapMode.READ_ONLY, offset, 8L * capacity).asLongBuffer();
+            offset += 8L * capacity;
+            this.values = channel.map(FileChannel.MapMode.READ_ONLY, offset, 4L * capacity).asFloatBuffer();
+            offset += 4L * capacity;
+            this.flags = channel.map(FileChannel.MapMode.READ_ONLY, offset, capacity);
+        } finally {
+            // Mappings remain valid after the file is closed.
+            raf.close();
+        }
+    }
+
+    /**
+     * @return True if the hash is an anchor text or a subgram of one.
+     */
+    public boolean contains(long hash) {
+        return find(hash) >= 0;
+    }
+
+    /**
+     * @return The link probability of the hash, or NaN if it is not an anchor text.
+     */
+    public float getProbability(long hash) {
+        int i = find(hash);
+        return (i < 0) ? Float.NaN : values.get(i);
+    }
+
+    /**
+     * @return True if the hash was recorded as a subgram of an anchor text.
+     */
+    public boolean isSubgram(long hash) {
+        int i = find(hash);
+        return i >= 0 && (flags.get(i) & FLAG_SUBGRAM) != 0;
+    }
+
+    /**
+     * @return The number of anchor texts with link probabilities.
+     */
+    public int getNumPhrases() {
+        return numPhrases;
+    }
+
+    public int getNumSubgrams() {
+        return numSubgrams;
+    }
+
+    public File getPath() {
+        return path;
+    }
+
+    private int find(long hash) {
+        int i = bucket(hash, mask);
+        while (true) {
+            byte f = flags.get(i);
+            if (f == 0) {
+                return -1;
+            } else if (keys.get(i) == hash) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private static int bucket(long hash, int mask) {
+        long h = hash * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static long fileSize(int capacity) {
+        return HEADER_SIZE + 13L * capacity;
+    }
+
+    /**
+     * Writes a table containing link probabilities and subgrams.
+     * The file only appears at its final path once it is completely written.
+     *
+     * @param path
+     * @param probabilities Link probabilities keyed by phrase hash.
+     * @param subgrams Hashes of subgrams of anchor texts.
+     */
+    public static void write(File path, TLongFloatMap probabilities, TLongSet subgrams) throws IOException {
+        long n = probabilities.size() + subgrams.size();
+        int capacity = 16;
+        while (capacity < 2 * n) {
+            if (capacity >= MAX_CAPACITY) {
+                throw new IllegalArgumentException("too many entries for link probability table: " + n);
+            }
+            capacity *= 2;
+        }
+        int mask = capacity - 1;
+
+        long keys[] = new long[capacity];
+        float values[] = new float[capacity];
+        byte flags[] = new byte[capacity];
+        int numPhrases = 0;
+        for (long h : probabilities.keys()) {
+            int i = insert(keys, flags, mask, h);
+            values[i] = probabilities.get(h);
+            numPhrases++;
+        }
+        int numSubgrams = 0;
+        for (long h : subgrams.toArray()) {
+            int i = insert(keys, flags, mask, h);
+            if (!probabilities.containsKey(h)) {
+                values[i] = Float.NaN;
+            }
+            flags[i] |= FLAG_SUBGRAM;
+            numSubgrams++;
+        }
+
+        File tmp = new File(path.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(FILE_HEADER).putInt(capacity).putInt(numPhrases).putInt(numSubgrams);
+            header.rewind();
+            writeFully(channel, header);
+
+            ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024).order(ByteOrder.BIG_ENDIAN);
+            for (long k : keys) {
+                if (buffer.remaining() < 8) flush(channel, buffer);
+                buffer.putLong(k);
+            }
+            for (float v : values) {
+                if (buffer.remaining() < 4) flush(channel, buffer);
+                buffer.putFloat(v);
+            }
+            for (byte f : flags) {
+                if (buffer.remaining() < 1) flush(channel, buffer);
+                buffer.put(f);
+            }
+            flush(channel, buffer);
+        } finally {
+            raf.close();
+        }
+        FileUtils.deleteQuietly(path);
+        if (!tmp.renameTo(path)) {
+            throw new IOException("renaming " + tmp + " to " + path + " failed");
+        }
+    }
+
+    private static int insert(long keys[], byte flags[], int mask, long hash) {
+        int i = bucket(hash, mask);
+        while (flags[i] != 0 && keys[i] != hash) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = hash;
+        flags[i] |= FLAG_OCCUPIED;
+        return i;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        writeFully(channel, buffer);
+        buffer.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
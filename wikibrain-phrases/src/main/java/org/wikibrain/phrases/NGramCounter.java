@@ -0,0 +1,178 @@
+package org.wikibrain.phrases;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.StringNormalizer;
+import org.wikibrain.core.nlp.StringTokenizer;
+import org.wikibrain.core.nlp.Token;
+import org.wikibrain.utils.MurmurHash;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how often known phrases appear in the plain text of pages.
+ *
+ * <p>
+ * Phrases are registered up front, along with all of their prefixes (subgrams).
+ * Pages are then counted concurrently without locks: the registered phrases are
+ * read-only, and each phrase has a slot in an atomic counter array.
+ * </p>
+ *
+ * <p>
+ * Candidate n-grams are identified by a rolling hash over the hashes of their words,
+ * so extending an n-gram by a token costs one multiply instead of normalizing,
+ * re-tokenizing, joining and hashing the whole n-gram. Each token of a page is
+ * normalized and tokenized once. As before, an n-gram is only extended while it
+ * is a subgram of some phrase.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class NGramCounter {
+    private static final long SEED = 0x2545F4914F6CDD1DL;
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private static final int PREFIX_ONLY = -1;
+    private static final int UNKNOWN = -2;
+
+    private final Language language;
+    private final StringNormalizer normalizer;
+    private final StringTokenizer tokenizer = new StringTokenizer();
+
+    /**
+     * Maps the rolling hash of every registered subgram to the index of the phrase
+     * it completes, or PREFIX_ONLY if it is only a prefix of other phrases.
+     */
+    private final TLongIntMap ngrams = new TLongIntHashMap(
+            Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, 0L, UNKNOWN);
+    private final TLongArrayList phraseKeys = new TLongArrayList();
+
+    private volatile AtomicIntegerArray counts = null;
+    private final AtomicLong numPages = new AtomicLong();
+
+    public NGramCounter(Language language, StringNormalizer normalizer) {
+        this.language = language;
+        this.normalizer = normalizer;
+    }
+
+    /**
+     * Registers a phrase and its prefixes. Must be called before any pages are counted.
+     *
+     * @param words The words of the phrase.
+     * @param key The key of the phrase in the results of getCounts().
+     */
+    public synchronized void addPhrase(List<String> words, long key) {
+        if (counts != null) {
+            throw new IllegalStateException("phrases cannot be added after pages are counted");
+        }
+        if (words.isEmpty()) {
+            return;
+        }
+        long h = SEED;
+        for (String w : words) {
+            h = extend(h, w);
+            if (!ngrams.containsKey(h)) {
+                ngrams.put(h, PREFIX_ONLY);
+            }
+        }
+        if (ngrams.get(h) == PREFIX_ONLY) {
+            ngrams.put(h, phraseKeys.size());
+            phraseKeys.add(key);
+        }
+    }
+
+    /**
+     * Counts the phrases in a page. Thread safe.
+     * @param text The plain text of the page.
+     */
+    public void countPage(String text) {
+        AtomicIntegerArray counts = getCountArray();
+        for (Token sentence : tokenizer.getSentenceTokens(language, text)) {
+            List<Token> tokens = tokenizer.getWordTokens(language, sentence);
+
+            // Hashes of the normalized words of each token
+            long tokenWords[][] = new long[tokens.size()][];
+            for (int i = 0; i < tokens.size(); i++) {
+                String normalized = normalizer.normalize(language, tokens.get(i).getToken());
+                List<String> words = tokenizer.getWords(language, normalized);
+                tokenWords[i] = new long[words.size()];
+                for (int j = 0; j < words.size(); j++) {
+                    tokenWords[i][j] = hashWord(words.get(j));
+                }
+            }
+
+            for (int i = 0; i < tokenWords.length; i++) {
+                long h = SEED;
+                int numWords = 0;
+                for (int j = i; j < tokenWords.length; j++) {
+                    for (long wh : tokenWords[j]) {
+                        h = extend(h, wh);
+                        numWords++;
+                    }
+                    int phrase = (numWords == 0) ? UNKNOWN : ngrams.get(h);
+                    if (phrase >= 0) {
+                        counts.incrementAndGet(phrase);
+                    } else if (phrase == UNKNOWN) {
+                        break;  // no point in going any further...
+                    }
+                }
+            }
+        }
+        numPages.incrementAndGet();
+    }
+
+    /**
+     * @return The number of times each phrase appeared in the counted pages, keyed by phrase key.
+     */
+    public TLongIntMap getCounts() {
+        AtomicIntegerArray counts = getCountArray();
+        TLongIntMap result = new TLongIntHashMap(phraseKeys.size() * 2);
+        for (int i = 0; i < phraseKeys.size(); i++) {
+            result.adjustOrPutValue(phraseKeys.get(i), counts.get(i), counts.get(i));
+        }
+        return result;
+    }
+
+    public int getNumPhrases() {
+        return phraseKeys.size();
+    }
+
+    public int getNumSubgrams() {
+        return ngrams.size();
+    }
+
+    public long getNumPages() {
+        return numPages.get();
+    }
+
+    private AtomicIntegerArray getCountArray() {
+        AtomicIntegerArray result = counts;
+        if (result == null) {
+            synchronized (this) {
+                if (counts == null) {
+                    counts = new AtomicIntegerArray(phraseKeys.size());
+                }
+                result = counts;
+            }
+        }
+        return result;
+    }
+
+    private static long hashWord(String word) {
+        return MurmurHash.hash64(word);
+    }
+
+    private static long extend(long h, String word) {
+        return extend(h, hashWord(word));
+    }
+
+    private static long extend(long h, long wordHash) {
+        h = (h ^ wordHash) * MULTIPLIER;
+        return h ^ (h >>> 29);
+    }
+}
@@ -47,8 +47,8 @@ public class PhraseAnalyzerObjectDbDao implements PhraseAnalyzerDao {
             path.mkdirs();
         }
         try {
-            describeDb = new ObjectDb<PrunedCounts<String>>(new File(path, "describe"), isNew);
-            resolveDb = new ObjectDb<PrunedCounts<Integer>>(new File(path, "resolve"), isNew);
+            describeDb = new ObjectDb<PrunedCounts<String>>(new File(path, "describe"), isNew, PrunedCountsCodec.STRING_CODEC);
+            resolveDb = new ObjectDb<PrunedCounts<Integer>>(new File(path, "resolve"), isNew, PrunedCountsCodec.INTEGER_CODEC);
         } catch (IOException e) {
             throw new DaoException(e);
         }
@@ -132,20 +132,25 @@ public class PhraseAnalyzerObjectDbDao implements PhraseAnalyzerDao {
      */
     @Override
     public PrunedCounts<Integer> getPhraseCounts(Language lang, String phrase, int maxPages) throws DaoException {
+        PrunedCountsCodec.IntCounts counts = getPhraseCountArrays(lang, phrase, maxPages);
+        return (counts == null) ? null : counts.toPrunedCounts();
+    }
+
+    /**
+     * Gets pages related to a phrase as primitive arrays, without building a map.
+     *
+     * @param lang
+     * @param phrase
+     * @param maxPages
+     * @return Page ids (in the local language) and the number of occurrences
+     * ordered by decreasing count, or null if the phrase is unknown.
+     * @throws DaoException
+     */
+    public PrunedCountsCodec.IntCounts getPhraseCountArrays(Language lang, String phrase, int maxPages) throws DaoException {
         phrase = normalizer.normalize(lang, phrase);
         try {
-            PrunedCounts<Integer> counts = resolveDb.get(lang.getLangCode() + ":" + phrase);
-            if (counts == null || counts.size() <= maxPages) {
-                return counts;
-            }
-            PrunedCounts<Integer> result = new PrunedCounts<Integer>(counts.getTotal());
-            for (int id : counts.keySet()) {
-                if (result.size() >= maxPages) {
-                    break;
-                }
-                result.put(id, counts.get(id));
-            }
-            return result;
+            byte bytes[] = resolveDb.getBytes(lang.getLangCode() + ":" + phrase);
+            return (bytes == null) ? null : PrunedCountsCodec.decodeIntArrays(bytes, maxPages);
         } catch (IOException e) {
             throw new DaoException(e);
         } catch (ClassNotFoundException e) {
@@ -165,18 +170,8 @@ public class PhraseAnalyzerObjectDbDao implements PhraseAnalyzerDao {
     @Override
     public PrunedCounts<String> getPageCounts(Language lang, int wpId, int maxPhrases) throws DaoException {
         try {
-            PrunedCounts<String> counts = describeDb.get(lang.getLangCode() + ":" + wpId);
-            if (counts == null || counts.size() <= maxPhrases) {
-                return counts;
-            }
-            PrunedCounts<String> result = new PrunedCounts<String>(counts.getTotal());
-            for (String phrase : counts.keySet()) {
-                if (result.size() >= maxPhrases) {
-                    break;
-                }
-                result.put(phrase, counts.get(phrase));
-            }
-            return result;
+            byte bytes[] = describeDb.getBytes(lang.getLangCode() + ":" + wpId);
+            return (bytes == null) ? null : PrunedCountsCodec.decodeStrings(bytes, maxPhrases);
         } catch (IOException e) {
             throw new DaoException(e);
         } catch (ClassNotFoundException e) {
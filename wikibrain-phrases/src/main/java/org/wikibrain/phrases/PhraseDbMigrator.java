@@ -0,0 +1,123 @@
+package org.wikibrain.phrases;
+
+import org.apache.commons.cli.*;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.DefaultOptionBuilder;
+import org.wikibrain.core.cmd.Env;
+import org.wikibrain.core.cmd.EnvBuilder;
+import org.wikibrain.utils.ObjectDb;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Rewrites phrase databases stored with Java serialization in the compact
+ * encoding of {@link PrunedCountsCodec}.
+ *
+ * <p>
+ * Each database is copied into a new database and then swapped into place,
+ * so an interrupted migration leaves the original database intact.
+ * Databases that are already migrated are copied unchanged.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class PhraseDbMigrator {
+    private static final Logger LOG = LoggerFactory.getLogger(PhraseDbMigrator.class);
+
+    /**
+     * Migrates the describe and resolve databases of a PhraseAnalyzerObjectDbDao.
+     * @param dir The directory of the dao.
+     */
+    public static void migrate(File dir) throws IOException {
+        migrate(new File(dir, "describe"), PrunedCountsCodec.STRING_CODEC);
+        migrate(new File(dir, "resolve"), PrunedCountsCodec.INTEGER_CODEC);
+    }
+
+    private static <V extends Serializable> void migrate(File path, ObjectDb.Codec<V> codec) throws IOException {
+        if (!path.isDirectory()) {
+            LOG.info("skipping missing phrase database " + path);
+            return;
+        }
+        long before = FileUtils.sizeOfDirectory(path);
+
+        // The database name is the directory name, so the copy keeps the same name.
+        File tmpDir = new File(path.getParentFile(), path.getName() + "-migrating");
+        File tmp = new File(tmpDir, path.getName());
+        FileUtils.deleteQuietly(tmpDir);
+
+        ObjectDb<V> src = new ObjectDb<V>(path, false, codec);
+        ObjectDb<V> dest = new ObjectDb<V>(tmp, true, codec);
+        int n = 0;
+        try {
+            Iterator<Pair<String, V>> iter = src.iterator();
+            while (iter.hasNext()) {
+                Pair<String, V> entry = iter.next();
+                dest.put(entry.getKey(), entry.getValue());
+                if (++n % 100000 == 0) {
+                    LOG.info("migrated " + n + " entries in " + path);
+                }
+            }
+            dest.flush();
+        } finally {
+            src.close();
+            dest.close();
+        }
+
+        FileUtils.deleteDirectory(path);
+        FileUtils.moveDirectory(tmp, path);
+        FileUtils.deleteQuietly(tmpDir);
+        LOG.info(String.format("migrated %d entries in %s from %d to %d bytes",
+                n, path, before, FileUtils.sizeOfDirectory(path)));
+    }
+
+    public static void main(String args[]) throws IOException, ConfigurationException {
+        Options options = new Options();
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArgs()
+                        .withLongOpt("dir")
+                        .withDescription("phrase dao directories to migrate (default: all daos in phrases.path)")
+                        .create("d"));
+        EnvBuilder.addStandardOptions(options);
+
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println( "Invalid option usage: " + e.getMessage());
+            new HelpFormatter().printHelp("PhraseDbMigrator", options);
+            return;
+        }
+
+        List<File> dirs = new ArrayList<File>();
+        if (cmd.hasOption("d")) {
+            for (String path : cmd.getOptionValues("d")) {
+                dirs.add(new File(path));
+            }
+        } else {
+            Env env = new EnvBuilder(cmd).build();
+            File[] children = new File(env.getConfiguration().get().getString("phrases.path")).listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (new File(child, "resolve").isDirectory() || new File(child, "describe").isDirectory()) {
+                        dirs.add(child);
+                    }
+                }
+            }
+        }
+        for (File dir : dirs) {
+            LOG.info("migrating phrase databases in " + dir);
+            migrate(dir);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package org.wikibrain.phrases;
+
+import org.wikibrain.utils.ObjectDb;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A compact binary encoding for PrunedCounts.
+ *
+ * <p>
+ * An encoded value is a format byte followed by varints: the total, the number of
+ * entries, and then for each entry (in decreasing order of count) the change in count
+ * from the previous entry followed by the key. Integer keys are stored as the change
+ * from the previous key, string keys as length prefixed UTF-8. Signed changes use
+ * zigzag encoding, so most values take one or two bytes.
+ * </p>
+ *
+ * <p>
+ * Values written with Java serialization are still decoded, so existing phrase
+ * databases keep working until they are migrated with {@link PhraseDbMigrator}.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class PrunedCountsCodec {
+    public static final byte FORMAT_INTEGER_KEYS = 0x11;
+    public static final byte FORMAT_STRING_KEYS = 0x12;
+
+    /**
+     * First byte of a Java serialization stream.
+     */
+    private static final byte JAVA_SERIALIZATION = (byte) 0xAC;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final ObjectDb.Codec<PrunedCounts<Integer>> INTEGER_CODEC = new ObjectDb.Codec<PrunedCounts<Integer>>() {
+        @Override
+        public byte[] encode(PrunedCounts<Integer> counts) {
+            return encodeIntegers(counts);
+        }
+
+        @Override
+        public PrunedCounts<Integer> decode(byte[] bytes) throws IOException, ClassNotFoundException {
+            return decodeIntegers(bytes, Integer.MAX_VALUE);
+        }
+    };
+
+    public static final ObjectDb.Codec<PrunedCounts<String>> STRING_CODEC = new ObjectDb.Codec<PrunedCounts<String>>() {
+        @Override
+        public byte[] encode(PrunedCounts<String> counts) {
+            return encodeStrings(counts);
+        }
+
+        @Override
+        public PrunedCounts<String> decode(byte[] bytes) throws IOException, ClassNotFoundException {
+            return decodeStrings(bytes, Integer.MAX_VALUE);
+        }
+    };
+
+    /**
+     * Counts for integer keys decoded into primitive arrays.
+     */
+    public static final class IntCounts {
+        private final int total;
+        private final int keys[];
+        private final int counts[];
+
+        public IntCounts(int total, int keys[], int counts[]) {
+            this.total = total;
+            this.keys = keys;
+            this.counts = counts;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public int size() {
+            return keys.length;
+        }
+
+        /**
+         * @return The keys in decreasing order of count.
+         */
+        public int[] getKeys() {
+            return keys;
+        }
+
+        public int[] getCounts() {
+            return counts;
+        }
+
+        public PrunedCounts<Integer> toPrunedCounts() {
+            PrunedCounts<Integer> result = new PrunedCounts<Integer>(total);
+            for (int i = 0; i < keys.length; i++) {
+                result.put(keys[i], counts[i]);
+            }
+            return result;
+        }
+    }
+
+    public static byte[] encodeIntegers(PrunedCounts<Integer> counts) {
+        Writer writer = new Writer(2 + 4 * counts.size());
+        writer.writeByte(FORMAT_INTEGER_KEYS);
+        writer.writeVarint(counts.getTotal());
+        writer.writeVarint(counts.size());
+        int lastKey = 0;
+        int lastCount = 0;
+        for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+            writer.writeSignedVarint(entry.getValue() - lastCount);
+            writer.writeSignedVarint(entry.getKey() - lastKey);
+            lastCount = entry.getValue();
+            lastKey = entry.getKey();
+        }
+        return writer.toByteArray();
+    }
+
+    public static byte[] encodeStrings(PrunedCounts<String> counts) {
+        Writer writer = new Writer(2 + 16 * counts.size());
+        writer.writeByte(FORMAT_STRING_KEYS);
+        writer.writeVarint(counts.getTotal());
+        writer.writeVarint(counts.size());
+        int lastCount = 0;
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            writer.writeSignedVarint(entry.getValue() - lastCount);
+            byte utf8[] = entry.getKey().getBytes(UTF8);
+            writer.writeVarint(utf8.length);
+            writer.writeBytes(utf8);
+            lastCount = entry.getValue();
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Decodes at most maxEntries of the highest counts directly into primitive arrays.
+     */
+    public static IntCounts decodeIntArrays(byte bytes[], int maxEntries) throws IOException, ClassNotFoundException {
+        if (bytes[0] == JAVA_SERIALIZATION) {
+            PrunedCounts<Integer> counts = truncate(
+                    (PrunedCounts<Integer>) WpIOUtils.bytesToObject(bytes), maxEntries);
+            int keys[] = new int[counts.size()];
+            int values[] = new int[counts.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+                keys[i] = entry.getKey();
+                values[i] = entry.getValue();
+                i++;
+            }
+            return new IntCounts(counts.getTotal(), keys, values);
+        }
+        Reader reader = new Reader(bytes);
+        if (reader.readByte() != FORMAT_INTEGER_KEYS) {
+            throw new IOException("unknown pruned counts format: " + bytes[0]);
+        }
+        int total = reader.readVarint();
+        int n = Math.min(maxEntries, reader.readVarint());
+        int keys[] = new int[n];
+        int counts[] = new int[n];
+        int lastKey = 0;
+        int lastCount = 0;
+        for (int i = 0; i < n; i++) {
+            lastCount += reader.readSignedVarint();
+            lastKey += reader.readSignedVarint();
+            counts[i] = lastCount;
+            keys[i] = lastKey;
+        }
+        return new IntCounts(total, keys, counts);
+    }
+
+    public static PrunedCounts<Integer> decodeIntegers(byte bytes[], int maxEntries) throws IOException, ClassNotFoundException {
+        if (bytes[0] == JAVA_SERIALIZATION) {
+            return truncate((PrunedCounts<Integer>) WpIOUtils.bytesToObject(bytes), maxEntries);
+        }
+        return decodeIntArrays(bytes, maxEntries).toPrunedCounts();
+    }
+
+    public static PrunedCounts<String> decodeStrings(byte bytes[], int maxEntries) throws IOException, ClassNotFoundException {
+        if (bytes[0] == JAVA_SERIALIZATION) {
+            return truncate((PrunedCounts<String>) WpIOUtils.bytesToObject(bytes), maxEntries);
+        }
+        Reader reader = new Reader(bytes);
+        if (reader.readByte() != FORMAT_STRING_KEYS) {
+            throw new IOException("unknown pruned counts format: " + bytes[0]);
+        }
+        PrunedCounts<String> result = new PrunedCounts<String>(reader.readVarint());
+        int n = Math.min(maxEntries, reader.readVarint());
+        int lastCount = 0;
+        for (int i = 0; i < n; i++) {
+            lastCount += reader.readSignedVarint();
+            int length = reader.readVarint();
+            result.put(new String(bytes, reader.pos, length, UTF8), lastCount);
+            reader.pos += length;
+        }
+        return result;
+    }
+
+    /**
+     * @return True if the bytes use the compact encoding rather than Java serialization.
+     */
+    public static boolean isCompact(byte bytes[]) {
+        return bytes.length > 0 && (bytes[0] == FORMAT_INTEGER_KEYS || bytes[0] == FORMAT_STRING_KEYS);
+    }
+
+    private static <K> PrunedCounts<K> truncate(PrunedCounts<K> counts, int maxEntries) {
+        if (counts.size() <= maxEntries) {
+            return counts;
+        }
+        PrunedCounts<K> result = new PrunedCounts<K>(counts.getTotal());
+        for (K key : counts.keySet()) {
+            if (result.size() >= maxEntries) {
+                break;
+            }
+            result.put(key, counts.get(key));
+        }
+        return result;
+    }
+
+    private static final class Writer {
+        private byte bytes[];
+        private int size = 0;
+
+        Writer(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void writeByte(int b) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[size++] = (byte) b;
+        }
+
+        void writeBytes(byte b[]) {
+            if (size + b.length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + b.length));
+            }
+            System.arraycopy(b, 0, bytes, size, b.length);
+            size += b.length;
+        }
+
+        void writeVarint(int v) {
+            while ((v & ~0x7F) != 0) {
+                writeByte((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            writeByte(v);
+        }
+
+        void writeSignedVarint(int v) {
+            writeVarint((v << 1) ^ (v >> 31));
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    private static final class Reader {
+        private final byte bytes[];
+        private int pos = 0;
+
+        Reader(byte bytes[]) {
+            this.bytes = bytes;
+        }
+
+        byte readByte() {
+            return bytes[pos++];
+        }
+
+        int readVarint() {
+            int v = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[pos++];
+                v |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+        }
+
+        int readSignedVarint() {
+            int v = readVarint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+}
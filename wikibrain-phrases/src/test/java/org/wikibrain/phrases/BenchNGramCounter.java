@@ -0,0 +1,76 @@
+package org.wikibrain.phrases;
+
+import org.wikibrain.core.lang.IdentityStringNormalizer;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures pages/sec of NGramCounter as the number of threads grows,
+ * on synthetic pages whose words follow a Zipf distribution.
+ *
+ * Usage: BenchNGramCounter [numPages numPhrases maxThreads]
+ *
+ * @author Shilad Sen
+ */
+public class BenchNGramCounter {
+    public static void main(String args[]) {
+        int numPages = args.length > 0 ? Integer.valueOf(args[0]) : 5000;
+        int numPhrases = args.length > 1 ? Integer.valueOf(args[1]) : 200000;
+        int maxThreads = args.length > 2 ? Integer.valueOf(args[2]) : Runtime.getRuntime().availableProcessors();
+        Language lang = Language.getByLangCode("en");
+
+        Random random = new Random(1);
+        String vocabulary[] = new String[20000];
+        for (int i = 0; i < vocabulary.length; i++) {
+            vocabulary[i] = "w" + Integer.toString(i, 36);
+        }
+
+        List<List<String>> phrases = new ArrayList<List<String>>();
+        for (int i = 0; i < numPhrases; i++) {
+            String words[] = new String[1 + random.nextInt(3)];
+            for (int j = 0; j < words.length; j++) {
+                words[j] = vocabulary[zipf(random, vocabulary.length)];
+            }
+            phrases.add(Arrays.asList(words));
+        }
+
+        final List<String> pages = new ArrayList<String>();
+        for (int i = 0; i < numPages; i++) {
+            StringBuilder page = new StringBuilder();
+            for (int s = 0; s < 40; s++) {
+                for (int w = 0; w < 20; w++) {
+                    page.append(vocabulary[zipf(random, vocabulary.length)]).append(' ');
+                }
+                page.append(". ");
+            }
+            pages.add(page.toString());
+        }
+
+        for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+            final NGramCounter counter = new NGramCounter(lang, new IdentityStringNormalizer());
+            for (int i = 0; i < phrases.size(); i++) {
+                counter.addPhrase(phrases.get(i), i);
+            }
+            long before = System.currentTimeMillis();
+            ParallelForEach.iterate(pages.iterator(), numThreads, 100,
+                    new Procedure<String>() {
+                        @Override
+                        public void call(String page) throws Exception {
+                            counter.countPage(page);
+                        }
+                    }, -1);
+            double seconds = Math.max(0.001, (System.currentTimeMillis() - before) / 1000.0);
+            System.out.println(String.format("%d threads: %.1f pages/sec", numThreads, numPages / seconds));
+        }
+    }
+
+    private static int zipf(Random random, int n) {
+        return (int) Math.min(n - 1, Math.floor(Math.pow(n + 1, random.nextDouble())) - 1);
+    }
+}
@@ -0,0 +1,75 @@
+package org.wikibrain.phrases;
+
+import org.apache.commons.io.FileUtils;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.IdentityStringNormalizer;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.utils.ObjectDb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares getPhraseCounts() latency and on-disk size of a phrase database
+ * stored with Java serialization and after migrating it to PrunedCountsCodec.
+ *
+ * Usage: BenchPhraseCounts [numPhrases numLookups]
+ *
+ * @author Shilad Sen
+ */
+public class BenchPhraseCounts {
+    public static void main(String args[]) throws IOException, DaoException {
+        int numPhrases = args.length > 0 ? Integer.valueOf(args[0]) : 200000;
+        int numLookups = args.length > 1 ? Integer.valueOf(args[1]) : 200000;
+        Language lang = Language.getByLangCode("en");
+
+        File dir = File.createTempFile("phrases", null);
+        FileUtils.deleteQuietly(dir);
+        dir.mkdirs();
+        try {
+            // Write a database in the old format
+            Random random = new Random(1);
+            ObjectDb<PrunedCounts<Integer>> legacy = new ObjectDb<PrunedCounts<Integer>>(new File(dir, "resolve"), true);
+            for (int i = 0; i < numPhrases; i++) {
+                int n = 1 + (int) Math.min(200, Math.abs(random.nextGaussian() * 20));
+                legacy.put(lang.getLangCode() + ":phrase " + i, TestPrunedCountsCodec.randomCounts(random, n));
+            }
+            legacy.flush();
+            legacy.close();
+
+            System.out.println(String.format("java serialization: %d bytes", FileUtils.sizeOfDirectory(new File(dir, "resolve"))));
+            benchmark(dir, lang, numPhrases, numLookups, "java serialization");
+
+            PhraseDbMigrator.migrate(dir);
+            System.out.println(String.format("compact: %d bytes", FileUtils.sizeOfDirectory(new File(dir, "resolve"))));
+            benchmark(dir, lang, numPhrases, numLookups, "compact");
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private static void benchmark(File dir, Language lang, int numPhrases, int numLookups, String label) throws DaoException {
+        PhraseAnalyzerObjectDbDao dao = new PhraseAnalyzerObjectDbDao(new IdentityStringNormalizer(), dir, false);
+        try {
+            for (int maxPages : new int[] { 10, 1000 }) {
+                Random random = new Random(2);
+                // warm up, then measure
+                for (int i = 0; i < numLookups / 10; i++) {
+                    dao.getPhraseCounts(lang, "phrase " + random.nextInt(numPhrases), maxPages);
+                }
+                long before = System.nanoTime();
+                long entries = 0;
+                for (int i = 0; i < numLookups; i++) {
+                    PrunedCounts<Integer> counts = dao.getPhraseCounts(lang, "phrase " + random.nextInt(numPhrases), maxPages);
+                    entries += counts.size();
+                }
+                long elapsed = System.nanoTime() - before;
+                System.out.println(String.format("%s, maxPages=%d: %.2f us/lookup, %.1f entries/lookup",
+                        label, maxPages, elapsed / 1000.0 / numLookups, 1.0 * entries / numLookups));
+            }
+        } finally {
+            dao.close();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.wikibrain.phrases;
+
+import gnu.trove.map.TLongFloatMap;
+import gnu.trove.map.hash.TLongFloatHashMap;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestLinkProbabilityTable {
+
+    @Test
+    public void testTable() throws IOException {
+        Random random = new Random(7);
+        TLongFloatMap probabilities = new TLongFloatHashMap();
+        TLongSet subgrams = new TLongHashSet();
+        for (int i = 0; i < 10000; i++) {
+            long h = random.nextLong();
+            probabilities.put(h, random.nextFloat());
+            if (i % 3 == 0) {
+                subgrams.add(h);
+            }
+        }
+        for (int i = 0; i < 5000; i++) {
+            subgrams.add(random.nextLong());
+        }
+        probabilities.put(0L, 0.25f);
+
+        File file = File.createTempFile("link-probability", ".bin");
+        try {
+            LinkProbabilityTable.write(file, probabilities, subgrams);
+            LinkProbabilityTable table = new LinkProbabilityTable(file);
+            assertEquals(probabilities.size(), table.getNumPhrases());
+            assertEquals(subgrams.size(), table.getNumSubgrams());
+
+            for (long h : probabilities.keys()) {
+                assertTrue(table.contains(h));
+                assertEquals(probabilities.get(h), table.getProbability(h), 0.0f);
+                assertEquals(subgrams.contains(h), table.isSubgram(h));
+            }
+            for (long h : subgrams.toArray()) {
+                assertTrue(table.contains(h));
+                assertTrue(table.isSubgram(h));
+                if (!probabilities.containsKey(h)) {
+                    assertTrue(Float.isNaN(table.getProbability(h)));
+                }
+            }
+            for (int i = 0; i < 10000; i++) {
+                long h = random.nextLong();
+                assertFalse(table.contains(h));
+                assertFalse(table.isSubgram(h));
+                assertTrue(Float.isNaN(table.getProbability(h)));
+            }
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+}
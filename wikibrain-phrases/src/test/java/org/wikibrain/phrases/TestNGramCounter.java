@@ -0,0 +1,70 @@
+package org.wikibrain.phrases;
+
+import gnu.trove.map.TLongIntMap;
+import org.junit.Test;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LocalString;
+import org.wikibrain.core.lang.StringNormalizer;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestNGramCounter {
+    static final StringNormalizer LOWERCASE = new StringNormalizer() {
+        @Override
+        public String normalize(Language language, String text) {
+            return text.toLowerCase();
+        }
+
+        @Override
+        public String normalize(LocalString text) {
+            return normalize(text.getLanguage(), text.getString());
+        }
+    };
+
+    @Test
+    public void testCounts() {
+        Language en = Language.getByLangCode("en");
+        NGramCounter counter = new NGramCounter(en, LOWERCASE);
+        counter.addPhrase(Arrays.asList("new", "york"), 1);
+        counter.addPhrase(Arrays.asList("new", "york", "city"), 2);
+        counter.addPhrase(Arrays.asList("york"), 3);
+        counter.addPhrase(Arrays.asList("city", "of", "york"), 4);
+        counter.addPhrase(Arrays.asList("new", "jersey"), 5);
+        assertEquals(5, counter.getNumPhrases());
+        assertEquals(8, counter.getNumSubgrams());
+
+        counter.countPage("New York City is the largest city in New York. York is in England.");
+        counter.countPage("The city of York, not new york city.");
+        assertEquals(2, counter.getNumPages());
+
+        TLongIntMap counts = counter.getCounts();
+        assertEquals(5, counts.size());
+        assertEquals(3, counts.get(1));
+        assertEquals(2, counts.get(2));
+        assertEquals(5, counts.get(3));
+        assertEquals(1, counts.get(4));
+        assertEquals(0, counts.get(5));
+    }
+
+    @Test
+    public void testSentenceBoundaries() {
+        Language en = Language.getByLangCode("en");
+        NGramCounter counter = new NGramCounter(en, LOWERCASE);
+        counter.addPhrase(Arrays.asList("new", "york"), 1);
+        counter.countPage("It is new. York is old.");
+        assertEquals(0, counter.getCounts().get(1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddAfterCounting() {
+        Language en = Language.getByLangCode("en");
+        NGramCounter counter = new NGramCounter(en, LOWERCASE);
+        counter.countPage("nothing to see");
+        counter.addPhrase(Arrays.asList("york"), 3);
+    }
+}
@@ -0,0 +1,102 @@
+package org.wikibrain.phrases;
+
+import org.junit.Test;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestPrunedCountsCodec {
+
+    @Test
+    public void testIntegers() throws IOException, ClassNotFoundException {
+        PrunedCounts<Integer> counts = new PrunedCounts<Integer>(1000);
+        counts.put(349, 700);
+        counts.put(3, 200);
+        counts.put(Integer.MAX_VALUE, 7);
+        counts.put(-5, 7);
+        counts.put(40000000, 1);
+
+        byte bytes[] = PrunedCountsCodec.encodeIntegers(counts);
+        assertTrue(PrunedCountsCodec.isCompact(bytes));
+        PrunedCounts<Integer> decoded = PrunedCountsCodec.decodeIntegers(bytes, 100);
+        assertEquals(1000, decoded.getTotal());
+        assertEquals(new ArrayList<Integer>(counts.keySet()), new ArrayList<Integer>(decoded.keySet()));
+        assertEquals(new ArrayList<Integer>(counts.values()), new ArrayList<Integer>(decoded.values()));
+
+        PrunedCountsCodec.IntCounts arrays = PrunedCountsCodec.decodeIntArrays(bytes, 2);
+        assertEquals(1000, arrays.getTotal());
+        assertArrayEquals(new int[] { 349, 3 }, arrays.getKeys());
+        assertArrayEquals(new int[] { 700, 200 }, arrays.getCounts());
+
+        assertTrue(bytes.length < WpIOUtils.objectToBytes(counts).length / 10);
+    }
+
+    @Test
+    public void testStrings() throws IOException, ClassNotFoundException {
+        PrunedCounts<String> counts = new PrunedCounts<String>(13);
+        counts.put("Bar", 9);
+        counts.put("Zürich ü", 3);
+        counts.put("", 1);
+
+        byte bytes[] = PrunedCountsCodec.encodeStrings(counts);
+        PrunedCounts<String> decoded = PrunedCountsCodec.decodeStrings(bytes, 100);
+        assertEquals(13, decoded.getTotal());
+        assertEquals(Arrays.asList("Bar", "Zürich ü", ""), new ArrayList<String>(decoded.keySet()));
+        assertEquals(Arrays.asList(9, 3, 1), new ArrayList<Integer>(decoded.values()));
+
+        decoded = PrunedCountsCodec.decodeStrings(bytes, 1);
+        assertEquals(Arrays.asList("Bar"), new ArrayList<String>(decoded.keySet()));
+    }
+
+    @Test
+    public void testJavaSerialization() throws IOException, ClassNotFoundException {
+        PrunedCounts<Integer> counts = new PrunedCounts<Integer>(12);
+        counts.put(349, 7);
+        counts.put(3121, 3);
+        byte bytes[] = WpIOUtils.objectToBytes(counts);
+        assertFalse(PrunedCountsCodec.isCompact(bytes));
+
+        PrunedCounts<Integer> decoded = PrunedCountsCodec.decodeIntegers(bytes, 1);
+        assertEquals(12, decoded.getTotal());
+        assertEquals(Arrays.asList(349), new ArrayList<Integer>(decoded.keySet()));
+
+        PrunedCountsCodec.IntCounts arrays = PrunedCountsCodec.decodeIntArrays(bytes, 5);
+        assertArrayEquals(new int[] { 349, 3121 }, arrays.getKeys());
+        assertArrayEquals(new int[] { 7, 3 }, arrays.getCounts());
+    }
+
+    @Test
+    public void testRandom() throws IOException, ClassNotFoundException {
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            PrunedCounts<Integer> counts = randomCounts(random, random.nextInt(50));
+            PrunedCounts<Integer> decoded = PrunedCountsCodec.decodeIntegers(PrunedCountsCodec.encodeIntegers(counts), Integer.MAX_VALUE);
+            assertEquals(counts.getTotal(), decoded.getTotal());
+            assertEquals(new ArrayList<Integer>(counts.keySet()), new ArrayList<Integer>(decoded.keySet()));
+            assertEquals(new ArrayList<Integer>(counts.values()), new ArrayList<Integer>(decoded.values()));
+        }
+    }
+
+    static PrunedCounts<Integer> randomCounts(Random random, int n) {
+        int values[] = new int[n];
+        int total = 0;
+        for (int i = 0; i < n; i++) {
+            values[i] = 1 + (int) (1000 / Math.pow(i + 1, 1.2) * random.nextDouble());
+            total += values[i];
+        }
+        Arrays.sort(values);
+        PrunedCounts<Integer> counts = new PrunedCounts<Integer>(total + random.nextInt(100));
+        for (int i = n - 1; i >= 0; i--) {
+            counts.put(random.nextInt(40000000), values[i]);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,62 @@
+package org.wikibrain.spatial.cookbook;
+
+import com.vividsolutions.jts.geom.Geometry;
+import org.wikibrain.core.cmd.Env;
+import org.wikibrain.core.cmd.EnvBuilder;
+import org.wikibrain.matrix.DenseMatrixWriter;
+import org.wikibrain.matrix.ValueConf;
+import org.wikibrain.spatial.constants.Layers;
+import org.wikibrain.spatial.constants.RefSys;
+import org.wikibrain.spatial.dao.SpatialDataDao;
+import org.wikibrain.spatial.distance.DistanceMatrix;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Writes the geodetic distances in meters between the centers of Wikidata items
+ * to a dense matrix whose row and column ids are item ids.
+ *
+ * Rows are computed and written a block at a time, so the matrix never has to fit
+ * in memory, but it takes two bytes per pair on disk.
+ *
+ * Usage: WriteDistanceMatrix [-c conf] output-file [maxItems]
+ *
+ * @author Shilad Sen
+ */
+public class WriteDistanceMatrix {
+    private static final Logger LOG = LoggerFactory.getLogger(WriteDistanceMatrix.class);
+
+    // A little more than half the circumference of the earth
+    private static final float MAX_DISTANCE = 20100000f;
+
+    public static void main(String args[]) throws Exception {
+        Env env = EnvBuilder.envFromArgs(args);
+        int maxItems = Integer.MAX_VALUE;
+        String path = args[args.length - 1];
+        if (args.length > 1 && args[args.length - 1].matches("\\d+")) {
+            maxItems = Integer.valueOf(args[args.length - 1]);
+            path = args[args.length - 2];
+        }
+
+        SpatialDataDao dao = env.getConfigurator().get(SpatialDataDao.class);
+        Map<Integer, Geometry> geometries = dao.getAllGeometriesInLayer(Layers.WIKIDATA, RefSys.EARTH);
+        List<Integer> itemIds = new ArrayList<Integer>(geometries.keySet());
+        Collections.sort(itemIds);
+        itemIds = itemIds.subList(0, Math.min(maxItems, itemIds.size()));
+
+        int ids[] = new int[itemIds.size()];
+        List<Geometry> items = new ArrayList<Geometry>();
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = itemIds.get(i);
+            items.add(geometries.get(ids[i]));
+        }
+        LOG.info("writing distances between " + ids.length + " items to " + path);
+
+        DenseMatrixWriter writer = new DenseMatrixWriter(new File(path), new ValueConf(0, MAX_DISTANCE));
+        new DistanceMatrix(DistanceMatrix.Formula.VINCENTY).write(writer, ids, items, ids, items);
+        writer.finish();
+    }
+}
@@ -0,0 +1,377 @@
+package org.wikibrain.spatial.dao.embedded;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.apache.commons.io.FileUtils;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.spatial.SpatialContainerMetadata;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The geometries of one layer in one reference system, stored in two memory mapped files.
+ *
+ * <p>
+ * geometries.wkb holds the extended WKB of each geometry, one after another in STR order.
+ * index.bin holds the item ids and WKB offsets in the same order, the item ids sorted
+ * for lookups by id, and a {@link PackedRTree} over the envelopes of the geometries.
+ * </p>
+ *
+ * <p>
+ * Layers are immutable once written. New geometries are collected by a {@link Builder},
+ * which rewrites the whole layer.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class EmbeddedLayer {
+    private static final int MAGIC = 0x57425350;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+
+    /**
+     * The geometry file is mapped in segments of this size.
+     */
+    private static final long SEGMENT_BYTES = 1L << 30;
+
+    private static final String INDEX_FILE = "index.bin";
+    private static final String WKB_FILE = "geometries.wkb";
+
+    private final String layerName;
+    private final String refSysName;
+    private final int size;
+    private final SpatialContainerMetadata.ShapeType shapeType;
+
+    private final ByteBuffer index;
+    private final int idOffset;
+    private final int wkbOffset;
+    private final int sortedIdOffset;
+    private final int sortedPosOffset;
+    private final PackedRTree tree;
+    private final MappedByteBuffer[] wkb;
+
+    public EmbeddedLayer(File dir, String layerName, String refSysName) throws DaoException {
+        this.layerName = layerName;
+        this.refSysName = refSysName;
+        try {
+            this.index = map(new File(dir, INDEX_FILE), 0, -1);
+            if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION) {
+                throw new DaoException("Unrecognized spatial index " + new File(dir, INDEX_FILE));
+            }
+            this.size = index.getInt(8);
+            int type = index.getInt(12);
+            this.shapeType = (type < 0) ? null : SpatialContainerMetadata.ShapeType.values()[type];
+            this.idOffset = HEADER_BYTES;
+            this.wkbOffset = idOffset + 4 * size;
+            this.sortedIdOffset = wkbOffset + 8 * (size + 1);
+            this.sortedPosOffset = sortedIdOffset + 4 * size;
+            this.tree = new PackedRTree(index, sortedPosOffset + 4 * size);
+
+            File wkbFile = new File(dir, WKB_FILE);
+            long length = wkbFile.length();
+            this.wkb = new MappedByteBuffer[(int) ((length + SEGMENT_BYTES - 1) / SEGMENT_BYTES)];
+            for (int i = 0; i < wkb.length; i++) {
+                wkb[i] = map(wkbFile, i * SEGMENT_BYTES, Math.min(SEGMENT_BYTES, length - i * SEGMENT_BYTES));
+            }
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    private static MappedByteBuffer map(File file, long offset, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (length < 0) {
+                length = raf.length();
+            }
+            // The mapping remains valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static boolean exists(File dir) {
+        return new File(dir, INDEX_FILE).isFile() && new File(dir, WKB_FILE).isFile();
+    }
+
+    public String getLayerName() {
+        return layerName;
+    }
+
+    public String getRefSysName() {
+        return refSysName;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public PackedRTree getTree() {
+        return tree;
+    }
+
+    public SpatialContainerMetadata getMetadata() {
+        return new SpatialContainerMetadata(layerName, refSysName, size, shapeType);
+    }
+
+    /**
+     * @return The item id of the geometry at a position.
+     */
+    public int getItemId(int position) {
+        return index.getInt(idOffset + 4 * position);
+    }
+
+    /**
+     * @return The position of the geometry for an item, or -1 if the layer does not contain it.
+     */
+    public int getPosition(int itemId) {
+        int lo = 0, hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int id = index.getInt(sortedIdOffset + 4 * mid);
+            if (id < itemId) {
+                lo = mid + 1;
+            } else if (id > itemId) {
+                hi = mid - 1;
+            } else {
+                return index.getInt(sortedPosOffset + 4 * mid);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The extended WKB of the geometry at a position.
+     */
+    public byte[] getWkb(int position) {
+        long start = index.getLong(wkbOffset + 8 * position);
+        long end = index.getLong(wkbOffset + 8 * (position + 1));
+        byte bytes[] = new byte[(int) (end - start)];
+        int copied = 0;
+        while (copied < bytes.length) {
+            long pos = start + copied;
+            // Each reader needs its own view, since buffer positions are not thread safe
+            ByteBuffer segment = wkb[(int) (pos / SEGMENT_BYTES)].duplicate();
+            segment.position((int) (pos % SEGMENT_BYTES));
+            int n = Math.min(bytes.length - copied, segment.remaining());
+            segment.get(bytes, copied, n);
+            copied += n;
+        }
+        return bytes;
+    }
+
+    public Geometry getGeometryAt(int position) throws DaoException {
+        try {
+            // WKBReaders are not thread safe, but they are cheap to create
+            return new WKBReader().read(getWkb(position));
+        } catch (ParseException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    /**
+     * @return The geometry for an item, or null if the layer does not contain it.
+     */
+    public Geometry getGeometry(int itemId) throws DaoException {
+        int position = getPosition(itemId);
+        return (position < 0) ? null : getGeometryAt(position);
+    }
+
+    /**
+     * @return The positions of geometries whose envelopes intersect the envelope.
+     */
+    public TIntList query(Envelope envelope) {
+        if (envelope.isNull()) {
+            return new TIntArrayList();
+        }
+        return tree.query(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY());
+    }
+
+    /**
+     * Collects the geometries of a layer and writes them out.
+     * Geometries are spooled to a temporary file, so the builder's memory use
+     * is a few dozen bytes per geometry.
+     */
+    public static class Builder {
+        private final File tmpFile;
+        private final DataOutputStream out;
+        private final WKBWriter writer = new WKBWriter(2, true);
+        private long bytes = 0;
+
+        private final TIntArrayList ids = new TIntArrayList();
+        private final TLongArrayList offsets = new TLongArrayList();
+        private final TDoubleArrayList envelopes = new TDoubleArrayList();
+        private SpatialContainerMetadata.ShapeType shapeType = null;
+
+        public Builder() throws DaoException {
+            try {
+                tmpFile = File.createTempFile("wikibrain-spatial", ".wkb");
+                tmpFile.deleteOnExit();
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            } catch (IOException e) {
+                throw new DaoException(e);
+            }
+        }
+
+        /**
+         * Adds all geometries in an existing layer.
+         */
+        public void addAll(EmbeddedLayer layer) throws DaoException {
+            for (int i = 0; i < layer.size(); i++) {
+                add(layer.getItemId(i), layer.getGeometryAt(i));
+            }
+        }
+
+        /**
+         * Adds a geometry. If an item is added more than once, the last geometry wins.
+         */
+        public synchronized void add(int itemId, Geometry g) throws DaoException {
+            byte wkb[] = writer.write(g);
+            try {
+                out.write(wkb);
+            } catch (IOException e) {
+                throw new DaoException(e);
+            }
+            Envelope e = g.getEnvelopeInternal();
+            ids.add(itemId);
+            offsets.add(bytes);
+            envelopes.add(e.getMinX());
+            envelopes.add(e.getMinY());
+            envelopes.add(e.getMaxX());
+            envelopes.add(e.getMaxY());
+            bytes += wkb.length;
+
+            SpatialContainerMetadata.ShapeType type = SpatialContainerMetadata.getShapeTypeFromGeometry(g);
+            if (shapeType == null) {
+                shapeType = type;
+            } else if (shapeType != type) {
+                shapeType = SpatialContainerMetadata.ShapeType.MIXED;
+            }
+        }
+
+        /**
+         * Writes the layer to a directory, replacing any layer already in it.
+         */
+        public synchronized void write(File dir) throws DaoException {
+            try {
+                out.close();
+
+                // Keep only the last geometry for each item
+                TIntIntHashMap last = new TIntIntHashMap();
+                for (int i = 0; i < ids.size(); i++) {
+                    last.put(ids.get(i), i);
+                }
+                int records[] = last.values();
+                Arrays.sort(records);
+                double recordEnvelopes[] = new double[4 * records.length];
+                for (int i = 0; i < records.length; i++) {
+                    for (int j = 0; j < 4; j++) {
+                        recordEnvelopes[4 * i + j] = envelopes.get(4 * records[i] + j);
+                    }
+                }
+                int order[] = PackedRTree.getPackingOrder(recordEnvelopes);
+                int n = order.length;
+                long indexBytes = HEADER_BYTES + 4L * n + 8L * (n + 1) + 8L * n + PackedRTree.getSizeInBytes(n);
+                if (indexBytes > Integer.MAX_VALUE) {
+                    throw new DaoException("Too many geometries for one layer: " + n);
+                }
+
+                File tmpDir = new File(dir.getPath() + ".tmp");
+                FileUtils.deleteQuietly(tmpDir);
+                tmpDir.mkdirs();
+
+                // Geometries and their offsets, in packing order
+                int itemIds[] = new int[n];
+                long wkbOffsets[] = new long[n + 1];
+                double packedEnvelopes[] = new double[4 * n];
+                RandomAccessFile in = new RandomAccessFile(tmpFile, "r");
+                OutputStream wkbOut = new BufferedOutputStream(new FileOutputStream(new File(tmpDir, WKB_FILE)));
+                try {
+                    long pos = 0;
+                    for (int i = 0; i < n; i++) {
+                        int r = records[order[i]];
+                        long start = offsets.get(r);
+                        long end = (r + 1 < offsets.size()) ? offsets.get(r + 1) : bytes;
+                        byte wkb[] = new byte[(int) (end - start)];
+                        in.seek(start);
+                        in.readFully(wkb);
+                        wkbOut.write(wkb);
+                        itemIds[i] = ids.get(r);
+                        wkbOffsets[i] = pos;
+                        System.arraycopy(recordEnvelopes, 4 * order[i], packedEnvelopes, 4 * i, 4);
+                        pos += wkb.length;
+                    }
+                    wkbOffsets[n] = pos;
+                } finally {
+                    in.close();
+                    wkbOut.close();
+                }
+
+                // Item ids sorted, with their positions
+                final long sorted[] = new long[n];
+                for (int i = 0; i < n; i++) {
+                    sorted[i] = ((long) itemIds[i] << 32) | i;
+                }
+                Arrays.sort(sorted);
+
+                DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(new File(tmpDir, INDEX_FILE))));
+                try {
+                    indexOut.writeInt(MAGIC);
+                    indexOut.writeInt(VERSION);
+                    indexOut.writeInt(n);
+                    indexOut.writeInt(shapeType == null ? -1 : shapeType.ordinal());
+                    for (int id : itemIds) {
+                        indexOut.writeInt(id);
+                    }
+                    for (long offset : wkbOffsets) {
+                        indexOut.writeLong(offset);
+                    }
+                    for (long s : sorted) {
+                        indexOut.writeInt((int) (s >> 32));
+                    }
+                    for (long s : sorted) {
+                        indexOut.writeInt((int) s);
+                    }
+                    PackedRTree.write(indexOut, packedEnvelopes);
+                } finally {
+                    indexOut.close();
+                }
+
+                FileUtils.deleteQuietly(dir);
+                if (!tmpDir.renameTo(dir)) {
+                    throw new DaoException("Could not move " + tmpDir + " to " + dir);
+                }
+            } catch (IOException e) {
+                throw new DaoException(e);
+            } finally {
+                tmpFile.delete();
+            }
+        }
+
+        /**
+         * Discards the geometries collected so far.
+         */
+        public synchronized void discard() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            tmpFile.delete();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.wikibrain.spatial.dao.embedded;
+
+import com.typesafe.config.Config;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import gnu.trove.list.TIntList;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.spatial.dao.SpatialContainmentDao;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A containment dao backed by an {@link EmbeddedSpatialDB}.
+ *
+ * Candidates come from the STR-tree of each sub layer, and are tested against a
+ * cached prepared version of the containing geometry.
+ *
+ * @author Shilad Sen
+ */
+public class EmbeddedSpatialContainmentDao implements SpatialContainmentDao {
+
+    private final EmbeddedSpatialDB db;
+
+    public EmbeddedSpatialContainmentDao(EmbeddedSpatialDB db) {
+        this.db = db;
+    }
+
+    @Override
+    public TIntSet getContainedItemIds(Integer itemId, String layerName, String refSysName, Set<String> subLayers, ContainmentOperationType opType) throws DaoException {
+        Geometry g = db.getGeometry(itemId, layerName, refSysName);
+        if (g == null) {
+            throw new DaoException(String.format("Could not find item %d in layer %s (%s)", itemId, layerName, refSysName));
+        }
+        PreparedGeometry pg = db.getPreparedGeometry(Arrays.asList(refSysName, layerName, itemId), g);
+        return getContainedItemIdsPrepared(pg, refSysName, subLayers, opType);
+    }
+
+    @Override
+    public TIntSet getContainedItemIds(Geometry g, String refSysName, Set<String> subLayers, ContainmentOperationType opType) throws DaoException {
+        return getContainedItemIdsPrepared(db.getPreparedGeometry(g, g), refSysName, subLayers, opType);
+    }
+
+    /**
+     * Returns the items in any of the sub layers that are contained by (or intersect) the geometry.
+     */
+    private TIntSet getContainedItemIdsPrepared(PreparedGeometry pg, String refSysName, Set<String> subLayers, ContainmentOperationType opType) throws DaoException {
+        if (subLayers.size() == 0) throw new DaoException("Cannot get containment without any layers");
+        if (opType != ContainmentOperationType.CONTAINMENT && opType != ContainmentOperationType.INTERSECTION) {
+            throw new DaoException("Illegal containment operation type (not supported): " + opType);
+        }
+
+        Envelope envelope = pg.getGeometry().getEnvelopeInternal();
+        TIntSet result = new TIntHashSet();
+        for (String subLayer : subLayers) {
+            EmbeddedLayer layer = db.getLayer(subLayer, refSysName);
+            if (layer == null) {
+                continue;
+            }
+            PackedRTree tree = layer.getTree();
+            TIntList candidates = layer.query(envelope);
+            for (int i = 0; i < candidates.size(); i++) {
+                int pos = candidates.get(i);
+                // A contained geometry must have a contained envelope
+                if (opType == ContainmentOperationType.CONTAINMENT && !(
+                        envelope.contains(tree.getMinX(0, pos), tree.getMinY(0, pos))
+                    &&  envelope.contains(tree.getMaxX(0, pos), tree.getMaxY(0, pos)))) {
+                    continue;
+                }
+                int itemId = layer.getItemId(pos);
+                if (result.contains(itemId)) {
+                    continue;
+                }
+                Geometry candidate = layer.getGeometryAt(pos);
+                boolean matches = (opType == ContainmentOperationType.CONTAINMENT)
+                        ? pg.contains(candidate) : pg.intersects(candidate);
+                if (matches) {
+                    result.add(itemId);
+                }
+            }
+        }
+        return result;
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<EmbeddedSpatialContainmentDao> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return SpatialContainmentDao.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "spatial.dao.spatialContainment";
+        }
+
+        @Override
+        public EmbeddedSpatialContainmentDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.hasPath("type") || !config.getString("type").equals("embedded")) {
+                return null;
+            }
+            return new EmbeddedSpatialContainmentDao(getConfigurator().get(EmbeddedSpatialDB.class, config.getString("dataSource")));
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.wikibrain.spatial.dao.embedded;
+
+import com.typesafe.config.Config;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-process spatial database that stores each layer as an {@link EmbeddedLayer}
+ * in directory/refSysName/layerName.
+ *
+ * <p>
+ * Layers are memory mapped when first used, so lookups need no database server.
+ * Geometries saved between beginSave() and endSave() are collected in builders and
+ * written out, merged with any existing geometries in their layers, by endSave().
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class EmbeddedSpatialDB {
+    private static final Logger LOG = LoggerFactory.getLogger(EmbeddedSpatialDB.class);
+
+    /**
+     * Number of prepared geometries that are cached.
+     */
+    private static final int PREPARED_CACHE_SIZE = 5000;
+
+    private final File dir;
+    private final ConcurrentHashMap<String, EmbeddedLayer> layers = new ConcurrentHashMap<String, EmbeddedLayer>();
+    private final Map<String, EmbeddedLayer.Builder> builders = new HashMap<String, EmbeddedLayer.Builder>();
+
+    // Access ordered, so the least recently used prepared geometry is evicted first
+    private final Map<Object, PreparedGeometry> prepared = new LinkedHashMap<Object, PreparedGeometry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, PreparedGeometry> eldest) {
+            return size() > PREPARED_CACHE_SIZE;
+        }
+    };
+
+    public EmbeddedSpatialDB(File dir) {
+        this.dir = dir;
+        dir.mkdirs();
+    }
+
+    private File getLayerDir(String layerName, String refSysName) {
+        return new File(new File(dir, refSysName), layerName);
+    }
+
+    private static String getKey(String layerName, String refSysName) {
+        return refSysName + "/" + layerName;
+    }
+
+    /**
+     * @return The layer, or null if it does not exist.
+     */
+    public EmbeddedLayer getLayer(String layerName, String refSysName) throws DaoException {
+        String key = getKey(layerName, refSysName);
+        EmbeddedLayer layer = layers.get(key);
+        if (layer == null) {
+            File layerDir = getLayerDir(layerName, refSysName);
+            if (!EmbeddedLayer.exists(layerDir)) {
+                return null;
+            }
+            layer = new EmbeddedLayer(layerDir, layerName, refSysName);
+            EmbeddedLayer existing = layers.putIfAbsent(key, layer);
+            if (existing != null) {
+                layer = existing;
+            }
+        }
+        return layer;
+    }
+
+    /**
+     * @return The geometry of an item in a layer, or null if it does not exist.
+     */
+    public Geometry getGeometry(int itemId, String layerName, String refSysName) throws DaoException {
+        EmbeddedLayer layer = getLayer(layerName, refSysName);
+        return (layer == null) ? null : layer.getGeometry(itemId);
+    }
+
+    /**
+     * Returns a prepared version of a geometry, which is much faster for repeated
+     * contains and intersects tests.
+     *
+     * @param key Identifies the geometry, for example its layer and item id.
+     */
+    public PreparedGeometry getPreparedGeometry(Object key, Geometry g) {
+        synchronized (prepared) {
+            PreparedGeometry pg = prepared.get(key);
+            if (pg != null) {
+                return pg;
+            }
+        }
+        // Preparing happens lazily, so this is cheap and can happen outside the lock
+        PreparedGeometry pg = PreparedGeometryFactory.prepare(g);
+        synchronized (prepared) {
+            prepared.put(key, pg);
+        }
+        return pg;
+    }
+
+    public Set<String> getAllReferenceSystems() {
+        Set<String> result = new HashSet<String>();
+        File children[] = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory() && !getLayersInReferenceSystem(child.getName()).isEmpty()) {
+                    result.add(child.getName());
+                }
+            }
+        }
+        return result;
+    }
+
+    public Set<String> getLayersInReferenceSystem(String refSysName) {
+        Set<String> result = new HashSet<String>();
+        File children[] = new File(dir, refSysName).listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (EmbeddedLayer.exists(child)) {
+                    result.add(child.getName());
+                }
+            }
+        }
+        return result;
+    }
+
+    public synchronized void beginSave() throws DaoException {
+        for (EmbeddedLayer.Builder builder : builders.values()) {
+            builder.discard();
+        }
+        builders.clear();
+    }
+
+    public void save(int itemId, String layerName, String refSysName, Geometry g) throws DaoException {
+        EmbeddedLayer.Builder builder;
+        synchronized (this) {
+            String key = getKey(layerName, refSysName);
+            builder = builders.get(key);
+            if (builder == null) {
+                builder = new EmbeddedLayer.Builder();
+                EmbeddedLayer existing = getLayer(layerName, refSysName);
+                if (existing != null) {
+                    builder.addAll(existing);
+                }
+                builders.put(key, builder);
+            }
+        }
+        builder.add(itemId, g);
+    }
+
+    public synchronized void endSave() throws DaoException {
+        for (Map.Entry<String, EmbeddedLayer.Builder> entry : builders.entrySet()) {
+            String key = entry.getKey();
+            int i = key.indexOf('/');
+            String refSysName = key.substring(0, i);
+            String layerName = key.substring(i + 1);
+            LOG.info("writing spatial layer " + layerName + " in " + refSysName);
+            entry.getValue().write(getLayerDir(layerName, refSysName));
+            layers.remove(key);
+        }
+        builders.clear();
+        clearPreparedGeometries();
+    }
+
+    public synchronized void removeLayer(String refSysName, String layerName) {
+        String key = getKey(layerName, refSysName);
+        EmbeddedLayer.Builder builder = builders.remove(key);
+        if (builder != null) {
+            builder.discard();
+        }
+        layers.remove(key);
+        FileUtils.deleteQuietly(getLayerDir(layerName, refSysName));
+        clearPreparedGeometries();
+    }
+
+    private void clearPreparedGeometries() {
+        synchronized (prepared) {
+            prepared.clear();
+        }
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<EmbeddedSpatialDB> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return EmbeddedSpatialDB.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "spatial.dao.dataSource";
+        }
+
+        @Override
+        public EmbeddedSpatialDB get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.getString("dbtype").equals("embedded")) {
+                return null;
+            }
+            return new EmbeddedSpatialDB(new File(config.getString("directory")));
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package org.wikibrain.spatial.dao.embedded;
+
+import com.typesafe.config.Config;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.WikiBrainException;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.Title;
+import org.wikibrain.spatial.SpatialContainerMetadata;
+import org.wikibrain.spatial.constants.Precision;
+import org.wikibrain.spatial.constants.RefSys;
+import org.wikibrain.spatial.dao.SpatialDataDao;
+import org.wikibrain.wikidata.WikidataDao;
+
+import java.util.*;
+
+/**
+ * A spatial data dao backed by an {@link EmbeddedSpatialDB}.
+ *
+ * @author Shilad Sen
+ */
+public class EmbeddedSpatialDataDao implements SpatialDataDao {
+
+    private final EmbeddedSpatialDB db;
+    private final WikidataDao wikidataDao;
+    private final LocalPageDao localPageDao;
+
+    public EmbeddedSpatialDataDao(EmbeddedSpatialDB db, WikidataDao wikidataDao, LocalPageDao localPageDao) {
+        this.db = db;
+        this.wikidataDao = wikidataDao;
+        this.localPageDao = localPageDao;
+    }
+
+    @Override
+    public Geometry getGeometry(int itemId, String layerName, String refSysName) throws DaoException {
+        return db.getGeometry(itemId, layerName, refSysName);
+    }
+
+    @Override
+    public Geometry getGeometry(int itemId, String layerName) throws DaoException {
+        return getGeometry(itemId, layerName, RefSys.EARTH);
+    }
+
+    @Override
+    public Geometry getGeometry(int itemId, String layerName, Precision.LatLonPrecision minPrecision) throws DaoException {
+        return filterByPrecision(getGeometry(itemId, layerName), minPrecision);
+    }
+
+    @Override
+    public Geometry getGeometry(String articleName, Language language, String layerName) throws DaoException {
+        return getGeometry(articleName, language, layerName, RefSys.EARTH);
+    }
+
+    @Override
+    public Geometry getGeometry(String articleName, Language language, String layerName, Precision.LatLonPrecision minPrecision) throws DaoException {
+        return filterByPrecision(getGeometry(articleName, language, layerName), minPrecision);
+    }
+
+    @Override
+    public Geometry getGeometry(String articleName, Language language, String layerName, String refSysName) throws DaoException {
+        LocalPage lp = localPageDao.getByTitle(new Title(articleName, language), NameSpace.ARTICLE);
+        if (lp == null) return null;
+        Integer id = wikidataDao.getItemId(lp);
+        if (id == null) throw new DaoException("Could not find Wikidata item for \"" + lp.toString() + "\"");
+        return getGeometry(id, layerName, refSysName);
+    }
+
+    private Geometry filterByPrecision(Geometry g, Precision.LatLonPrecision minPrecision) {
+        if (g == null) return null;
+        if (!(g instanceof Point)) return g;
+        if (Precision.isGreaterThanOrEqualTo(Precision.getLatLonPrecision((Point)g), minPrecision)) {
+            return g;
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public Map<String, Geometry> getGeometries(int itemId) throws DaoException {
+        Map<String, Geometry> result = new HashMap<String, Geometry>();
+        for (String refSys : getAllRefSysNames()) {
+            for (String layer : getAllLayerNames(refSys)) {
+                Geometry g = getGeometry(itemId, layer, refSys);
+                if (g != null) {
+                    result.put(layer, g);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return All geometries in the layer, or null if it is empty or does not exist.
+     */
+    @Override
+    public Map<Integer, Geometry> getAllGeometriesInLayer(String layerName, String refSysName) throws DaoException {
+        EmbeddedLayer layer = db.getLayer(layerName, refSysName);
+        if (layer == null || layer.size() == 0) {
+            return null;
+        }
+        Map<Integer, Geometry> geometries = new HashMap<Integer, Geometry>();
+        for (int i = 0; i < layer.size(); i++) {
+            geometries.put(layer.getItemId(i), layer.getGeometryAt(i));
+        }
+        return geometries;
+    }
+
+    @Override
+    public Map<Integer, Geometry> getAllGeometriesInLayer(String layerName) throws DaoException {
+        return getAllGeometriesInLayer(layerName, RefSys.EARTH);
+    }
+
+    @Override
+    public Map<Integer, Geometry> getAllGeometriesInLayer(String layerName, Precision.LatLonPrecision minPrecision) throws DaoException {
+        Map<Integer, Geometry> geoms = getAllGeometriesInLayer(layerName);
+        if (geoms != null) {
+            Iterator<Geometry> iter = geoms.values().iterator();
+            while (iter.hasNext()) {
+                if (filterByPrecision(iter.next(), minPrecision) == null) {
+                    iter.remove();
+                }
+            }
+        }
+        return geoms;
+    }
+
+    @Override
+    public Map<Integer, Geometry> getAllGeometriesInLayer(String layerName, String[] notInLayers, String refSysName) throws DaoException {
+        Map<Integer, Geometry> geoms = getAllGeometriesInLayer(layerName, refSysName);
+        if (geoms != null) {
+            for (String notInLayer : notInLayers) {
+                EmbeddedLayer layer = db.getLayer(notInLayer, refSysName);
+                if (layer != null) {
+                    for (int i = 0; i < layer.size(); i++) {
+                        geoms.remove(layer.getItemId(i));
+                    }
+                }
+            }
+        }
+        return geoms;
+    }
+
+    @Override
+    public Map<Integer, Geometry> getBulkGeometriesInLayer(List<Integer> idList, String layerName, String refSysName) throws DaoException {
+        Map<Integer, Geometry> geometries = new HashMap<Integer, Geometry>();
+        EmbeddedLayer layer = db.getLayer(layerName, refSysName);
+        if (layer != null) {
+            for (Integer id : idList) {
+                Geometry g = layer.getGeometry(id);
+                if (g != null) {
+                    geometries.put(id, g);
+                }
+            }
+        }
+        return geometries;
+    }
+
+    @Override
+    public Iterable<String> getAllRefSysNames() throws DaoException {
+        return db.getAllReferenceSystems();
+    }
+
+    @Override
+    public Iterable<String> getAllLayerNames(String refSysName) throws DaoException {
+        return db.getLayersInReferenceSystem(refSysName);
+    }
+
+    @Override
+    public SpatialContainerMetadata getReferenceSystemMetadata(String refSysName) throws DaoException {
+        try {
+            SpatialContainerMetadata result = null;
+            for (String layerName : getAllLayerNames(refSysName)) {
+                if (result == null) {
+                    result = getLayerMetadata(layerName, refSysName);
+                } else {
+                    result.merge(getLayerMetadata(layerName, refSysName));
+                }
+            }
+            if (result == null) {
+                throw new DaoException("No layers in reference system " + refSysName);
+            }
+            result.toReferenceSystem();
+            return result;
+        } catch (WikiBrainException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public SpatialContainerMetadata getLayerMetadata(String layerName, String refSysName) throws DaoException {
+        EmbeddedLayer layer = db.getLayer(layerName, refSysName);
+        if (layer == null) {
+            throw new DaoException(String.format("No layer %s in reference system %s", layerName, refSysName));
+        }
+        return layer.getMetadata();
+    }
+
+    @Override
+    public void beginSaveGeometries() throws DaoException {
+        db.beginSave();
+    }
+
+    @Override
+    public void endSaveGeometries() throws DaoException {
+        db.endSave();
+    }
+
+    @Override
+    public void saveGeometry(int itemId, String layerName, String refSysName, Geometry g) throws DaoException {
+        db.save(itemId, layerName, refSysName, g);
+    }
+
+    @Override
+    public void removeLayer(String refSysName, String layerName) throws DaoException {
+        db.removeLayer(refSysName, layerName);
+    }
+
+    /**
+     * Layers are packed when they are written, so there is nothing to do.
+     */
+    @Override
+    public void optimize() throws DaoException {
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<EmbeddedSpatialDataDao> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return SpatialDataDao.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "spatial.dao.spatialData";
+        }
+
+        @Override
+        public EmbeddedSpatialDataDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.hasPath("type") || !config.getString("type").equals("embedded")) {
+                return null;
+            }
+            return new EmbeddedSpatialDataDao(
+                    getConfigurator().get(EmbeddedSpatialDB.class, config.getString("dataSource")),
+                    getConfigurator().get(WikidataDao.class),
+                    getConfigurator().get(LocalPageDao.class));
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package org.wikibrain.spatial.dao.embedded;
+
+import com.typesafe.config.Config;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import gnu.trove.list.TIntList;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.geotools.referencing.GeodeticCalculator;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.spatial.dao.SpatialNeighborDao;
+import org.wikibrain.spatial.util.WikiBrainSpatialUtils;
+
+import java.util.*;
+
+/**
+ * A neighbor dao backed by an {@link EmbeddedSpatialDB}.
+ *
+ * Distances passed to getNeighboringItemIds are in degrees, as in the PostGIS dao.
+ *
+ * @author Shilad Sen
+ */
+public class EmbeddedSpatialNeighborDao implements SpatialNeighborDao {
+
+    private final EmbeddedSpatialDB db;
+
+    public EmbeddedSpatialNeighborDao(EmbeddedSpatialDB db) {
+        this.db = db;
+    }
+
+    private Geometry getGeometry(Integer itemId, String layerName, String refSysName) throws DaoException {
+        Geometry g = db.getGeometry(itemId, layerName, refSysName);
+        if (g == null) {
+            throw new DaoException(String.format("Could not find item %d in layer %s (%s)", itemId, layerName, refSysName));
+        }
+        return g;
+    }
+
+    @Override
+    public TIntSet getNeighboringItemIds(Integer itemId, String layerName, String refSysName, Set<String> subLayers, double minDist, double maxDist) throws DaoException {
+        return getNeighboringItemIds(getGeometry(itemId, layerName, refSysName), refSysName, subLayers, minDist, maxDist);
+    }
+
+    @Override
+    public TIntSet getNeighboringItemIds(Geometry g, String refSysName, Set<String> subLayers, double minDist, double maxDist) throws DaoException {
+        if (subLayers.size() == 0) throw new DaoException("Cannot get containment without any layers");
+
+        Envelope envelope = new Envelope(g.getEnvelopeInternal());
+        envelope.expandBy(maxDist);
+        TIntSet result = new TIntHashSet();
+        for (String subLayer : subLayers) {
+            EmbeddedLayer layer = db.getLayer(subLayer, refSysName);
+            if (layer == null) {
+                continue;
+            }
+            TIntList candidates = layer.query(envelope);
+            for (int i = 0; i < candidates.size(); i++) {
+                int pos = candidates.get(i);
+                double d = g.distance(layer.getGeometryAt(pos));
+                if (d <= maxDist && d > minDist) {
+                    result.add(layer.getItemId(pos));
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public TIntSet getMaxDistanceKmItemIds(Integer itemId, String layerName, String refSysName, Set<String> subLayers, double maxDist) throws DaoException {
+        return getNeighboringItemIds(itemId, layerName, refSysName, subLayers, 0, maxDist / 112);
+    }
+
+    @Override
+    public TIntSet getMaxDistanceKmItemIds(Geometry g, String refSysName, Set<String> subLayers, double maxDist) throws DaoException {
+        return getNeighboringItemIds(g, refSysName, subLayers, 0, maxDist / 112);
+    }
+
+    @Override
+    public Map<Integer, Geometry> getKNNeighbors(Integer itemId, int k, String layerName, String refSysName, Set<Integer> excludeSet) throws DaoException {
+        return getKNNeighbors(getGeometry(itemId, layerName, refSysName), k, layerName, refSysName, excludeSet);
+    }
+
+    /**
+     * Returns the k geometries closest to the geometry, ordered by their orthodromic distance.
+     * Candidates come from a box around the geometry that doubles until it holds k items.
+     * Nearer items can lie just outside that box, especially at high latitudes, so the
+     * candidates are then read again from a box that covers the distance to the kth one.
+     */
+    @Override
+    public Map<Integer, Geometry> getKNNeighbors(Geometry g, int k, String layerName, String refSysName, Set<Integer> excludeSet) throws DaoException {
+        Map<Integer, Geometry> result = new LinkedHashMap<Integer, Geometry>();
+        EmbeddedLayer layer = db.getLayer(layerName, refSysName);
+        if (layer == null || k <= 0) {
+            return result;
+        }
+
+        Envelope envelope;
+        TIntList candidates;
+        for (double radius = 0.01 * k; ; radius *= 2) {
+            envelope = new Envelope(g.getEnvelopeInternal());
+            envelope.expandBy(radius);
+            candidates = layer.query(envelope);
+            int n = 0;
+            for (int i = 0; i < candidates.size(); i++) {
+                if (!excludeSet.contains(layer.getItemId(candidates.get(i)))) {
+                    n++;
+                }
+            }
+            if (n >= k || radius >= 180) {
+                break;
+            }
+        }
+
+        final Map<Integer, Double> distances = new HashMap<Integer, Double>();
+        Map<Integer, Geometry> geometries = new HashMap<Integer, Geometry>();
+        List<Integer> order = rankByDistance(g, layer, candidates, excludeSet, distances, geometries);
+        if (order.size() >= k) {
+            Envelope covering = getCoveringEnvelope(g, distances.get(order.get(k - 1)));
+            if (!envelope.contains(covering)) {
+                distances.clear();
+                geometries.clear();
+                order = rankByDistance(g, layer, layer.query(covering), excludeSet, distances, geometries);
+            }
+        }
+        for (Integer id : order.subList(0, Math.min(k, order.size()))) {
+            result.put(id, geometries.get(id));
+        }
+        return result;
+    }
+
+    /**
+     * Measures the orthodromic distance from the geometry to each candidate that is not
+     * excluded, and returns the candidates' item ids from nearest to farthest.
+     */
+    private List<Integer> rankByDistance(Geometry g, EmbeddedLayer layer, TIntList candidates, Set<Integer> excludeSet,
+                                         final Map<Integer, Double> distances, Map<Integer, Geometry> geometries) throws DaoException {
+        GeodeticCalculator geoCalc = new GeodeticCalculator();
+        geoCalc.setStartingGeographicPoint(g.getCoordinate().x, g.getCoordinate().y);
+        for (int i = 0; i < candidates.size(); i++) {
+            int pos = candidates.get(i);
+            int itemId = layer.getItemId(pos);
+            if (excludeSet.contains(itemId)) {
+                continue;
+            }
+            Geometry geometry = layer.getGeometryAt(pos);
+            geoCalc.setDestinationGeographicPoint(geometry.getCoordinate().x, geometry.getCoordinate().y);
+            distances.put(itemId, geoCalc.getOrthodromicDistance());
+            geometries.put(itemId, geometry);
+        }
+
+        List<Integer> order = new ArrayList<Integer>(distances.keySet());
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i, Integer j) {
+                return Double.compare(distances.get(i), distances.get(j));
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Returns a box in degrees around the geometry that holds every point within the given
+     * number of meters of its first coordinate. The angular distance is taken on a sphere
+     * slightly smaller than the earth, so the box also covers distances on the ellipsoid.
+     */
+    private Envelope getCoveringEnvelope(Geometry g, double meters) {
+        double radians = meters / (0.99 * WikiBrainSpatialUtils.EARTH_RADIUS);
+        double lat = Math.toRadians(g.getCoordinate().y);
+        double dLat = Math.toDegrees(radians);
+        double dLon;
+        if (radians >= Math.PI / 2 - Math.abs(lat)) {
+            dLon = 360;     // the cap holds a pole
+        } else {
+            dLon = Math.toDegrees(Math.asin(Math.sin(radians) / Math.cos(lat)));
+        }
+        Envelope envelope = new Envelope(g.getEnvelopeInternal());
+        envelope.expandToInclude(g.getCoordinate().x - dLon, g.getCoordinate().y - dLat);
+        envelope.expandToInclude(g.getCoordinate().x + dLon, g.getCoordinate().y + dLat);
+        return envelope;
+    }
+
+    @Override
+    public Map<Integer, Geometry> getNeighbors(Integer itemId, String layerName, String refSysName, Set<Integer> excludeSet) throws DaoException {
+        Geometry g = getGeometry(itemId, layerName, refSysName);
+        PreparedGeometry pg = db.getPreparedGeometry(Arrays.asList(refSysName, layerName, itemId), g);
+        return getIntersecting(pg, layerName, refSysName, excludeSet);
+    }
+
+    @Override
+    public Map<Integer, Geometry> getNeighbors(Geometry g, String layerName, String refSysName, Set<Integer> excludeSet) throws DaoException {
+        return getIntersecting(db.getPreparedGeometry(g, g), layerName, refSysName, excludeSet);
+    }
+
+    /**
+     * Returns the geometries in the layer that intersect the geometry.
+     */
+    private Map<Integer, Geometry> getIntersecting(PreparedGeometry pg, String layerName, String refSysName, Set<Integer> excludeSet) throws DaoException {
+        Map<Integer, Geometry> result = new HashMap<Integer, Geometry>();
+        EmbeddedLayer layer = db.getLayer(layerName, refSysName);
+        if (layer == null) {
+            return result;
+        }
+        TIntList candidates = layer.query(pg.getGeometry().getEnvelopeInternal());
+        for (int i = 0; i < candidates.size(); i++) {
+            int pos = candidates.get(i);
+            int itemId = layer.getItemId(pos);
+            if (excludeSet.contains(itemId)) {
+                continue;
+            }
+            Geometry candidate = layer.getGeometryAt(pos);
+            if (pg.intersects(candidate)) {
+                result.put(itemId, candidate);
+            }
+        }
+        return result;
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<EmbeddedSpatialNeighborDao> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return SpatialNeighborDao.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "spatial.dao.spatialNeighbor";
+        }
+
+        @Override
+        public EmbeddedSpatialNeighborDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.hasPath("type") || !config.getString("type").equals("embedded")) {
+                return null;
+            }
+            return new EmbeddedSpatialNeighborDao(getConfigurator().get(EmbeddedSpatialDB.class, config.getString("dataSource")));
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package org.wikibrain.spatial.dao.embedded;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A static R-tree packed with the Sort-Tile-Recursive algorithm.
+ *
+ * <p>
+ * The items of the tree are stored in STR order, so each leaf node covers NODE_SIZE
+ * consecutive items, and each node at a higher level covers NODE_SIZE consecutive nodes
+ * of the level below. The tree therefore needs no pointers: it is just the envelopes of
+ * each level, written one level after another, and can be searched directly from a
+ * memory mapped file.
+ * </p>
+ *
+ * <p>
+ * Level 0 holds the envelopes of the items themselves, and the last level holds the
+ * single root envelope.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class PackedRTree {
+    public static final int NODE_SIZE = 16;
+
+    private final ByteBuffer buffer;
+    private final int numLevels;
+    private final int counts[];
+    private final int offsets[];
+
+    /**
+     * Reads a tree written by write() starting at the offset of the buffer.
+     */
+    public PackedRTree(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.numLevels = buffer.getInt(offset);
+        this.counts = new int[numLevels];
+        this.offsets = new int[numLevels];
+        int pos = offset + 4;
+        for (int i = 0; i < numLevels; i++) {
+            counts[i] = buffer.getInt(pos);
+            offsets[i] = pos + 4;
+            pos += 4 + 32 * counts[i];
+        }
+    }
+
+    /**
+     * @return The number of items in the tree.
+     */
+    public int size() {
+        return numLevels == 0 ? 0 : counts[0];
+    }
+
+    public int getNumLevels() {
+        return numLevels;
+    }
+
+    public int getNumNodes(int level) {
+        return counts[level];
+    }
+
+    public double getMinX(int level, int node) { return buffer.getDouble(offsets[level] + 32 * node); }
+    public double getMinY(int level, int node) { return buffer.getDouble(offsets[level] + 32 * node + 8); }
+    public double getMaxX(int level, int node) { return buffer.getDouble(offsets[level] + 32 * node + 16); }
+    public double getMaxY(int level, int node) { return buffer.getDouble(offsets[level] + 32 * node + 24); }
+
+    /**
+     * @return The first child of a node, in the level below it.
+     */
+    public int getFirstChild(int node) {
+        return node * NODE_SIZE;
+    }
+
+    /**
+     * @return One past the last child of a node, in the level below it.
+     */
+    public int getEndChild(int level, int node) {
+        return Math.min(counts[level - 1], (node + 1) * NODE_SIZE);
+    }
+
+    /**
+     * Returns the positions of the items whose envelopes intersect the query envelope.
+     */
+    public TIntList query(double minX, double minY, double maxX, double maxY) {
+        TIntList result = new TIntArrayList();
+        if (numLevels == 0) {
+            return result;
+        }
+        // Pairs of (level, node) still to visit
+        TIntArrayList stack = new TIntArrayList();
+        stack.add(numLevels - 1);
+        stack.add(0);
+        while (!stack.isEmpty()) {
+            int node = stack.removeAt(stack.size() - 1);
+            int level = stack.removeAt(stack.size() - 1);
+            if (getMinX(level, node) > maxX || getMaxX(level, node) < minX
+            ||  getMinY(level, node) > maxY || getMaxY(level, node) < minY) {
+                continue;
+            }
+            if (level == 0) {
+                result.add(node);
+            } else {
+                for (int child = getFirstChild(node); child < getEndChild(level, node); child++) {
+                    stack.add(level - 1);
+                    stack.add(child);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the order in which items should be stored so they can be packed.
+     *
+     * @param envelopes minX, minY, maxX, maxY of each item.
+     * @return The indexes of the items, in STR order.
+     */
+    public static int[] getPackingOrder(final double envelopes[]) {
+        int n = envelopes.length / 4;
+        Integer order[] = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        // Sort into vertical slices by x, then each slice by y
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i, Integer j) {
+                return Double.compare(envelopes[4*i] + envelopes[4*i+2], envelopes[4*j] + envelopes[4*j+2]);
+            }
+        });
+        int numLeaves = (n + NODE_SIZE - 1) / NODE_SIZE;
+        int numSlices = (int) Math.ceil(Math.sqrt(numLeaves));
+        int sliceSize = numSlices * NODE_SIZE;
+        for (int start = 0; start < n; start += sliceSize) {
+            Arrays.sort(order, start, Math.min(n, start + sliceSize), new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i, Integer j) {
+                    return Double.compare(envelopes[4*i+1] + envelopes[4*i+3], envelopes[4*j+1] + envelopes[4*j+3]);
+                }
+            });
+        }
+        int result[] = new int[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+
+    /**
+     * Writes the tree for items that are already in packing order.
+     *
+     * @param out
+     * @param envelopes minX, minY, maxX, maxY of each item, in packing order.
+     */
+    public static void write(DataOutput out, double envelopes[]) throws IOException {
+        int n = envelopes.length / 4;
+        int numLevels = 0;
+        if (n > 0) {
+            numLevels = 1;
+            for (int count = n; count > 1; count = (count + NODE_SIZE - 1) / NODE_SIZE) {
+                numLevels++;
+            }
+        }
+        out.writeInt(numLevels);
+        double level[] = envelopes;
+        for (int l = 0; l < numLevels; l++) {
+            int count = level.length / 4;
+            out.writeInt(count);
+            for (double d : level) {
+                out.writeDouble(d);
+            }
+            double parent[] = new double[4 * ((count + NODE_SIZE - 1) / NODE_SIZE)];
+            for (int node = 0; node < parent.length / 4; node++) {
+                double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+                double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+                for (int child = node * NODE_SIZE; child < Math.min(count, (node + 1) * NODE_SIZE); child++) {
+                    minX = Math.min(minX, level[4*child]);
+                    minY = Math.min(minY, level[4*child+1]);
+                    maxX = Math.max(maxX, level[4*child+2]);
+                    maxY = Math.max(maxY, level[4*child+3]);
+                }
+                parent[4*node] = minX;
+                parent[4*node+1] = minY;
+                parent[4*node+2] = maxX;
+                parent[4*node+3] = maxY;
+            }
+            level = parent;
+        }
+    }
+
+    /**
+     * @return The number of bytes write() produces for n items.
+     */
+    public static long getSizeInBytes(int n) {
+        long bytes = 4;
+        if (n == 0) {
+            return bytes;
+        }
+        for (int count = n; ; count = (count + NODE_SIZE - 1) / NODE_SIZE) {
+            bytes += 4 + 32L * count;
+            if (count == 1) {
+                break;
+            }
+        }
+        return bytes;
+    }
+}
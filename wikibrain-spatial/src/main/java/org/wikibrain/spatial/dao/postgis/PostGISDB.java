@@ -482,6 +482,9 @@ public class PostGISDB {
 
         @Override
         public PostGISDB get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (config.getString("dbtype").equals("embedded")) {
+                return null;
+            }
 
             try {
 
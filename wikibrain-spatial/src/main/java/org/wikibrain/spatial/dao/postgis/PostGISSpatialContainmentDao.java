@@ -142,6 +142,9 @@ public class PostGISSpatialContainmentDao implements SpatialContainmentDao {
 
         @Override
         public PostGISSpatialContainmentDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (config.hasPath("type") && !config.getString("type").equals("postgis")) {
+                return null;
+            }
 
             return new PostGISSpatialContainmentDao( getConfigurator().get(PostGISDB.class, config.getString("dataSource")));
 
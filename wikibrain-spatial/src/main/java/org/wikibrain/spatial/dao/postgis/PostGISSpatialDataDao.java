@@ -311,6 +311,9 @@ public class PostGISSpatialDataDao implements SpatialDataDao {
         @Override
         public PostGISSpatialDataDao get(String name, Config config,
                                          Map<String, String> runtimeParams) throws ConfigurationException {
+            if (config.hasPath("type") && !config.getString("type").equals("postgis")) {
+                return null;
+            }
 
             return new PostGISSpatialDataDao( getConfigurator().get(PostGISDB.class, config.getString("dataSource")),
                     getConfigurator().get(WikidataDao.class), getConfigurator().get(LocalPageDao.class));
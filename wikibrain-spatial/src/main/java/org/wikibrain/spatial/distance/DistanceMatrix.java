@@ -0,0 +1,383 @@
+package org.wikibrain.spatial.distance;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+import org.apache.commons.math3.util.FastMath;
+import org.wikibrain.matrix.DenseMatrixRow;
+import org.wikibrain.matrix.DenseMatrixWriter;
+import org.wikibrain.spatial.util.WikiBrainSpatialUtils;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Computes matrices of distances in meters between the centers of geometries.
+ *
+ * <p>
+ * Coordinates are extracted into primitive arrays once, and the matrix is computed in
+ * square tiles that are spread across threads. Haversine distances are computed from
+ * the chord between unit vectors, which needs no trigonometry in the inner loop.
+ * Vincenty distances use the WGS84 ellipsoid, like GeoTools' GeodeticCalculator.
+ * </p>
+ *
+ * <p>
+ * Matrices too large for memory can be streamed a block of rows at a time to a
+ * {@link DenseMatrixWriter}. The blocks of all threads together stay within a
+ * memory budget, which can be changed with {@link #setWriteBudget(long)}.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class DistanceMatrix {
+    public static enum Formula {
+        HAVERSINE,
+        VINCENTY
+    }
+
+    /**
+     * Rows and columns per tile.
+     */
+    private static final int TILE_SIZE = 256;
+
+    /**
+     * Default bytes of row blocks held by all threads at once when writing a matrix.
+     */
+    public static final long DEFAULT_WRITE_BUDGET = 256L * 1024 * 1024;
+
+    // WGS84 ellipsoid
+    private static final double WGS84_A = 6378137.0;
+    private static final double WGS84_F = 1 / 298.257223563;
+    private static final double WGS84_B = (1 - WGS84_F) * WGS84_A;
+
+    private final Formula formula;
+    private final int numThreads;
+    private long writeBudget = DEFAULT_WRITE_BUDGET;
+
+    public DistanceMatrix(Formula formula) {
+        this(formula, WpThreadUtils.getMaxThreads());
+    }
+
+    public DistanceMatrix(Formula formula, int numThreads) {
+        this.formula = formula;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * @param writeBudget The bytes of row blocks that may be held by all threads at once
+     *                    when a matrix is written. At least one row per thread is always held.
+     */
+    public void setWriteBudget(long writeBudget) {
+        this.writeBudget = writeBudget;
+    }
+
+    /**
+     * Returns the matrix of distances between row and column geometries.
+     */
+    public float[][] compute(List<Geometry> rowGeometries, List<Geometry> colGeometries) {
+        return compute(new Coordinates(rowGeometries), new Coordinates(colGeometries));
+    }
+
+    /**
+     * Returns the symmetric matrix of distances between all pairs of geometries.
+     * Only the upper triangle is computed.
+     */
+    public float[][] compute(List<Geometry> geometries) {
+        return computeSymmetric(new Coordinates(geometries));
+    }
+
+    public float[][] compute(double rowLons[], double rowLats[], double colLons[], double colLats[]) {
+        return compute(new Coordinates(rowLons, rowLats), new Coordinates(colLons, colLats));
+    }
+
+    public float[][] compute(double lons[], double lats[]) {
+        return computeSymmetric(new Coordinates(lons, lats));
+    }
+
+    private float[][] compute(final Coordinates rows, final Coordinates cols) {
+        final float matrix[][] = new float[rows.size][cols.size];
+        final int numRowTiles = numTiles(rows.size);
+        final int numColTiles = numTiles(cols.size);
+        ParallelForEach.range(0, numRowTiles * numColTiles, numThreads, new Procedure<Integer>() {
+            @Override
+            public void call(Integer tile) throws Exception {
+                int r = tile / numColTiles * TILE_SIZE;
+                int c = tile % numColTiles * TILE_SIZE;
+                computeTile(rows, r, Math.min(rows.size, r + TILE_SIZE),
+                            cols, c, Math.min(cols.size, c + TILE_SIZE),
+                            matrix, 0, false);
+            }
+        });
+        return matrix;
+    }
+
+    private float[][] computeSymmetric(final Coordinates coords) {
+        final float matrix[][] = new float[coords.size][coords.size];
+        final int n = numTiles(coords.size);
+
+        // Tiles on or above the diagonal, in row major order
+        final int tileRows[] = new int[n * (n + 1) / 2];
+        final int tileCols[] = new int[tileRows.length];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = i; j < n; j++) {
+                tileRows[k] = i;
+                tileCols[k] = j;
+                k++;
+            }
+        }
+        ParallelForEach.range(0, tileRows.length, numThreads, new Procedure<Integer>() {
+            @Override
+            public void call(Integer tile) throws Exception {
+                int r = tileRows[tile] * TILE_SIZE;
+                int c = tileCols[tile] * TILE_SIZE;
+                computeTile(coords, r, Math.min(coords.size, r + TILE_SIZE),
+                            coords, c, Math.min(coords.size, c + TILE_SIZE),
+                            matrix, 0, true);
+            }
+        });
+        return matrix;
+    }
+
+    /**
+     * Writes the matrix of distances between row and column geometries to a writer,
+     * computing a block of rows at a time so the whole matrix is never in memory.
+     * The writer's value conf should cover the range of distances, which is at most
+     * half the circumference of the earth. The writer is not finished.
+     *
+     * @param writer
+     * @param rowIds Row ids of the matrix, one per row geometry.
+     * @param rowGeometries
+     * @param colIds Column ids of the matrix, one per column geometry.
+     * @param colGeometries
+     */
+    public void write(DenseMatrixWriter writer, int rowIds[], List<Geometry> rowGeometries, int colIds[], List<Geometry> colGeometries) throws IOException {
+        write(writer, rowIds, new Coordinates(rowGeometries), colIds, new Coordinates(colGeometries));
+    }
+
+    public void write(DenseMatrixWriter writer, int rowIds[], double rowLons[], double rowLats[],
+                      int colIds[], double colLons[], double colLats[]) throws IOException {
+        write(writer, rowIds, new Coordinates(rowLons, rowLats), colIds, new Coordinates(colLons, colLats));
+    }
+
+    private void write(final DenseMatrixWriter writer, final int rowIds[], final Coordinates rows,
+                       int colIds[], Coordinates cols) throws IOException {
+        if (rowIds.length != rows.size || colIds.length != cols.size) {
+            throw new IllegalArgumentException("Number of ids does not match number of geometries");
+        }
+
+        // Dense matrix rows need columns sorted by id
+        Integer order[] = new Integer[colIds.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final int unsortedColIds[] = colIds;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i, Integer j) {
+                return Integer.valueOf(unsortedColIds[i]).compareTo(unsortedColIds[j]);
+            }
+        });
+        final int sortedColIds[] = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedColIds[i] = colIds[order[i]];
+        }
+        final Coordinates sortedCols = cols.permute(order);
+
+        // Size the blocks of rows so that the blocks of all threads fit in the budget
+        long rowBytes = 4L * Math.max(1, sortedCols.size);
+        final int rowsPerBlock = (int) Math.max(1, Math.min(TILE_SIZE, writeBudget / (numThreads * rowBytes)));
+        int numBlocks = (rows.size + rowsPerBlock - 1) / rowsPerBlock;
+
+        final IOException failure[] = new IOException[1];
+        ParallelForEach.range(0, numBlocks, numThreads, new Procedure<Integer>() {
+            @Override
+            public void call(Integer block) throws Exception {
+                int r0 = block * rowsPerBlock;
+                int r1 = Math.min(rows.size, r0 + rowsPerBlock);
+                float values[][] = new float[r1 - r0][sortedCols.size];
+                for (int c = 0; c < sortedCols.size; c += TILE_SIZE) {
+                    computeTile(rows, r0, r1, sortedCols, c, Math.min(sortedCols.size, c + TILE_SIZE), values, r0, false);
+                }
+                try {
+                    for (int i = r0; i < r1; i++) {
+                        writer.writeRow(new DenseMatrixRow(writer.getValueConf(), rowIds[i], sortedColIds, values[i - r0]));
+                    }
+                } catch (IOException e) {
+                    synchronized (failure) {
+                        failure[0] = e;
+                    }
+                }
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    private static int numTiles(int n) {
+        return (n + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    /**
+     * Fills matrix[i - rowOffset][j] for rows i in [r0, r1) and columns j in [c0, c1).
+     * If mirror is true, also fills matrix[j][i], and tiles on the diagonal only compute
+     * their upper triangle.
+     */
+    private void computeTile(Coordinates rows, int r0, int r1, Coordinates cols, int c0, int c1,
+                             float matrix[][], int rowOffset, boolean mirror) {
+        for (int i = r0; i < r1; i++) {
+            float row[] = matrix[i - rowOffset];
+            int start = (mirror && c0 <= i) ? i : c0;
+            if (formula == Formula.HAVERSINE) {
+                double x = rows.xs[i], y = rows.ys[i], z = rows.zs[i];
+                for (int j = start; j < c1; j++) {
+                    double dx = x - cols.xs[j], dy = y - cols.ys[j], dz = z - cols.zs[j];
+                    double chord = Math.sqrt(dx * dx + dy * dy + dz * dz);
+                    row[j] = (float) (2 * WikiBrainSpatialUtils.EARTH_RADIUS * FastMath.asin(Math.min(1.0, chord / 2)));
+                }
+            } else {
+                for (int j = start; j < c1; j++) {
+                    row[j] = (float) vincenty(rows, i, cols, j);
+                }
+            }
+            if (mirror) {
+                for (int j = start; j < c1; j++) {
+                    matrix[j][i] = row[j];
+                }
+            }
+        }
+    }
+
+    /**
+     * The inverse Vincenty formula on the WGS84 ellipsoid. Falls back to the
+     * haversine distance for nearly antipodal points where it does not converge.
+     */
+    private static double vincenty(Coordinates p1, int i, Coordinates p2, int j) {
+        double sinU1 = p1.sinUs[i], cosU1 = p1.cosUs[i];
+        double sinU2 = p2.sinUs[j], cosU2 = p2.cosUs[j];
+        double L = p2.lons[j] - p1.lons[i];
+        double lambda = L;
+        double sinSigma, cosSigma, sigma, cos2Alpha, cos2SigmaM;
+        int iterations = 0;
+        while (true) {
+            double sinLambda = Math.sin(lambda), cosLambda = Math.cos(lambda);
+            double t1 = cosU2 * sinLambda;
+            double t2 = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+            sinSigma = Math.sqrt(t1 * t1 + t2 * t2);
+            if (sinSigma == 0) {
+                return 0.0;
+            }
+            cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+            sigma = Math.atan2(sinSigma, cosSigma);
+            double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+            cos2Alpha = 1 - sinAlpha * sinAlpha;
+            cos2SigmaM = (cos2Alpha == 0) ? 0 : cosSigma - 2 * sinU1 * sinU2 / cos2Alpha;
+            double C = WGS84_F / 16 * cos2Alpha * (4 + WGS84_F * (4 - 3 * cos2Alpha));
+            double previous = lambda;
+            lambda = L + (1 - C) * WGS84_F * sinAlpha
+                    * (sigma + C * sinSigma * (cos2SigmaM + C * cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)));
+            if (Math.abs(lambda - previous) < 1e-12) {
+                break;
+            }
+            if (++iterations >= 100) {
+                double dx = p1.xs[i] - p2.xs[j], dy = p1.ys[i] - p2.ys[j], dz = p1.zs[i] - p2.zs[j];
+                double chord = Math.sqrt(dx * dx + dy * dy + dz * dz);
+                return 2 * WikiBrainSpatialUtils.EARTH_RADIUS * FastMath.asin(Math.min(1.0, chord / 2));
+            }
+        }
+        double u2 = cos2Alpha * (WGS84_A * WGS84_A - WGS84_B * WGS84_B) / (WGS84_B * WGS84_B);
+        double A = 1 + u2 / 16384 * (4096 + u2 * (-768 + u2 * (320 - 175 * u2)));
+        double B = u2 / 1024 * (256 + u2 * (-128 + u2 * (74 - 47 * u2)));
+        double deltaSigma = B * sinSigma * (cos2SigmaM + B / 4 * (cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)
+                - B / 6 * cos2SigmaM * (-3 + 4 * sinSigma * sinSigma) * (-3 + 4 * cos2SigmaM * cos2SigmaM)));
+        return WGS84_B * A * (sigma - deltaSigma);
+    }
+
+    /**
+     * Coordinates of geometry centers, in the forms used by each formula.
+     */
+    private static class Coordinates {
+        final int size;
+        final double lons[];    // radians
+        final double xs[];
+        final double ys[];
+        final double zs[];
+        final double sinUs[];   // reduced latitudes
+        final double cosUs[];
+
+        Coordinates(List<Geometry> geometries) {
+            this(getLons(geometries), getLats(geometries));
+        }
+
+        private Coordinates(double lons[], double xs[], double ys[], double zs[], double sinUs[], double cosUs[]) {
+            this.size = lons.length;
+            this.lons = lons;
+            this.xs = xs;
+            this.ys = ys;
+            this.zs = zs;
+            this.sinUs = sinUs;
+            this.cosUs = cosUs;
+        }
+
+        Coordinates(double lonDegrees[], double latDegrees[]) {
+            if (lonDegrees.length != latDegrees.length) {
+                throw new IllegalArgumentException("Number of longitudes and latitudes differ");
+            }
+            size = lonDegrees.length;
+            lons = new double[size];
+            xs = new double[size];
+            ys = new double[size];
+            zs = new double[size];
+            sinUs = new double[size];
+            cosUs = new double[size];
+            for (int i = 0; i < size; i++) {
+                double lon = Math.toRadians(lonDegrees[i]);
+                double lat = Math.toRadians(latDegrees[i]);
+                lons[i] = lon;
+                xs[i] = Math.cos(lat) * Math.cos(lon);
+                ys[i] = Math.cos(lat) * Math.sin(lon);
+                zs[i] = Math.sin(lat);
+                double u = Math.atan((1 - WGS84_F) * Math.tan(lat));
+                sinUs[i] = Math.sin(u);
+                cosUs[i] = Math.cos(u);
+            }
+        }
+
+        /**
+         * Returns the coordinates reordered so that element i is element order[i] of these.
+         */
+        Coordinates permute(Integer order[]) {
+            return new Coordinates(permute(lons, order), permute(xs, order), permute(ys, order),
+                                   permute(zs, order), permute(sinUs, order), permute(cosUs, order));
+        }
+
+        private static double[] permute(double values[], Integer order[]) {
+            double result[] = new double[values.length];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = values[order[i]];
+            }
+            return result;
+        }
+
+        private static double[] getLons(List<Geometry> geometries) {
+            double lons[] = new double[geometries.size()];
+            for (int i = 0; i < lons.length; i++) {
+                lons[i] = WikiBrainSpatialUtils.getCenter(geometries.get(i)).getX();
+            }
+            return lons;
+        }
+
+        private static double[] getLats(List<Geometry> geometries) {
+            double lats[] = new double[geometries.size()];
+            for (int i = 0; i < lats.length; i++) {
+                lats[i] = WikiBrainSpatialUtils.getCenter(geometries.get(i)).getY();
+            }
+            return lats;
+        }
+    }
+}
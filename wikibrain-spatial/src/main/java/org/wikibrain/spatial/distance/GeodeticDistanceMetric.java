@@ -11,6 +11,9 @@ import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.spatial.dao.SpatialDataDao;
 import org.wikibrain.spatial.util.ClosestPointIndex;
 import org.wikibrain.spatial.util.WikiBrainSpatialUtils;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpThreadUtils;
 
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
@@ -22,8 +25,6 @@ import org.slf4j.LoggerFactory;
 /**
  * Estimates the number of kilometers between geometries.
  *
- * TODO: handle non-points for neighbors.
- *
  * @author Shilad Sen
  */
 public class GeodeticDistanceMetric implements SpatialDistanceMetric {
@@ -84,23 +85,32 @@ public class GeodeticDistanceMetric implements SpatialDistanceMetric {
     }
 
     @Override
-    public float[][] distance(List<Geometry> rowGeometries, List<Geometry> colGeometries) {
-        GeodeticCalculator calc = new GeodeticCalculator();
-        float [][] matrix = new float[rowGeometries.size()][colGeometries.size()];
-        for (int i = 0; i < rowGeometries.size(); i++) {
-            for (int j = 0; j < colGeometries.size(); j++) {
-                if (rowGeometries.get(i) == colGeometries.get(j)) {
-                    matrix[i][j] = 0f;
-                } else {
-                    matrix[i][j] = (float) distance(calc, rowGeometries.get(i), colGeometries.get(j));
+    public float[][] distance(final List<Geometry> rowGeometries, final List<Geometry> colGeometries) {
+        if (!useBorders) {
+            return new DistanceMatrix(DistanceMatrix.Formula.VINCENTY).compute(rowGeometries, colGeometries);
+        }
+        final float [][] matrix = new float[rowGeometries.size()][colGeometries.size()];
+        ParallelForEach.range(0, rowGeometries.size(), WpThreadUtils.getMaxThreads(), new Procedure<Integer>() {
+            @Override
+            public void call(Integer i) throws Exception {
+                GeodeticCalculator calc = new GeodeticCalculator();
+                for (int j = 0; j < colGeometries.size(); j++) {
+                    if (rowGeometries.get(i) == colGeometries.get(j)) {
+                        matrix[i][j] = 0f;
+                    } else {
+                        matrix[i][j] = (float) distance(calc, rowGeometries.get(i), colGeometries.get(j));
+                    }
                 }
             }
-        }
+        });
         return matrix;
     }
 
     @Override
     public float[][] distance(List<Geometry> geometries) {
+        if (!useBorders) {
+            return new DistanceMatrix(DistanceMatrix.Formula.VINCENTY).compute(geometries);
+        }
         return distance(geometries, geometries);
     }
 
@@ -110,8 +120,10 @@ public class GeodeticDistanceMetric implements SpatialDistanceMetric {
     }
 
     /**
-     * Returns the closest points to a particular geometry.
-     * Note that this ONLY currently uses centroids (FIXME).
+     * Returns the closest geometries to the center of a particular geometry.
+     *
+     * The index ranks neighbors by their great circle distance, measured to the closest
+     * point of non-point geometries. Distances to points are then refined on the ellipsoid.
      *
      * @param g
      * @param maxNeighbors
@@ -124,9 +136,9 @@ public class GeodeticDistanceMetric implements SpatialDistanceMetric {
         GeodeticCalculator calc = new GeodeticCalculator();
         calc.setStartingGeographicPoint(c.getX(), c.getY());
         List<Neighbor> results = new ArrayList<Neighbor>();
-        for (ClosestPointIndex.Result r: index.query(g, maxNeighbors)) {
-            if (r.distance < maxDistance) {
-                double kms;
+        for (ClosestPointIndex.Result r: index.query(g, maxNeighbors, maxDistance)) {
+            double kms = r.distance;
+            if (r.geometry instanceof Point) {
                 try {
                     calc.setDestinationGeographicPoint(r.point.getX(), r.point.getY());
                     kms = calc.getOrthodromicDistance();
@@ -135,9 +147,9 @@ public class GeodeticDistanceMetric implements SpatialDistanceMetric {
                 } catch (IllegalArgumentException e) {
                     kms = r.distance;
                 }
-                if (kms <= maxDistance) {
-                    results.add(new Neighbor(r.id, kms));
-                }
+            }
+            if (kms <= maxDistance) {
+                results.add(new Neighbor(r.id, kms));
             }
         }
         Collections.sort(results);
@@ -1,30 +1,37 @@
 package org.wikibrain.spatial.distance;
 
 import com.vividsolutions.jts.geom.Geometry;
-import gnu.trove.list.linked.TIntLinkedList;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
-import gnu.trove.procedure.TIntProcedure;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.spatial.constants.Precision;
 import org.wikibrain.spatial.dao.SpatialDataDao;
 import org.wikibrain.spatial.util.ClosestPointIndex;
+import org.wikibrain.spatial.util.NeighborGraph;
 import org.wikibrain.utils.ParallelForEach;
 import org.wikibrain.utils.Procedure;
 import org.wikibrain.utils.WpThreadUtils;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * Estimates the number of kilometers between geometries.
+ * Estimates the number of hops between geometries in a graph that links each
+ * item to its closest neighbors.
+ *
+ * The graph is stored as a {@link NeighborGraph}, which can be saved to and loaded
+ * from a file with {@link #setGraphFile(java.io.File)}. Distances are found by a
+ * bidirectional breadth first search over primitive arrays that are reused by
+ * each thread.
  *
  * @author Shilad Sen
  */
@@ -32,13 +39,17 @@ public class GraphDistanceMetric implements SpatialDistanceMetric {
     private static final Logger LOG = LoggerFactory.getLogger(GraphDistanceMetric.class);
 
     private final SpatialDataDao spatialDao;
-    private final TIntObjectMap<TIntSet> adjacencyList = new TIntObjectHashMap<TIntSet>();
     private final ClosestPointIndex index;
     private int numNeighbors = 100;
     private int maxDistance = 30;
     private TIntSet concepts;
     private TIntSet validNodes;
     private boolean directed = false;
+    private File graphFile = null;
+
+    private volatile NeighborGraph graph = null;
+    private volatile NeighborGraph reversed = null;
+    private final ThreadLocal<Search> searches = new ThreadLocal<Search>();
 
     public GraphDistanceMetric(SpatialDataDao dao, ClosestPointIndex index) {
         this.spatialDao = dao;
@@ -83,10 +94,21 @@ public class GraphDistanceMetric implements SpatialDistanceMetric {
         this.concepts = concepts;
     }
 
+    /**
+     * Sets a file that caches the neighbor graph. If the file exists, enableCache()
+     * loads the graph from it. Otherwise enableCache() builds the graph and saves it.
+     * The file is not rebuilt when the layer or the parameters of the metric change,
+     * so delete it when they do.
+     *
+     * @param graphFile
+     */
+    public void setGraphFile(File graphFile) {
+        this.graphFile = graphFile;
+    }
+
     @Override
     public void enableCache(boolean enable) throws DaoException {
         if (index == null) throw new NullPointerException();
-        final AtomicInteger numEdges = new AtomicInteger();
         final Map<Integer, Geometry> points = this.spatialDao.getAllGeometriesInLayer("wikidata", Precision.LatLonPrecision.HIGH);
 
         // Insert points into the index if necessary.
@@ -100,36 +122,50 @@ public class GraphDistanceMetric implements SpatialDistanceMetric {
                     }, 50000);
         }
 
-        ParallelForEach.loop(points.keySet(), WpThreadUtils.getMaxThreads(),
-                new Procedure<Integer>() {
-                    @Override
-                    public void call(Integer conceptId) throws Exception {
-                        if (validNodes != null && !validNodes.contains(conceptId)) {
-                            return;
-                        }
-                        final TIntSet neighbors = new TIntHashSet();
-                        for (ClosestPointIndex.Result r : index.query(points.get(conceptId), numNeighbors)) {
-                            neighbors.add(r.id);
-                        }
-                        numEdges.addAndGet(neighbors.size());
-                        synchronized (adjacencyList) {
-                            adjacencyList.put(conceptId, neighbors);
+        NeighborGraph g = null;
+        if (graphFile != null && graphFile.isFile()) {
+            try {
+                g = NeighborGraph.read(graphFile);
+                LOG.info("Read neighbor graph from " + graphFile);
+            } catch (IOException e) {
+                throw new DaoException(e);
+            }
+        } else {
+            final TIntObjectMap<int[]> adjacencyList = new TIntObjectHashMap<int[]>();
+            ParallelForEach.loop(points.keySet(), WpThreadUtils.getMaxThreads(),
+                    new Procedure<Integer>() {
+                        @Override
+                        public void call(Integer conceptId) throws Exception {
+                            if (validNodes != null && !validNodes.contains(conceptId)) {
+                                return;
+                            }
+                            List<ClosestPointIndex.Result> results = index.query(points.get(conceptId), numNeighbors);
+                            int neighbors[] = new int[results.size()];
+                            for (int i = 0; i < neighbors.length; i++) {
+                                neighbors[i] = results.get(i).id;
+                            }
+                            synchronized (adjacencyList) {
+                                adjacencyList.put(conceptId, neighbors);
+                            }
                         }
-                    }
-                }, 50000);
-        // Make links symmetric if necessary
-        if (!directed) {
-            for (int id1 : adjacencyList.keys()) {
-                for (int id2 : adjacencyList.get(id1).toArray()) {
-                    if (!adjacencyList.containsKey(id2)) {
-                        adjacencyList.put(id2, new TIntHashSet());
-                    }
-                    adjacencyList.get(id2).add(id1);
+                    }, 50000);
+            // Make links symmetric if necessary
+            g = NeighborGraph.build(adjacencyList, !directed);
+            if (graphFile != null) {
+                try {
+                    g.write(graphFile);
+                } catch (IOException e) {
+                    throw new DaoException(e);
                 }
             }
-
         }
-        LOG.info("Found " + adjacencyList.size() + " edges and " + numEdges.get() + " edges.");
+        reversed = directed ? g.transpose() : g;
+        graph = g;
+        LOG.info("Found " + graph.size() + " nodes and " + graph.getNumEdges() + " edges.");
+    }
+
+    public NeighborGraph getGraph() {
+        return graph;
     }
 
     @Override
@@ -140,7 +176,7 @@ public class GraphDistanceMetric implements SpatialDistanceMetric {
 
     @Override
     public double distance(Geometry g1, Geometry g2) {
-        if (adjacencyList.isEmpty()) {
+        if (graph == null) {
             throw new UnsupportedOperationException();
         }
         // Hack: Replace g2 with CLOSEST concept
@@ -155,48 +191,81 @@ public class GraphDistanceMetric implements SpatialDistanceMetric {
         }
 
         int targetId = closest.get(0).id;
-
-        TIntSet seen = new TIntHashSet();
-        TIntLinkedList queue = new TIntLinkedList();
-        for (ClosestPointIndex.Result n : index.query(g1, numNeighbors)) {
-            if (n.id== targetId) {
+        List<ClosestPointIndex.Result> sources = index.query(g1, numNeighbors);
+        for (ClosestPointIndex.Result n : sources) {
+            if (n.id == targetId) {
                 return 1;
             }
-            queue.add(n.id);
-            seen.add(n.id);
         }
+        int target = graph.getIndex(targetId);
+        if (target < 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        Search search = getSearch();
+        int d = search.distance(search.toIndexes(sources), target, maxSteps);
+        return d < 0 ? Double.POSITIVE_INFINITY : d;
+    }
 
-        for (int level = 2; level <= maxSteps; level++) {
-            // Do all nodes at this level
-            int nodes = queue.size();
-            for (int i = 0; i < nodes; i++) {
-                int id = queue.removeAt(0);
-                if (!adjacencyList.containsKey(id)) {
-                    continue;
+    /**
+     * Returns the number of hops between each pair of row and column geometries, computed
+     * with one breadth first search per row. Unreachable pairs are infinite.
+     */
+    @Override
+    public float[][] distance(final List<Geometry> rowGeometries, final List<Geometry> colGeometries) {
+        if (graph == null) {
+            throw new UnsupportedOperationException();
+        }
+        final float matrix[][] = new float[rowGeometries.size()][colGeometries.size()];
+        if (maxDistance == 0) {
+            for (float row[] : matrix) {
+                Arrays.fill(row, Float.POSITIVE_INFINITY);
+            }
+            return matrix;
+        }
+
+        // Hack: Replace column geometries with their CLOSEST concepts
+        final int targetIds[] = new int[colGeometries.size()];
+        final boolean hasTarget[] = new boolean[colGeometries.size()];
+        for (int j = 0; j < colGeometries.size(); j++) {
+            List<ClosestPointIndex.Result> closest = index.query(colGeometries.get(j), 1);
+            if (!closest.isEmpty()) {
+                targetIds[j] = closest.get(0).id;
+                hasTarget[j] = true;
+            }
+        }
+
+        ParallelForEach.range(0, rowGeometries.size(), WpThreadUtils.getMaxThreads(), new Procedure<Integer>() {
+            @Override
+            public void call(Integer i) throws Exception {
+                Geometry g1 = rowGeometries.get(i);
+                List<ClosestPointIndex.Result> sources = index.query(g1, numNeighbors);
+                TIntSet sourceIds = new TIntHashSet();
+                for (ClosestPointIndex.Result r : sources) {
+                    sourceIds.add(r.id);
                 }
-                for (int id2 : adjacencyList.get(id).toArray()) {
-                    if (id2 == targetId) {
-                        return level;
-                    }
-                    if (!seen.contains(id2)) {
-                        queue.add(id2);
-                        seen.add(id2);
+                Search search = getSearch();
+                search.search(search.toIndexes(sources), maxDistance);
+                for (int j = 0; j < colGeometries.size(); j++) {
+                    Geometry g2 = colGeometries.get(j);
+                    if (!hasTarget[j]) {
+                        matrix[i][j] = Float.POSITIVE_INFINITY;
+                    } else if (g1 == g2 || g1.equals(g2)) {
+                        matrix[i][j] = 0f;
+                    } else if (sourceIds.contains(targetIds[j])) {
+                        matrix[i][j] = 1f;
+                    } else {
+                        int d = search.getDepth(graph.getIndex(targetIds[j]));
+                        matrix[i][j] = (d < 0) ? Float.POSITIVE_INFINITY : d;
                     }
                 }
             }
-//            System.err.println("at level " + level + " saw " + seen.size());
-        }
-        return Double.POSITIVE_INFINITY;
-    }
-
-    @Override
-    public float[][] distance(List<Geometry> rowGeometries, List<Geometry> colGeometries) {
-        return new float[0][];
+        });
+        return matrix;
     }
 
     @Override
     public float[][] distance(List<Geometry> geometries) {
-        return new float[0][];
+        return distance(geometries, geometries);
     }
 
     @Override
@@ -212,36 +281,29 @@ public class GraphDistanceMetric implements SpatialDistanceMetric {
             return result;
         }
 
-        TIntSet seen = new TIntHashSet();
-        TIntLinkedList queue = new TIntLinkedList();
-        for (ClosestPointIndex.Result r : index.query(g, numNeighbors)) {
-            queue.add(r.id);
-            seen.add(r.id);
+        List<ClosestPointIndex.Result> closest = index.query(g, numNeighbors);
+        for (ClosestPointIndex.Result r : closest) {
             if (concepts == null || concepts.contains(r.id)) {
                 result.add(new Neighbor(r.id, 1));
             }
         }
+        if (graph == null) {
+            return result;
+        }
 
-        for (int level = 2; !queue.isEmpty() && level <= maxSteps; level++) {
-//            System.err.println("at level " + level + ", size is " + seen.size() + ", " + result.size());
+        Search search = getSearch();
+        int frontier[] = search.toIndexes(closest);
+        search.startForward(frontier);
+        for (int level = 2; frontier.length > 0 && level <= maxSteps; level++) {
             // Do all nodes at this level
-            int nodes = queue.size();
-            for (int i = 0; i < nodes; i++) {
-                int id = queue.removeAt(0);
-                if (!adjacencyList.containsKey(id)) {
-                    continue;
+            frontier = search.expandForward(frontier);
+            for (int node : frontier) {
+                int id = graph.getId(node);
+                if (concepts == null || concepts.contains(id)) {
+                    result.add(new Neighbor(id, level));
                 }
-                for (int id2 : adjacencyList.get(id).toArray()) {
-                    if (!seen.contains(id2)) {
-                        queue.add(id2);
-                        seen.add(id2);
-                        if (concepts == null || concepts.contains(id2)) {
-                            result.add(new Neighbor(id2, level));
-                        }
-                    }
-                    if (result.size() >= maxNeighbors) {
-                        return result;
-                    }
+                if (result.size() >= maxNeighbors) {
+                    return result;
                 }
             }
         }
@@ -251,4 +313,193 @@ public class GraphDistanceMetric implements SpatialDistanceMetric {
     public void setDirected(boolean directed) {
         this.directed = directed;
     }
+
+    private Search getSearch() {
+        Search search = searches.get();
+        if (search == null || search.forward != graph) {
+            search = new Search(graph, reversed);
+            searches.set(search);
+        }
+        return search;
+    }
+
+    /**
+     * Breadth first search state for one thread. Nodes are marked visited by stamping
+     * them with the current epoch, so the arrays never need to be cleared between searches.
+     */
+    private static class Search {
+        private final NeighborGraph forward;
+        private final NeighborGraph backward;
+        private final int forwardStamps[];
+        private final int forwardDepths[];
+        private final int backwardStamps[];
+        private final int backwardDepths[];
+        private int forwardFrontier[];
+        private int backwardFrontier[];
+        private int next[];
+        private int epoch = 0;
+
+        // The shortest path through a node reached by both sides, found by expand()
+        private int best;
+
+        Search(NeighborGraph forward, NeighborGraph backward) {
+            int n = forward.size();
+            this.forward = forward;
+            this.backward = backward;
+            this.forwardStamps = new int[n];
+            this.forwardDepths = new int[n];
+            this.backwardStamps = new int[n];
+            this.backwardDepths = new int[n];
+            this.forwardFrontier = new int[n];
+            this.backwardFrontier = new int[n];
+            this.next = new int[n];
+        }
+
+        private void nextEpoch() {
+            if (++epoch == Integer.MAX_VALUE) {
+                Arrays.fill(forwardStamps, 0);
+                Arrays.fill(backwardStamps, 0);
+                epoch = 1;
+            }
+        }
+
+        /**
+         * Returns the node indexes of the results that are in the graph.
+         */
+        int[] toIndexes(List<ClosestPointIndex.Result> results) {
+            int indexes[] = new int[results.size()];
+            int n = 0;
+            for (ClosestPointIndex.Result r : results) {
+                int i = forward.getIndex(r.id);
+                if (i >= 0) {
+                    indexes[n++] = i;
+                }
+            }
+            return Arrays.copyOf(indexes, n);
+        }
+
+        /**
+         * Starts a new search with the sources one step away.
+         * Returns the size of the forward frontier.
+         */
+        private int startForward(int sources[]) {
+            nextEpoch();
+            int n = 0;
+            for (int s : sources) {
+                if (forwardStamps[s] != epoch) {
+                    forwardStamps[s] = epoch;
+                    forwardDepths[s] = 1;
+                    forwardFrontier[n++] = s;
+                }
+            }
+            return n;
+        }
+
+        /**
+         * Returns the nodes first reached from the frontier.
+         */
+        int[] expandForward(int frontier[]) {
+            int n = 0;
+            for (int u : frontier) {
+                int d = forwardDepths[u] + 1;
+                for (int k = forward.getFirstEdge(u); k < forward.getEndEdge(u); k++) {
+                    int v = forward.getEdge(k);
+                    if (forwardStamps[v] != epoch) {
+                        forwardStamps[v] = epoch;
+                        forwardDepths[v] = d;
+                        next[n++] = v;
+                    }
+                }
+            }
+            return Arrays.copyOf(next, n);
+        }
+
+        /**
+         * Visits all nodes within maxSteps of the sources, which are one step away.
+         * Afterwards, getDepth() returns their distances.
+         */
+        void search(int sources[], int maxSteps) {
+            int n = startForward(sources);
+            for (int level = 1; n > 0 && level < maxSteps; level++) {
+                n = expand(forward, forwardFrontier, n, forwardStamps, forwardDepths, null, null);
+                int tmp[] = forwardFrontier;
+                forwardFrontier = next;
+                next = tmp;
+            }
+        }
+
+        /**
+         * Returns the distance found by the last search to a node, or -1 if it was not reached.
+         */
+        int getDepth(int node) {
+            return (node >= 0 && forwardStamps[node] == epoch) ? forwardDepths[node] : -1;
+        }
+
+        /**
+         * Returns the length of the shortest path from the sources, which are one step away,
+         * to the target, or -1 if it is longer than maxSteps.
+         *
+         * Searches alternately forward from the sources and backward from the target,
+         * always expanding the smaller frontier by a full level. The first level
+         * that meets the other side yields the shortest path.
+         */
+        int distance(int sources[], int target, int maxSteps) {
+            int numForward = startForward(sources);
+            if (forwardStamps[target] == epoch) {
+                return 1;
+            }
+            backwardStamps[target] = epoch;
+            backwardDepths[target] = 0;
+            backwardFrontier[0] = target;
+            int numBackward = 1;
+
+            int forwardDepth = 1;
+            int backwardDepth = 0;
+            while (numForward > 0 && numBackward > 0 && forwardDepth + backwardDepth + 1 <= maxSteps) {
+                best = Integer.MAX_VALUE;
+                if (numForward <= numBackward) {
+                    numForward = expand(forward, forwardFrontier, numForward, forwardStamps, forwardDepths, backwardStamps, backwardDepths);
+                    int tmp[] = forwardFrontier;
+                    forwardFrontier = next;
+                    next = tmp;
+                    forwardDepth++;
+                } else {
+                    numBackward = expand(backward, backwardFrontier, numBackward, backwardStamps, backwardDepths, forwardStamps, forwardDepths);
+                    int tmp[] = backwardFrontier;
+                    backwardFrontier = next;
+                    next = tmp;
+                    backwardDepth++;
+                }
+                if (best != Integer.MAX_VALUE) {
+                    return best <= maxSteps ? best : -1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Visits the neighbors of a frontier, writing the new frontier to next and returning its size.
+         * If the stamps of the other side are given, records the shortest path through any
+         * node the other side has reached in best.
+         */
+        private int expand(NeighborGraph graph, int frontier[], int size, int stamps[], int depths[], int otherStamps[], int otherDepths[]) {
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                int u = frontier[i];
+                int d = depths[u] + 1;
+                for (int k = graph.getFirstEdge(u); k < graph.getEndEdge(u); k++) {
+                    int v = graph.getEdge(k);
+                    if (otherStamps != null && otherStamps[v] == epoch) {
+                        best = Math.min(best, d + otherDepths[v]);
+                    }
+                    if (stamps[v] != epoch) {
+                        stamps[v] = epoch;
+                        depths[v] = d;
+                        next[n++] = v;
+                    }
+                }
+            }
+            return n;
+        }
+    }
 }
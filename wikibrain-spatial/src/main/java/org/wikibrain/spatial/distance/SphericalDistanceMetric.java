@@ -4,7 +4,6 @@ import ags.utils.dataStructures.MaxHeap;
 import ags.utils.dataStructures.trees.thirdGenKD.KdTree;
 import ags.utils.dataStructures.trees.thirdGenKD.SquareEuclideanDistanceFunction;
 import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.Point;
 import gnu.trove.set.TIntSet;
 import org.geotools.referencing.GeodeticCalculator;
 import org.wikibrain.core.dao.DaoException;
@@ -90,30 +89,12 @@ public class SphericalDistanceMetric implements SpatialDistanceMetric {
 
     @Override
     public float[][] distance(List<Geometry> rowGeometries, List<Geometry> colGeometries) {
-        Point [] rowPoints = new Point[rowGeometries.size()];
-        Point [] colPoints = new Point[colGeometries.size()];
-        for (int i = 0; i < rowGeometries.size(); i++) {
-            rowPoints[i] = WikiBrainSpatialUtils.getCenter(rowGeometries.get(i));
-        }
-        for (int i = 0; i < colGeometries.size(); i++) {
-            colPoints[i] = WikiBrainSpatialUtils.getCenter(colGeometries.get(i));
-        }
-        float [][] matrix = new float[rowGeometries.size()][colGeometries.size()];
-        for (int i = 0; i < rowGeometries.size(); i++) {
-            for (int j = 0; j < colGeometries.size(); j++) {
-                if (rowGeometries.get(i) == colGeometries.get(j) || rowPoints[i].equals(colPoints[j])) {
-                    matrix[i][j] = 0f;
-                } else {
-                    matrix[i][j] = (float) distance(rowPoints[i], colPoints[j]);
-                }
-            }
-        }
-        return matrix;
+        return new DistanceMatrix(DistanceMatrix.Formula.HAVERSINE).compute(rowGeometries, colGeometries);
     }
 
     @Override
     public float[][] distance(List<Geometry> geometries) {
-        return distance(geometries, geometries);
+        return new DistanceMatrix(DistanceMatrix.Formula.HAVERSINE).compute(geometries);
     }
 
     @Override
@@ -122,14 +103,14 @@ public class SphericalDistanceMetric implements SpatialDistanceMetric {
     }
 
     /**
-     * A fast approximation of the distance between neighbors based on the 3D straight line distance.
+     * Returns the closest geometries by great circle distance, which treats the earth as a sphere.
      * @param g
      * @param maxNeighbors
      * @return
      */
     public List<Neighbor> getNeighbors(Geometry g, int maxNeighbors, double maxDistance) {
         List<Neighbor> results = new ArrayList<Neighbor>();
-        for (ClosestPointIndex.Result r : index.query(g, maxNeighbors)) {
+        for (ClosestPointIndex.Result r : index.query(g, maxNeighbors, maxDistance)) {
             if (r.distance <= maxDistance) {
                 results.add(new Neighbor(r.id, r.distance));
             }
@@ -1,74 +1,85 @@
 package org.wikibrain.spatial.util;
 
-import ags.utils.dataStructures.MaxHeap;
-import ags.utils.dataStructures.trees.thirdGenKD.KdTree;
-import ags.utils.dataStructures.trees.thirdGenKD.SquareEuclideanDistanceFunction;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.Point;
-import org.geotools.referencing.GeodeticCalculator;
+import gnu.trove.list.array.TIntArrayList;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 /**
- * Creates a spherical approximation of the closest points to a particular point.
- * This class is threadsafe for multiple readers or writers (but not both).
+ * Finds the geometries closest to a particular point on a spherical earth.
  *
+ * Geometries are collected by insert() and bulk loaded into a {@link SphericalVpTree}
+ * by the first query after them. Queries against a loaded tree do not lock, so this
+ * class is threadsafe for any mix of readers and writers, but inserts are cheapest
+ * when they all come before the first query.
  *
  * @author Shilad Sen
  */
 public class ClosestPointIndex implements Serializable {
-    private final KdTree<Result> index = new KdTree<Result>(3);
+    private final TIntArrayList ids = new TIntArrayList();
+    private final List<Geometry> geometries = new ArrayList<Geometry>();
+    private volatile SphericalVpTree tree = null;
 
     public ClosestPointIndex() {}
 
     /**
      * Insert a geometry into the index and associate it with a particular id.
-     * If the geometry is not a point, uses WikiBrainSpatialUtils.getCenter to
-     * convert it to a single point.
+     * Distances to points are measured from their location, and distances to
+     * other geometries are measured from their closest vertex or edge.
      *
      * @param id
      * @param geometry
      */
     public void insert(int id, Geometry geometry) {
-        Point p = WikiBrainSpatialUtils.getCenter(geometry);
-        Result r = new Result(id, geometry, p);
-        synchronized (index) {
-            index.addPoint(WikiBrainSpatialUtils.get3DPoints(p), r);
+        if (geometry == null || geometry.isEmpty()) {
+            return;
+        }
+        synchronized (ids) {
+            ids.add(id);
+            geometries.add(geometry);
+            tree = null;
         }
     }
 
     /**
-     * Return the closest points to the specified point.
-     * The returned distances are estimated using the Haversine formula.
+     * Return the closest geometries to the center of the specified geometry, closest first.
+     * The returned distances are great circle distances in meters.
      * @param query
      * @param maxNeighbors
      * @return
      */
     public List<Result> query(Geometry query, int maxNeighbors) {
-        final Point c = WikiBrainSpatialUtils.getCenter(query);
-        final double[] c1 = WikiBrainSpatialUtils.get3DPoints(c);
-        MaxHeap<Result> heap = index.findNearestNeighbors(
-                c1,
-                maxNeighbors,
-                new SquareEuclideanDistanceFunction());
+        return query(query, maxNeighbors, Double.MAX_VALUE);
+    }
 
-        List<Result> results = new ArrayList<Result>();
-        while (heap.size() > 0) {
-            Result r = heap.getMax();
-            heap.removeMax();
-            double d = WikiBrainSpatialUtils.haversine(c, r.point);
-            results.add(new Result(r.id, r.geometry, r.point, d));
-        }
-        Collections.reverse(results);
+    /**
+     * Return the closest geometries within maxDistance meters of the center of the
+     * specified geometry, closest first.
+     */
+    public List<Result> query(Geometry query, int maxNeighbors, double maxDistance) {
+        return getTree().query(query, maxNeighbors, maxDistance);
+    }
 
-        return results;
+    private SphericalVpTree getTree() {
+        SphericalVpTree t = tree;
+        if (t == null) {
+            synchronized (ids) {
+                if (tree == null) {
+                    tree = new SphericalVpTree(ids.toArray(), geometries.toArray(new Geometry[geometries.size()]));
+                }
+                t = tree;
+            }
+        }
+        return t;
     }
 
     public int size() {
-        return index.size();
+        synchronized (ids) {
+            return ids.size();
+        }
     }
 
     public static class Result implements Serializable {
@@ -0,0 +1,248 @@
+package org.wikibrain.spatial.util;
+
+import gnu.trove.iterator.TIntObjectIterator;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * An immutable graph between item ids in compressed sparse row form.
+ *
+ * Nodes are numbered by their position in the sorted array of item ids, and the
+ * neighbors of node i are edges[offsets[i]] through edges[offsets[i + 1] - 1], sorted.
+ * The whole graph is three int arrays, so it is cheap to traverse and to save to disk.
+ *
+ * @author Shilad Sen
+ */
+public class NeighborGraph {
+    private static final int MAGIC = 0x4e475246;
+    private static final int VERSION = 1;
+
+    private final int ids[];
+    private final int offsets[];
+    private final int edges[];
+
+    /**
+     * @param ids Sorted item ids of the nodes.
+     * @param offsets Offsets of each node's edges, with a final entry for the number of edges.
+     * @param edges Node indexes of each node's neighbors.
+     */
+    public NeighborGraph(int ids[], int offsets[], int edges[]) {
+        if (offsets.length != ids.length + 1 || offsets[ids.length] != edges.length) {
+            throw new IllegalArgumentException("Offsets do not match ids and edges");
+        }
+        this.ids = ids;
+        this.offsets = offsets;
+        this.edges = edges;
+    }
+
+    /**
+     * Builds a graph from lists of neighbors. Every id that appears in the map becomes a node.
+     * Duplicate edges and self loops are dropped.
+     *
+     * @param neighbors Map from item id to the ids of its neighbors.
+     * @param symmetric If true, every edge is also added in the opposite direction.
+     */
+    public static NeighborGraph build(TIntObjectMap<int[]> neighbors, boolean symmetric) {
+        TIntSet nodes = new TIntHashSet();
+        nodes.addAll(neighbors.keys());
+        for (int[] list : neighbors.valueCollection()) {
+            nodes.addAll(list);
+        }
+        int ids[] = nodes.toArray();
+        Arrays.sort(ids);
+
+        int n = ids.length;
+        int degrees[] = new int[n];
+        TIntObjectIterator<int[]> iter = neighbors.iterator();
+        while (iter.hasNext()) {
+            iter.advance();
+            int from = Arrays.binarySearch(ids, iter.key());
+            for (int id : iter.value()) {
+                degrees[from]++;
+                if (symmetric) {
+                    degrees[Arrays.binarySearch(ids, id)]++;
+                }
+            }
+        }
+
+        int offsets[] = toOffsets(degrees);
+        int edges[] = new int[offsets[n]];
+        int fill[] = Arrays.copyOf(offsets, n);
+        iter = neighbors.iterator();
+        while (iter.hasNext()) {
+            iter.advance();
+            int from = Arrays.binarySearch(ids, iter.key());
+            for (int id : iter.value()) {
+                int to = Arrays.binarySearch(ids, id);
+                edges[fill[from]++] = to;
+                if (symmetric) {
+                    edges[fill[to]++] = from;
+                }
+            }
+        }
+        return compact(ids, offsets, edges);
+    }
+
+    /**
+     * Returns the graph with the direction of every edge reversed.
+     */
+    public NeighborGraph transpose() {
+        int n = ids.length;
+        int degrees[] = new int[n];
+        for (int to : edges) {
+            degrees[to]++;
+        }
+        int reversedOffsets[] = toOffsets(degrees);
+        int reversedEdges[] = new int[edges.length];
+        int fill[] = Arrays.copyOf(reversedOffsets, n);
+        for (int from = 0; from < n; from++) {
+            for (int k = offsets[from]; k < offsets[from + 1]; k++) {
+                reversedEdges[fill[edges[k]]++] = from;
+            }
+        }
+        return new NeighborGraph(ids, reversedOffsets, reversedEdges);
+    }
+
+    private static int[] toOffsets(int degrees[]) {
+        int offsets[] = new int[degrees.length + 1];
+        for (int i = 0; i < degrees.length; i++) {
+            offsets[i + 1] = offsets[i] + degrees[i];
+        }
+        return offsets;
+    }
+
+    /**
+     * Sorts each node's edges and removes duplicates and self loops.
+     */
+    private static NeighborGraph compact(int ids[], int offsets[], int edges[]) {
+        int compacted[] = new int[ids.length + 1];
+        int end = 0;
+        for (int i = 0; i < ids.length; i++) {
+            Arrays.sort(edges, offsets[i], offsets[i + 1]);
+            compacted[i] = end;
+            for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+                int to = edges[k];
+                if (to != i && (end == compacted[i] || edges[end - 1] != to)) {
+                    edges[end++] = to;
+                }
+            }
+        }
+        compacted[ids.length] = end;
+        return new NeighborGraph(ids, compacted, Arrays.copyOf(edges, end));
+    }
+
+    /**
+     * @return The number of nodes.
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    public int getNumEdges() {
+        return edges.length;
+    }
+
+    /**
+     * @return The node index of an item id, or -1 if the item is not in the graph.
+     */
+    public int getIndex(int id) {
+        int i = Arrays.binarySearch(ids, id);
+        return i < 0 ? -1 : i;
+    }
+
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    /**
+     * @return The position in the edge array of the first neighbor of a node.
+     */
+    public int getFirstEdge(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * @return One past the position in the edge array of the last neighbor of a node.
+     */
+    public int getEndEdge(int index) {
+        return offsets[index + 1];
+    }
+
+    /**
+     * @return The node index at a position in the edge array.
+     */
+    public int getEdge(int position) {
+        return edges[position];
+    }
+
+    /**
+     * @return The item ids of a node's neighbors.
+     */
+    public int[] getNeighborIds(int id) {
+        int i = getIndex(id);
+        if (i < 0) {
+            return new int[0];
+        }
+        int result[] = new int[offsets[i + 1] - offsets[i]];
+        for (int k = 0; k < result.length; k++) {
+            result[k] = ids[edges[offsets[i] + k]];
+        }
+        return result;
+    }
+
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(ids.length);
+            out.writeInt(edges.length);
+            for (int id : ids) {
+                out.writeInt(id);
+            }
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            for (int edge : edges) {
+                out.writeInt(edge);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static NeighborGraph read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a neighbor graph: " + file);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported neighbor graph version " + version + " in " + file);
+            }
+            int n = buffer.getInt();
+            int m = buffer.getInt();
+            IntBuffer ints = buffer.asIntBuffer();
+            int ids[] = new int[n];
+            int offsets[] = new int[n + 1];
+            int edges[] = new int[m];
+            ints.get(ids);
+            ints.get(offsets);
+            ints.get(edges);
+            return new NeighborGraph(ids, offsets, edges);
+        } finally {
+            // The mapping remains valid after the channel is closed
+            in.close();
+        }
+    }
+}
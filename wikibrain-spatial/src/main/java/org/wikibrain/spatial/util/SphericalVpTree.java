@@ -0,0 +1,397 @@
+package org.wikibrain.spatial.util;
+
+import com.vividsolutions.jts.geom.*;
+import org.apache.commons.math3.util.FastMath;
+import org.wikibrain.utils.Scoreboard;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * An immutable vantage point tree of geometries on the unit sphere that finds
+ * the geometries closest to a point.
+ *
+ * <p>
+ * Distances inside the tree are chord lengths between unit vectors, which are a
+ * metric and increase with great circle distance, so the tree can prune with the
+ * triangle inequality and still rank neighbors by their great circle distance.
+ * </p>
+ *
+ * <p>
+ * Each geometry is represented by its center and a radius that bounds the distance
+ * from the center to any point of the geometry, which gives lower bounds on the
+ * distance to non-point geometries. Candidates that survive the bounds are measured
+ * exactly: zero if they contain the query, and otherwise the distance to the closest
+ * vertex or edge, treating edges as great circle arcs.
+ * </p>
+ *
+ * <p>
+ * The tree is bulk loaded and never modified, so any number of threads may query it
+ * without locking.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class SphericalVpTree implements Serializable {
+    /**
+     * Ranges of at most this many geometries are scanned instead of split.
+     */
+    private static final int LEAF_SIZE = 8;
+
+    private final int size;
+    private final int ids[];
+    private final Geometry geometries[];
+    private final Point centers[];
+    private final double xs[];
+    private final double ys[];
+    private final double zs[];
+    private final double radii[];
+
+    // For the node whose vantage point is at position i, the inner range is [i+1, mids[i])
+    // and the outer range is [mids[i], end). Leaves have mids[i] == -1.
+    private final int mids[];
+    private final double innerMin[];
+    private final double innerMax[];
+    private final double outerMin[];
+    private final double outerMax[];
+
+    public SphericalVpTree(int ids[], Geometry geometries[]) {
+        this(ids, geometries, new Random(0));
+    }
+
+    public SphericalVpTree(int ids[], Geometry geometries[], Random random) {
+        this.size = ids.length;
+        this.ids = new int[size];
+        this.geometries = new Geometry[size];
+        this.centers = new Point[size];
+        this.xs = new double[size];
+        this.ys = new double[size];
+        this.zs = new double[size];
+        this.radii = new double[size];
+        this.mids = new int[size];
+        this.innerMin = new double[size];
+        this.innerMax = new double[size];
+        this.outerMin = new double[size];
+        this.outerMax = new double[size];
+
+        // Unit vectors and radii in insertion order
+        double points[][] = new double[size][];
+        double r[] = new double[size];
+        Point c[] = new Point[size];
+        for (int i = 0; i < size; i++) {
+            c[i] = WikiBrainSpatialUtils.getCenter(geometries[i]);
+            points[i] = toUnitVector(c[i].getX(), c[i].getY());
+            r[i] = (geometries[i] instanceof Point) ? 0.0 : getRadius(points[i], geometries[i]);
+        }
+
+        int perm[] = new int[size];
+        for (int i = 0; i < size; i++) {
+            perm[i] = i;
+        }
+        build(perm, points, r, new double[size], 0, size, random);
+
+        for (int i = 0; i < size; i++) {
+            int j = perm[i];
+            this.ids[i] = ids[j];
+            this.geometries[i] = geometries[j];
+            this.centers[i] = c[j];
+            this.xs[i] = points[j][0];
+            this.ys[i] = points[j][1];
+            this.zs[i] = points[j][2];
+            this.radii[i] = r[j];
+        }
+    }
+
+    /**
+     * Arranges perm[lo, hi) into a subtree and records the bounds of its nodes.
+     */
+    private void build(int perm[], double points[][], double r[], double dists[], int lo, int hi, Random random) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int i = lo; i < hi; i++) {
+                mids[i] = -1;
+            }
+            return;
+        }
+        swap(perm, lo, lo + random.nextInt(hi - lo));
+        double vp[] = points[perm[lo]];
+        for (int i = lo + 1; i < hi; i++) {
+            dists[perm[i]] = chord(vp, points[perm[i]]);
+        }
+        int mid = lo + 1 + (hi - lo - 1) / 2;
+        select(perm, dists, lo + 1, hi - 1, mid);
+
+        mids[lo] = mid;
+        innerMin[lo] = outerMin[lo] = Double.POSITIVE_INFINITY;
+        innerMax[lo] = outerMax[lo] = 0.0;
+        for (int i = lo + 1; i < hi; i++) {
+            int j = perm[i];
+            if (i < mid) {
+                innerMin[lo] = Math.min(innerMin[lo], dists[j] - r[j]);
+                innerMax[lo] = Math.max(innerMax[lo], dists[j] + r[j]);
+            } else {
+                outerMin[lo] = Math.min(outerMin[lo], dists[j] - r[j]);
+                outerMax[lo] = Math.max(outerMax[lo], dists[j] + r[j]);
+            }
+        }
+        build(perm, points, r, dists, lo + 1, mid, random);
+        build(perm, points, r, dists, mid, hi, random);
+    }
+
+    /**
+     * Partially sorts perm[lo, hi] by distance so that perm[k] holds the element of rank k.
+     */
+    private static void select(int perm[], double dists[], int lo, int hi, int k) {
+        while (lo < hi) {
+            double pivot = dists[perm[(lo + hi) >>> 1]];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (dists[perm[i]] < pivot) i++;
+                while (dists[perm[j]] > pivot) j--;
+                if (i <= j) {
+                    swap(perm, i++, j--);
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static void swap(int a[], int i, int j) {
+        int t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the geometries closest to the center of a geometry, closest first.
+     *
+     * @param query
+     * @param maxNeighbors
+     * @param maxDistance Maximum distance in meters.
+     * @return Results whose distances are great circle distances in meters.
+     */
+    public List<ClosestPointIndex.Result> query(Geometry query, int maxNeighbors, double maxDistance) {
+        List<ClosestPointIndex.Result> results = new ArrayList<ClosestPointIndex.Result>();
+        if (size == 0 || maxNeighbors <= 0) {
+            return results;
+        }
+        Point c = WikiBrainSpatialUtils.getCenter(query);
+        double angle = maxDistance / WikiBrainSpatialUtils.EARTH_RADIUS;
+        Search search = new Search(c, maxNeighbors, angle >= Math.PI ? Double.POSITIVE_INFINITY : 2 * Math.sin(angle / 2));
+        search(search, 0, size);
+
+        for (int i = 0; i < maxNeighbors && search.closest.getElement(i) != null; i++) {
+            int pos = search.closest.getElement(i);
+            double meters = chordToAngle(search.closest.getScore(i)) * WikiBrainSpatialUtils.EARTH_RADIUS;
+            results.add(new ClosestPointIndex.Result(ids[pos], geometries[pos], centers[pos], meters));
+        }
+        return results;
+    }
+
+    /**
+     * The state of a single query.
+     */
+    private static class Search {
+        final Point point;
+        final double q[];
+        final int k;
+        final double maxChord;
+        final Scoreboard<Integer> closest;
+
+        Search(Point point, int k, double maxChord) {
+            this.point = point;
+            this.q = toUnitVector(point.getX(), point.getY());
+            this.k = k;
+            this.maxChord = maxChord;
+            this.closest = new Scoreboard<Integer>(k, Scoreboard.Order.INCREASING);
+        }
+
+        /**
+         * @return The distance a geometry must beat to be one of the closest.
+         */
+        double getThreshold() {
+            return (closest.getElement(k - 1) == null) ? maxChord : Math.min(maxChord, closest.getScore(k - 1));
+        }
+    }
+
+    private void search(Search search, int lo, int hi) {
+        if (lo >= hi) {
+            return;
+        }
+        if (mids[lo] < 0) {
+            for (int i = lo; i < hi; i++) {
+                consider(search, i, chord(search.q, i));
+            }
+            return;
+        }
+        double d = chord(search.q, lo);
+        consider(search, lo, d);
+
+        int mid = mids[lo];
+        double innerBound = Math.max(0.0, Math.max(d - innerMax[lo], innerMin[lo] - d));
+        double outerBound = Math.max(0.0, Math.max(d - outerMax[lo], outerMin[lo] - d));
+        if (innerBound <= outerBound) {
+            if (innerBound <= search.getThreshold()) search(search, lo + 1, mid);
+            if (outerBound <= search.getThreshold()) search(search, mid, hi);
+        } else {
+            if (outerBound <= search.getThreshold()) search(search, mid, hi);
+            if (innerBound <= search.getThreshold()) search(search, lo + 1, mid);
+        }
+    }
+
+    /**
+     * Adds the geometry at a position to the closest ones if it is close enough.
+     * @param centerDistance Chord distance from the query to the geometry's center.
+     */
+    private void consider(Search search, int pos, double centerDistance) {
+        double threshold = search.getThreshold();
+        double d = centerDistance;
+        if (radii[pos] > 0) {
+            if (centerDistance - radii[pos] > threshold) {
+                return;
+            }
+            d = getDistance(search, geometries[pos]);
+        }
+        if (d <= threshold) {
+            search.closest.add(pos, d);
+        }
+    }
+
+    /**
+     * @return The chord distance from the query point to the closest point of the geometry.
+     */
+    private static double getDistance(Search search, Geometry g) {
+        if (g.getDimension() == 2 && g.intersects(search.point)) {
+            return 0.0;
+        }
+        return angleToChord(getMinAngle(search.q, g, Math.PI));
+    }
+
+    private static double getMinAngle(double q[], Geometry g, double best) {
+        if (g instanceof Point) {
+            Coordinate c = g.getCoordinate();
+            return Math.min(best, angle(q, toUnitVector(c.x, c.y)));
+        } else if (g instanceof LineString) {
+            Coordinate coords[] = g.getCoordinates();
+            double prev[] = toUnitVector(coords[0].x, coords[0].y);
+            best = Math.min(best, angle(q, prev));
+            for (int i = 1; i < coords.length; i++) {
+                double next[] = toUnitVector(coords[i].x, coords[i].y);
+                best = Math.min(best, arcAngle(q, prev, next));
+                prev = next;
+            }
+            return best;
+        } else if (g instanceof Polygon) {
+            Polygon p = (Polygon) g;
+            best = getMinAngle(q, p.getExteriorRing(), best);
+            for (int i = 0; i < p.getNumInteriorRing(); i++) {
+                best = getMinAngle(q, p.getInteriorRingN(i), best);
+            }
+            return best;
+        } else {
+            for (int i = 0; i < g.getNumGeometries(); i++) {
+                best = getMinAngle(q, g.getGeometryN(i), best);
+            }
+            return best;
+        }
+    }
+
+    /**
+     * @return The angle between a point and the great circle arc from a to b.
+     */
+    private static double arcAngle(double p[], double a[], double b[]) {
+        double n[] = cross(a, b);
+        double norm = Math.sqrt(dot(n, n));
+        if (norm > 1e-12) {
+            n[0] /= norm; n[1] /= norm; n[2] /= norm;
+            // The projection of p onto the great circle falls between a and b
+            if (dot(cross(a, p), n) >= 0 && dot(cross(p, b), n) >= 0) {
+                return FastMath.asin(Math.min(1.0, Math.abs(dot(p, n))));
+            }
+        }
+        return Math.min(angle(p, a), angle(p, b));
+    }
+
+    /**
+     * @return An upper bound on the chord distance from the center to any point of the geometry.
+     */
+    private static double getRadius(double center[], Geometry g) {
+        if (g instanceof Point) {
+            Coordinate c = g.getCoordinate();
+            return chord(center, toUnitVector(c.x, c.y));
+        } else if (g instanceof LineString) {
+            // Points on an edge are within half its length of its closer endpoint
+            Coordinate coords[] = g.getCoordinates();
+            double prev[] = toUnitVector(coords[0].x, coords[0].y);
+            double radius = chord(center, prev);
+            for (int i = 1; i < coords.length; i++) {
+                double next[] = toUnitVector(coords[i].x, coords[i].y);
+                double halfEdge = 2 * Math.sin(angle(prev, next) / 4);
+                radius = Math.max(radius, Math.max(chord(center, prev), chord(center, next)) + halfEdge);
+                prev = next;
+            }
+            return radius;
+        } else if (g instanceof Polygon) {
+            // Interior points are no farther than the farthest boundary point
+            return getRadius(center, ((Polygon) g).getExteriorRing());
+        } else {
+            double radius = 0.0;
+            for (int i = 0; i < g.getNumGeometries(); i++) {
+                radius = Math.max(radius, getRadius(center, g.getGeometryN(i)));
+            }
+            return radius;
+        }
+    }
+
+    static double[] toUnitVector(double lon, double lat) {
+        double lng = FastMath.toRadians(lon);
+        double phi = FastMath.toRadians(lat);
+        double cosPhi = FastMath.cos(phi);
+        return new double[] { cosPhi * FastMath.cos(lng), cosPhi * FastMath.sin(lng), FastMath.sin(phi) };
+    }
+
+    private double chord(double q[], int pos) {
+        double dx = q[0] - xs[pos], dy = q[1] - ys[pos], dz = q[2] - zs[pos];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    private static double chord(double a[], double b[]) {
+        double dx = a[0] - b[0], dy = a[1] - b[1], dz = a[2] - b[2];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    private static double angle(double a[], double b[]) {
+        return chordToAngle(chord(a, b));
+    }
+
+    static double chordToAngle(double chord) {
+        return 2 * FastMath.asin(Math.min(1.0, chord / 2));
+    }
+
+    static double angleToChord(double angle) {
+        return 2 * Math.sin(Math.min(Math.PI, angle) / 2);
+    }
+
+    private static double[] cross(double a[], double b[]) {
+        return new double[] {
+                a[1] * b[2] - a[2] * b[1],
+                a[2] * b[0] - a[0] * b[2],
+                a[0] * b[1] - a[1] * b[0]
+        };
+    }
+
+    private static double dot(double a[], double b[]) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+}
@@ -0,0 +1,168 @@
+package org.wikibrain.spatial.dao.embedded;
+
+import com.vividsolutions.jts.geom.*;
+import gnu.trove.set.TIntSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.spatial.SpatialContainerMetadata;
+import org.wikibrain.spatial.dao.SpatialContainmentDao;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestEmbeddedSpatialDao {
+    private GeometryFactory factory = new GeometryFactory(new PrecisionModel(), 4326);
+    private File dir;
+    private EmbeddedSpatialDataDao dataDao;
+
+    private Point point(double x, double y) {
+        return factory.createPoint(new Coordinate(x, y));
+    }
+
+    private Polygon box(double x1, double y1, double x2, double y2) {
+        return factory.createPolygon(factory.createLinearRing(new Coordinate[] {
+                new Coordinate(x1, y1), new Coordinate(x2, y1), new Coordinate(x2, y2),
+                new Coordinate(x1, y2), new Coordinate(x1, y1)
+        }), null);
+    }
+
+    @Before
+    public void createDb() throws IOException, DaoException {
+        dir = WpIOUtils.createTempDirectory("wikibrain-embedded-spatial");
+        dataDao = new EmbeddedSpatialDataDao(new EmbeddedSpatialDB(dir), null, null);
+
+        // A 10 x 10 grid of points with ids 100 * x + y, and two boxes containing some of them
+        dataDao.beginSaveGeometries();
+        for (int x = 0; x < 10; x++) {
+            for (int y = 0; y < 10; y++) {
+                dataDao.saveGeometry(100 * x + y, "points", "earth", point(x, y));
+            }
+        }
+        dataDao.saveGeometry(1, "boxes", "earth", box(-0.5, -0.5, 2.5, 2.5));
+        dataDao.saveGeometry(2, "boxes", "earth", box(5.5, 5.5, 9.5, 7.5));
+        dataDao.endSaveGeometries();
+    }
+
+    @After
+    public void deleteDb() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Test
+    public void testData() throws DaoException {
+        assertTrue(point(3, 4).equalsExact(dataDao.getGeometry(304, "points", "earth")));
+        assertNull(dataDao.getGeometry(1000, "points", "earth"));
+        assertNull(dataDao.getGeometry(304, "missing", "earth"));
+        assertEquals(100, dataDao.getAllGeometriesInLayer("points", "earth").size());
+        assertEquals(new HashSet<String>(Arrays.asList("earth")), dataDao.getAllRefSysNames());
+        assertEquals(new HashSet<String>(Arrays.asList("points", "boxes")), dataDao.getAllLayerNames("earth"));
+
+        Map<Integer, Geometry> bulk = dataDao.getBulkGeometriesInLayer(Arrays.asList(1, 2, 3), "boxes", "earth");
+        assertEquals(2, bulk.size());
+        assertTrue(box(5.5, 5.5, 9.5, 7.5).equalsExact(bulk.get(2)));
+
+        SpatialContainerMetadata md = dataDao.getLayerMetadata("points", "earth");
+        assertEquals(100, md.geomCount);
+        assertEquals(SpatialContainerMetadata.ShapeType.POINT, md.shapeType);
+    }
+
+    @Test
+    public void testUpdateAndRemove() throws DaoException {
+        // New geometries are merged with the existing layer, and the last one saved wins
+        dataDao.beginSaveGeometries();
+        dataDao.saveGeometry(304, "points", "earth", point(30, 40));
+        dataDao.saveGeometry(304, "points", "earth", point(31, 41));
+        dataDao.saveGeometry(1000, "points", "earth", point(50, 50));
+        dataDao.endSaveGeometries();
+        assertTrue(point(31, 41).equalsExact(dataDao.getGeometry(304, "points", "earth")));
+        assertTrue(point(50, 50).equalsExact(dataDao.getGeometry(1000, "points", "earth")));
+        assertEquals(101, dataDao.getLayerMetadata("points", "earth").geomCount);
+
+        // A new db over the same directory sees the same layers
+        EmbeddedSpatialDataDao reopened = new EmbeddedSpatialDataDao(new EmbeddedSpatialDB(dir), null, null);
+        assertTrue(point(31, 41).equalsExact(reopened.getGeometry(304, "points", "earth")));
+
+        dataDao.removeLayer("earth", "boxes");
+        assertNull(dataDao.getGeometry(1, "boxes", "earth"));
+        assertEquals(new HashSet<String>(Arrays.asList("points")), dataDao.getAllLayerNames("earth"));
+    }
+
+    @Test
+    public void testContainment() throws DaoException {
+        EmbeddedSpatialContainmentDao dao = new EmbeddedSpatialContainmentDao(new EmbeddedSpatialDB(dir));
+        Set<String> layers = new HashSet<String>(Arrays.asList("points"));
+
+        TIntSet contained = dao.getContainedItemIds(1, "boxes", "earth", layers, SpatialContainmentDao.ContainmentOperationType.CONTAINMENT);
+        assertEquals(9, contained.size());
+        assertTrue(contained.contains(202));
+        assertFalse(contained.contains(203));
+
+        contained = dao.getContainedItemIds(2, "boxes", "earth", layers, SpatialContainmentDao.ContainmentOperationType.CONTAINMENT);
+        assertEquals(8, contained.size());
+        assertTrue(contained.contains(907));
+
+        // Points on the boundary intersect but are not contained
+        Polygon square = box(0, 0, 1, 1);
+        assertEquals(0, dao.getContainedItemIds(square, "earth", layers, SpatialContainmentDao.ContainmentOperationType.CONTAINMENT).size());
+        assertEquals(4, dao.getContainedItemIds(square, "earth", layers, SpatialContainmentDao.ContainmentOperationType.INTERSECTION).size());
+
+        // Results from several layers are combined
+        layers.add("boxes");
+        assertEquals(5, dao.getContainedItemIds(square, "earth", layers, SpatialContainmentDao.ContainmentOperationType.INTERSECTION).size());
+    }
+
+    @Test
+    public void testNeighbors() throws DaoException {
+        EmbeddedSpatialNeighborDao dao = new EmbeddedSpatialNeighborDao(new EmbeddedSpatialDB(dir));
+        Set<String> layers = new HashSet<String>(Arrays.asList("points"));
+
+        TIntSet neighbors = dao.getNeighboringItemIds(505, "points", "earth", layers, 0.0, 1.0);
+        assertEquals(new HashSet<Integer>(Arrays.asList(405, 605, 504, 506)), toSet(neighbors));
+        neighbors = dao.getNeighboringItemIds(505, "points", "earth", layers, 1.0, 1.5);
+        assertEquals(new HashSet<Integer>(Arrays.asList(404, 406, 604, 606)), toSet(neighbors));
+
+        Map<Integer, Geometry> knn = dao.getKNNeighbors(point(0.1, 0.2), 3, "points", "earth", new HashSet<Integer>(Arrays.asList(0)));
+        assertEquals(Arrays.asList(1, 100, 101), new ArrayList<Integer>(knn.keySet()));
+
+        Map<Integer, Geometry> intersecting = dao.getNeighbors(1, "boxes", "earth", new HashSet<Integer>());
+        assertEquals(1, intersecting.size());
+        assertTrue(intersecting.containsKey(1));
+        assertEquals(9, dao.getNeighbors(box(-0.5, -0.5, 2.5, 2.5), "points", "earth", new HashSet<Integer>()).size());
+    }
+
+    @Test
+    public void testKNNeighborsAtHighLatitude() throws DaoException {
+        // At 80 degrees a degree of longitude is about 19km, so the point half a degree east
+        // is nearer than the one a third of a degree north, though it is outside the first
+        // box that holds a candidate.
+        dataDao.beginSaveGeometries();
+        dataDao.saveGeometry(1, "arctic", "earth", point(0.0, 80.3));
+        dataDao.saveGeometry(2, "arctic", "earth", point(0.5, 80.0));
+        dataDao.saveGeometry(3, "arctic", "earth", point(3.0, 80.0));
+        dataDao.endSaveGeometries();
+
+        EmbeddedSpatialNeighborDao dao = new EmbeddedSpatialNeighborDao(new EmbeddedSpatialDB(dir));
+        Map<Integer, Geometry> knn = dao.getKNNeighbors(point(0.0, 80.0), 1, "arctic", "earth", new HashSet<Integer>());
+        assertEquals(Arrays.asList(2), new ArrayList<Integer>(knn.keySet()));
+        knn = dao.getKNNeighbors(point(0.0, 80.0), 3, "arctic", "earth", new HashSet<Integer>());
+        assertEquals(Arrays.asList(2, 1, 3), new ArrayList<Integer>(knn.keySet()));
+    }
+
+    private static Set<Integer> toSet(TIntSet ids) {
+        Set<Integer> result = new HashSet<Integer>();
+        for (int id : ids.toArray()) {
+            result.add(id);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,101 @@
+package org.wikibrain.spatial.dao.embedded;
+
+import gnu.trove.list.TIntList;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestPackedRTree {
+    private Random random = new Random(1);
+
+    private double[] randomEnvelopes(int n) {
+        double envelopes[] = new double[4 * n];
+        for (int i = 0; i < n; i++) {
+            double x = random.nextDouble() * 360 - 180;
+            double y = random.nextDouble() * 180 - 90;
+            envelopes[4*i] = x;
+            envelopes[4*i+1] = y;
+            envelopes[4*i+2] = x + random.nextDouble() * 5;
+            envelopes[4*i+3] = y + random.nextDouble() * 5;
+        }
+        return envelopes;
+    }
+
+    private PackedRTree pack(double envelopes[], int order[]) throws IOException {
+        double packed[] = new double[envelopes.length];
+        for (int i = 0; i < order.length; i++) {
+            System.arraycopy(envelopes, 4 * order[i], packed, 4 * i, 4);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(42);   // the tree need not start at the beginning of the buffer
+        PackedRTree.write(out, packed);
+        out.close();
+        assertEquals(4 + PackedRTree.getSizeInBytes(order.length), bytes.size());
+        return new PackedRTree(ByteBuffer.wrap(bytes.toByteArray()), 4);
+    }
+
+    @Test
+    public void testPackingOrder() {
+        int order[] = PackedRTree.getPackingOrder(randomEnvelopes(1000));
+        int sorted[] = Arrays.copyOf(order, order.length);
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            assertEquals(i, sorted[i]);
+        }
+    }
+
+    @Test
+    public void testQuery() throws IOException {
+        for (int n : new int[] { 0, 1, 15, 16, 17, 256, 5000 }) {
+            double envelopes[] = randomEnvelopes(n);
+            int order[] = PackedRTree.getPackingOrder(envelopes);
+            PackedRTree tree = pack(envelopes, order);
+            assertEquals(n, tree.size());
+            if (n > 0) {
+                assertEquals(1, tree.getNumNodes(tree.getNumLevels() - 1));
+            }
+
+            for (int q = 0; q < 100; q++) {
+                double x = random.nextDouble() * 360 - 180;
+                double y = random.nextDouble() * 180 - 90;
+                double w = random.nextDouble() * 20;
+                TIntList result = tree.query(x, y, x + w, y + w);
+                boolean found[] = new boolean[n];
+                for (int i = 0; i < result.size(); i++) {
+                    assertFalse(found[result.get(i)]);
+                    found[result.get(i)] = true;
+                }
+                for (int i = 0; i < n; i++) {
+                    int j = order[i];
+                    boolean intersects = !(envelopes[4*j] > x + w || envelopes[4*j+2] < x
+                                        || envelopes[4*j+1] > y + w || envelopes[4*j+3] < y);
+                    assertEquals(intersects, found[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPoints() throws IOException {
+        double envelopes[] = { 1, 1, 1, 1,   2, 2, 2, 2,   3, 3, 3, 3 };
+        int order[] = PackedRTree.getPackingOrder(envelopes);
+        PackedRTree tree = pack(envelopes, order);
+        TIntList result = tree.query(1.5, 1.5, 3, 3);
+        assertEquals(2, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            assertTrue(order[result.get(i)] == 1 || order[result.get(i)] == 2);
+        }
+        assertEquals(0, tree.query(4, 4, 5, 5).size());
+    }
+}
@@ -0,0 +1,131 @@
+package org.wikibrain.spatial.distance;
+
+import org.junit.Test;
+import org.wikibrain.matrix.DenseMatrix;
+import org.wikibrain.matrix.DenseMatrixRow;
+import org.wikibrain.matrix.DenseMatrixWriter;
+import org.wikibrain.matrix.ValueConf;
+import org.wikibrain.spatial.util.WikiBrainSpatialUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestDistanceMatrix {
+    private static double[] randomLons(Random random, int n) {
+        double lons[] = new double[n];
+        for (int i = 0; i < n; i++) {
+            lons[i] = 180 - random.nextDouble() * 360;
+        }
+        return lons;
+    }
+
+    private static double[] randomLats(Random random, int n) {
+        double lats[] = new double[n];
+        for (int i = 0; i < n; i++) {
+            lats[i] = 90 - random.nextDouble() * 180;
+        }
+        return lats;
+    }
+
+    @Test
+    public void testHaversine() {
+        Random random = new Random(1);
+        double rowLons[] = randomLons(random, 300), rowLats[] = randomLats(random, 300);
+        double colLons[] = randomLons(random, 700), colLats[] = randomLats(random, 700);
+        float matrix[][] = new DistanceMatrix(DistanceMatrix.Formula.HAVERSINE, 4).compute(rowLons, rowLats, colLons, colLats);
+        for (int i = 0; i < rowLons.length; i++) {
+            for (int j = 0; j < colLons.length; j++) {
+                double expected = WikiBrainSpatialUtils.haversine(rowLons[i], rowLats[i], colLons[j], colLats[j]);
+                assertEquals(expected, matrix[i][j], 1.0);
+            }
+        }
+    }
+
+    @Test
+    public void testVincenty() {
+        // Flinders Peak to Buninyong, from Vincenty's paper
+        double lons[] = { 144.42486788888888, 143.92649552777777 };
+        double lats[] = { -37.95103341666667, -37.65282113888889 };
+        float matrix[][] = new DistanceMatrix(DistanceMatrix.Formula.VINCENTY, 1).compute(lons, lats);
+        assertEquals(0.0, matrix[0][0], 0.0);
+        assertEquals(54972.271, matrix[0][1], 0.01);
+        assertEquals(54972.271, matrix[1][0], 0.01);
+
+        // Nearly antipodal points fall back to a spherical estimate
+        matrix = new DistanceMatrix(DistanceMatrix.Formula.VINCENTY, 1).compute(
+                new double[] { 0.0, 179.7 }, new double[] { 0.0, 0.5 });
+        assertEquals(20000000, matrix[0][1], 100000);
+    }
+
+    @Test
+    public void testSymmetric() {
+        for (DistanceMatrix.Formula formula : DistanceMatrix.Formula.values()) {
+            Random random = new Random(2);
+            double lons[] = randomLons(random, 600), lats[] = randomLats(random, 600);
+            DistanceMatrix dm = new DistanceMatrix(formula, 4);
+            float symmetric[][] = dm.compute(lons, lats);
+            float full[][] = dm.compute(lons, lats, lons, lats);
+            for (int i = 0; i < lons.length; i++) {
+                assertEquals(0.0, symmetric[i][i], 0.0);
+                for (int j = 0; j < lons.length; j++) {
+                    assertEquals(full[i][j], symmetric[i][j], 0.0);
+                    assertEquals(symmetric[j][i], symmetric[i][j], 0.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testWrite() throws IOException {
+        checkWrite(DistanceMatrix.DEFAULT_WRITE_BUDGET);
+    }
+
+    @Test
+    public void testWriteSmallBudget() throws IOException {
+        // Three rows per thread, and a budget too small for even one row
+        checkWrite(4 * 3 * 300 * 4);
+        checkWrite(10);
+    }
+
+    private void checkWrite(long budget) throws IOException {
+        Random random = new Random(3);
+        int numRows = 500, numCols = 300;
+        double rowLons[] = randomLons(random, numRows), rowLats[] = randomLats(random, numRows);
+        double colLons[] = randomLons(random, numCols), colLats[] = randomLats(random, numCols);
+        int rowIds[] = new int[numRows];
+        for (int i = 0; i < numRows; i++) {
+            rowIds[i] = i * 3;
+        }
+        // Column ids in decreasing order, which the writer must sort
+        int colIds[] = new int[numCols];
+        for (int i = 0; i < numCols; i++) {
+            colIds[i] = 10000 - i * 7;
+        }
+
+        DistanceMatrix dm = new DistanceMatrix(DistanceMatrix.Formula.HAVERSINE, 4);
+        dm.setWriteBudget(budget);
+        File tmp = File.createTempFile("distances", null);
+        tmp.deleteOnExit();
+        DenseMatrixWriter writer = new DenseMatrixWriter(tmp, new ValueConf(0, 20100000));
+        dm.write(writer, rowIds, rowLons, rowLats, colIds, colLons, colLats);
+        writer.finish();
+
+        float expected[][] = dm.compute(rowLons, rowLats, colLons, colLats);
+        DenseMatrix matrix = new DenseMatrix(tmp);
+        for (int i = 0; i < numRows; i++) {
+            DenseMatrixRow row = matrix.getRow(rowIds[i]);
+            assertEquals(numCols, row.getNumCols());
+            for (int j = 0; j < numCols; j++) {
+                int k = numCols - 1 - j;
+                assertEquals(colIds[k], row.getColIndex(j));
+                assertEquals(expected[i][k], row.getColValue(j), 20100000.0 / 65000);
+            }
+        }
+    }
+}
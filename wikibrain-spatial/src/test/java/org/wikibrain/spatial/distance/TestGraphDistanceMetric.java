@@ -8,6 +8,7 @@ import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.spatial.constants.Precision;
 import org.wikibrain.spatial.dao.SpatialDataDao;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -122,7 +123,22 @@ public class TestGraphDistanceMetric {
 
     }
 
-
+    @Test
+    public void testLatticeMatrix() throws DaoException {
+        GraphDistanceMetric metric = getLatticeMetric();
+        List<Geometry> rows = new ArrayList<Geometry>();
+        List<Geometry> cols = new ArrayList<Geometry>();
+        for (int j = 0; j < 20; j++) {
+            rows.add(lattice[j % LATTICE_ROWS][j]);
+            cols.add(lattice[(j + 2) % LATTICE_ROWS][j * 3]);
+        }
+        float [][] matrix = metric.distance(rows, cols);
+        for (int i = 0; i < rows.size(); i++) {
+            for (int j = 0; j < cols.size(); j++) {
+                assertEquals(metric.distance(rows.get(i), cols.get(j)), matrix[i][j], 0.01);
+            }
+        }
+    }
 
     private Point makePoint() {
         double lat = 90 - random.nextDouble() * 180;
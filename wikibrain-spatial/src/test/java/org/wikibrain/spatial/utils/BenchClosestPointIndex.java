@@ -0,0 +1,139 @@
+package org.wikibrain.spatial.utils;
+
+import ags.utils.dataStructures.MaxHeap;
+import ags.utils.dataStructures.trees.thirdGenKD.KdTree;
+import ags.utils.dataStructures.trees.thirdGenKD.SquareEuclideanDistanceFunction;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.core.cmd.Env;
+import org.wikibrain.core.cmd.EnvBuilder;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.spatial.constants.Layers;
+import org.wikibrain.spatial.constants.RefSys;
+import org.wikibrain.spatial.dao.SpatialDataDao;
+import org.wikibrain.spatial.util.ClosestPointIndex;
+import org.wikibrain.spatial.util.WikiBrainSpatialUtils;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.util.*;
+
+/**
+ * Compares the closest point index against the centroid kd-tree it replaced on
+ * the coordinates of all Wikidata items.
+ *
+ * The kd-tree ranks items by the 3D straight line distance between centroids,
+ * and took a lock for each insert. For points that ranking matches great circle
+ * distance, so the benchmark reports build time, query throughput, and agreement
+ * with a brute force scan of a sample of queries.
+ *
+ * Usage: BenchClosestPointIndex [-c conf] [numQueries]
+ *
+ * @author Shilad Sen
+ */
+public class BenchClosestPointIndex {
+    private static final int NUM_NEIGHBORS = 100;
+
+    public static void main(String args[]) throws ConfigurationException, DaoException {
+        Env env = EnvBuilder.envFromArgs(args);
+        int numQueries = 10000;
+        if (args.length > 0 && args[args.length - 1].matches("\\d+")) {
+            numQueries = Integer.valueOf(args[args.length - 1]);
+        }
+        SpatialDataDao dao = env.getConfigurator().get(SpatialDataDao.class);
+        final Map<Integer, Geometry> geometries = dao.getAllGeometriesInLayer(Layers.WIKIDATA, RefSys.EARTH);
+        System.out.println("loaded " + geometries.size() + " geometries");
+
+        Random random = new Random(0);
+        GeometryFactory factory = new GeometryFactory(new PrecisionModel(), 4326);
+        List<Point> queries = new ArrayList<Point>();
+        for (int i = 0; i < numQueries; i++) {
+            queries.add(factory.createPoint(new Coordinate(180 - random.nextDouble() * 360, 90 - random.nextDouble() * 180)));
+        }
+
+        // The previous index: a kd-tree of centroids
+        long before = System.currentTimeMillis();
+        final KdTree<Integer> kdTree = new KdTree<Integer>(3);
+        ParallelForEach.loop(geometries.keySet(), WpThreadUtils.getMaxThreads(), new Procedure<Integer>() {
+            @Override
+            public void call(Integer id) throws Exception {
+                double p[] = WikiBrainSpatialUtils.get3DPoints(WikiBrainSpatialUtils.getCenter(geometries.get(id)));
+                synchronized (kdTree) {
+                    kdTree.addPoint(p, id);
+                }
+            }
+        }, Integer.MAX_VALUE);
+        System.out.println("kd-tree built in " + (System.currentTimeMillis() - before) + " millis");
+
+        before = System.currentTimeMillis();
+        final ClosestPointIndex index = new ClosestPointIndex();
+        for (Map.Entry<Integer, Geometry> entry : geometries.entrySet()) {
+            index.insert(entry.getKey(), entry.getValue());
+        }
+        index.query(queries.get(0), 1);
+        System.out.println("spherical index built in " + (System.currentTimeMillis() - before) + " millis");
+
+        for (int round = 0; round < 3; round++) {
+            before = System.currentTimeMillis();
+            for (Point q : queries) {
+                MaxHeap<Integer> heap = kdTree.findNearestNeighbors(
+                        WikiBrainSpatialUtils.get3DPoints(q), NUM_NEIGHBORS, new SquareEuclideanDistanceFunction());
+                while (heap.size() > 0) {
+                    heap.removeMax();
+                }
+            }
+            double kdSecs = (System.currentTimeMillis() - before) / 1000.0;
+
+            before = System.currentTimeMillis();
+            for (Point q : queries) {
+                index.query(q, NUM_NEIGHBORS);
+            }
+            double indexSecs = (System.currentTimeMillis() - before) / 1000.0;
+
+            // Queries from all threads at once, which the index serves without locks
+            final List<Point> concurrentQueries = queries;
+            before = System.currentTimeMillis();
+            ParallelForEach.range(0, queries.size(), WpThreadUtils.getMaxThreads(), new Procedure<Integer>() {
+                @Override
+                public void call(Integer i) throws Exception {
+                    index.query(concurrentQueries.get(i), NUM_NEIGHBORS);
+                }
+            });
+            double parallelSecs = (System.currentTimeMillis() - before) / 1000.0;
+
+            System.out.format("round %d: kd-tree %.1f queries/sec, spherical index %.1f queries/sec, %.1f queries/sec with %d threads\n",
+                    round, queries.size() / kdSecs, queries.size() / indexSecs,
+                    queries.size() / parallelSecs, WpThreadUtils.getMaxThreads());
+        }
+
+        // Agreement with a brute force scan
+        int sample = Math.min(100, queries.size());
+        int agree = 0;
+        for (Point q : queries.subList(0, sample)) {
+            final Map<Integer, Double> distances = new HashMap<Integer, Double>();
+            for (Map.Entry<Integer, Geometry> entry : geometries.entrySet()) {
+                distances.put(entry.getKey(), WikiBrainSpatialUtils.haversine(q, WikiBrainSpatialUtils.getCenter(entry.getValue())));
+            }
+            List<Integer> expected = new ArrayList<Integer>(distances.keySet());
+            Collections.sort(expected, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i, Integer j) {
+                    return Double.compare(distances.get(i), distances.get(j));
+                }
+            });
+            Set<Integer> actual = new HashSet<Integer>();
+            for (ClosestPointIndex.Result r : index.query(q, NUM_NEIGHBORS)) {
+                actual.add(r.id);
+            }
+            if (actual.equals(new HashSet<Integer>(expected.subList(0, Math.min(NUM_NEIGHBORS, expected.size()))))) {
+                agree++;
+            }
+        }
+        System.out.println("spherical index matched a brute force scan for " + agree + " of " + sample + " queries");
+    }
+}
@@ -0,0 +1,85 @@
+package org.wikibrain.spatial.utils;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import org.junit.Test;
+import org.wikibrain.spatial.util.NeighborGraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestNeighborGraph {
+
+    private TIntObjectMap<int[]> makeNeighbors() {
+        TIntObjectMap<int[]> neighbors = new TIntObjectHashMap<int[]>();
+        neighbors.put(30, new int[] { 10, 20, 20, 30 });
+        neighbors.put(10, new int[] { 20 });
+        neighbors.put(40, new int[] { 50 });
+        return neighbors;
+    }
+
+    @Test
+    public void testDirected() {
+        NeighborGraph graph = NeighborGraph.build(makeNeighbors(), false);
+        assertEquals(5, graph.size());
+        assertEquals(4, graph.getNumEdges());
+        assertArrayEquals(new int[] { 10, 20 }, graph.getNeighborIds(30));
+        assertArrayEquals(new int[] { 20 }, graph.getNeighborIds(10));
+        assertArrayEquals(new int[] { 50 }, graph.getNeighborIds(40));
+        assertArrayEquals(new int[0], graph.getNeighborIds(20));
+        assertArrayEquals(new int[0], graph.getNeighborIds(99));
+        assertEquals(-1, graph.getIndex(99));
+        assertEquals(20, graph.getId(graph.getIndex(20)));
+
+        NeighborGraph reversed = graph.transpose();
+        assertEquals(4, reversed.getNumEdges());
+        assertArrayEquals(new int[] { 10, 30 }, reversed.getNeighborIds(20));
+        assertArrayEquals(new int[] { 30 }, reversed.getNeighborIds(10));
+        assertArrayEquals(new int[] { 40 }, reversed.getNeighborIds(50));
+        assertArrayEquals(new int[0], reversed.getNeighborIds(30));
+    }
+
+    @Test
+    public void testSymmetric() {
+        NeighborGraph graph = NeighborGraph.build(makeNeighbors(), true);
+        assertEquals(5, graph.size());
+        assertEquals(8, graph.getNumEdges());
+        assertArrayEquals(new int[] { 20, 30 }, graph.getNeighborIds(10));
+        assertArrayEquals(new int[] { 10, 30 }, graph.getNeighborIds(20));
+        assertArrayEquals(new int[] { 10, 20 }, graph.getNeighborIds(30));
+        assertArrayEquals(new int[] { 50 }, graph.getNeighborIds(40));
+        assertArrayEquals(new int[] { 40 }, graph.getNeighborIds(50));
+    }
+
+    @Test
+    public void testReadWrite() throws IOException {
+        Random random = new Random(0);
+        TIntObjectMap<int[]> neighbors = new TIntObjectHashMap<int[]>();
+        for (int i = 0; i < 1000; i++) {
+            int list[] = new int[10];
+            for (int j = 0; j < list.length; j++) {
+                list[j] = random.nextInt(1000) * 7;
+            }
+            neighbors.put(i * 7, list);
+        }
+        NeighborGraph graph = NeighborGraph.build(neighbors, true);
+
+        File file = File.createTempFile("graph", null);
+        file.deleteOnExit();
+        graph.write(file);
+        NeighborGraph graph2 = NeighborGraph.read(file);
+        assertEquals(graph.size(), graph2.size());
+        assertEquals(graph.getNumEdges(), graph2.getNumEdges());
+        for (int i = 0; i < graph.size(); i++) {
+            assertEquals(graph.getId(i), graph2.getId(i));
+            assertArrayEquals(graph.getNeighborIds(graph.getId(i)), graph2.getNeighborIds(graph.getId(i)));
+        }
+    }
+}
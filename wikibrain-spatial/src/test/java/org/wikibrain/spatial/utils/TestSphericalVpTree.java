@@ -0,0 +1,122 @@
+package org.wikibrain.spatial.utils;
+
+import com.vividsolutions.jts.geom.*;
+import org.junit.Test;
+import org.wikibrain.spatial.util.ClosestPointIndex;
+import org.wikibrain.spatial.util.SphericalVpTree;
+import org.wikibrain.spatial.util.WikiBrainSpatialUtils;
+import org.wikibrain.utils.Scoreboard;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestSphericalVpTree {
+    private static final double METERS_PER_DEGREE = WikiBrainSpatialUtils.EARTH_RADIUS * Math.PI / 180;
+
+    private Random random = new Random();
+    private GeometryFactory factory = new GeometryFactory(new PrecisionModel(), 4326);
+
+    @Test
+    public void testPoints() {
+        int n = 20000;
+        int ids[] = new int[n];
+        Geometry points[] = new Geometry[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i * 3;
+            points[i] = makePoint();
+        }
+        SphericalVpTree tree = new SphericalVpTree(ids, points);
+        assertEquals(n, tree.size());
+
+        for (int q = 0; q < 20; q++) {
+            Point query = makePoint();
+            Scoreboard<Integer> actual = new Scoreboard<Integer>(50, Scoreboard.Order.INCREASING);
+            for (int i = 0; i < n; i++) {
+                actual.add(ids[i], WikiBrainSpatialUtils.haversine(query, (Point) points[i]));
+            }
+            List<ClosestPointIndex.Result> results = tree.query(query, 50, Double.MAX_VALUE);
+            assertEquals(50, results.size());
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(actual.getElement(i).intValue(), results.get(i).id);
+                assertEquals(actual.getScore(i), results.get(i).distance, 1.0);
+            }
+
+            // Only neighbors within the maximum distance are returned
+            double maxDistance = actual.getScore(9) + 1.0;
+            assertEquals(10, tree.query(query, 50, maxDistance).size());
+        }
+    }
+
+    @Test
+    public void testPolygons() {
+        Geometry geometries[] = {
+                box(10, 0, 20, 10),             // its bottom edge follows the equator
+                factory.createPoint(new Coordinate(15, -3)),
+                box(-60, -40, 60, -4),          // far center, but a close top edge
+                factory.createPoint(new Coordinate(100, 50)),
+        };
+        SphericalVpTree tree = new SphericalVpTree(new int[] { 1, 2, 3, 4 }, geometries);
+
+        // Inside the box
+        List<ClosestPointIndex.Result> results = tree.query(factory.createPoint(new Coordinate(12, 5)), 1, Double.MAX_VALUE);
+        assertEquals(1, results.get(0).id);
+        assertEquals(0.0, results.get(0).distance, 0.001);
+
+        // Below the box: one degree from its edge, two from the point and three from the large box
+        results = tree.query(factory.createPoint(new Coordinate(15, -1)), 4, Double.MAX_VALUE);
+        assertEquals(4, results.size());
+        assertEquals(1, results.get(0).id);
+        assertEquals(METERS_PER_DEGREE, results.get(0).distance, 1.0);
+        assertEquals(2, results.get(1).id);
+        assertEquals(2 * METERS_PER_DEGREE, results.get(1).distance, 1.0);
+        assertEquals(3, results.get(2).id);
+        assertEquals(4, results.get(3).id);
+    }
+
+    @Test
+    public void testManyPolygons() {
+        int n = 2000;
+        int ids[] = new int[n];
+        Geometry geometries[] = new Geometry[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i;
+            Point p = makePoint();
+            double x = Math.max(-170, Math.min(170, p.getX()));
+            double y = Math.max(-80, Math.min(80, p.getY()));
+            geometries[i] = (i % 2 == 0) ? p : box(x, y, x + random.nextDouble() * 10, y + random.nextDouble() * 10);
+        }
+        SphericalVpTree tree = new SphericalVpTree(ids, geometries);
+        SphericalVpTree empty = new SphericalVpTree(new int[0], new Geometry[0]);
+        for (int q = 0; q < 20; q++) {
+            Point query = makePoint();
+            List<ClosestPointIndex.Result> all = tree.query(query, n, Double.MAX_VALUE);
+            List<ClosestPointIndex.Result> closest = tree.query(query, 10, Double.MAX_VALUE);
+            assertEquals(n, all.size());
+            for (int i = 1; i < all.size(); i++) {
+                assertTrue(all.get(i - 1).distance <= all.get(i).distance);
+            }
+            for (int i = 0; i < 10; i++) {
+                assertEquals(all.get(i).distance, closest.get(i).distance, 0.001);
+            }
+        }
+        assertEquals(0, empty.query(makePoint(), 10, Double.MAX_VALUE).size());
+    }
+
+    private Polygon box(double x1, double y1, double x2, double y2) {
+        return factory.createPolygon(factory.createLinearRing(new Coordinate[] {
+                new Coordinate(x1, y1), new Coordinate(x2, y1), new Coordinate(x2, y2),
+                new Coordinate(x1, y2), new Coordinate(x1, y1)
+        }), null);
+    }
+
+    private Point makePoint() {
+        double lat = 90 - random.nextDouble() * 180;
+        double lon = 180 - random.nextDouble() * 360;
+        return factory.createPoint(new Coordinate(lon, lat));
+    }
+}
@@ -66,6 +66,9 @@ public abstract class BaseSRMetric implements SRMetric {
     // the number of senses to consider for each phrase
     private int numSenses = 5;
 
+    // cosimilarity matrices with fewer cells are filled in the calling thread
+    private static final int MIN_PARALLEL_CELLS = 1000;
+
     /**
      * Returns properties about the metric.
      */
@@ -292,47 +295,95 @@ public abstract class BaseSRMetric implements SRMetric {
     }
 
     @Override
-    public double[][] cosimilarity(int[] wpRowIds, int[] wpColIds) throws DaoException {
-        double[][] cos = new double[wpRowIds.length][wpColIds.length];
-        for (int i=0; i<wpRowIds.length; i++){
-            for (int j=0; j<wpColIds.length; j++){
+    public double[][] cosimilarity(final int[] wpRowIds, final int[] wpColIds) throws DaoException {
+        return fillCosimilarity(wpRowIds.length, wpColIds.length, false, new CellScorer() {
+            @Override
+            public double score(int i, int j) throws DaoException {
                 if (wpRowIds[i]==wpColIds[j]){
-                    cos[i][j]=normalize(1.0);
+                    return normalize(1.0);
                 } else{
-                    cos[i][j]=similarity(wpRowIds[i], wpColIds[j], false).getScore();
+                    return similarity(wpRowIds[i], wpColIds[j], false).getScore();
                 }
             }
-        }
-        return cos;
+        });
     }
 
     @Override
-    public double[][] cosimilarity(String[] rowPhrases, String[] colPhrases) throws DaoException {
-        double[][] cos = new double[rowPhrases.length][colPhrases.length];
-        for (int i=0; i<rowPhrases.length; i++){
-            for (int j=0; j<colPhrases.length; j++){
+    public double[][] cosimilarity(final String[] rowPhrases, final String[] colPhrases) throws DaoException {
+        return fillCosimilarity(rowPhrases.length, colPhrases.length, false, new CellScorer() {
+            @Override
+            public double score(int i, int j) throws DaoException {
                 if (rowPhrases[i].equals(colPhrases[j])){
-                    cos[i][j]=normalize(1.0);
+                    return normalize(1.0);
                 }
                 else{
-                    cos[i][j]=similarity(rowPhrases[i],colPhrases[j],false).getScore();
+                    return similarity(rowPhrases[i],colPhrases[j],false).getScore();
                 }
             }
-        }
-        return cos;
+        });
     }
 
     @Override
-    public double[][] cosimilarity(int[] ids) throws DaoException {
-        double[][] cos = new double[ids.length][ids.length];
-        for (int i=0; i<ids.length; i++){
-            cos[i][i]=normalize(1.0);
-        }
-        for (int i=0; i<ids.length; i++){
-            for (int j=i+1; j<ids.length; j++){
-                cos[i][j]=similarity(ids[i], ids[j], false).getScore();
-                cos[j][i]=cos[i][j];
+    public double[][] cosimilarity(final int[] ids) throws DaoException {
+        return fillCosimilarity(ids.length, ids.length, true, new CellScorer() {
+            @Override
+            public double score(int i, int j) throws DaoException {
+                if (i == j) {
+                    return normalize(1.0);
+                } else {
+                    return similarity(ids[i], ids[j], false).getScore();
+                }
+            }
+        });
+    }
+
+    /**
+     * Scores a single cell of a cosimilarity matrix.
+     */
+    private interface CellScorer {
+        double score(int i, int j) throws DaoException;
+    }
+
+    /**
+     * Fills a cosimilarity matrix one cell at a time. Rows of matrices with at least
+     * MIN_PARALLEL_CELLS cells are scored in parallel, unless the caller is already
+     * a worker of a parallel loop.
+     *
+     * @param symmetric If true, only cells on or above the diagonal are scored and
+     *                  the rest are mirrored.
+     */
+    private double[][] fillCosimilarity(int numRows, final int numCols, final boolean symmetric, final CellScorer scorer) throws DaoException {
+        final double[][] cos = new double[numRows][numCols];
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        Procedure<Integer> fillRow = new Procedure<Integer>() {
+            @Override
+            public void call(Integer i) throws Exception {
+                try {
+                    for (int j = symmetric ? i : 0; j < numCols; j++) {
+                        cos[i][j] = scorer.score(i, j);
+                        if (symmetric) {
+                            cos[j][i] = cos[i][j];
+                        }
+                    }
+                } catch (Exception e) {
+                    errors.add(e);
+                }
             }
+        };
+        if ((long) numRows * numCols < MIN_PARALLEL_CELLS || ParallelForEach.isWorkerThread()) {
+            for (int i = 0; i < numRows && errors.isEmpty(); i++) {
+                try {
+                    fillRow.call(i);
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }
+        } else {
+            ParallelForEach.range(0, numRows, Math.min(numRows, WpThreadUtils.getMaxThreads()), fillRow);
+        }
+        if (!errors.isEmpty()) {
+            Exception e = errors.get(0);
+            throw (e instanceof DaoException) ? (DaoException) e : new DaoException(e);
         }
         return cos;
     }
@@ -317,6 +317,22 @@ public class SRBuilder {
             LOG.info("set window to " + config.getInt("maxWords"));
             trainer.setWindow(config.getInt("window"));
         }
+        if (config.hasPath("fastTraining")) {
+            LOG.info("set fastTraining to " + config.getBoolean("fastTraining"));
+            trainer.setFastMode(config.getBoolean("fastTraining"));
+        }
+        if (config.hasPath("offHeap")) {
+            trainer.setOffHeap(config.getBoolean("offHeap"));
+        }
+        if (config.hasPath("negative")) {
+            LOG.info("set negative to " + config.getInt("negative"));
+            trainer.setNegative(config.getInt("negative"));
+            trainer.setHierarchicalSoftmax(config.getInt("negative") == 0);
+        }
+        if (config.hasPath("sample")) {
+            LOG.info("set sample to " + config.getDouble("sample"));
+            trainer.setSample(config.getDouble("sample"));
+        }
         trainer.setKeepAllArticles(true);
         trainer.train(corpus.getDirectory());
         trainer.save(model);
@@ -2,6 +2,10 @@ package org.wikibrain.sr.utils;
 
 import org.wikibrain.sr.SRResultList;
 
+/**
+ * Keeps the n highest scoring keys. Ties are broken in favor of the lower key,
+ * so the result does not depend on the order in which scores are tallied.
+ */
 public class Leaderboard {
     private double[] values;
     private int[] keys;
@@ -18,19 +22,35 @@ public class Leaderboard {
     public void tallyScore(int key, double value) {
         if (size < values.length - 1) {
             insert(key, value);
-        } else if (value > values[1]) {
+        } else if (value > values[1] || (value == values[1] && key < keys[1])) {
             assert(size == values.length - 1);
             removeMin();
             insert(key, value);
         }
     }
 
+    /**
+     * @return The number of scores currently held, at most n.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The smallest score a new key must beat to enter a full leaderboard,
+     * or negative infinity if the leaderboard is not yet full.
+     */
+    public double getThreshold() {
+        return (size < values.length - 1) ? Double.NEGATIVE_INFINITY : values[1];
+    }
+
     public SRResultList getTop() {
         SRResultList scores = new SRResultList(size);
         for (int i = 1; i <= size; i++) {
             scores.set(i - 1, keys[i], values[i]);
         }
-        scores.sortDescending();
+        scores.sortById();
+        scores.sortDescending();    // stable, so ties stay in ascending key order
         return scores;
     }
 
@@ -41,6 +61,14 @@ public class Leaderboard {
         System.out.println();
     }
 
+    /**
+     * @return True if the entry at pos1 ranks below the entry at pos2.
+     */
+    private boolean worse(int pos1, int pos2) {
+        return values[pos1] < values[pos2]
+            || (values[pos1] == values[pos2] && keys[pos1] > keys[pos2]);
+    }
+
     private int leftChild(int pos) {
         return 2*pos;
     }
@@ -77,7 +105,7 @@ public class Leaderboard {
         values[size] = value;
         int current = size;
 
-        while (values[current] < values[parent(current)]) {
+        while (current > 1 && worse(current, parent(current))) {
             swap(current, parent(current));
             current = parent(current);
         }
@@ -102,9 +130,9 @@ public class Leaderboard {
         int smallestChild;
         while (!isLeaf(position)) {
             smallestChild = leftChild(position);
-            if ((smallestChild < size) && (values[smallestChild] > values[smallestChild+1]))
+            if ((smallestChild < size) && worse(smallestChild+1, smallestChild))
                 smallestChild = smallestChild + 1;
-            if (values[position] <= values[smallestChild]) return;
+            if (!worse(smallestChild, position)) return;
             swap(position,smallestChild);
             position = smallestChild;
         }
@@ -1,6 +1,8 @@
 package org.wikibrain.sr.vector;
 
 import com.typesafe.config.Config;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntDoubleMap;
 import gnu.trove.map.TIntFloatMap;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntDoubleHashMap;
@@ -20,23 +22,88 @@ import org.wikibrain.utils.WpIOUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Cosine similarity between sparse feature vectors.
+ *
+ * <p>
+ * Most similar queries over the inverted index (the transpose of the feature matrix)
+ * use MaxScore style dynamic pruning by default. For each feature we store the largest
+ * and smallest length-normalized weight in its posting list, which bounds how much
+ * the feature can add to the score of any candidate. Query features are processed in
+ * decreasing order of their bound, and once the bounds of the remaining features can
+ * no longer lift an unseen candidate above the current k-th best score, the remaining
+ * posting lists are skipped. Surviving candidates are then scored exactly from their
+ * rows in the feature matrix, so the top results are identical to an exhaustive scan.
+ * </p>
+ *
+ * <p>
+ * Rows with tied scores are ranked by ascending id on both paths, and each result
+ * is normalized exactly as in the exhaustive scan, so ties resolve the same way.
+ * </p>
+ *
+ * <p>
+ * When the ids of the rows are compact, scores are accumulated in a reusable dense
+ * array instead of a hash map. Each thread's array is allocated in blocks as rows
+ * are touched.
+ * </p>
+ *
  * @author Shilad Sen
  */
 public class CosineSimilarity implements VectorSimilarity {
     private static final Logger LOG = LoggerFactory.getLogger(CosineSimilarity.class);
 
+    /**
+     * Use a dense accumulator if the row ids span at most this many slots per row.
+     */
+    private static final int MAX_DENSE_SLOTS_PER_ROW = 4;
+
+    /**
+     * Number of rows sampled to estimate the average row length.
+     */
+    private static final int ROW_LENGTH_SAMPLE_SIZE = 1000;
+
+    /**
+     * Absorbs the double precision rounding error of summing bounds and partial scores
+     * in different orders. Float rounding is covered by the outward rounded weight
+     * bounds and BOUND_HEADROOM.
+     */
+    private static final double BOUND_SLACK = 1E-9;
+
+    /**
+     * Relative headroom on each feature's bound. Scores sum float products of weights,
+     * which can round up by about 6e-8 relative to the exact products.
+     */
+    private static final double BOUND_HEADROOM = 1 + 1E-6;
+
     private TIntFloatHashMap lengths = new TIntFloatHashMap();   // lengths of each row
     private TIntSet idsInResults = new TIntHashSet();
     private int maxResults = -1;
 
+    // largest and smallest value of weight / row length in each posting list of the transpose
+    private TIntFloatHashMap maxWeights = new TIntFloatHashMap();
+    private TIntFloatHashMap minWeights = new TIntFloatHashMap();
+
     private SparseMatrix features;
     private SparseMatrix transpose;
 
+    private boolean pruning = true;
+    private boolean denseAccumulator = true;
+
+    // range of row ids covered by the dense accumulators, or null if ids are not compact.
+    private double avgRowLength = 0.0;
+    private int minRowId = 0;
+    private float denseLengths[] = null;
+    private ThreadLocal<DenseAccumulator> denseAccumulators = null;
+
+    private final AtomicLong postingsVisited = new AtomicLong();
+
     @Override
     public synchronized  void setMatrices(SparseMatrix features, SparseMatrix transpose, File dataDir) throws IOException {
         this.features = features;
@@ -45,13 +112,19 @@ public class CosineSimilarity implements VectorSimilarity {
         File idCacheFile = new File(dataDir, "cosineSimilarity-ids.bin");
         File lengthCacheFile = new File(dataDir, "cosineSimilarity-lengths.bin");
         File maxCacheFile = new File(dataDir, "cosineSimilarity-maxResults.bin");
+        File maxWeightCacheFile = new File(dataDir, "cosineSimilarity-maxWeightBounds.bin");
+        File minWeightCacheFile = new File(dataDir, "cosineSimilarity-minWeightBounds.bin");
 
         if (lengthCacheFile.exists() && lengthCacheFile.lastModified() >= features.lastModified()
-                &&  idCacheFile.exists() && idCacheFile.lastModified() >= transpose.lastModified()) {
+                &&  idCacheFile.exists() && idCacheFile.lastModified() >= transpose.lastModified()
+                &&  maxWeightCacheFile.exists() && maxWeightCacheFile.lastModified() >= transpose.lastModified()
+                &&  minWeightCacheFile.exists() && minWeightCacheFile.lastModified() >= transpose.lastModified()) {
             LOG.info("reading matrix information from cache");
             lengths = (TIntFloatHashMap) WpIOUtils.readObjectFromFile(lengthCacheFile);
             idsInResults = (TIntSet) WpIOUtils.readObjectFromFile(idCacheFile);
             maxResults = (Integer) WpIOUtils.readObjectFromFile(maxCacheFile);
+            maxWeights = (TIntFloatHashMap) WpIOUtils.readObjectFromFile(maxWeightCacheFile);
+            minWeights = (TIntFloatHashMap) WpIOUtils.readObjectFromFile(minWeightCacheFile);
         } else {
             LOG.info("building cached matrix information");
             lengths.clear();
@@ -62,12 +135,123 @@ public class CosineSimilarity implements VectorSimilarity {
                 maxResults = Math.max(maxResults, row.getNumCols());
             }
             idsInResults.addAll(transpose.getRowIds());
+            buildWeightBounds();
             WpIOUtils.writeObjectToFile(lengthCacheFile, lengths);
             WpIOUtils.writeObjectToFile(idCacheFile, idsInResults);
             WpIOUtils.writeObjectToFile(maxCacheFile, maxResults);
+            WpIOUtils.writeObjectToFile(maxWeightCacheFile, maxWeights);
+            WpIOUtils.writeObjectToFile(minWeightCacheFile, minWeights);
+        }
+        buildDenseLengths();
+        estimateAvgRowLength();
+    }
+
+    /**
+     * Estimates the average row length, which prices scoring a candidate directly
+     * from the feature matrix against reading another posting list.
+     */
+    private void estimateAvgRowLength() throws IOException {
+        int rowIds[] = features.getRowIds();
+        if (rowIds.length == 0) {
+            avgRowLength = 0.0;
+            return;
+        }
+        int step = Math.max(1, rowIds.length / ROW_LENGTH_SAMPLE_SIZE);
+        long total = 0;
+        int n = 0;
+        for (int i = 0; i < rowIds.length; i += step) {
+            total += features.getRow(rowIds[i]).getNumCols();
+            n++;
+        }
+        avgRowLength = 1.0 * total / n;
+    }
+
+    /**
+     * Records the extreme length-normalized weights of each posting list in the transpose.
+     * The weights are divided in double precision and rounded outward to floats, so the
+     * stored bounds are never tighter than the true extremes.
+     */
+    private void buildWeightBounds() {
+        maxWeights = new TIntFloatHashMap();
+        minWeights = new TIntFloatHashMap();
+        for (SparseMatrixRow row : transpose) {
+            double max = Double.NEGATIVE_INFINITY;
+            double min = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < row.getNumCols(); i++) {
+                float length = lengths.get(row.getColIndex(i));
+                if (length > 0) {
+                    double w = (double) row.getColValue(i) / length;
+                    max = Math.max(max, w);
+                    min = Math.min(min, w);
+                }
+            }
+            if (max >= min) {
+                maxWeights.put(row.getRowIndex(), Math.nextUp((float) max));
+                minWeights.put(row.getRowIndex(), Math.nextAfter((float) min, Double.NEGATIVE_INFINITY));
+            }
         }
     }
 
+    /**
+     * Builds a dense copy of the row lengths if the row ids are compact.
+     */
+    private void buildDenseLengths() {
+        denseLengths = null;
+        denseAccumulators = null;
+        if (!denseAccumulator || lengths.isEmpty()) {
+            return;
+        }
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int id : lengths.keys()) {
+            min = Math.min(min, id);
+            max = Math.max(max, id);
+        }
+        long slots = (long) max - min + 1;
+        if (slots > (long) MAX_DENSE_SLOTS_PER_ROW * lengths.size() || slots > Integer.MAX_VALUE - 8) {
+            LOG.info("row ids span {} slots for {} rows; using sparse accumulators", slots, lengths.size());
+            return;
+        }
+        final int n = (int) slots;
+        float dense[] = new float[n];
+        for (int id : lengths.keys()) {
+            dense[id - min] = lengths.get(id);
+        }
+        minRowId = min;
+        denseLengths = dense;
+        denseAccumulators = new ThreadLocal<DenseAccumulator>() {
+            @Override
+            protected DenseAccumulator initialValue() {
+                return new DenseAccumulator(n);
+            }
+        };
+    }
+
+    /**
+     * @param pruning If true (the default), inverted index queries skip posting lists
+     *                that cannot change the top results.
+     */
+    public void setPruning(boolean pruning) {
+        this.pruning = pruning;
+    }
+
+    /**
+     * @param denseAccumulator If true (the default), scores are accumulated in a dense
+     *                         array when the row ids are compact. Takes effect at the
+     *                         next call to setMatrices().
+     */
+    public void setDenseAccumulator(boolean denseAccumulator) {
+        this.denseAccumulator = denseAccumulator;
+    }
+
+    /**
+     * @return The total number of matrix entries (postings in the transpose and
+     * entries of exactly scored rows) read by inverted index queries.
+     */
+    public long getPostingsVisited() {
+        return postingsVisited.get();
+    }
+
     @Override
     public double similarity(MatrixRow a, MatrixRow b) {
         return SimUtils.cosineSimilarity(a, b);
@@ -82,6 +266,8 @@ public class CosineSimilarity implements VectorSimilarity {
     public SRResultList mostSimilar(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
         if (validIds != null && validIds.size() < 10000) {
             return mostSimilarWithRegularIndex(query, maxResults, validIds);
+        } else if (pruning) {
+            return mostSimilarWithPrunedIndex(query, maxResults, validIds);
         } else {
             return mostSimilarWithInvertedIndex(query, maxResults, validIds);
         }
@@ -113,39 +299,383 @@ public class CosineSimilarity implements VectorSimilarity {
     }
 
     private SRResultList mostSimilarWithInvertedIndex(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
-        TIntDoubleHashMap dots = new TIntDoubleHashMap(Math.max(100000, maxResults * 5));
+        Accumulator dots = newAccumulator(maxResults);
+        long visited = 0;
 
-        // Eschew a for-each loop here for performance reasons.
+        try {
+            // Eschew a for-each loop here for performance reasons.
+            int keys[] = query.keys();
+            for (int i = 0; i < keys.length; i++) {
+                int id = keys[i];
+                float val1 = query.get(id);
+                MatrixRow row2 = transpose.getRow(id);
+                if (row2 != null) {
+                    int n = row2.getNumCols();
+                    visited += n;
+                    for (int j = 0; j < n; j++) {
+                        int id2 = row2.getColIndex(j);
+                        if (validIds == null || validIds.contains(id2)) {
+                            float val2 = row2.getColValue(j);
+                            dots.add(id2, val1 * val2);
+                        }
+                    }
+                }
+            }
+
+            final Leaderboard leaderboard = new Leaderboard(maxResults);
+            double rowNorm = norm(query);
+            keys = dots.keys();
+            for (int i = 0; i < keys.length; i++) {
+                int id = keys[i];
+                double l1 = lengths.get(id);
+                double l2 = rowNorm;
+                double dot = dots.get(id);
+                double sim = dot / (l1 * l2);
+                leaderboard.tallyScore(id, sim);
+            }
+
+            return leaderboard.getTop();
+        } finally {
+            dots.release();
+            postingsVisited.addAndGet(visited);
+        }
+    }
+
+    /**
+     * MaxScore style retrieval over the inverted index. Returns the same top results
+     * as mostSimilarWithInvertedIndex, usually after reading far fewer postings.
+     */
+    private SRResultList mostSimilarWithPrunedIndex(TIntFloatMap query, int maxResults, TIntSet validIds) throws IOException {
+        double rowNorm = norm(query);
+        if (rowNorm == 0.0 || maxResults <= 0) {
+            return new SRResultList(0);
+        }
+
+        // Bound each feature's contribution to the similarity of any single row.
         int keys[] = query.keys();
+        final MatrixRow postings[] = new MatrixRow[keys.length];
+        final float weights[] = new float[keys.length];
+        final double bounds[] = new double[keys.length];
+        Integer order[] = new Integer[keys.length];
+        int numFeatures = 0;
         for (int i = 0; i < keys.length; i++) {
-            int id = keys[i];
-            float val1 = query.get(id);
-            MatrixRow row2 = transpose.getRow(id);
-            if (row2 != null) {
+            float w = query.get(keys[i]);
+            if (w == 0 || !maxWeights.containsKey(keys[i])) {
+                continue;
+            }
+            MatrixRow row = transpose.getRow(keys[i]);
+            if (row != null && row.getNumCols() > 0) {
+                postings[numFeatures] = row;
+                weights[numFeatures] = w;
+                bounds[numFeatures] = Math.max(0.0, Math.max(
+                        (double) w * maxWeights.get(keys[i]), (double) w * minWeights.get(keys[i])))
+                        * BOUND_HEADROOM / rowNorm;
+                order[numFeatures] = numFeatures;
+                numFeatures++;
+            }
+        }
+        order = Arrays.copyOf(order, numFeatures);
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i, Integer j) {
+                return Double.compare(bounds[j], bounds[i]);
+            }
+        });
+
+        // remainingBounds[i] bounds the similarity contributed by features order[i..]
+        // remainingPostings[i] is the number of postings for features order[i..]
+        double remainingBounds[] = new double[numFeatures + 1];
+        long remainingPostings[] = new long[numFeatures + 1];
+        for (int i = numFeatures - 1; i >= 0; i--) {
+            remainingBounds[i] = remainingBounds[i + 1] + bounds[order[i]];
+            remainingPostings[i] = remainingPostings[i + 1] + postings[order[i]].getNumCols();
+        }
+
+        Accumulator partials = newAccumulator(maxResults);
+        TIntDoubleMap exact = new TIntDoubleHashMap();
+        Leaderboard exactBoard = new Leaderboard(maxResults);
+        long visited = 0;
+
+        try {
+            double lastCheck = Double.POSITIVE_INFINITY;
+            int processed = 0;
+            TIntArrayList candidates = null;    // once non-null, unseen rows can not make the results
+
+            for (; processed < numFeatures; processed++) {
+                double rest = remainingBounds[processed];
+
+                // Refresh the k-th best exact score each time the remaining bound halves.
+                if (partials.size() >= maxResults && rest < lastCheck / 2) {
+                    lastCheck = rest;
+                    visited += scoreBestPartials(query, rowNorm, partials, exact, exactBoard, maxResults);
+                }
+                double threshold = exactBoard.getThreshold();
+
+                if (candidates == null && rest + BOUND_SLACK < threshold) {
+                    candidates = new TIntArrayList(partials.keys());
+
+                    // From now on, read the lists that tighten the bounds the most per posting first.
+                    Arrays.sort(order, processed, numFeatures, new Comparator<Integer>() {
+                        @Override
+                        public int compare(Integer i, Integer j) {
+                            return Double.compare(
+                                    bounds[j] / postings[j].getNumCols(),
+                                    bounds[i] / postings[i].getNumCols());
+                        }
+                    });
+                    for (int i = numFeatures - 1; i >= processed; i--) {
+                        remainingBounds[i] = remainingBounds[i + 1] + bounds[order[i]];
+                        remainingPostings[i] = remainingPostings[i + 1] + postings[order[i]].getNumCols();
+                    }
+                    rest = remainingBounds[processed];
+                }
+                if (candidates != null) {
+                    // Drop candidates that can not beat the threshold, then choose between
+                    // scoring the survivors from the feature matrix and reading the next list.
+                    int n = 0;
+                    for (int i = 0; i < candidates.size(); i++) {
+                        int id = candidates.get(i);
+                        if (!exact.containsKey(id) && partialScore(partials, id, rowNorm) + rest + BOUND_SLACK >= threshold) {
+                            candidates.set(n++, id);
+                        }
+                    }
+                    candidates.remove(n, candidates.size() - n);
+                    if (candidates.size() * avgRowLength <= remainingPostings[processed]) {
+                        for (int i = 0; i < candidates.size(); i++) {
+                            visited += scoreExactly(query, rowNorm, candidates.get(i), exact, exactBoard);
+                        }
+                        return exactBoard.getTop();
+                    }
+                }
+
+                int f = order[processed];
+                MatrixRow row2 = postings[f];
+                float w = weights[f];
                 int n = row2.getNumCols();
+                visited += n;
                 for (int j = 0; j < n; j++) {
                     int id2 = row2.getColIndex(j);
-                    if (validIds == null || validIds.contains(id2)) {
-                        float val2 = row2.getColValue(j);
-                        dots.adjustOrPutValue(id2, val1 * val2, val1 * val2);
+                    if ((candidates == null || partials.contains(id2))
+                    &&  (validIds == null || validIds.contains(id2))
+                    &&  getLength(id2) > 0) {
+                        partials.add(id2, w * row2.getColValue(j));
                     }
                 }
             }
+
+            // Every posting list was read, so the remaining partial scores are complete.
+            keys = (candidates == null) ? partials.keys() : candidates.toArray();
+            for (int i = 0; i < keys.length; i++) {
+                if (!exact.containsKey(keys[i])) {
+                    exactBoard.tallyScore(keys[i], partialScore(partials, keys[i], rowNorm));
+                }
+            }
+            return exactBoard.getTop();
+        } finally {
+            partials.release();
+            postingsVisited.addAndGet(visited);
         }
+    }
 
-        final Leaderboard leaderboard = new Leaderboard(maxResults);
-        double rowNorm = norm(query);
-        keys = dots.keys();
+    /**
+     * Exactly scores the k candidates with the highest partial scores.
+     * @return The number of matrix entries read.
+     */
+    private long scoreBestPartials(TIntFloatMap query, double rowNorm, Accumulator partials, TIntDoubleMap exact, Leaderboard exactBoard, int k) throws IOException {
+        Leaderboard best = new Leaderboard(k);
+        int keys[] = partials.keys();
         for (int i = 0; i < keys.length; i++) {
-            int id = keys[i];
-            double l1 = lengths.get(id);
-            double l2 = rowNorm;
-            double dot = dots.get(id);
-            double sim = dot / (l1 * l2);
-            leaderboard.tallyScore(id, sim);
+            best.tallyScore(keys[i], partialScore(partials, keys[i], rowNorm));
         }
+        long visited = 0;
+        SRResultList top = best.getTop();
+        for (int i = 0; i < top.numDocs(); i++) {
+            if (!exact.containsKey(top.getId(i))) {
+                visited += scoreExactly(query, rowNorm, top.getId(i), exact, exactBoard);
+            }
+        }
+        return visited;
+    }
 
-        return leaderboard.getTop();
+    /**
+     * Computes the similarity between the query and a row of the feature matrix.
+     * @return The number of matrix entries read.
+     */
+    private int scoreExactly(TIntFloatMap query, double rowNorm, int id, TIntDoubleMap exact, Leaderboard exactBoard) throws IOException {
+        MatrixRow row = features.getRow(id);
+        if (row == null) {
+            return 0;
+        }
+        double dot = 0.0;
+        int n = row.getNumCols();
+        for (int i = 0; i < n; i++) {
+            float val1 = query.get(row.getColIndex(i));
+            if (val1 != 0) {
+                dot += val1 * row.getColValue(i);
+            }
+        }
+        double sim = dot / (getLength(id) * rowNorm);
+        exact.put(id, sim);
+        exactBoard.tallyScore(id, sim);
+        return n;
+    }
+
+    /**
+     * Normalizes an accumulated dot product the same way the exhaustive scan does.
+     * Complete partial scores can still differ from the exhaustive ones in the last
+     * bits, because the products are summed in a different order.
+     */
+    private double partialScore(Accumulator partials, int id, double rowNorm) {
+        double l1 = getLength(id);
+        return partials.get(id) / (l1 * rowNorm);
+    }
+
+    private float getLength(int id) {
+        if (denseLengths != null) {
+            int i = id - minRowId;
+            return (i >= 0 && i < denseLengths.length) ? denseLengths[i] : 0.0f;
+        }
+        return lengths.get(id);
+    }
+
+    private Accumulator newAccumulator(int maxResults) {
+        ThreadLocal<DenseAccumulator> local = denseAccumulators;
+        if (local != null) {
+            DenseAccumulator acc = local.get();
+            acc.offset = minRowId;
+            return acc;
+        }
+        return new SparseAccumulator(Math.max(100000, maxResults * 5));
+    }
+
+    /**
+     * Sums scores for candidate rows during a single query.
+     */
+    private interface Accumulator {
+        void add(int id, double value);
+        double get(int id);
+        boolean contains(int id);
+        int size();
+        int[] keys();
+
+        /**
+         * Called at the end of the query so the accumulator can be reused.
+         */
+        void release();
+    }
+
+    private static class SparseAccumulator implements Accumulator {
+        private final TIntDoubleHashMap sums;
+
+        SparseAccumulator(int capacity) {
+            sums = new TIntDoubleHashMap(capacity);
+        }
+
+        @Override
+        public void add(int id, double value) {
+            sums.adjustOrPutValue(id, value, value);
+        }
+
+        @Override
+        public double get(int id) {
+            return sums.get(id);
+        }
+
+        @Override
+        public boolean contains(int id) {
+            return sums.containsKey(id);
+        }
+
+        @Override
+        public int size() {
+            return sums.size();
+        }
+
+        @Override
+        public int[] keys() {
+            return sums.keys();
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /**
+     * Accumulates into an array indexed by row id. The array is split into blocks
+     * that are allocated the first time one of their rows is touched, and only the
+     * touched slots are cleared on release, so each thread reuses its blocks across
+     * queries without paying for rows it never scores.
+     */
+    private static class DenseAccumulator implements Accumulator {
+        private static final int BLOCK_BITS = 12;
+        private static final int BLOCK_MASK = (1 << BLOCK_BITS) - 1;
+
+        private final int n;
+        private final double sums[][];
+        private final boolean touched[][];
+        private final TIntArrayList ids = new TIntArrayList();
+        private int offset;
+
+        DenseAccumulator(int n) {
+            this.n = n;
+            int numBlocks = (n >> BLOCK_BITS) + 1;
+            sums = new double[numBlocks][];
+            touched = new boolean[numBlocks][];
+        }
+
+        @Override
+        public void add(int id, double value) {
+            int i = id - offset;
+            int b = i >> BLOCK_BITS;
+            if (sums[b] == null) {
+                sums[b] = new double[BLOCK_MASK + 1];
+                touched[b] = new boolean[BLOCK_MASK + 1];
+            }
+            int j = i & BLOCK_MASK;
+            if (!touched[b][j]) {
+                touched[b][j] = true;
+                ids.add(id);
+            }
+            sums[b][j] += value;
+        }
+
+        @Override
+        public double get(int id) {
+            int i = id - offset;
+            double block[] = sums[i >> BLOCK_BITS];
+            return (block == null) ? 0.0 : block[i & BLOCK_MASK];
+        }
+
+        @Override
+        public boolean contains(int id) {
+            int i = id - offset;
+            if (i < 0 || i >= n) {
+                return false;
+            }
+            boolean block[] = touched[i >> BLOCK_BITS];
+            return block != null && block[i & BLOCK_MASK];
+        }
+
+        @Override
+        public int size() {
+            return ids.size();
+        }
+
+        @Override
+        public int[] keys() {
+            return ids.toArray();
+        }
+
+        @Override
+        public void release() {
+            for (int k = 0; k < ids.size(); k++) {
+                int i = ids.get(k) - offset;
+                sums[i >> BLOCK_BITS][i & BLOCK_MASK] = 0.0;
+                touched[i >> BLOCK_BITS][i & BLOCK_MASK] = false;
+            }
+            ids.clear();
+        }
     }
 
     @Override
@@ -186,7 +716,14 @@ public class CosineSimilarity implements VectorSimilarity {
             if (!config.getString("type").equals("cosine")) {
                 return null;
             }
-            return new CosineSimilarity();
+            CosineSimilarity similarity = new CosineSimilarity();
+            if (config.hasPath("pruning")) {
+                similarity.setPruning(config.getBoolean("pruning"));
+            }
+            if (config.hasPath("denseAccumulator")) {
+                similarity.setDenseAccumulator(config.getBoolean("denseAccumulator"));
+            }
+            return similarity;
         }
 }
 }
@@ -94,7 +94,19 @@ public class GoogleSimilarity implements VectorSimilarity {
                 intersect++;
             }
         }
-        if (intersect == 0) {
+        return similarity(size1, size2, intersect, false);
+    }
+
+    /**
+     * Returns the similarity of two vectors with the given numbers of features that
+     * share intersect features.
+     *
+     * @param rows If true, matches similarity(MatrixRow, MatrixRow). Otherwise matches
+     *             similarity(TIntFloatMap, TIntFloatMap), which scores vectors that
+     *             share no features as 0.
+     */
+    public double similarity(int size1, int size2, int intersect, boolean rows) {
+        if (size1 == 0 || size2 == 0 || (!rows && intersect == 0)) {
             return 0.0;
         }
         return SimUtils.googleSimilarity(size1, size2, intersect, numPages);
@@ -133,7 +145,7 @@ public class GoogleSimilarity implements VectorSimilarity {
             }
         }
 
-        return SimUtils.googleSimilarity(na, nb, intersect, numPages);
+        return similarity(na, nb, intersect, true);
     }
 
     @Override
@@ -0,0 +1,280 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.wikibrain.matrix.MatrixRow;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Computes blocks of cosine similarities (or feature overlaps) between sparse vectors
+ * as a sparse matrix product.
+ *
+ * <p>
+ * Vectors are normalized to unit length up front, so the product of the row vectors
+ * and the transpose of the column vectors is the cosine similarity matrix. The transpose
+ * is built locally from the column vectors, and each row accumulates into its output row
+ * by walking the postings of its features. The output is split into tiles of rows and
+ * columns that are computed in parallel. Large blocks therefore cost time proportional
+ * to the number of overlapping features rather than rows x columns pairwise merges.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class SparseCosimilarity {
+    public static final int DEFAULT_TILE_ROWS = 32;
+    public static final int DEFAULT_TILE_COLS = 1024;
+
+    /**
+     * Blocks with fewer postings to walk than this are computed in the calling thread.
+     */
+    private static final long MIN_PARALLEL_WORK = 200000;
+
+    private final int numThreads;
+    private final int tileRows;
+    private final int tileCols;
+
+    public SparseCosimilarity() {
+        this(WpThreadUtils.getMaxThreads(), DEFAULT_TILE_ROWS, DEFAULT_TILE_COLS);
+    }
+
+    public SparseCosimilarity(int numThreads, int tileRows, int tileCols) {
+        this.numThreads = Math.max(1, numThreads);
+        this.tileRows = tileRows;
+        this.tileCols = tileCols;
+    }
+
+    /**
+     * A sparse vector, either normalized to unit length or an indicator of its features.
+     */
+    public static final class Vector {
+        private final int ids[];
+        private final float vals[];
+
+        private Vector(int ids[], float vals[]) {
+            double norm = 0.0;
+            for (float v : vals) {
+                norm += v * v;
+            }
+            norm = Math.sqrt(norm);
+            for (int i = 0; i < vals.length; i++) {
+                vals[i] = (norm == 0.0) ? 0.0f : (float) (vals[i] / norm);
+            }
+            this.ids = ids;
+            this.vals = vals;
+        }
+
+        private Vector(int ids[]) {
+            this.ids = ids;
+            this.vals = new float[ids.length];
+            Arrays.fill(vals, 1.0f);
+        }
+
+        /**
+         * @return The number of features in the vector.
+         */
+        public int size() {
+            return ids.length;
+        }
+
+        public static Vector fromRow(MatrixRow row) {
+            int n = row.getNumCols();
+            int ids[] = new int[n];
+            float vals[] = new float[n];
+            for (int i = 0; i < n; i++) {
+                ids[i] = row.getColIndex(i);
+                vals[i] = row.getColValue(i);
+            }
+            return new Vector(ids, vals);
+        }
+
+        public static Vector fromMap(TIntFloatMap map) {
+            int ids[] = map.keys();
+            float vals[] = new float[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                vals[i] = map.get(ids[i]);
+            }
+            return new Vector(ids, vals);
+        }
+
+        /**
+         * Returns a vector with a value of one for each feature of the row.
+         * The product of two such vectors is the number of features they share.
+         */
+        public static Vector indicatorFromRow(MatrixRow row) {
+            int ids[] = new int[row.getNumCols()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = row.getColIndex(i);
+            }
+            return new Vector(ids);
+        }
+
+        /**
+         * Returns a vector with a value of one for each key of the map.
+         */
+        public static Vector indicatorFromMap(TIntFloatMap map) {
+            return new Vector(map.keys());
+        }
+    }
+
+    /**
+     * Computes the cosine similarity between every row vector and every column vector.
+     *
+     * @param rows Row vectors. Null entries produce rows of zeros.
+     * @param cols Column vectors. Null entries produce columns of zeros.
+     * @return A rows.length x cols.length matrix of cosine similarities.
+     */
+    public double[][] cosimilarity(Vector rows[], Vector cols[]) {
+        return multiply(rows, cols);
+    }
+
+    /**
+     * Computes the dot product of every row vector and every column vector.
+     * For unit vectors this is their cosine similarity, and for indicator vectors
+     * it is the number of features they share.
+     *
+     * @param rows Row vectors. Null entries produce rows of zeros.
+     * @param cols Column vectors. Null entries produce columns of zeros.
+     * @return A rows.length x cols.length matrix of dot products.
+     */
+    public double[][] multiply(final Vector rows[], Vector cols[]) {
+        final double results[][] = new double[rows.length][cols.length];
+        if (rows.length == 0 || cols.length == 0) {
+            return results;
+        }
+
+        // Build the transpose of the column vectors: for each feature, the columns
+        // containing it in increasing order along with their values.
+        TIntIntMap featureIndex = new TIntIntHashMap();
+        TIntIntMap counts = new TIntIntHashMap();
+        for (Vector v : cols) {
+            if (v == null) continue;
+            for (int id : v.ids) {
+                if (!featureIndex.containsKey(id)) {
+                    featureIndex.put(id, featureIndex.size());
+                }
+                counts.adjustOrPutValue(id, 1, 1);
+            }
+        }
+        final int offsets[] = new int[featureIndex.size() + 1];
+        for (int id : featureIndex.keys()) {
+            offsets[featureIndex.get(id) + 1] = counts.get(id);
+        }
+        for (int i = 0; i < featureIndex.size(); i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        final int postingCols[] = new int[offsets[offsets.length - 1]];
+        final float postingVals[] = new float[postingCols.length];
+        int fill[] = Arrays.copyOf(offsets, featureIndex.size());
+        for (int j = 0; j < cols.length; j++) {
+            Vector v = cols[j];
+            if (v == null) continue;
+            for (int k = 0; k < v.ids.length; k++) {
+                int p = fill[featureIndex.get(v.ids[k])]++;
+                postingCols[p] = j;
+                postingVals[p] = v.vals[k];
+            }
+        }
+
+        // Resolve the features of each row to posting lists once, rather than once per tile.
+        final int rowFeatures[][] = new int[rows.length][];
+        long work = 0;
+        for (int i = 0; i < rows.length; i++) {
+            Vector v = rows[i];
+            if (v == null) continue;
+            rowFeatures[i] = new int[v.ids.length];
+            for (int k = 0; k < v.ids.length; k++) {
+                if (featureIndex.containsKey(v.ids[k])) {
+                    int f = featureIndex.get(v.ids[k]);
+                    rowFeatures[i][k] = f;
+                    work += offsets[f + 1] - offsets[f];
+                } else {
+                    rowFeatures[i][k] = -1;
+                }
+            }
+        }
+
+        List<Callable<Object>> tiles = new ArrayList<Callable<Object>>();
+        for (int r = 0; r < rows.length; r += tileRows) {
+            for (int c = 0; c < cols.length; c += tileCols) {
+                final int r0 = r, r1 = Math.min(rows.length, r + tileRows);
+                final int c0 = c, c1 = Math.min(cols.length, c + tileCols);
+                tiles.add(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        multiplyTile(rows, rowFeatures, offsets, postingCols, postingVals, results, r0, r1, c0, c1);
+                        return null;
+                    }
+                });
+            }
+        }
+
+        // Callers on the worker of a parallel loop already have the cores busy
+        if (numThreads == 1 || tiles.size() == 1 || work < MIN_PARALLEL_WORK || ParallelForEach.isWorkerThread()) {
+            for (Callable<Object> tile : tiles) {
+                try {
+                    tile.call();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        } else {
+            ExecutorService exec = Executors.newFixedThreadPool(Math.min(numThreads, tiles.size()));
+            try {
+                for (Future<Object> f : exec.invokeAll(tiles)) {
+                    f.get();
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } finally {
+                exec.shutdown();
+            }
+        }
+        return results;
+    }
+
+    private static void multiplyTile(Vector rows[], int rowFeatures[][], int offsets[],
+                                     int postingCols[], float postingVals[], double results[][],
+                                     int r0, int r1, int c0, int c1) {
+        for (int i = r0; i < r1; i++) {
+            if (rows[i] == null) continue;
+            float vals[] = rows[i].vals;
+            int features[] = rowFeatures[i];
+            double out[] = results[i];
+            for (int k = 0; k < features.length; k++) {
+                int f = features[k];
+                if (f < 0) continue;
+                double w = vals[k];
+                int end = offsets[f + 1];
+                int p = (c0 == 0) ? offsets[f] : lowerBound(postingCols, offsets[f], end, c0);
+                for (; p < end && postingCols[p] < c1; p++) {
+                    out[postingCols[p]] += w * postingVals[p];
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the first index in [from, to) whose value is at least key.
+     */
+    private static int lowerBound(int values[], int from, int to, int key) {
+        int lo = from, hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
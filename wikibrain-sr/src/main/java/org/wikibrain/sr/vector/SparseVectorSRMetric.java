@@ -69,6 +69,8 @@ public class SparseVectorSRMetric extends BaseSRMetric {
     private SparseMatrix featureMatrix;
     private SparseMatrix transposeMatrix;
 
+    private final SparseCosimilarity cosimilarityEngine = new SparseCosimilarity();
+
 
     public SparseVectorSRMetric(String name, Language language, LocalPageDao dao, Disambiguator disambig, SparseVectorGenerator generator, VectorSimilarity similarity) {
         super(name, language, dao, disambig);
@@ -287,6 +289,36 @@ public class SparseVectorSRMetric extends BaseSRMetric {
                     vectors.put(id, row);
                 }
             }
+            if (similarity instanceof CosineSimilarity) {
+                TIntObjectMap<SparseCosimilarity.Vector> unit = new TIntObjectHashMap<SparseCosimilarity.Vector>(vectors.size());
+                for (int id : vectors.keys()) {
+                    unit.put(id, SparseCosimilarity.Vector.fromRow(vectors.get(id)));
+                }
+                SparseCosimilarity.Vector rowVectors[] = new SparseCosimilarity.Vector[rowIds.length];
+                for (int i = 0; i < rowIds.length; i++) {
+                    rowVectors[i] = unit.get(rowIds[i]);
+                }
+                SparseCosimilarity.Vector colVectors[] = new SparseCosimilarity.Vector[colIds.length];
+                for (int j = 0; j < colIds.length; j++) {
+                    colVectors[j] = unit.get(colIds[j]);
+                }
+                return cosineCosimilarity(rowVectors, colVectors);
+            }
+            if (similarity instanceof GoogleSimilarity) {
+                TIntObjectMap<SparseCosimilarity.Vector> indicators = new TIntObjectHashMap<SparseCosimilarity.Vector>(vectors.size());
+                for (int id : vectors.keys()) {
+                    indicators.put(id, SparseCosimilarity.Vector.indicatorFromRow(vectors.get(id)));
+                }
+                SparseCosimilarity.Vector rowVectors[] = new SparseCosimilarity.Vector[rowIds.length];
+                for (int i = 0; i < rowIds.length; i++) {
+                    rowVectors[i] = indicators.get(rowIds[i]);
+                }
+                SparseCosimilarity.Vector colVectors[] = new SparseCosimilarity.Vector[colIds.length];
+                for (int j = 0; j < colIds.length; j++) {
+                    colVectors[j] = indicators.get(colIds[j]);
+                }
+                return googleCosimilarity(rowVectors, colVectors, true);
+            }
             double results[][] = new double[rowIds.length][colIds.length];
             for (int i = 0; i < rowIds.length; i++) {
                 SparseMatrixRow row1 = vectors.get(rowIds[i]);
@@ -334,6 +366,30 @@ public class SparseVectorSRMetric extends BaseSRMetric {
         if (featureFilter != null) {
             throw new UnsupportedOperationException();
         }
+        if (similarity instanceof CosineSimilarity) {
+            Map<TIntFloatMap, SparseCosimilarity.Vector> unit = new IdentityHashMap<TIntFloatMap, SparseCosimilarity.Vector>();
+            SparseCosimilarity.Vector rows[] = new SparseCosimilarity.Vector[rowVectors.size()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = toUnitVector(rowVectors.get(i), unit);
+            }
+            SparseCosimilarity.Vector cols[] = new SparseCosimilarity.Vector[colVectors.size()];
+            for (int j = 0; j < cols.length; j++) {
+                cols[j] = toUnitVector(colVectors.get(j), unit);
+            }
+            return cosineCosimilarity(rows, cols);
+        }
+        if (similarity instanceof GoogleSimilarity) {
+            Map<TIntFloatMap, SparseCosimilarity.Vector> indicators = new IdentityHashMap<TIntFloatMap, SparseCosimilarity.Vector>();
+            SparseCosimilarity.Vector rows[] = new SparseCosimilarity.Vector[rowVectors.size()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = toIndicatorVector(rowVectors.get(i), indicators);
+            }
+            SparseCosimilarity.Vector cols[] = new SparseCosimilarity.Vector[colVectors.size()];
+            for (int j = 0; j < cols.length; j++) {
+                cols[j] = toIndicatorVector(colVectors.get(j), indicators);
+            }
+            return googleCosimilarity(rows, cols, false);
+        }
         double results[][] = new double[rowVectors.size()][colVectors.size()];
         for (int i = 0; i < rowVectors.size(); i++) {
             for (int j = 0; j < colVectors.size(); j++) {
@@ -345,6 +401,68 @@ public class SparseVectorSRMetric extends BaseSRMetric {
         return results;
     }
 
+    private static SparseCosimilarity.Vector toUnitVector(TIntFloatMap vector, Map<TIntFloatMap, SparseCosimilarity.Vector> cache) {
+        if (vector == null) {
+            return null;
+        }
+        SparseCosimilarity.Vector unit = cache.get(vector);
+        if (unit == null) {
+            unit = SparseCosimilarity.Vector.fromMap(vector);
+            cache.put(vector, unit);
+        }
+        return unit;
+    }
+
+    private static SparseCosimilarity.Vector toIndicatorVector(TIntFloatMap vector, Map<TIntFloatMap, SparseCosimilarity.Vector> cache) {
+        if (vector == null) {
+            return null;
+        }
+        SparseCosimilarity.Vector indicator = cache.get(vector);
+        if (indicator == null) {
+            indicator = SparseCosimilarity.Vector.indicatorFromMap(vector);
+            cache.put(vector, indicator);
+        }
+        return indicator;
+    }
+
+    /**
+     * Computes a Google similarity block from the feature overlaps of indicator vectors
+     * and normalizes it. Cells for missing vectors are left at zero.
+     *
+     * @param matrixRows If true, scores pairs as GoogleSimilarity does for matrix rows.
+     */
+    private double[][] googleCosimilarity(SparseCosimilarity.Vector rows[], SparseCosimilarity.Vector cols[], boolean matrixRows) {
+        GoogleSimilarity google = (GoogleSimilarity) similarity;
+        double results[][] = cosimilarityEngine.multiply(rows, cols);
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i] == null) continue;
+            for (int j = 0; j < cols.length; j++) {
+                if (cols[j] != null) {
+                    int intersect = (int) Math.round(results[i][j]);
+                    results[i][j] = normalize(google.similarity(rows[i].size(), cols[j].size(), intersect, matrixRows));
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Computes a cosine cosimilarity block as a sparse matrix product and normalizes it.
+     * Cells for missing vectors are left at zero.
+     */
+    private double[][] cosineCosimilarity(SparseCosimilarity.Vector rows[], SparseCosimilarity.Vector cols[]) {
+        double results[][] = cosimilarityEngine.cosimilarity(rows, cols);
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i] == null) continue;
+            for (int j = 0; j < cols.length; j++) {
+                if (cols[j] != null) {
+                    results[i][j] = normalize(results[i][j]);
+                }
+            }
+        }
+        return results;
+    }
+
     /**
      * Rebuild the feature and transpose matrices.
      * If the matrices are available from the feature generator, they will be used.
@@ -0,0 +1,199 @@
+package org.wikibrain.sr.word2vec;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A corpus that has been tokenized into word indexes once so that every training
+ * epoch can read it through a memory mapped buffer instead of reparsing text.
+ *
+ * <p>
+ * The file is a header followed by a flat sequence of ints. Each sentence is a run of
+ * non-negative word indexes followed by a negative end marker that carries the word
+ * index of the article of the sentence's document, if it has one. Since every sentence
+ * is self contained, training threads can start reading at any sentence boundary.
+ * Out of vocabulary words are dropped during encoding.
+ * </p>
+ *
+ * <p>
+ * The header records a fingerprint of the vocabulary used to encode the corpus,
+ * so a corpus encoded with a different vocabulary can be detected and rebuilt.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class Word2VecCorpus implements Closeable {
+    public static final int FILE_HEADER = 0x3e7c0d;
+    public static final int HEADER_SIZE = 32;
+
+    /**
+     * End marker of a sentence whose document has no article.
+     */
+    public static final int SENTENCE_END = -1;
+
+    // Each mapped segment holds at most 2^28 ints (1GB).
+    private static final int SEGMENT_BITS = 28;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+    private final File path;
+    private final long fingerprint;
+    private final long numWords;
+    private final long size;
+    private final IntBuffer segments[];
+    private RandomAccessFile raf;
+
+    public Word2VecCorpus(File path) throws IOException {
+        this.path = path;
+        this.raf = new RandomAccessFile(path, "r");
+        if (raf.readInt() != FILE_HEADER) {
+            raf.close();
+            throw new IOException("invalid file header in encoded corpus " + path);
+        }
+        this.fingerprint = raf.readLong();
+        this.numWords = raf.readLong();
+        this.size = raf.readLong();
+
+        FileChannel channel = raf.getChannel();
+        int numSegments = (int) ((size + SEGMENT_MASK) >>> SEGMENT_BITS);
+        this.segments = new IntBuffer[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            long start = (long) i << SEGMENT_BITS;
+            long n = Math.min(size - start, 1L << SEGMENT_BITS);
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + start * 4, n * 4).asIntBuffer();
+        }
+    }
+
+    /**
+     * @return The value at a position in the corpus.
+     */
+    public final int get(long i) {
+        return segments[(int) (i >>> SEGMENT_BITS)].get((int) (i & SEGMENT_MASK));
+    }
+
+    /**
+     * @return The number of ints in the corpus, including markers.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return The number of word tokens in the corpus.
+     */
+    public long getNumWords() {
+        return numWords;
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public File getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+    }
+
+    /**
+     * @param articleIndex Word index of the article of the sentence's document, or -1 if it has none.
+     * @return The end marker for the sentence.
+     */
+    public static int endMarker(int articleIndex) {
+        return articleIndex < 0 ? SENTENCE_END : SENTENCE_END - 1 - articleIndex;
+    }
+
+    /**
+     * @return The word index of the article carried by a sentence end marker, or -1.
+     */
+    public static int articleIndexOf(int endMarker) {
+        return SENTENCE_END - 1 - endMarker;
+    }
+
+    /**
+     * Returns the fingerprint stored in the header of an encoded corpus,
+     * or null if the file does not exist or is not an encoded corpus.
+     */
+    public static Long readFingerprint(File path) {
+        if (!path.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(path));
+            return (in.readInt() == FILE_HEADER) ? in.readLong() : null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (IOException e) {}
+            }
+        }
+    }
+
+    /**
+     * Writes an encoded corpus. The file only appears at its final path once
+     * finish() completes.
+     */
+    public static class Writer {
+        private final File path;
+        private final File tmp;
+        private final long fingerprint;
+        private final DataOutputStream out;
+        private long numWords = 0;
+        private long size = 0;
+
+        public Writer(File path, long fingerprint) throws IOException {
+            this.path = path;
+            this.tmp = new File(path.getPath() + ".tmp");
+            this.fingerprint = fingerprint;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1024 * 1024));
+            out.write(new byte[HEADER_SIZE]);
+        }
+
+        /**
+         * Writes a sentence. Negative (out of vocabulary) indexes are skipped.
+         * @param indexes
+         * @param articleIndex Word index of the article of the sentence's document, or -1.
+         */
+        public void writeSentence(int indexes[], int articleIndex) throws IOException {
+            int n = 0;
+            for (int i : indexes) {
+                if (i >= 0) {
+                    out.writeInt(i);
+                    n++;
+                }
+            }
+            if (n > 0) {
+                out.writeInt(endMarker(articleIndex));
+                numWords += n;
+                size += n + 1;
+            }
+        }
+
+        public void finish() throws IOException {
+            out.close();
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.writeInt(FILE_HEADER);
+                raf.writeLong(fingerprint);
+                raf.writeLong(numWords);
+                raf.writeLong(size);
+            } finally {
+                raf.close();
+            }
+            FileUtils.deleteQuietly(path);
+            if (!tmp.renameTo(path)) {
+                throw new IOException("renaming " + tmp + " to " + path + " failed");
+            }
+        }
+    }
+}
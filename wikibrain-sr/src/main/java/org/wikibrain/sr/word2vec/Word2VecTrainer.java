@@ -27,6 +27,7 @@ import org.wikibrain.utils.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +37,14 @@ import java.util.regex.Matcher;
  * @author Shilad Sen
  *
  * Heavily adapted from https://github.com/piskvorky/gensim/blob/develop/gensim/models/word2vec.py
+ *
+ * <p>
+ * In fast mode (see {@link #setFastMode(boolean)}) the corpus is first encoded into
+ * a binary file of word indexes ({@link Word2VecCorpus}) that is memory mapped for
+ * every iteration. Each thread trains a contiguous slice of the encoded corpus with
+ * its own random number generator against flat weight matrices ({@link Word2VecWeights}),
+ * and fast mode additionally supports negative sampling and subsampling of frequent words.
+ * </p>
  */
 public class Word2VecTrainer {
     private static final Logger LOG = LoggerFactory.getLogger(Word2VecTrainer.class);
@@ -43,6 +52,16 @@ public class Word2VecTrainer {
     private static final int MAX_EXP = 6;
     private static final int EXP_TABLE_SIZE = 1000;
 
+    // Bounds on the size of the unigram table used for negative sampling.
+    private static final int MIN_UNIGRAM_TABLE_SIZE = 1000000;
+    private static final int MAX_UNIGRAM_TABLE_SIZE = 100000000;
+
+    // Number of words a fast mode thread trains between learning rate updates.
+    private static final int ALPHA_UPDATE_INTERVAL = 10000;
+
+    // Number of words between progress reports in fast mode.
+    private static final long REPORT_INTERVAL = 5000000;
+
     private final Language language;
     private final LocalPageDao pageDao;
 
@@ -73,7 +92,7 @@ public class Word2VecTrainer {
 
 
     private double startingAlpha = 0.025;
-    private double alpha = startingAlpha;
+    private volatile double alpha = startingAlpha;
     private int window = 5;
 
     private int layer1Size = 200;
@@ -100,6 +119,25 @@ public class Word2VecTrainer {
     private boolean keepAllArticles = false;
     private int iterations = 2;
 
+    /**
+     * Fast mode training options.
+     */
+    private boolean fastMode = false;
+    private boolean offHeap = false;
+    private boolean hierarchicalSoftmax = true;
+    private int negative = 0;
+    private double sample = 0.0;
+
+    /**
+     * Fast mode weights. syn1Weights is used for hierarchical softmax,
+     * syn1NegWeights for negative sampling.
+     */
+    private Word2VecWeights syn0Weights;
+    private Word2VecWeights syn1Weights;
+    private Word2VecWeights syn1NegWeights;
+    private int unigramTable[];
+    private float keepProbabilities[];
+
 
     public Word2VecTrainer(LocalPageDao pageDao, Language language) {
         this.pageDao = pageDao;
@@ -113,6 +151,16 @@ public class Word2VecTrainer {
     public void train(File directory, boolean wikibrainFormat) throws IOException, DaoException {
         LOG.info("counting word frequencies.");
         readWords(new File(directory, "dictionary.txt"));
+        if (words.length == 0) {
+            throw new IllegalStateException("no words in " + directory + " occur at least " + minWordFrequency + " times");
+        }
+        if (fastMode) {
+            trainFast(directory, wikibrainFormat);
+            return;
+        }
+        if (negative > 0 || sample > 0 || !hierarchicalSoftmax) {
+            throw new IllegalStateException("negative sampling and subsampling require fast mode");
+        }
         buildTree();
 
         syn0 = new float[wordIndexes.size()][layer1Size];
@@ -213,41 +261,7 @@ public class Word2VecTrainer {
 
     private int trainSentence(Integer wpId, String sentence) {
         int wpIdIndex = (wpId != null && articleIndexes.containsKey(wpId)) ? articleIndexes.get(wpId) : -1;
-        String words[] = sentence.trim().split(" +");
-        TIntList indexList = new TIntArrayList(words.length * 3 / 2);
-        for (int i = 0; i < words.length; i++) {
-            int wordIndex = -1;
-            int mentionIndex = -1;
-            int mentionStart = words[i].indexOf(":/w/");
-            if (mentionStart >= 0) {
-                Matcher m = Dictionary.PATTERN_MENTION.matcher(words[i].substring(mentionStart));
-                if (m.matches()) {
-                    int wpId2 = Integer.valueOf(m.group(3));
-                    if (articleIndexes.containsKey(wpId2)) {
-                        mentionIndex = articleIndexes.get(wpId2);
-                    }
-                    words[i] = words[i].substring(0, mentionStart);
-                }
-            }
-            if (words[i].length() > 0) {
-                long h = hashWord(words[i]);
-                if (wordIndexes.containsKey(h)) {
-                    wordIndex = wordIndexes.get(h);
-                }
-            }
-            if (mentionIndex >= 0) {
-                if (random.nextDouble() >= 0.5) {
-                    indexList.add(wordIndex);
-                    indexList.add(mentionIndex);
-                } else {
-                    indexList.add(mentionIndex);
-                    indexList.add(wordIndex);
-                }
-            } else {
-                indexList.add(wordIndex);
-            }
-        }
-        int indexes[] = indexList.toArray();
+        int indexes[] = toIndexes(sentence, random);
 
         float[] neu1e = new float[layer1Size];
         for (int i = 0; i < indexes.length; i++) {
@@ -305,6 +319,366 @@ public class Word2VecTrainer {
     }
 
 
+    /**
+     * Trains using the encoded corpus, flat weights, and per-thread random number generators.
+     */
+    private void trainFast(File directory, boolean wikibrainFormat) throws IOException {
+        if (!hierarchicalSoftmax && negative <= 0) {
+            throw new IllegalStateException("either hierarchical softmax or negative sampling must be enabled");
+        }
+        if (hierarchicalSoftmax) {
+            buildTree();
+        }
+        int counts[] = getCountsByIndex();
+        buildKeepProbabilities(counts);
+
+        Word2VecCorpus corpus = new Word2VecCorpus(encodeCorpus(directory, wikibrainFormat));
+        try {
+            syn0Weights = new Word2VecWeights(words.length, layer1Size, offHeap);
+            syn0Weights.randomize(random.nextLong());
+            syn1Weights = hierarchicalSoftmax ? new Word2VecWeights(words.length, layer1Size, offHeap) : null;
+            syn1NegWeights = null;
+            if (negative > 0) {
+                syn1NegWeights = new Word2VecWeights(words.length, layer1Size, offHeap);
+                buildUnigramTable(counts);
+            }
+
+            int numThreads = WpThreadUtils.getMaxThreads();
+            long totalToTrain = iterations * corpus.getNumWords();
+            long start = System.currentTimeMillis();
+            wordsTrainedSoFar.set(0);
+            alpha = startingAlpha;
+
+            ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+            try {
+                for (int it = 0; it < iterations; it++) {
+                    List<Callable<Long>> workers = new ArrayList<Callable<Long>>();
+                    for (int t = 0; t < numThreads; t++) {
+                        workers.add(new FastWorker(corpus,
+                                corpus.size() * t / numThreads,
+                                corpus.size() * (t + 1) / numThreads,
+                                random.nextLong(), totalToTrain, start, numThreads));
+                    }
+                    for (Future<Long> f : exec.invokeAll(workers)) {
+                        f.get();
+                    }
+                    LOG.info("finished iteration " + (it + 1) + " of " + iterations);
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            } finally {
+                exec.shutdown();
+            }
+            double seconds = Math.max(0.001, (System.currentTimeMillis() - start) / 1000.0);
+            LOG.info(String.format("trained %d words in %.1f seconds (%.0f words/sec/thread)",
+                    wordsTrainedSoFar.get(), seconds, wordsTrainedSoFar.get() / seconds / numThreads));
+        } finally {
+            corpus.close();
+        }
+    }
+
+    /**
+     * Encodes the text corpus as word indexes, unless an encoding for the current
+     * vocabulary already exists.
+     *
+     * @return The encoded corpus file.
+     */
+    private File encodeCorpus(File directory, boolean wikibrainFormat) throws IOException {
+        File text = new File(directory, "corpus.txt");
+        File encoded = new File(directory, "corpus.w2v");
+        long fingerprint = getVocabularyFingerprint();
+        Long existing = Word2VecCorpus.readFingerprint(encoded);
+        if (existing != null && existing == fingerprint && encoded.lastModified() >= text.lastModified()) {
+            LOG.info("using existing encoded corpus " + encoded);
+            return encoded;
+        }
+
+        LOG.info("encoding corpus " + text + " as " + encoded);
+        Word2VecCorpus.Writer writer = new Word2VecCorpus.Writer(encoded, fingerprint);
+        if (wikibrainFormat) {
+            for (WBCorpusDocReader.Doc doc : new WBCorpusDocReader(text)) {
+                int wpId = doc.getDoc().getId();
+                int articleIndex = articleIndexes.containsKey(wpId) ? articleIndexes.get(wpId) : -1;
+                for (String line : doc.getLines()) {
+                    writer.writeSentence(toIndexes(line, random), articleIndex);
+                }
+            }
+        } else {
+            LineIterator iterator = FileUtils.lineIterator(text);
+            try {
+                while (iterator.hasNext()) {
+                    writer.writeSentence(toIndexes(iterator.nextLine(), random), -1);
+                }
+            } finally {
+                iterator.close();
+            }
+        }
+        writer.finish();
+        return encoded;
+    }
+
+    /**
+     * @return A hash of the vocabulary, which determines the encoding of the corpus.
+     */
+    private long getVocabularyFingerprint() {
+        long h = words.length;
+        for (String w : words) {
+            h = h * 31 + hashWord(w);
+        }
+        return h;
+    }
+
+    private int[] getCountsByIndex() {
+        int counts[] = new int[words.length];
+        for (long h : wordIndexes.keys()) {
+            counts[wordIndexes.get(h)] = wordCounts.get(h);
+        }
+        return counts;
+    }
+
+    /**
+     * Builds the table used to draw negative samples from the unigram distribution
+     * raised to the 3/4 power.
+     */
+    private void buildUnigramTable(int counts[]) {
+        int size = (int) Math.max(MIN_UNIGRAM_TABLE_SIZE, Math.min(MAX_UNIGRAM_TABLE_SIZE, 20L * counts.length));
+        double total = 0.0;
+        for (int c : counts) {
+            total += Math.pow(c, 0.75);
+        }
+        unigramTable = new int[size];
+        int w = 0;
+        double cumulative = Math.pow(counts[0], 0.75) / total;
+        for (int i = 0; i < size; i++) {
+            unigramTable[i] = w;
+            if (i / (double) size > cumulative && w < counts.length - 1) {
+                w++;
+                cumulative += Math.pow(counts[w], 0.75) / total;
+            }
+        }
+    }
+
+    /**
+     * Computes the probability that each word is kept when subsampling frequent words.
+     */
+    private void buildKeepProbabilities(int counts[]) {
+        keepProbabilities = new float[counts.length];
+        long total = 0;
+        for (int c : counts) {
+            total += c;
+        }
+        double threshold = sample * total;
+        for (int i = 0; i < counts.length; i++) {
+            if (sample <= 0 || counts[i] <= 0) {
+                keepProbabilities[i] = 1.0f;
+            } else {
+                keepProbabilities[i] = (float) Math.min(1.0,
+                        (Math.sqrt(counts[i] / threshold) + 1) * threshold / counts[i]);
+            }
+        }
+    }
+
+    /**
+     * Trains on the sentences that start within a slice of the encoded corpus.
+     */
+    private class FastWorker implements Callable<Long> {
+        private final Word2VecCorpus corpus;
+        private final long start;
+        private final long end;
+        private final long totalToTrain;
+        private final long trainingStart;
+        private final int numThreads;
+
+        private long nextRandom;
+        private final float l1[] = new float[layer1Size];
+        private final float neu1e[] = new float[layer1Size];
+        private int sentence[] = new int[1000];
+
+        private FastWorker(Word2VecCorpus corpus, long start, long end, long seed,
+                           long totalToTrain, long trainingStart, int numThreads) {
+            this.corpus = corpus;
+            this.start = start;
+            this.end = end;
+            this.nextRandom = seed;
+            this.totalToTrain = totalToTrain;
+            this.trainingStart = trainingStart;
+            this.numThreads = numThreads;
+        }
+
+        /**
+         * Linear congruential generator from the reference word2vec implementation.
+         */
+        private int nextInt(int bound) {
+            nextRandom = nextRandom * 25214903917L + 11;
+            return (int) ((nextRandom >>> 16) % bound);
+        }
+
+        private float nextFloat() {
+            nextRandom = nextRandom * 25214903917L + 11;
+            return (nextRandom & 0xFFFF) / 65536.0f;
+        }
+
+        @Override
+        public Long call() {
+            // Skip the tail of a sentence that started in the previous slice.
+            long pos = start;
+            while (pos > 0 && pos < end && corpus.get(pos - 1) >= 0) {
+                pos++;
+            }
+
+            long trained = 0;
+            int sinceUpdate = 0;
+            while (pos < end) {
+                // Read a sentence, subsampling frequent words.
+                int n = 0;
+                int v;
+                while ((v = corpus.get(pos++)) >= 0) {
+                    sinceUpdate++;
+                    if (keepProbabilities[v] < 1.0f && keepProbabilities[v] < nextFloat()) {
+                        continue;
+                    }
+                    if (n == sentence.length) {
+                        sentence = Arrays.copyOf(sentence, n * 2);
+                    }
+                    sentence[n++] = v;
+                }
+                trainSentence(sentence, n, Word2VecCorpus.articleIndexOf(v));
+
+                if (sinceUpdate >= ALPHA_UPDATE_INTERVAL) {
+                    trained += sinceUpdate;
+                    updateProgress(sinceUpdate);
+                    sinceUpdate = 0;
+                }
+            }
+            trained += sinceUpdate;
+            updateProgress(sinceUpdate);
+            return trained;
+        }
+
+        private void updateProgress(int numWords) {
+            long before = wordsTrainedSoFar.getAndAdd(numWords);
+            long after = before + numWords;
+            alpha = Math.max(
+                    startingAlpha * (1 - after / (totalToTrain + 1.0)),
+                    startingAlpha * 0.0001);
+            if (before / REPORT_INTERVAL != after / REPORT_INTERVAL) {
+                double seconds = Math.max(0.001, (System.currentTimeMillis() - trainingStart) / 1000.0);
+                LOG.info(String.format("trained %d of %d words (%.1f%%), alpha %.5f, %.0f words/sec/thread",
+                        after, totalToTrain, 100.0 * after / totalToTrain, alpha,
+                        after / seconds / numThreads));
+            }
+        }
+
+        /**
+         * Skip-gram training of one sentence, as in trainSentence().
+         */
+        private void trainSentence(int indexes[], int n, int articleIndex) {
+            float a = (float) alpha;
+            for (int i = 0; i < n; i++) {
+                int word = indexes[i];
+                int reducedWindow = nextInt(window);
+                int from = Math.max(0, i - window + reducedWindow);
+                int to = Math.min(n, i + window + 1 - reducedWindow);
+
+                for (int j = from; j < to; j++) {
+                    // As in trainSentence(), the word itself is replaced by the document's article.
+                    int q = (i == j) ? articleIndex : indexes[j];
+                    if (q < 0) {
+                        continue;
+                    }
+                    syn0Weights.getRow(q, l1);
+                    Arrays.fill(neu1e, 0f);
+
+                    if (hierarchicalSoftmax) {
+                        byte code[] = wordCodes[word];
+                        int parents[] = wordParents[word];
+                        for (int k = 0; k < parents.length; k++) {
+                            float f = syn1Weights.dot(parents[k], l1);
+                            if (f <= -MAX_EXP || f >= MAX_EXP) {
+                                continue;
+                            }
+                            double s = EXP_TABLE[(int)((f + MAX_EXP) * (EXP_TABLE_SIZE / MAX_EXP / 2))];
+                            float g = (float) ((1 - code[k] - s) * a);
+                            syn1Weights.addRowTo(parents[k], g, neu1e);
+                            syn1Weights.addToRow(parents[k], g, l1);
+                        }
+                    }
+
+                    for (int d = 0; d <= negative && negative > 0; d++) {
+                        int target;
+                        int label;
+                        if (d == 0) {
+                            target = word;
+                            label = 1;
+                        } else {
+                            target = unigramTable[nextInt(unigramTable.length)];
+                            if (target == word) {
+                                continue;
+                            }
+                            label = 0;
+                        }
+                        float f = syn1NegWeights.dot(target, l1);
+                        double g;
+                        if (f > MAX_EXP) {
+                            g = (label - 1) * a;
+                        } else if (f < -MAX_EXP) {
+                            g = label * a;
+                        } else {
+                            g = (label - EXP_TABLE[(int)((f + MAX_EXP) * (EXP_TABLE_SIZE / MAX_EXP / 2))]) * a;
+                        }
+                        syn1NegWeights.addRowTo(target, (float) g, neu1e);
+                        syn1NegWeights.addToRow(target, (float) g, l1);
+                    }
+                    syn0Weights.addToRow(q, 1.0f, neu1e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts a sentence to word indexes. Out of vocabulary words have index -1.
+     * A word that mentions an article is followed or preceded (at random) by the article.
+     */
+    private int[] toIndexes(String sentence, Random random) {
+        String words[] = sentence.trim().split(" +");
+        TIntList indexList = new TIntArrayList(words.length * 3 / 2);
+        for (int i = 0; i < words.length; i++) {
+            int wordIndex = -1;
+            int mentionIndex = -1;
+            int mentionStart = words[i].indexOf(":/w/");
+            if (mentionStart >= 0) {
+                Matcher m = Dictionary.PATTERN_MENTION.matcher(words[i].substring(mentionStart));
+                if (m.matches()) {
+                    int wpId2 = Integer.valueOf(m.group(3));
+                    if (articleIndexes.containsKey(wpId2)) {
+                        mentionIndex = articleIndexes.get(wpId2);
+                    }
+                    words[i] = words[i].substring(0, mentionStart);
+                }
+            }
+            if (words[i].length() > 0) {
+                long h = hashWord(words[i]);
+                if (wordIndexes.containsKey(h)) {
+                    wordIndex = wordIndexes.get(h);
+                }
+            }
+            if (mentionIndex >= 0) {
+                if (random.nextDouble() >= 0.5) {
+                    indexList.add(wordIndex);
+                    indexList.add(mentionIndex);
+                } else {
+                    indexList.add(mentionIndex);
+                    indexList.add(wordIndex);
+                }
+            } else {
+                indexList.add(wordIndex);
+            }
+        }
+        return indexList.toArray();
+    }
+
     private class Node implements Comparable<Node> {
         long hash;
         int index;
@@ -385,7 +759,7 @@ public class Word2VecTrainer {
         for (String w : words) {
             stream.write(w.getBytes("UTF-8"));
             stream.write(' ');
-            float[] vector = syn0[wordIndexes.get(Word2VecUtils.hashWord(w))];
+            float[] vector = getVector(wordIndexes.get(Word2VecUtils.hashWord(w)));
             WbMathUtils.normalize(vector);
             for (float f : vector) {
                 stream.write(floatToBytes(f));
@@ -394,14 +768,27 @@ public class Word2VecTrainer {
         stream.close();
     }
 
+    /**
+     * @return The trained vector for a word index. In fast mode this is a copy.
+     */
+    private float[] getVector(int index) {
+        if (syn0Weights != null) {
+            float vector[] = new float[layer1Size];
+            syn0Weights.getRow(index, vector);
+            return vector;
+        } else {
+            return syn0[index];
+        }
+    }
+
     private void test() {
         long h = hashWord("person");
-        float [] v1 = syn0[wordIndexes.get(h)];
+        float [] v1 = getVector(wordIndexes.get(h));
         WbMathUtils.normalize(v1);
 
         Map<String, Double> sims = new HashMap<String, Double>();
         for (int i = 0; i < words.length; i++) {
-            float [] v2 = syn0[i];
+            float [] v2 = getVector(i);
             WbMathUtils.normalize(v2);
             double sim =  WbMathUtils.dot(v1, v2);
             sims.put(words[i], sim);
@@ -431,6 +818,44 @@ public class Word2VecTrainer {
         this.keepAllArticles = keepAllArticles;
     }
 
+    /**
+     * @param fastMode If true, train from an encoded corpus with flat weight matrices.
+     *                 Required for negative sampling and subsampling.
+     */
+    public void setFastMode(boolean fastMode) {
+        this.fastMode = fastMode;
+    }
+
+    /**
+     * @param offHeap If true, fast mode weight matrices are stored in direct buffers.
+     */
+    public void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    public void setHierarchicalSoftmax(boolean hierarchicalSoftmax) {
+        this.hierarchicalSoftmax = hierarchicalSoftmax;
+    }
+
+    /**
+     * @param negative Number of negative samples per word, or 0 to disable negative sampling.
+     */
+    public void setNegative(int negative) {
+        this.negative = negative;
+    }
+
+    /**
+     * @param sample Threshold for subsampling frequent words (1e-3 to 1e-5 are typical),
+     *               or 0 to disable subsampling.
+     */
+    public void setSample(double sample) {
+        this.sample = sample;
+    }
+
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
     private static byte[] floatToBytes(float value) {
         int bits = Float.floatToIntBits(value);
         byte[] bytes = new byte[4];
@@ -479,6 +904,28 @@ public class Word2VecTrainer {
                         .withLongOpt("minfreq")
                         .withDescription("minimum word frequency")
                         .create("f"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .withLongOpt("fast")
+                        .withDescription("train from an encoded corpus with flat weight matrices")
+                        .create("x"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .withLongOpt("offheap")
+                        .withDescription("store weights off-heap (fast mode only)")
+                        .create("p"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("negative")
+                        .withDescription("number of negative samples; disables hierarchical softmax (fast mode only)")
+                        .create("n"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("sample")
+                        .withDescription("threshold for subsampling frequent words (fast mode only)")
+                        .create("s"));
 
         EnvBuilder.addStandardOptions(options);
 
@@ -506,6 +953,15 @@ public class Word2VecTrainer {
         if (cmd.hasOption("z")) {
             trainer.layer1Size = Integer.valueOf(cmd.getOptionValue("z"));
         }
+        trainer.setFastMode(cmd.hasOption("x"));
+        trainer.setOffHeap(cmd.hasOption("p"));
+        if (cmd.hasOption("n")) {
+            trainer.setNegative(Integer.valueOf(cmd.getOptionValue("n")));
+            trainer.setHierarchicalSoftmax(trainer.negative == 0);
+        }
+        if (cmd.hasOption("s")) {
+            trainer.setSample(Double.valueOf(cmd.getOptionValue("s")));
+        }
 
         trainer.train(new File(cmd.getOptionValue("i")));
         trainer.save(new File(cmd.getOptionValue("o")));
@@ -0,0 +1,165 @@
+package org.wikibrain.sr.word2vec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * A contiguous matrix of word2vec weights, stored either in large float arrays
+ * or in direct (off-heap) buffers.
+ *
+ * <p>
+ * Rows are packed back to back into chunks of at most 2^27 floats, so matrices
+ * larger than a single Java array are supported. Row operations are written as
+ * simple loops over a flat range so the JIT can unroll and vectorize them.
+ * </p>
+ *
+ * <p>
+ * As in the reference word2vec implementation, concurrent updates are not
+ * synchronized (Hogwild style); occasional lost updates do not hurt training.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class Word2VecWeights {
+    private static final int MAX_CHUNK_FLOATS = 1 << 27;
+
+    private final int numRows;
+    private final int dimensions;
+    private final int rowsPerChunk;
+
+    private final float heap[][];           // non-null for on-heap storage
+    private final FloatBuffer direct[];     // non-null for off-heap storage
+
+    public Word2VecWeights(int numRows, int dimensions, boolean offHeap) {
+        this.numRows = numRows;
+        this.dimensions = dimensions;
+        this.rowsPerChunk = Math.max(1, MAX_CHUNK_FLOATS / dimensions);
+        int numChunks = Math.max(1, (numRows + rowsPerChunk - 1) / rowsPerChunk);
+        if (offHeap) {
+            heap = null;
+            direct = new FloatBuffer[numChunks];
+            for (int i = 0; i < numChunks; i++) {
+                int rows = Math.min(rowsPerChunk, numRows - i * rowsPerChunk);
+                direct[i] = ByteBuffer.allocateDirect(rows * dimensions * 4)
+                        .order(ByteOrder.nativeOrder())
+                        .asFloatBuffer();
+            }
+        } else {
+            direct = null;
+            heap = new float[numChunks][];
+            for (int i = 0; i < numChunks; i++) {
+                int rows = Math.min(rowsPerChunk, numRows - i * rowsPerChunk);
+                heap[i] = new float[rows * dimensions];
+            }
+        }
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public boolean isOffHeap() {
+        return direct != null;
+    }
+
+    /**
+     * Fills the matrix with uniform values in [-0.5 / dimensions, 0.5 / dimensions),
+     * the standard word2vec initialization for input vectors.
+     */
+    public void randomize(long seed) {
+        long next = seed;
+        float row[] = new float[dimensions];
+        for (int r = 0; r < numRows; r++) {
+            for (int c = 0; c < dimensions; c++) {
+                next = next * 25214903917L + 11;
+                row[c] = (((next & 0xFFFF) / 65536.0f) - 0.5f) / dimensions;
+            }
+            setRow(r, row);
+        }
+    }
+
+    /**
+     * @return The dot product of a row and a vector.
+     */
+    public final float dot(int row, float v[]) {
+        int offset = (row % rowsPerChunk) * dimensions;
+        float f = 0.0f;
+        if (heap != null) {
+            float chunk[] = heap[row / rowsPerChunk];
+            for (int c = 0; c < dimensions; c++) {
+                f += chunk[offset + c] * v[c];
+            }
+        } else {
+            FloatBuffer chunk = direct[row / rowsPerChunk];
+            for (int c = 0; c < dimensions; c++) {
+                f += chunk.get(offset + c) * v[c];
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Adds g times a row to dest.
+     */
+    public final void addRowTo(int row, float g, float dest[]) {
+        int offset = (row % rowsPerChunk) * dimensions;
+        if (heap != null) {
+            float chunk[] = heap[row / rowsPerChunk];
+            for (int c = 0; c < dimensions; c++) {
+                dest[c] += g * chunk[offset + c];
+            }
+        } else {
+            FloatBuffer chunk = direct[row / rowsPerChunk];
+            for (int c = 0; c < dimensions; c++) {
+                dest[c] += g * chunk.get(offset + c);
+            }
+        }
+    }
+
+    /**
+     * Adds g times src to a row.
+     */
+    public final void addToRow(int row, float g, float src[]) {
+        int offset = (row % rowsPerChunk) * dimensions;
+        if (heap != null) {
+            float chunk[] = heap[row / rowsPerChunk];
+            for (int c = 0; c < dimensions; c++) {
+                chunk[offset + c] += g * src[c];
+            }
+        } else {
+            FloatBuffer chunk = direct[row / rowsPerChunk];
+            for (int c = 0; c < dimensions; c++) {
+                chunk.put(offset + c, chunk.get(offset + c) + g * src[c]);
+            }
+        }
+    }
+
+    public final void getRow(int row, float dest[]) {
+        int offset = (row % rowsPerChunk) * dimensions;
+        if (heap != null) {
+            System.arraycopy(heap[row / rowsPerChunk], offset, dest, 0, dimensions);
+        } else {
+            FloatBuffer chunk = direct[row / rowsPerChunk];
+            for (int c = 0; c < dimensions; c++) {
+                dest[c] = chunk.get(offset + c);
+            }
+        }
+    }
+
+    public final void setRow(int row, float src[]) {
+        int offset = (row % rowsPerChunk) * dimensions;
+        if (heap != null) {
+            System.arraycopy(src, 0, heap[row / rowsPerChunk], offset, dimensions);
+        } else {
+            FloatBuffer chunk = direct[row / rowsPerChunk];
+            for (int c = 0; c < dimensions; c++) {
+                chunk.put(offset + c, src[c]);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import org.apache.commons.io.FileUtils;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixTransposer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares exhaustive and pruned inverted index retrieval in CosineSimilarity
+ * on a synthetic matrix with Zipf distributed features.
+ *
+ * Usage: BenchCosineSimilarity [numRows numCols rowLength numQueries]
+ *
+ * @author Shilad Sen
+ */
+public class BenchCosineSimilarity {
+    public static void main(String args[]) throws IOException {
+        int numRows = args.length > 0 ? Integer.valueOf(args[0]) : 200000;
+        int numCols = args.length > 1 ? Integer.valueOf(args[1]) : 50000;
+        int rowLength = args.length > 2 ? Integer.valueOf(args[2]) : 100;
+        int numQueries = args.length > 3 ? Integer.valueOf(args[3]) : 200;
+
+        File dir = File.createTempFile("cosine", null);
+        FileUtils.deleteQuietly(dir);
+        dir.mkdirs();
+        try {
+            Random random = new Random(1);
+            SparseMatrix features = TestCosineSimilarity.writeZipfMatrix(
+                    new File(dir, "features"), numRows, numCols, rowLength, random);
+            new SparseMatrixTransposer(features, new File(dir, "transpose")).transpose();
+            SparseMatrix transpose = new SparseMatrix(new File(dir, "transpose"));
+
+            List<TIntFloatMap> queries = new ArrayList<TIntFloatMap>();
+            for (int i = 0; i < numQueries; i++) {
+                queries.add(features.getRow(random.nextInt(numRows)).asTroveMap());
+            }
+
+            for (int k : new int[] { 10, 100 }) {
+                for (boolean dense : new boolean[] { false, true }) {
+                    for (boolean pruning : new boolean[] { false, true }) {
+                        CosineSimilarity sim = new CosineSimilarity();
+                        sim.setPruning(pruning);
+                        sim.setDenseAccumulator(dense);
+                        sim.setMatrices(features, transpose, dir);
+
+                        // warm up, then measure
+                        for (TIntFloatMap query : queries) {
+                            sim.mostSimilar(query, k, null);
+                        }
+                        long visitedBefore = sim.getPostingsVisited();
+                        long before = System.nanoTime();
+                        for (TIntFloatMap query : queries) {
+                            sim.mostSimilar(query, k, null);
+                        }
+                        long elapsed = System.nanoTime() - before;
+                        long visited = sim.getPostingsVisited() - visitedBefore;
+                        System.out.println(String.format(
+                                "k=%d dense=%s pruning=%s: %.3f ms/query, %d postings/query",
+                                k, dense, pruning,
+                                elapsed / 1000000.0 / numQueries,
+                                visited / numQueries));
+                    }
+                }
+            }
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+}
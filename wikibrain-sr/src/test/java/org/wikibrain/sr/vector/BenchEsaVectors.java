@@ -0,0 +1,108 @@
+package org.wikibrain.sr.vector;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.core.cmd.Env;
+import org.wikibrain.core.cmd.EnvBuilder;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.DaoFilter;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.lucene.LocalIdMap;
+import org.wikibrain.lucene.LuceneOptions;
+import org.wikibrain.lucene.LuceneSearcher;
+import org.wikibrain.lucene.QueryBuilder;
+import org.wikibrain.lucene.WikiBrainScoreDoc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the throughput of ESA vector generation, and how much of it the
+ * resolution of lucene hits to local ids used to cost.
+ *
+ * Before local ids were read from a LocalIdMap, every hit loaded its stored document.
+ * The "stored fields" timing repeats that work for the same hits, so the old throughput
+ * is roughly that of the vectors plus the stored field lookups.
+ *
+ * Usage: BenchEsaVectors -l lang [numPages]
+ *
+ * @author Shilad Sen
+ */
+public class BenchEsaVectors {
+    public static void main(String args[]) throws ConfigurationException, DaoException, IOException {
+        Env env = EnvBuilder.envFromArgs(args);
+        int numPages = 500;
+        if (args.length > 0 && args[args.length - 1].matches("\\d+")) {
+            numPages = Integer.valueOf(args[args.length - 1]);
+        }
+        Language lang = env.getDefaultLanguage();
+        LocalPageDao pageDao = env.getConfigurator().get(LocalPageDao.class);
+        LuceneSearcher searcher = env.getConfigurator().get(LuceneSearcher.class, "esa");
+
+        List<Integer> pageIds = new ArrayList<Integer>();
+        for (LocalPage page : pageDao.get(new DaoFilter()
+                .setLanguages(lang)
+                .setNameSpaces(NameSpace.ARTICLE)
+                .setRedirect(false)
+                .setLimit(numPages))) {
+            pageIds.add(page.getLocalId());
+        }
+
+        long before = System.currentTimeMillis();
+        LocalIdMap idMap = searcher.getLocalIdMap(lang);
+        System.out.println("built local id map in " + (System.currentTimeMillis() - before) + " millis");
+
+        ESAGenerator generator = new ESAGenerator(lang, pageDao, searcher, null);
+        for (int round = 0; round < 3; round++) {
+            // ESA vectors
+            before = System.currentTimeMillis();
+            for (int pageId : pageIds) {
+                generator.getVector(pageId);
+            }
+            double vectorSecs = (System.currentTimeMillis() - before) / 1000.0;
+
+            // Hits of the same more like this queries
+            List<WikiBrainScoreDoc[]> hits = new ArrayList<WikiBrainScoreDoc[]>();
+            for (int pageId : pageIds) {
+                int docId = idMap.getDocId(pageId);
+                if (docId >= 0) {
+                    QueryBuilder builder = searcher.getQueryBuilderByLanguage(lang).setMoreLikeThisQuery(docId);
+                    builder.setResolveWikipediaIds(false);
+                    hits.add(builder.search());
+                }
+            }
+
+            // Resolution of hits by loading stored documents, as before
+            IndexSearcher is = searcher.getSearcherByLanguage(lang);
+            long numHits = 0;
+            long checksum = 0;
+            before = System.currentTimeMillis();
+            for (WikiBrainScoreDoc[] docs : hits) {
+                for (WikiBrainScoreDoc d : docs) {
+                    checksum += (Integer) is.doc(d.luceneId).getField(LuceneOptions.LOCAL_ID_FIELD_NAME).numericValue();
+                    numHits++;
+                }
+            }
+            double storedSecs = (System.currentTimeMillis() - before) / 1000.0;
+
+            // Resolution of hits with the local id map
+            before = System.currentTimeMillis();
+            for (WikiBrainScoreDoc[] docs : hits) {
+                for (WikiBrainScoreDoc d : docs) {
+                    checksum -= idMap.getLocalId(d.luceneId);
+                }
+            }
+            double mapSecs = (System.currentTimeMillis() - before) / 1000.0;
+
+            System.out.println(String.format(
+                    "round %d: %.1f vectors/sec now, about %.1f vectors/sec with stored fields " +
+                    "(resolving %d hits: %.3fs stored fields, %.3fs id map, checksum %d)",
+                    round, pageIds.size() / vectorSecs, pageIds.size() / (vectorSecs + storedSecs - mapSecs),
+                    numHits, storedSecs, mapSecs, checksum));
+        }
+    }
+}
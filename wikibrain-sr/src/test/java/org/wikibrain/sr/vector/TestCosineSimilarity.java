@@ -2,12 +2,15 @@ package org.wikibrain.sr.vector;
 
 import gnu.trove.map.TIntFloatMap;
 import gnu.trove.map.hash.TIntFloatHashMap;
+import org.apache.commons.io.FileUtils;
 import org.junit.Ignore;
 import org.junit.Test;
-import org.wikibrain.matrix.SparseMatrixRow;
-import org.wikibrain.matrix.ValueConf;
+import org.wikibrain.matrix.*;
+import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.utils.SimUtils;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Random;
 
 import static org.junit.Assert.*;
@@ -55,6 +58,125 @@ public class TestCosineSimilarity {
         assertEquals(expected, actual, 0.0001);
     }
 
+    @Test
+    public void testPrunedMostSimilar() throws IOException {
+        File dir = File.createTempFile("cosine", null);
+        FileUtils.deleteQuietly(dir);
+        dir.mkdirs();
+        SparseMatrix features = writeZipfMatrix(new File(dir, "features"), 3000, 2000, 40, new Random(7));
+        new SparseMatrixTransposer(features, new File(dir, "transpose")).transpose();
+        SparseMatrix transpose = new SparseMatrix(new File(dir, "transpose"));
+
+        for (boolean dense : new boolean[] { true, false }) {
+            CosineSimilarity exhaustive = new CosineSimilarity();
+            exhaustive.setPruning(false);
+            exhaustive.setDenseAccumulator(dense);
+            exhaustive.setMatrices(features, transpose, dir);
+            CosineSimilarity pruned = new CosineSimilarity();
+            pruned.setDenseAccumulator(dense);
+            pruned.setMatrices(features, transpose, dir);
+
+            for (int id = 0; id < 3000; id += 97) {
+                TIntFloatMap query = features.getRow(id).asTroveMap();
+                for (int k : new int[] { 1, 10, 50 }) {
+                    SRResultList expected = exhaustive.mostSimilar(query, k, null);
+                    SRResultList actual = pruned.mostSimilar(query, k, null);
+                    assertEquals(expected.numDocs(), actual.numDocs());
+                    for (int i = 0; i < expected.numDocs(); i++) {
+                        assertEquals(expected.getScore(i), actual.getScore(i), 0.00001);
+                    }
+                    assertEquals(id, actual.getId(0));
+                }
+            }
+            assertTrue(pruned.getPostingsVisited() < exhaustive.getPostingsVisited());
+        }
+        FileUtils.deleteQuietly(dir);
+    }
+
+    @Test
+    public void testPrunedTies() throws IOException {
+        File dir = File.createTempFile("cosine", null);
+        FileUtils.deleteQuietly(dir);
+        dir.mkdirs();
+
+        // Every row repeats one of a few templates with small integer weights,
+        // so rows sharing a template have exactly tied scores for any query.
+        Random random = new Random(3);
+        int numTemplates = 25;
+        TIntFloatMap templates[] = new TIntFloatMap[numTemplates];
+        for (int t = 0; t < numTemplates; t++) {
+            templates[t] = new TIntFloatHashMap();
+            while (templates[t].size() < 15) {
+                templates[t].put(random.nextInt(100), 1 + random.nextInt(3));
+            }
+        }
+        ValueConf vconf = new ValueConf();
+        SparseMatrixWriter writer = new SparseMatrixWriter(new File(dir, "features"), vconf);
+        for (int i = 0; i < 1500; i++) {
+            writer.writeRow(new SparseMatrixRow(vconf, i, templates[random.nextInt(numTemplates)]));
+        }
+        writer.finish();
+        SparseMatrix features = new SparseMatrix(new File(dir, "features"));
+        new SparseMatrixTransposer(features, new File(dir, "transpose")).transpose();
+        SparseMatrix transpose = new SparseMatrix(new File(dir, "transpose"));
+
+        for (boolean dense : new boolean[] { true, false }) {
+            CosineSimilarity exhaustive = new CosineSimilarity();
+            exhaustive.setPruning(false);
+            exhaustive.setDenseAccumulator(dense);
+            exhaustive.setMatrices(features, transpose, dir);
+            CosineSimilarity pruned = new CosineSimilarity();
+            pruned.setDenseAccumulator(dense);
+            pruned.setMatrices(features, transpose, dir);
+
+            for (int t = 0; t < numTemplates; t++) {
+                for (int k : new int[] { 1, 5, 20, 100 }) {
+                    SRResultList expected = exhaustive.mostSimilar(templates[t], k, null);
+                    SRResultList actual = pruned.mostSimilar(templates[t], k, null);
+                    assertEquals(expected.numDocs(), actual.numDocs());
+                    for (int i = 0; i < expected.numDocs(); i++) {
+                        assertEquals(expected.getId(i), actual.getId(i));
+                        assertEquals(expected.getScore(i), actual.getScore(i), 0.0);
+                        if (i > 0 && actual.getScore(i) == actual.getScore(i - 1)) {
+                            assertTrue(actual.getId(i - 1) < actual.getId(i));
+                        }
+                    }
+                }
+            }
+        }
+        FileUtils.deleteQuietly(dir);
+    }
+
+    /**
+     * Writes a random matrix whose column ids follow a Zipf-like distribution,
+     * so that a few features have very long posting lists. As with tf-idf weights,
+     * values of common (low id) columns are smaller than those of rare columns.
+     * Each row belongs to a topic of about 100 rows and draws half of its columns
+     * from a pool shared by the topic.
+     */
+    static SparseMatrix writeZipfMatrix(File file, int numRows, int numCols, int rowLength, Random random) throws IOException {
+        ValueConf vconf = new ValueConf();
+        SparseMatrixWriter writer = new SparseMatrixWriter(file, vconf);
+        int numTopics = Math.max(1, numRows / 100);
+        for (int i = 0; i < numRows; i++) {
+            int topic = random.nextInt(numTopics);
+            TIntFloatMap row = new TIntFloatHashMap();
+            while (row.size() < rowLength) {
+                int col;
+                if (row.size() < rowLength / 2) {
+                    col = (int) ((topic * 7919L + random.nextInt(2 * rowLength) * 104729L) % numCols);
+                } else {
+                    col = (int) Math.floor(Math.pow(numCols + 1, random.nextDouble())) - 1;
+                }
+                float idf = (float) (Math.log(2 + col) / Math.log(2 + numCols));
+                row.put(col, idf * random.nextFloat());
+            }
+            writer.writeRow(new SparseMatrixRow(vconf, i, row));
+        }
+        writer.finish();
+        return new SparseMatrix(file);
+    }
+
     private double cosineSimilarity(TIntFloatMap row1, TIntFloatMap row2) {
         double adota = 0.0;
         double bdotb = 0.0;
@@ -0,0 +1,127 @@
+package org.wikibrain.sr.vector;
+
+import gnu.trove.map.TIntFloatMap;
+import gnu.trove.map.hash.TIntFloatHashMap;
+import org.junit.Test;
+import org.wikibrain.matrix.SparseMatrixRow;
+import org.wikibrain.matrix.ValueConf;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestSparseCosimilarity {
+
+    @Test
+    public void testSmall() {
+        TIntFloatMap a = makeMap(new int[] { 1, 2, 3 }, new float[] { 1.0f, 2.0f, 0.5f });
+        TIntFloatMap b = makeMap(new int[] { 2, 3, 9 }, new float[] { 0.4f, -1.0f, 3.0f });
+        TIntFloatMap c = makeMap(new int[] { 7 }, new float[] { 1.0f });
+        SparseCosimilarity.Vector rows[] = { SparseCosimilarity.Vector.fromMap(a), null, SparseCosimilarity.Vector.fromMap(c) };
+        SparseCosimilarity.Vector cols[] = {
+                SparseCosimilarity.Vector.fromMap(b),
+                SparseCosimilarity.Vector.fromRow(new SparseMatrixRow(new ValueConf(), 3, new int[] { 1, 2, 3 }, new float[] { 0.5f, 1.0f, 0.25f })),
+        };
+        double results[][] = new SparseCosimilarity().cosimilarity(rows, cols);
+        assertEquals(3, results.length);
+        assertEquals(cosine(a, b), results[0][0], 0.0001);
+        assertEquals(1.0, results[0][1], 0.001);
+        assertEquals(0.0, results[1][0], 0.0);
+        assertEquals(0.0, results[2][0], 0.0);
+        assertEquals(0.0, results[2][1], 0.0);
+    }
+
+    @Test
+    public void testRandom() {
+        Random random = new Random(3);
+        TIntFloatMap rowMaps[] = new TIntFloatMap[400];
+        TIntFloatMap colMaps[] = new TIntFloatMap[300];
+        SparseCosimilarity.Vector rows[] = new SparseCosimilarity.Vector[rowMaps.length];
+        SparseCosimilarity.Vector cols[] = new SparseCosimilarity.Vector[colMaps.length];
+        for (int i = 0; i < rows.length; i++) {
+            rowMaps[i] = randomMap(random, 100, 500);
+            rows[i] = SparseCosimilarity.Vector.fromMap(rowMaps[i]);
+        }
+        for (int j = 0; j < cols.length; j++) {
+            colMaps[j] = randomMap(random, 100, 500);
+            cols[j] = SparseCosimilarity.Vector.fromMap(colMaps[j]);
+        }
+
+        // tiles that split both rows and columns, computed serially and in parallel
+        for (SparseCosimilarity engine : new SparseCosimilarity[] {
+                new SparseCosimilarity(1, 7, 13),
+                new SparseCosimilarity(4, 16, 64),
+                new SparseCosimilarity() }) {
+            double results[][] = engine.cosimilarity(rows, cols);
+            for (int i = 0; i < rows.length; i++) {
+                for (int j = 0; j < cols.length; j++) {
+                    assertEquals(cosine(rowMaps[i], colMaps[j]), results[i][j], 0.0001);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testOverlaps() {
+        Random random = new Random(5);
+        TIntFloatMap rowMaps[] = new TIntFloatMap[200];
+        TIntFloatMap colMaps[] = new TIntFloatMap[150];
+        SparseCosimilarity.Vector rows[] = new SparseCosimilarity.Vector[rowMaps.length];
+        SparseCosimilarity.Vector cols[] = new SparseCosimilarity.Vector[colMaps.length];
+        for (int i = 0; i < rows.length; i++) {
+            rowMaps[i] = randomMap(random, 100, 300);
+            rows[i] = SparseCosimilarity.Vector.indicatorFromMap(rowMaps[i]);
+        }
+        for (int j = 0; j < cols.length; j++) {
+            colMaps[j] = randomMap(random, 100, 300);
+            cols[j] = SparseCosimilarity.Vector.indicatorFromMap(colMaps[j]);
+        }
+        double results[][] = new SparseCosimilarity(4, 16, 64).multiply(rows, cols);
+        for (int i = 0; i < rows.length; i++) {
+            assertEquals(rowMaps[i].size(), rows[i].size());
+            for (int j = 0; j < cols.length; j++) {
+                int overlap = 0;
+                for (int id : rowMaps[i].keys()) {
+                    if (colMaps[j].containsKey(id)) {
+                        overlap++;
+                    }
+                }
+                assertEquals(overlap, results[i][j], 0.0);
+            }
+        }
+    }
+
+    private static TIntFloatMap randomMap(Random random, int size, int numFeatures) {
+        TIntFloatMap map = new TIntFloatHashMap();
+        int n = random.nextInt(size);
+        for (int i = 0; i < n; i++) {
+            map.put(random.nextInt(numFeatures), random.nextFloat() * 2 - 1);
+        }
+        return map;
+    }
+
+    private static TIntFloatMap makeMap(int ids[], float vals[]) {
+        TIntFloatMap map = new TIntFloatHashMap();
+        for (int i = 0; i < ids.length; i++) {
+            map.put(ids[i], vals[i]);
+        }
+        return map;
+    }
+
+    private static double cosine(TIntFloatMap a, TIntFloatMap b) {
+        double aa = 0.0, bb = 0.0, ab = 0.0;
+        for (int id : a.keys()) {
+            aa += a.get(id) * a.get(id);
+            if (b.containsKey(id)) {
+                ab += a.get(id) * b.get(id);
+            }
+        }
+        for (float v : b.values()) {
+            bb += v * v;
+        }
+        return (aa * bb == 0.0) ? 0.0 : ab / Math.sqrt(aa * bb);
+    }
+}
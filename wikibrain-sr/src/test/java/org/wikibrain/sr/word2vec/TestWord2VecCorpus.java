@@ -0,0 +1,66 @@
+package org.wikibrain.sr.word2vec;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestWord2VecCorpus {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File file = File.createTempFile("corpus", ".w2v");
+        try {
+            Word2VecCorpus.Writer writer = new Word2VecCorpus.Writer(file, 42L);
+            writer.writeSentence(new int[] { 3, -1, 5, 7 }, -1);
+            writer.writeSentence(new int[] { -1, -1 }, 4);
+            writer.writeSentence(new int[] { 0 }, 9);
+            writer.finish();
+
+            assertEquals(42L, (long) Word2VecCorpus.readFingerprint(file));
+            Word2VecCorpus corpus = new Word2VecCorpus(file);
+            try {
+                assertEquals(4, corpus.getNumWords());
+                assertEquals(6, corpus.size());
+                int expected[] = { 3, 5, 7, Word2VecCorpus.SENTENCE_END, 0, Word2VecCorpus.endMarker(9) };
+                for (int i = 0; i < expected.length; i++) {
+                    assertEquals(expected[i], corpus.get(i));
+                }
+                assertEquals(-1, Word2VecCorpus.articleIndexOf(corpus.get(3)));
+                assertEquals(9, Word2VecCorpus.articleIndexOf(corpus.get(5)));
+            } finally {
+                corpus.close();
+            }
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+        assertNull(Word2VecCorpus.readFingerprint(file));
+    }
+
+    @Test
+    public void testWeights() {
+        for (boolean offHeap : new boolean[] { false, true }) {
+            Word2VecWeights weights = new Word2VecWeights(5, 3, offHeap);
+            weights.randomize(1);
+            float row[] = new float[3];
+            weights.getRow(4, row);
+            for (float f : row) {
+                assertTrue(Math.abs(f) <= 0.5f / 3);
+            }
+
+            weights.setRow(2, new float[] { 1, 2, 3 });
+            assertEquals(14.0f, weights.dot(2, new float[] { 1, 2, 3 }), 0.0001f);
+
+            weights.addToRow(2, 0.5f, new float[] { 2, 2, 2 });
+            float dest[] = new float[] { 1, 1, 1 };
+            weights.addRowTo(2, 2.0f, dest);
+            assertArrayEquals(new float[] { 5, 7, 9 }, dest, 0.0001f);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.wikibrain.sr.word2vec;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.utils.WbMathUtils;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Trains fast mode models on a small synthetic corpus.
+ *
+ * @author Shilad Sen
+ */
+public class TestWord2VecTrainer {
+    private static final String FRUITS[] = { "apple", "banana", "cherry", "grape", "lemon" };
+    private static final String VEHICLES[] = { "car", "truck", "bus", "train", "boat" };
+
+    /**
+     * Writes a corpus whose sentences each draw words from a single topic,
+     * along with its dictionary.
+     */
+    private File writeCorpus(int numSentences) throws IOException {
+        File dir = File.createTempFile("word2vec", null);
+        FileUtils.deleteQuietly(dir);
+        dir.mkdirs();
+
+        Random random = new Random(7);
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        int total = 0;
+        BufferedWriter corpus = new BufferedWriter(new FileWriter(new File(dir, "corpus.txt")));
+        for (int i = 0; i < numSentences; i++) {
+            String topic[] = (i % 2 == 0) ? FRUITS : VEHICLES;
+            StringBuilder sentence = new StringBuilder();
+            for (int j = 0; j < 8; j++) {
+                String w = topic[random.nextInt(topic.length)];
+                sentence.append(w).append(' ');
+                counts.put(w, counts.containsKey(w) ? counts.get(w) + 1 : 1);
+                total++;
+            }
+            corpus.write(sentence.toString().trim() + "\n");
+        }
+        corpus.close();
+
+        BufferedWriter dictionary = new BufferedWriter(new FileWriter(new File(dir, "dictionary.txt")));
+        dictionary.write("t " + total + "\n");
+        for (String w : counts.keySet()) {
+            dictionary.write("w " + counts.get(w) + " " + w + "\n");
+        }
+        dictionary.close();
+        return dir;
+    }
+
+    /**
+     * Reads the vectors of a model written by Word2VecTrainer.save.
+     */
+    private Map<String, float[]> readModel(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            String header[] = readUntil(in, '\n').split(" ");
+            int numWords = Integer.valueOf(header[0]);
+            int dims = Integer.valueOf(header[1]);
+            Map<String, float[]> vectors = new HashMap<String, float[]>();
+            for (int i = 0; i < numWords; i++) {
+                String word = readUntil(in, ' ');
+                float vector[] = new float[dims];
+                for (int j = 0; j < dims; j++) {
+                    vector[j] = Float.intBitsToFloat(Integer.reverseBytes(in.readInt()));
+                }
+                vectors.put(word, vector);
+            }
+            return vectors;
+        } finally {
+            in.close();
+        }
+    }
+
+    private String readUntil(DataInputStream in, char end) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        while (true) {
+            int b = in.read();
+            if (b == end) break;
+            bytes.write(b);
+        }
+        return bytes.toString("UTF-8");
+    }
+
+    private double meanSimilarity(Map<String, float[]> vectors, String words1[], String words2[]) {
+        double sum = 0.0;
+        int n = 0;
+        for (String w1 : words1) {
+            for (String w2 : words2) {
+                if (!w1.equals(w2)) {
+                    sum += WbMathUtils.dot(vectors.get(w1), vectors.get(w2));
+                    n++;
+                }
+            }
+        }
+        return sum / n;
+    }
+
+    @Test
+    public void testFastMode() throws Exception {
+        File dir = writeCorpus(2000);
+        try {
+            for (boolean hierarchical : new boolean[] { true, false }) {
+                Word2VecTrainer trainer = new Word2VecTrainer(null, Language.SIMPLE);
+                trainer.setFastMode(true);
+                trainer.setLayer1Size(20);
+                trainer.setWindow(3);
+                trainer.setIterations(3);
+                trainer.setHierarchicalSoftmax(hierarchical);
+                trainer.setNegative(hierarchical ? 0 : 5);
+                trainer.train(dir, false);
+                File model = new File(dir, "model.bin");
+                trainer.save(model);
+
+                Map<String, float[]> vectors = readModel(model);
+                assertEquals(FRUITS.length + VEHICLES.length, vectors.size());
+                double related = (meanSimilarity(vectors, FRUITS, FRUITS) + meanSimilarity(vectors, VEHICLES, VEHICLES)) / 2;
+                double unrelated = meanSimilarity(vectors, FRUITS, VEHICLES);
+                assertTrue("related " + related + ", unrelated " + unrelated, related > unrelated + 0.2);
+            }
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEmptyVocabulary() throws Exception {
+        // No words occur at all, let alone the default minimum of 5 times
+        File dir = writeCorpus(0);
+        try {
+            Word2VecTrainer trainer = new Word2VecTrainer(null, Language.SIMPLE);
+            trainer.setFastMode(true);
+            trainer.train(dir, false);
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+}
@@ -14,25 +14,58 @@ import org.slf4j.LoggerFactory;
 
 /**
  * A key / value database where keys are strings and objects are serializable.
+ * Values are stored using Java serialization unless a more compact codec is provided.
  *
  */
 public class ObjectDb<V extends Serializable> implements Iterable<Pair<String, V>> {
     private static final Logger LOG = LoggerFactory.getLogger(ObjectDb.class);
     private Environment env;
     private Database db;
+    private final Codec<V> codec;
+
+    /**
+     * Converts values to and from the bytes stored in the database.
+     */
+    public static interface Codec<V> {
+        public byte[] encode(V value) throws IOException;
+        public V decode(byte bytes[]) throws IOException, ClassNotFoundException;
+    }
+
+    /**
+     * @return A codec that uses Java serialization.
+     */
+    public static <V extends Serializable> Codec<V> serializationCodec() {
+        return new Codec<V>() {
+            @Override
+            public byte[] encode(V value) throws IOException {
+                return WpIOUtils.objectToBytes(value);
+            }
+
+            @Override
+            public V decode(byte[] bytes) throws IOException, ClassNotFoundException {
+                return (V) WpIOUtils.bytesToObject(bytes);
+            }
+        };
+    }
 
     public ObjectDb(File path) throws IOException, DatabaseException {
         this(path, false);
     }
 
+    public ObjectDb(File path, boolean isNew) throws IOException, DatabaseException {
+        this(path, isNew, ObjectDb.<V>serializationCodec());
+    }
+
     /**
      * Creates a new object database.
      * @param path Path to the directory containing the dictionary.
      * @param isNew If true, resets the mapper database.
+     * @param codec Converts values to and from bytes.
      * @throws java.io.IOException
      * @throws DatabaseException
      */
-    public ObjectDb(File path, boolean isNew) throws IOException, DatabaseException {
+    public ObjectDb(File path, boolean isNew, Codec<V> codec) throws IOException, DatabaseException {
+        this.codec = codec;
         if (isNew) {
             if (path.isDirectory()) {
                 FileUtils.deleteDirectory(path);
@@ -63,13 +96,26 @@ public class ObjectDb<V extends Serializable> implements Iterable<Pair<String, V
      * @throws ClassNotFoundException
      */
     public V get(String key) throws DatabaseException, IOException, ClassNotFoundException {
+        byte bytes[] = getBytes(key);
+        return (bytes == null) ? null : codec.decode(bytes);
+    }
+
+    /**
+     * Returns the encoded value associated with the key, or null if none exists.
+     * Callers can decode only the parts of the value they need.
+     * @param key
+     * @return
+     * @throws DatabaseException
+     * @throws IOException
+     */
+    public byte[] getBytes(String key) throws DatabaseException, IOException {
         DatabaseEntry current = new DatabaseEntry();
         DatabaseEntry entryKey = new DatabaseEntry(key.getBytes("UTF-8"));
         OperationStatus status = db.get(null, entryKey, current, null);
         if (status.equals(OperationStatus.NOTFOUND)) {
             return null;
         } else {
-            return (V) WpIOUtils.bytesToObject(current.getData());
+            return current.getData();
         }
     }
 
@@ -82,7 +128,7 @@ public class ObjectDb<V extends Serializable> implements Iterable<Pair<String, V
     public void put(String key, V record) throws DatabaseException, IOException {
         db.put(null,
                 new DatabaseEntry(key.getBytes("UTF-8")),
-                new DatabaseEntry(WpIOUtils.objectToBytes(record)));
+                new DatabaseEntry(codec.encode(record)));
     }
 
     /**
@@ -233,7 +279,7 @@ public class ObjectDb<V extends Serializable> implements Iterable<Pair<String, V
                 try {
                     return Pair.of(
                             new String(key.getData(), "UTF-8"),
-                            (V)WpIOUtils.bytesToObject(val.getData())
+                            codec.decode(val.getData())
                     );
                 } catch (IOException e) {
                     close();
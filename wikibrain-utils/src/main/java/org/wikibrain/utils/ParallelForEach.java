@@ -21,6 +21,20 @@ import org.slf4j.LoggerFactory;
 public class ParallelForEach {
     public static final Logger LOG = LoggerFactory.getLogger(ParallelForEach.class);
 
+    /**
+     * Set on the threads of the pools started by this class.
+     */
+    private static final ThreadLocal<Boolean> IN_WORKER = new ThreadLocal<Boolean>();
+
+    /**
+     * Returns true if the calling thread is running an element of a parallel loop.
+     * Code that would start its own threads should run serially on such a thread,
+     * since the enclosing loop already keeps the cores busy.
+     */
+    public static boolean isWorkerThread() {
+        return IN_WORKER.get() != null;
+    }
+
     /**
      * Construct a parallel loop on [from, to).
      *
@@ -212,6 +226,11 @@ public class ParallelForEach {
             );
         }
 
+        protected void beforeExecute(Thread t, Runnable r) {
+            super.beforeExecute(t, r);
+            IN_WORKER.set(Boolean.TRUE);
+        }
+
         protected void afterExecute(Runnable r, Throwable t) {
             super.afterExecute(r, t);
             if (t == null && r instanceof Future<?>) {
@@ -4,9 +4,11 @@ import org.junit.Test;
 
 import java.util.AbstractList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 /**
  * @author Shilad Sen
@@ -43,6 +45,22 @@ public class TestParallelForEach {
         assertEquals(expected, actual.get());
     }
 
+    @Test
+    public void testWorkerThread() {
+        assertFalse(ParallelForEach.isWorkerThread());
+        final AtomicInteger workers = new AtomicInteger();
+        ParallelForEach.range(0, 20, 4, new Procedure<Integer>() {
+            @Override
+            public void call(Integer arg) throws Exception {
+                if (ParallelForEach.isWorkerThread()) {
+                    workers.incrementAndGet();
+                }
+            }
+        });
+        assertEquals(20, workers.get());
+        assertFalse(ParallelForEach.isWorkerThread());
+    }
+
 
     /**
      * @param begin inclusive
@@ -0,0 +1,71 @@
+package org.wikibrain.webapi;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Request latencies of a web api endpoint.
+ *
+ * Latencies are counted in buckets whose bounds grow by powers of two from one
+ * microsecond, so percentiles are approximate, within a factor of two.
+ *
+ * @author Shilad Sen
+ */
+public class LatencyStats {
+    private static final int NUM_BUCKETS = 40;
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+
+    public void record(long nanos) {
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        while (true) {
+            long max = maxNanos.get();
+            if (nanos <= max || maxNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+        long micros = Math.max(1, nanos / 1000);
+        int bucket = 63 - Long.numberOfLeadingZeros(micros);
+        buckets.incrementAndGet(Math.min(bucket, NUM_BUCKETS - 1));
+    }
+
+    /**
+     * @return The upper bound, in milliseconds, of the bucket containing the percentile.
+     */
+    public double getPercentileMillis(double percentile) {
+        long n = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            n += buckets.get(i);
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * n);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank && seen > 0) {
+                return (1L << (i + 1)) / 1000.0;
+            }
+        }
+        return 0.0;
+    }
+
+    /**
+     * @return The count, mean, maximum and percentile latencies in milliseconds, suitable for json.
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        long n = count.get();
+        stats.put("count", n);
+        stats.put("meanMillis", n == 0 ? 0.0 : totalNanos.get() / 1.0E6 / n);
+        stats.put("maxMillis", maxNanos.get() / 1.0E6);
+        stats.put("p50Millis", getPercentileMillis(50));
+        stats.put("p95Millis", getPercentileMillis(95));
+        stats.put("p99Millis", getPercentileMillis(99));
+        return stats;
+    }
+}
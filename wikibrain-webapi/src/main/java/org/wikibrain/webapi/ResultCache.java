@@ -0,0 +1,185 @@
+package org.wikibrain.webapi;
+
+import org.json.simple.JSONValue;
+import org.wikibrain.core.dao.DaoException;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of computed web api results.
+ *
+ * <p>
+ * Entries are evicted in least recently used order once their estimated size
+ * (the length of their json) exceeds the cache's capacity, and expire after a
+ * fixed time to live. Concurrent requests for a key that is being computed wait
+ * for that computation instead of starting their own.
+ * </p>
+ *
+ * @author Shilad Sen
+ */
+public class ResultCache {
+    /**
+     * Rough memory overhead of an entry beyond its json, in bytes.
+     */
+    private static final int ENTRY_OVERHEAD = 200;
+
+    private final long maxBytes;
+    private final long ttlMillis;
+
+    // Access ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<List<Object>, Entry> entries = new LinkedHashMap<List<Object>, Entry>(16, 0.75f, true);
+    private final ConcurrentHashMap<List<Object>, FutureTask<Object>> inFlight = new ConcurrentHashMap<List<Object>, FutureTask<Object>>();
+    private long bytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    /**
+     * @param maxBytes Maximum estimated size of all cached results.
+     * @param ttlMillis Time after which a result is recomputed.
+     */
+    public ResultCache(long maxBytes, long ttlMillis) {
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Creates a cache key from its parts, for example the endpoint, language, entities and n.
+     */
+    public static List<Object> key(Object ... parts) {
+        return Collections.unmodifiableList(Arrays.asList(parts));
+    }
+
+    /**
+     * Returns the cached result for the key, computing it if necessary.
+     * Results may be null. Exceptions thrown by the computation are rethrown
+     * to every request waiting on it, and nothing is cached.
+     */
+    public Object get(List<Object> key, Callable<Object> computation) throws DaoException {
+        Entry entry = lookup(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry.value;
+        }
+        FutureTask<Object> task = new FutureTask<Object>(computation);
+        FutureTask<Object> existing = inFlight.putIfAbsent(key, task);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return getResult(existing);
+        }
+        try {
+            // Another request may have finished computing the key since the lookup
+            entry = lookup(key);
+            if (entry != null) {
+                hits.incrementAndGet();
+                return entry.value;
+            }
+            misses.incrementAndGet();
+            task.run();
+            Object value = getResult(task);
+            put(key, value);
+            return value;
+        } finally {
+            inFlight.remove(key, task);
+        }
+    }
+
+    private synchronized Entry lookup(List<Object> key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiration < System.currentTimeMillis()) {
+            remove(key);
+            expirations.incrementAndGet();
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized void put(List<Object> key, Object value) {
+        Entry entry = new Entry(value, estimateBytes(key, value), System.currentTimeMillis() + ttlMillis);
+        if (entry.bytes > maxBytes) {
+            return;
+        }
+        remove(key);
+        entries.put(key, entry);
+        bytes += entry.bytes;
+        Iterator<Map.Entry<List<Object>, Entry>> iter = entries.entrySet().iterator();
+        while (bytes > maxBytes && iter.hasNext()) {
+            bytes -= iter.next().getValue().bytes;
+            iter.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(List<Object> key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.bytes;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return Hit and miss counts, the hit rate, and the size of the cache, suitable for json.
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        long h = hits.get(), m = misses.get(), c = coalesced.get();
+        stats.put("hits", h);
+        stats.put("misses", m);
+        stats.put("coalesced", c);
+        stats.put("hitRate", (h + m + c == 0) ? 0.0 : 1.0 * (h + c) / (h + m + c));
+        stats.put("evictions", evictions.get());
+        stats.put("expirations", expirations.get());
+        synchronized (this) {
+            stats.put("entries", entries.size());
+            stats.put("bytes", bytes);
+        }
+        stats.put("maxBytes", maxBytes);
+        stats.put("ttlSeconds", ttlMillis / 1000.0);
+        return stats;
+    }
+
+    private static long estimateBytes(List<Object> key, Object value) {
+        return ENTRY_OVERHEAD + 2L * (key.toString().length() + JSONValue.toJSONString(value).length());
+    }
+
+    private static Object getResult(FutureTask<Object> task) throws DaoException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DaoException) {
+                throw (DaoException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    private static class Entry {
+        final Object value;
+        final long bytes;
+        final long expiration;
+
+        Entry(Object value, long bytes, long expiration) {
+            this.value = value;
+            this.bytes = bytes;
+            this.expiration = expiration;
+        }
+    }
+}
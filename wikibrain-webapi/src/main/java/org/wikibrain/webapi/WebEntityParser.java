@@ -1,5 +1,6 @@
 package org.wikibrain.webapi;
 
+import org.apache.commons.lang3.StringUtils;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.core.cmd.Env;
 import org.wikibrain.core.dao.DaoException;
@@ -11,6 +12,7 @@ import org.wikibrain.core.model.Title;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import static org.wikibrain.webapi.WebEntity.Type.*;
 
@@ -51,15 +53,24 @@ public class WebEntityParser {
     }
 
     public List<WebEntity> extractEntityList(WikiBrainWebRequest req) throws WikiBrainWebException, DaoException {
+        return extractEntityList(req, "");
+    }
+
+    /**
+     * Extracts a list of entities from a parameter whose name is the prefix followed by the
+     * capitalized plural of the entity type, for example "rowTitles" for the prefix "row".
+     * Article ids are looked up in a single query.
+     */
+    public List<WebEntity> extractEntityList(WikiBrainWebRequest req, String prefix) throws WikiBrainWebException, DaoException {
         int numMatches = 0;
         for (WebEntity.Type t : WebEntity.Type.values()) {
-            if (req.hasParam(t.toPluralString())) numMatches++;
+            if (req.hasParam(listParam(prefix, t))) numMatches++;
         }
 
         if (numMatches != 1) {
             String errorMessage = "Must specify exactly one of the following params:";
             for (WebEntity.Type t : WebEntity.Type.values()) {
-                errorMessage += " " + t.toPluralString();
+                errorMessage += " " + listParam(prefix, t);
             }
             throw new WikiBrainWebException(errorMessage);
         }
@@ -68,21 +79,57 @@ public class WebEntityParser {
         WebEntity.Type type = null;
         Language lang = req.getLanguage();
         for (WebEntity.Type t : WebEntity.Type.values()) {
-            if (req.hasParam(t.toPluralString())) {
+            if (req.hasParam(listParam(prefix, t))) {
                 type = t;
-                values = req.getParam(t.toPluralString());
+                values = req.getParam(listParam(prefix, t));
                 break;
             }
         }
         if (type == null) throw new IllegalStateException();
 
         List<WebEntity> result = new ArrayList<WebEntity>();
-        for (String value : values.split("\\|")) {
-            result.add(makeWebEntity(lang, type, value));
+        if (type == ARTICLE_ID) {
+            List<Integer> pageIds = new ArrayList<Integer>();
+            for (String value : values.split("\\|")) {
+                pageIds.add(Integer.valueOf(value));
+            }
+            Map<Integer, LocalPage> pages = pageDao.getByIds(lang, pageIds);
+            for (int pageId : pageIds) {
+                LocalPage page = pages.get(pageId);
+                if (page == null) {
+                    throw new WikiBrainWebException("No " + lang.getLangCode() + " article with id " +  pageId);
+                }
+                WebEntity we = WebEntity.articleEntity(lang, pageId);
+                we.setTitle(page.getTitle().getCanonicalTitle());
+                result.add(we);
+            }
+        } else {
+            for (String value : values.split("\\|")) {
+                result.add(makeWebEntity(lang, type, value));
+            }
         }
         return result;
     }
 
+    /**
+     * Returns true if the request has any list parameter with the prefix.
+     */
+    public boolean hasEntityList(WikiBrainWebRequest req, String prefix) {
+        for (WebEntity.Type t : WebEntity.Type.values()) {
+            if (req.hasParam(listParam(prefix, t))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String listParam(String prefix, WebEntity.Type t) {
+        if (prefix.isEmpty()) {
+            return t.toPluralString();
+        } else {
+            return prefix + StringUtils.capitalize(t.toPluralString());
+        }
+    }
 
     private WebEntity makeWebEntity(Language lang, WebEntity.Type t, String value) throws DaoException {
         WebEntity we;
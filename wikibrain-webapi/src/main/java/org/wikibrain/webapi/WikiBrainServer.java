@@ -4,6 +4,7 @@ import gnu.trove.map.TIntDoubleMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.cli.*;
+import org.apache.commons.lang3.ArrayUtils;
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
@@ -33,6 +34,8 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Shilad Sen
@@ -44,9 +47,19 @@ public class WikiBrainServer extends AbstractHandler {
     private final LocalLinkDao linkDao;
     private final LocalCategoryMemberDao catDao;
     private WebEntityParser entityParser;
+    private final ResultCache cache;
+    private final ConcurrentHashMap<String, LatencyStats> latencies = new ConcurrentHashMap<String, LatencyStats>();
+
+    public static final int DEFAULT_CACHE_MEGABYTES = 200;
+    public static final int DEFAULT_CACHE_TTL_SECONDS = 3600;
 
     public WikiBrainServer(Env env) throws ConfigurationException, DaoException {
+        this(env, new ResultCache(DEFAULT_CACHE_MEGABYTES * 1024L * 1024L, DEFAULT_CACHE_TTL_SECONDS * 1000L));
+    }
+
+    public WikiBrainServer(Env env, ResultCache cache) throws ConfigurationException, DaoException {
         this.env = env;
+        this.cache = cache;
         this.entityParser = new WebEntityParser(env);
         this.pageDao = env.getConfigurator().get(LocalPageDao.class);
         this.linkDao = env.getConfigurator().get(LocalLinkDao.class);
@@ -69,16 +82,22 @@ public class WikiBrainServer extends AbstractHandler {
         WikiBrainWebRequest req = new WikiBrainWebRequest(target, request, httpServletRequest, httpServletResponse);
         LOG.info("received request for {}, URL {}?{}", target, request.getRequestURL(), request.getQueryString());
 
+        long start = System.nanoTime();
+        boolean known = true;
         try {
             // TODO: add logging
             if (target.equals("/languages")) {
                 doLanguages(req);
             } else if (target.equals("/similarity")) {
                 doSimilarity(req);
+            } else if (target.equals("/batchSimilarity")) {
+                doBatchSimilarity(req);
             } else if (target.equals("/cosimilarity")) {
-                throw new UnsupportedOperationException();
+                doCosimilarity(req);
             } else if (target.equals("/mostSimilar")) {
                 doMostSimilar(req);
+            } else if (target.equals("/batchMostSimilar")) {
+                doBatchMostSimilar(req);
             } else if (target.equals("/wikify")) {
                 doWikify(req);
             } else if (target.equals("/pageRank")) {
@@ -87,6 +106,10 @@ public class WikiBrainServer extends AbstractHandler {
                 doArticlesInCategory(req);
             } else if (target.equals("/categoriesForArticle")) {
                 doCategoriesForArticle(req);
+            } else if (target.equals("/stats")) {
+                doStats(req);
+            } else {
+                known = false;
             }
         } catch (WikiBrainWebException e) {
             req.writeError(e);
@@ -94,7 +117,28 @@ public class WikiBrainServer extends AbstractHandler {
             req.writeError(e);
         } catch (DaoException e) {
             req.writeError(e);
+        } finally {
+            if (known) {
+                getLatencyStats(target).record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private LatencyStats getLatencyStats(String target) {
+        LatencyStats stats = latencies.get(target);
+        if (stats == null) {
+            latencies.putIfAbsent(target, new LatencyStats());
+            stats = latencies.get(target);
+        }
+        return stats;
+    }
+
+    private void doStats(WikiBrainWebRequest req) {
+        Map latencyJson = new TreeMap();
+        for (Map.Entry<String, LatencyStats> entry : latencies.entrySet()) {
+            latencyJson.put(entry.getKey(), entry.getValue().getStats());
         }
+        req.writeJsonResponse("cache", cache.getStats(), "latency", latencyJson);
     }
 
     private void doLanguages(WikiBrainWebRequest req) {
@@ -119,7 +163,45 @@ public class WikiBrainServer extends AbstractHandler {
         }
         WebEntity entity1 = entities.get(0);
         WebEntity entity2 = entities.get(1);
+        Double sim = similarity(lang, getSr(lang), entity1, entity2);
+        req.writeJsonResponse("score", sim, "entity1", entity1.toJson(), "entity2", entity2.toJson());
+    }
+
+    /**
+     * Scores many pairs of entities in one request. The entities are paired in order:
+     * titles=A|B|C|D scores A with B and C with D. Scores are streamed as they are computed.
+     */
+    private void doBatchSimilarity(WikiBrainWebRequest req) throws ConfigurationException, DaoException {
+        Language lang = req.getLanguage();
+        List<WebEntity> entities = entityParser.extractEntityList(req);
+        if (entities.size() % 2 != 0) {
+            throw new WikiBrainWebException("Batch similarity requires an even number of entities");
+        }
         SRMetric sr = getSr(lang);
+        WikiBrainWebRequest.JsonStream stream = req.streamJsonResponse("results");
+        for (int i = 0; i < entities.size(); i += 2) {
+            WebEntity entity1 = entities.get(i);
+            WebEntity entity2 = entities.get(i + 1);
+            Map obj = new HashMap();
+            obj.put("score", similarity(lang, sr, entity1, entity2));
+            obj.put("entity1", entity1.toJson());
+            obj.put("entity2", entity2.toJson());
+            stream.write(obj);
+        }
+        stream.finish();
+    }
+
+    private Double similarity(Language lang, final SRMetric sr, final WebEntity entity1, final WebEntity entity2) throws DaoException {
+        List<Object> key = ResultCache.key("similarity", lang.getLangCode(), entityKey(entity1), entityKey(entity2));
+        return (Double) cache.get(key, new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return computeSimilarity(sr, entity1, entity2);
+            }
+        });
+    }
+
+    private Double computeSimilarity(SRMetric sr, WebEntity entity1, WebEntity entity2) throws DaoException {
         SRResult r = null;
         switch (entity1.getType()) {
             case ARTICLE_ID: case TITLE:
@@ -131,15 +213,131 @@ public class WikiBrainServer extends AbstractHandler {
             default:
                 throw new WikiBrainWebException("Unsupported entity type: " + entity1.getType());
         }
-        Double sim = (r != null && r.isValid()) ? r.getScore() : null;
-        req.writeJsonResponse("score", sim, "entity1", entity1.toJson(), "entity2", entity2.toJson());
+        return (r != null && r.isValid()) ? r.getScore() : null;
+    }
+
+    /**
+     * Computes a matrix of similarities. With rowX and colX params (e.g. rowTitles and colTitles)
+     * the rows are scored against the columns, otherwise the entities are scored against each other.
+     */
+    private void doCosimilarity(WikiBrainWebRequest req) throws ConfigurationException, DaoException {
+        Language lang = req.getLanguage();
+        List<WebEntity> rows;
+        List<WebEntity> cols;
+        boolean symmetric = !entityParser.hasEntityList(req, "row");
+        if (symmetric) {
+            rows = entityParser.extractEntityList(req);
+            cols = rows;
+        } else {
+            rows = entityParser.extractEntityList(req, "row");
+            cols = entityParser.extractEntityList(req, "col");
+        }
+        if (rows.isEmpty() || cols.isEmpty()) {
+            throw new WikiBrainWebException("Cosimilarity requires at least one row and column");
+        }
+        WebEntity.Type type = rows.get(0).getType();
+        if (isPhrase(type) != isPhrase(cols.get(0).getType())) {
+            throw new WikiBrainWebException("Rows and columns must both be phrases or both be articles");
+        }
+
+        SRMetric sr = getSr(lang);
+        double matrix[][];
+        switch (type) {
+            case ARTICLE_ID: case TITLE:
+                matrix = symmetric
+                        ? sr.cosimilarity(articleIds(rows))
+                        : sr.cosimilarity(articleIds(rows), articleIds(cols));
+                break;
+            case PHRASE:
+                matrix = symmetric
+                        ? sr.cosimilarity(phrases(rows))
+                        : sr.cosimilarity(phrases(rows), phrases(cols));
+                break;
+            default:
+                throw new WikiBrainWebException("Unsupported entity type: " + type);
+        }
+
+        List jsonMatrix = new ArrayList();
+        for (double row[] : matrix) {
+            List jsonRow = new ArrayList();
+            for (double score : row) {
+                // NaN is not valid json
+                jsonRow.add(Double.isNaN(score) ? null : score);
+            }
+            jsonMatrix.add(jsonRow);
+        }
+        req.writeJsonResponse(
+                "rows", entitiesJson(rows),
+                "columns", entitiesJson(cols),
+                "matrix", jsonMatrix
+        );
+    }
+
+    private static boolean isPhrase(WebEntity.Type type) {
+        return type == WebEntity.Type.PHRASE;
+    }
+
+    private static int[] articleIds(List<WebEntity> entities) {
+        int ids[] = new int[entities.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = entities.get(i).getArticleId();
+        }
+        return ids;
+    }
+
+    private static String[] phrases(List<WebEntity> entities) {
+        String phrases[] = new String[entities.size()];
+        for (int i = 0; i < phrases.length; i++) {
+            phrases[i] = entities.get(i).getPhrase();
+        }
+        return phrases;
+    }
+
+    private static List entitiesJson(List<WebEntity> entities) {
+        List json = new ArrayList();
+        for (WebEntity entity : entities) {
+            json.add(entity.toJson());
+        }
+        return json;
     }
 
     private void doMostSimilar(WikiBrainWebRequest req) throws DaoException, ConfigurationException {
         Language lang = req.getLanguage();
         WebEntity entity = entityParser.extractEntity(req);
         int n = Integer.valueOf(req.getParam("n", "10"));
+        req.writeJsonResponse("results", mostSimilar(getSr(lang), lang, entity, n));
+    }
+
+    /**
+     * Finds the most similar articles for many seed entities in one request.
+     * The results for each seed are streamed as they are computed.
+     */
+    private void doBatchMostSimilar(WikiBrainWebRequest req) throws DaoException, ConfigurationException {
+        Language lang = req.getLanguage();
+        List<WebEntity> entities = entityParser.extractEntityList(req);
+        int n = Integer.valueOf(req.getParam("n", "10"));
         SRMetric sr = getSr(lang);
+        WikiBrainWebRequest.JsonStream stream = req.streamJsonResponse("results");
+        for (WebEntity entity : entities) {
+            Map obj = new HashMap();
+            obj.put("entity", entity.toJson());
+            obj.put("results", mostSimilar(sr, lang, entity, n));
+            stream.write(obj);
+        }
+        stream.finish();
+    }
+
+    private List mostSimilar(final SRMetric sr, final Language lang, final WebEntity entity, final int n) throws DaoException {
+        List<Object> key = ResultCache.key("mostSimilar", lang.getLangCode(), entityKey(entity), n);
+        return (List) cache.get(key, new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return computeMostSimilar(sr, lang, entity, n);
+            }
+        });
+    }
+
+    private List computeMostSimilar(SRMetric sr, Language lang, WebEntity entity, int n) throws DaoException {
         SRResultList results;
         switch (entity.getType()) {
             case ARTICLE_ID: case TITLE:
@@ -152,8 +350,16 @@ public class WikiBrainServer extends AbstractHandler {
                 throw new WikiBrainWebException("Unsupported entity type: " + entity.getType());
         }
         List jsonResults = new ArrayList();
+        if (results == null) {
+            return jsonResults;
+        }
+        List<Integer> ids = new ArrayList<Integer>();
         for (SRResult r : results) {
-            LocalPage page = pageDao.getById(lang, r.getId());
+            ids.add(r.getId());
+        }
+        Map<Integer, LocalPage> pages = getPages(lang, ids);
+        for (SRResult r : results) {
+            LocalPage page = pages.get(r.getId());
             Map obj = new HashMap();
             obj.put("articleId", r.getId());
             obj.put("score", r.getScore());
@@ -161,7 +367,34 @@ public class WikiBrainServer extends AbstractHandler {
             obj.put("title", page == null ? "Unknown" : page.getTitle().getCanonicalTitle());
             jsonResults.add(obj);
         }
-        req.writeJsonResponse("results", jsonResults);
+        return jsonResults;
+    }
+
+    /**
+     * Identifies an entity in cache keys. Titles resolve to article ids, so
+     * different titles of the same article share results.
+     */
+    private static String entityKey(WebEntity entity) {
+        switch (entity.getType()) {
+            case ARTICLE_ID: case TITLE:
+                return "a" + entity.getArticleId();
+            case PHRASE:
+                return "p" + entity.getPhrase().trim().replaceAll("\\s+", " ");
+            case CONCEPT_ID:
+                return "c" + entity.getConceptId();
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Looks up the pages for many ids with a single query.
+     */
+    private Map<Integer, LocalPage> getPages(Language lang, Collection<Integer> ids) throws DaoException {
+        if (ids.isEmpty()) {
+            return new HashMap<Integer, LocalPage>();
+        }
+        return pageDao.getByIds(lang, ids);
     }
 
     private void doPageRank(WikiBrainWebRequest req) throws ConfigurationException, DaoException {
@@ -188,8 +421,10 @@ public class WikiBrainServer extends AbstractHandler {
         boolean weighted = Boolean.valueOf(req.getParam("weighted", "true"));
         TIntDoubleMap distances = catDao.getCategoryDistances(candidates, entity.getArticleId(), weighted);
         List distanceJson = new ArrayList();
-        for (int catId : WpCollectionUtils.sortMapKeys(distances, false)) {
-            Map articleJson = pageJson(lang, catId);
+        int catIds[] = WpCollectionUtils.sortMapKeys(distances, false);
+        Map<Integer, LocalPage> pages = getPages(lang, Arrays.asList(ArrayUtils.toObject(catIds)));
+        for (int catId : catIds) {
+            Map articleJson = pageJson(pages.get(catId));
             articleJson.put("distance", distances.get(catId));
             distanceJson.add(articleJson);
         }
@@ -261,8 +496,10 @@ public class WikiBrainServer extends AbstractHandler {
         final List distanceJson = new ArrayList();
 
         if (distances.containsKey(target)) {
-            for (int pageId : WpCollectionUtils.sortMapKeys(distances.get(target), false)) {
-                Map json = pageJson(lang, pageId);
+            int sortedIds[] = WpCollectionUtils.sortMapKeys(distances.get(target), false);
+            Map<Integer, LocalPage> pages = getPages(lang, Arrays.asList(ArrayUtils.toObject(sortedIds)));
+            for (int pageId : sortedIds) {
+                Map json = pageJson(pages.get(pageId));
                 json.put("distance", distances.get(target).get(pageId));
                 distanceJson.add(json);
             }
@@ -290,12 +527,28 @@ public class WikiBrainServer extends AbstractHandler {
     }
 
     private void doWikify(WikiBrainWebRequest req) throws ConfigurationException, DaoException {
-        Language lang = req.getLanguage();
-        Wikifier wf = env.getConfigurator().get(Wikifier.class, "websail", "language", lang.getLangCode());
-        String text = req.getParamOrDie("text");
+        final Language lang = req.getLanguage();
+        final Wikifier wf = env.getConfigurator().get(Wikifier.class, "websail", "language", lang.getLangCode());
+        final String text = req.getParamOrDie("text");
+        List jsonConcepts = (List) cache.get(ResultCache.key("wikify", lang.getLangCode(), text), new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return computeWikify(wf, lang, text);
+            }
+        });
+        req.writeJsonResponse("text", text, "references", jsonConcepts);
+    }
+
+    private List computeWikify(Wikifier wf, Language lang, String text) throws DaoException {
         List jsonConcepts = new ArrayList();
-        for (LocalLink ll : wf.wikify(text)) {
-            LocalPage page = pageDao.getById(lang, ll.getDestId());
+        List<LocalLink> links = wf.wikify(text);
+        List<Integer> ids = new ArrayList<Integer>();
+        for (LocalLink ll : links) {
+            ids.add(ll.getDestId());
+        }
+        Map<Integer, LocalPage> pages = getPages(lang, ids);
+        for (LocalLink ll : links) {
+            LocalPage page = pages.get(ll.getDestId());
             Map obj = new HashMap();
             obj.put("index", ll.getLocation());
             obj.put("text", ll.getAnchorText());
@@ -304,7 +557,7 @@ public class WikiBrainServer extends AbstractHandler {
             obj.put("title", page == null ? "Unknown" : page.getTitle().getCanonicalTitle());
             jsonConcepts.add(obj);
         }
-        req.writeJsonResponse("text", text, "references", jsonConcepts);
+        return jsonConcepts;
     }
 
     public static void main(String args[]) throws Exception {
@@ -319,6 +572,18 @@ public class WikiBrainServer extends AbstractHandler {
                         .withLongOpt("listeners")
                         .withDescription("Size of listener queue")
                         .create("q"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("cache-mb")
+                        .withDescription("Maximum size of the result cache in megabytes")
+                        .create());
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("cache-ttl")
+                        .withDescription("Seconds before a cached result is recomputed")
+                        .create());
 
         EnvBuilder.addStandardOptions(options);
 
@@ -337,7 +602,9 @@ public class WikiBrainServer extends AbstractHandler {
         int port = Integer.valueOf(cmd.getOptionValue("p", "8000"));
         int queueSize = Integer.valueOf(cmd.getOptionValue("q", "100"));
         Server server = new Server(new QueuedThreadPool(queueSize, 20));
-        server.setHandler(new WikiBrainServer(env));
+        long cacheBytes = Long.valueOf(cmd.getOptionValue("cache-mb", "" + DEFAULT_CACHE_MEGABYTES)) * 1024L * 1024L;
+        long cacheTtl = Long.valueOf(cmd.getOptionValue("cache-ttl", "" + DEFAULT_CACHE_TTL_SECONDS)) * 1000L;
+        server.setHandler(new WikiBrainServer(env, new ResultCache(cacheBytes, cacheTtl)));
         ServerConnector sc = new ServerConnector(server);
         sc.setPort(port);
         server.setConnectors(new Connector[]{sc});
@@ -3,11 +3,13 @@ package org.wikibrain.webapi;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.eclipse.jetty.server.Request;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import org.wikibrain.core.lang.Language;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadMXBean;
 import java.util.HashMap;
@@ -29,6 +31,7 @@ public class WikiBrainWebRequest {
     private final Request request;
     private final HttpServletRequest httpServletRequest;
     private final HttpServletResponse httpServletResponse;
+    private JsonStream stream = null;
 
     public WikiBrainWebRequest(String target, Request request, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
         startCpuTime = getCpuTime();
@@ -101,28 +104,38 @@ public class WikiBrainWebRequest {
     }
 
     public void writeJsonResponse(Map object) {
-        if (!object.containsKey("success")) {
-            object.put("success", true);
-        }
-        if (!object.containsKey("message")) {
-            object.put("message", "");
+        addStatus(object);
+        httpServletResponse.setContentType("application/json;charset=utf-8");
+        httpServletResponse.setStatus(HttpServletResponse.SC_OK);
+        try {
+            httpServletResponse.getWriter().println(JSONObject.toJSONString(object));
+        } catch (IOException e) {
+            throw new WikiBrainWebException(e);
         }
+        request.setHandled(true);
+    }
 
-        this.elapsedCpuTime = getCpuTime() - startCpuTime;
-        this.elapsedUserTime = getUserTime() - startUserTime;
-        Map<String, Double> resources = new HashMap<String, Double>();
-        resources.put("cpuTime", elapsedCpuTime / 1.0E9);
-        resources.put("userTime", elapsedUserTime / 1.0E9);
-        object.put("diagnostics", resources);
-
+    /**
+     * Starts a json response whose entry for the key is an array that is written
+     * element by element as results are computed, rather than buffered in memory.
+     * The response is completed by JsonStream.finish(), or by writeError() if
+     * the request fails part way through.
+     *
+     * @param key The key of the array in the response.
+     */
+    public JsonStream streamJsonResponse(String key) {
+        if (stream != null) {
+            throw new IllegalStateException("json response is already being streamed");
+        }
         httpServletResponse.setContentType("application/json;charset=utf-8");
         httpServletResponse.setStatus(HttpServletResponse.SC_OK);
         try {
-            httpServletResponse.getWriter().println(JSONObject.toJSONString(object));
+            stream = new JsonStream(httpServletResponse.getWriter(), key);
         } catch (IOException e) {
             throw new WikiBrainWebException(e);
         }
         request.setHandled(true);
+        return stream;
     }
 
     public void writeError(Exception e) {
@@ -131,10 +144,85 @@ public class WikiBrainWebRequest {
         errorObj.put("type", e.getClass().getName());
         errorObj.put("details", ExceptionUtils.getStackTrace(e));
 
-        writeJsonResponse(
-                "success", false,
-                "message", e.getMessage(),
-                "error", errorObj
-        );
+        Map obj = new HashMap();
+        obj.put("success", false);
+        obj.put("message", e.getMessage());
+        obj.put("error", errorObj);
+        if (stream != null && !stream.finished) {
+            stream.finish(obj);
+        } else {
+            writeJsonResponse(obj);
+        }
+    }
+
+    private void addStatus(Map object) {
+        if (!object.containsKey("success")) {
+            object.put("success", true);
+        }
+        if (!object.containsKey("message")) {
+            object.put("message", "");
+        }
+
+        this.elapsedCpuTime = getCpuTime() - startCpuTime;
+        this.elapsedUserTime = getUserTime() - startUserTime;
+        Map<String, Double> resources = new HashMap<String, Double>();
+        resources.put("cpuTime", elapsedCpuTime / 1.0E9);
+        resources.put("userTime", elapsedUserTime / 1.0E9);
+        object.put("diagnostics", resources);
+    }
+
+    /**
+     * Writes the elements of a streamed json response.
+     */
+    public class JsonStream {
+        private static final int FLUSH_INTERVAL = 100;
+
+        private final PrintWriter writer;
+        private int numElements = 0;
+        private boolean finished = false;
+
+        private JsonStream(PrintWriter writer, String key) {
+            this.writer = writer;
+            writer.print("{" + JSONValue.toJSONString(key) + ":[");
+        }
+
+        /**
+         * Appends an element to the array and periodically flushes it to the client.
+         */
+        public void write(Object element) {
+            if (finished) {
+                throw new IllegalStateException("json response is already finished");
+            }
+            if (numElements++ > 0) {
+                writer.print(",");
+            }
+            writer.print(JSONValue.toJSONString(element));
+            if (numElements % FLUSH_INTERVAL == 0) {
+                writer.flush();
+            }
+        }
+
+        /**
+         * Closes the array and writes the remaining entries of the response.
+         * @param keysAndValues key1, value1, key2, value2, ...
+         */
+        public void finish(Object ...keysAndValues) {
+            if (keysAndValues.length % 2 != 0) {
+                throw new IllegalArgumentException();
+            }
+            Map obj = new HashMap();
+            for (int i = 0; i < keysAndValues.length; i += 2) {
+                obj.put(keysAndValues[i], keysAndValues[i + 1]);
+            }
+            finish(obj);
+        }
+
+        private void finish(Map object) {
+            addStatus(object);
+            // The rest of the response is the object without its opening brace
+            writer.println("]," + JSONObject.toJSONString(object).substring(1));
+            writer.flush();
+            finished = true;
+        }
     }
 }
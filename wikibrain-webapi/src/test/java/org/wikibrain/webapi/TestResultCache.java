@@ -0,0 +1,140 @@
+package org.wikibrain.webapi;
+
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestResultCache {
+
+    private static Callable<Object> counting(final AtomicInteger calls, final Object value) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                calls.incrementAndGet();
+                return value;
+            }
+        };
+    }
+
+    @Test
+    public void testHitsAndNulls() throws DaoException {
+        ResultCache cache = new ResultCache(100000, 100000);
+        AtomicInteger calls = new AtomicInteger();
+        assertEquals("foo", cache.get(ResultCache.key("similarity", "simple", "a1", 3), counting(calls, "foo")));
+        assertEquals("foo", cache.get(ResultCache.key("similarity", "simple", "a1", 3), counting(calls, "bar")));
+        assertNull(cache.get(ResultCache.key("similarity", "simple", "a2", 3), counting(calls, null)));
+        assertNull(cache.get(ResultCache.key("similarity", "simple", "a2", 3), counting(calls, "bar")));
+        assertEquals(2, calls.get());
+        assertEquals(2L, cache.getStats().get("hits"));
+        assertEquals(2L, cache.getStats().get("misses"));
+    }
+
+    @Test
+    public void testEviction() throws DaoException {
+        ResultCache cache = new ResultCache(2000, 100000);
+        AtomicInteger calls = new AtomicInteger();
+        for (int i = 0; i < 100; i++) {
+            cache.get(ResultCache.key(i), counting(calls, "value " + i));
+            // Keep the first key recently used
+            cache.get(ResultCache.key(0), counting(calls, "value 0"));
+        }
+        assertEquals(100, calls.get());
+        assertTrue((Long) cache.getStats().get("bytes") <= 2000);
+        assertTrue((Long) cache.getStats().get("evictions") > 0);
+
+        cache.get(ResultCache.key(0), counting(calls, "value 0"));
+        assertEquals(100, calls.get());
+        cache.get(ResultCache.key(1), counting(calls, "value 1"));
+        assertEquals(101, calls.get());
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        ResultCache cache = new ResultCache(100000, 50);
+        AtomicInteger calls = new AtomicInteger();
+        cache.get(ResultCache.key("x"), counting(calls, "x"));
+        cache.get(ResultCache.key("x"), counting(calls, "x"));
+        assertEquals(1, calls.get());
+        Thread.sleep(100);
+        cache.get(ResultCache.key("x"), counting(calls, "x"));
+        assertEquals(2, calls.get());
+        assertEquals(1L, cache.getStats().get("expirations"));
+    }
+
+    @Test
+    public void testFailuresAreNotCached() throws DaoException {
+        ResultCache cache = new ResultCache(100000, 100000);
+        try {
+            cache.get(ResultCache.key("x"), new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    throw new DaoException("failed");
+                }
+            });
+            fail();
+        } catch (DaoException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        AtomicInteger calls = new AtomicInteger();
+        assertEquals("x", cache.get(ResultCache.key("x"), counting(calls, "x")));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        final ResultCache cache = new ResultCache(100000, 100000);
+        final List<Object> key = ResultCache.key("mostSimilar", "simple", "a1", 10);
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Object results[] = new Object[5];
+
+        Thread threads[] = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        results[n] = cache.get(key, new Callable<Object>() {
+                            @Override
+                            public Object call() throws Exception {
+                                calls.incrementAndGet();
+                                started.countDown();
+                                release.await();
+                                return "result";
+                            }
+                        });
+                    } catch (DaoException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+            if (i == 0) {
+                started.await();
+            }
+        }
+        // Give the other threads time to wait on the computation in flight
+        while ((Long) cache.getStats().get("coalesced") < threads.length - 1) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(1, calls.get());
+        for (Object r : results) {
+            assertEquals("result", r);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.wikibrain.webapi;
+
+import org.eclipse.jetty.server.Request;
+import org.json.simple.JSONValue;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.cmd.Env;
+import org.wikibrain.core.dao.*;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.Title;
+import org.wikibrain.sr.SRMetric;
+import org.wikibrain.sr.SRResult;
+import org.wikibrain.sr.SRResultList;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Runs requests against the batch, cosimilarity and streamed endpoints
+ * of a server backed by mock daos and a mock SR metric.
+ *
+ * @author Shilad Sen
+ */
+public class TestWikiBrainServer {
+    private static final Language LANG = Language.SIMPLE;
+
+    private final Map<Integer, LocalPage> pages = new HashMap<Integer, LocalPage>();
+    private SRMetric sr;
+    private WikiBrainServer server;
+
+    @Before
+    public void createServer() throws Exception {
+        for (int id = 1; id <= 5; id++) {
+            pages.put(id, new LocalPage(LANG, id, new Title("Page " + id, LANG), NameSpace.ARTICLE));
+        }
+        LocalPageDao pageDao = mock(LocalPageDao.class);
+        when(pageDao.getByIds(eq(LANG), anyCollection())).thenAnswer(new Answer<Map<Integer, LocalPage>>() {
+            @Override
+            public Map<Integer, LocalPage> answer(InvocationOnMock invocation) {
+                Map<Integer, LocalPage> result = new HashMap<Integer, LocalPage>();
+                for (Object id : (Collection) invocation.getArguments()[1]) {
+                    result.put((Integer) id, pages.get(id));
+                }
+                return result;
+            }
+        });
+        when(pageDao.get(any(DaoFilter.class))).thenReturn(Arrays.asList(pages.get(1)));
+
+        sr = mock(SRMetric.class);
+        Configurator configurator = mock(Configurator.class);
+        when(configurator.get(LocalPageDao.class)).thenReturn(pageDao);
+        when(configurator.get(LocalLinkDao.class)).thenReturn(mock(LocalLinkDao.class));
+        when(configurator.get(LocalCategoryMemberDao.class)).thenReturn(mock(LocalCategoryMemberDao.class));
+        when(configurator.get(SRMetric.class, "simple-ensemble", "language", LANG.getLangCode())).thenReturn(sr);
+        Env env = mock(Env.class);
+        when(env.getConfigurator()).thenReturn(configurator);
+        when(env.getLanguages()).thenReturn(new LanguageSet(LANG));
+
+        server = new WikiBrainServer(env);
+    }
+
+    /**
+     * Sends a request to the server and parses its response, which must be valid json.
+     * @param params key1, value1, key2, value2, ...
+     */
+    private Map request(String target, String ...params) throws Exception {
+        final Map<String, String> values = new HashMap<String, String>();
+        for (int i = 0; i < params.length; i += 2) {
+            values.put(params[i], params[i + 1]);
+        }
+        Request request = mock(Request.class);
+        when(request.getParameter(anyString())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                return values.get(invocation.getArguments()[0]);
+            }
+        });
+        StringWriter out = new StringWriter();
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getWriter()).thenReturn(new PrintWriter(out));
+
+        server.handle(target, request, mock(HttpServletRequest.class), response);
+        verify(request).setHandled(true);
+        return (Map) JSONValue.parseWithException(out.toString());
+    }
+
+    private void scorePairsByIds() throws Exception {
+        when(sr.similarity(anyInt(), anyInt(), anyBoolean())).thenAnswer(new Answer<SRResult>() {
+            @Override
+            public SRResult answer(InvocationOnMock invocation) throws Throwable {
+                int id1 = (Integer) invocation.getArguments()[0];
+                int id2 = (Integer) invocation.getArguments()[1];
+                if (id1 == 5) {
+                    throw new DaoException("no vector for " + id1);
+                }
+                return new SRResult((id1 * 10 + id2) / 100.0);
+            }
+        });
+    }
+
+    @Test
+    public void testBatchSimilarity() throws Exception {
+        scorePairsByIds();
+        Map json = request("/batchSimilarity", "lang", "simple", "articleIds", "1|2|3|4");
+        assertEquals(true, json.get("success"));
+        List results = (List) json.get("results");
+        assertEquals(2, results.size());
+
+        Map first = (Map) results.get(0);
+        assertEquals(0.12, (Double) first.get("score"), 0.000001);
+        assertEquals(1L, ((Map) first.get("entity1")).get("articleId"));
+        assertEquals(2L, ((Map) first.get("entity2")).get("articleId"));
+        Map second = (Map) results.get(1);
+        assertEquals(0.34, (Double) second.get("score"), 0.000001);
+        assertEquals(3L, ((Map) second.get("entity1")).get("articleId"));
+
+        json = request("/batchSimilarity", "lang", "simple", "articleIds", "1|2|3");
+        assertEquals(false, json.get("success"));
+        assertNull(json.get("results"));
+    }
+
+    @Test
+    public void testStreamFailure() throws Exception {
+        // The second pair fails after the first has been streamed
+        scorePairsByIds();
+        Map json = request("/batchSimilarity", "lang", "simple", "articleIds", "1|2|5|4");
+        assertEquals(false, json.get("success"));
+        assertEquals("no vector for 5", json.get("message"));
+        assertNotNull(json.get("error"));
+        List results = (List) json.get("results");
+        assertEquals(1, results.size());
+        assertEquals(0.12, (Double) ((Map) results.get(0)).get("score"), 0.000001);
+    }
+
+    @Test
+    public void testBatchMostSimilar() throws Exception {
+        when(sr.mostSimilar(anyInt(), anyInt())).thenAnswer(new Answer<SRResultList>() {
+            @Override
+            public SRResultList answer(InvocationOnMock invocation) {
+                int id = (Integer) invocation.getArguments()[0];
+                int n = (Integer) invocation.getArguments()[1];
+                SRResultList list = new SRResultList(n);
+                for (int i = 0; i < n; i++) {
+                    list.set(i, id + i + 1, 1.0 - 0.1 * i);
+                }
+                return list;
+            }
+        });
+        Map json = request("/batchMostSimilar", "lang", "simple", "articleIds", "1|4", "n", "2");
+        assertEquals(true, json.get("success"));
+        List results = (List) json.get("results");
+        assertEquals(2, results.size());
+
+        Map first = (Map) results.get(0);
+        assertEquals(1L, ((Map) first.get("entity")).get("articleId"));
+        List neighbors = (List) first.get("results");
+        assertEquals(2, neighbors.size());
+        assertEquals(2L, ((Map) neighbors.get(0)).get("articleId"));
+        assertEquals("Page 2", ((Map) neighbors.get(0)).get("title"));
+        assertEquals(0.9, (Double) ((Map) neighbors.get(1)).get("score"), 0.000001);
+
+        // Neighbors that are not loaded keep their id
+        neighbors = (List) ((Map) results.get(1)).get("results");
+        assertEquals("Page 5", ((Map) neighbors.get(0)).get("title"));
+        assertEquals(6L, ((Map) neighbors.get(1)).get("articleId"));
+        assertEquals("Unknown", ((Map) neighbors.get(1)).get("title"));
+    }
+
+    @Test
+    public void testCosimilarity() throws Exception {
+        when(sr.cosimilarity(aryEq(new int[] { 1, 2 }))).thenReturn(new double[][] {
+                { 1.0, 0.5 },
+                { 0.5, Double.NaN }
+        });
+        Map json = request("/cosimilarity", "lang", "simple", "articleIds", "1|2");
+        assertEquals(true, json.get("success"));
+        assertEquals(2, ((List) json.get("rows")).size());
+        assertEquals(2, ((List) json.get("columns")).size());
+        List matrix = (List) json.get("matrix");
+        assertEquals(Arrays.asList(1.0, 0.5), matrix.get(0));
+        assertEquals(Arrays.asList(0.5, null), matrix.get(1));
+
+        when(sr.cosimilarity(aryEq(new int[] { 1, 2 }), aryEq(new int[] { 3 }))).thenReturn(new double[][] {
+                { 0.1 },
+                { 0.2 }
+        });
+        json = request("/cosimilarity", "lang", "simple", "rowArticleIds", "1|2", "colArticleIds", "3");
+        assertEquals(true, json.get("success"));
+        assertEquals(2L, ((Map) ((List) json.get("rows")).get(1)).get("articleId"));
+        assertEquals(3L, ((Map) ((List) json.get("columns")).get(0)).get("articleId"));
+        assertEquals(Arrays.asList(Arrays.asList(0.1), Arrays.asList(0.2)), json.get("matrix"));
+
+        // Rows and columns must both be given
+        json = request("/cosimilarity", "lang", "simple", "rowArticleIds", "1|2");
+        assertEquals(false, json.get("success"));
+    }
+}